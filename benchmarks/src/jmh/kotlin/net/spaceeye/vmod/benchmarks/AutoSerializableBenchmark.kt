@@ -0,0 +1,101 @@
+package net.spaceeye.vmod.benchmarks
+
+import com.fasterxml.jackson.annotation.JsonIgnore
+import io.netty.buffer.Unpooled
+import net.minecraft.nbt.CompoundTag
+import net.minecraft.network.FriendlyByteBuf
+import net.minecraft.resources.ResourceLocation
+import net.spaceeye.vmod.reflectable.AutoSerializable
+import net.spaceeye.vmod.reflectable.ByteSerializableItem.get
+import net.spaceeye.vmod.reflectable.constructor
+import net.spaceeye.vmod.reflectable.getByteCodec
+import net.spaceeye.vmod.reflectable.tDeserialize
+import net.spaceeye.vmod.reflectable.tSerialize
+import net.spaceeye.vmod.utils.Vector3d
+import net.spaceeye.vmod.utils.accessByteBufWithCorrectSize
+import org.openjdk.jmh.annotations.*
+import java.awt.Color
+import java.util.concurrent.TimeUnit
+
+// same layout as data of A2BRenderer, which is the most common synchronised item
+class BenchRendererData: AutoSerializable {
+    @JsonIgnore private var i = 0
+
+    var shipId1: Long by get(i++, -1L)
+    var shipId2: Long by get(i++, -1L)
+
+    var point1: Vector3d by get(i++, Vector3d())
+    var point2: Vector3d by get(i++, Vector3d())
+
+    var color: Color by get(i++, Color(0))
+
+    var width: Double by get(i++, .2)
+    var fullbright: Boolean by get(i++, false)
+
+    var texture: ResourceLocation by get(i++, ResourceLocation("the_vmod", "textures/white.png"))
+}
+
+// dataclass packets are constructed from the buffer by KClass.constructor
+data class BenchPacket(val shipId: Long, val pos: Vector3d, val channel: String, val force: Double): AutoSerializable
+
+/**
+ * serialize/deserialize read delegates from fields resolved once per class, serializeItems/deserializeItems are the
+ * fallback that builds a sorted item list on every call, same as every call did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class AutoSerializableBenchmark {
+    private lateinit var data: BenchRendererData
+    private lateinit var bytes: ByteArray
+    private lateinit var tag: CompoundTag
+    private lateinit var packet: BenchPacket
+    private lateinit var packetBytes: ByteArray
+
+    @Setup
+    fun setup() {
+        data = BenchRendererData().also {
+            it.shipId1 = 12
+            it.shipId2 = 345
+            it.point1 = Vector3d(1.5, 64.0, -3.25)
+            it.point2 = Vector3d(-100.0, 70.5, 20.0)
+            it.color = Color(255, 128, 0, 200)
+            it.width = 0.5
+        }
+        bytes = data.serialize().accessByteBufWithCorrectSize()
+        tag = data.tSerialize()
+        packet = BenchPacket(12, Vector3d(1.5, 64.0, -3.25), "channel", 10.0)
+        packetBytes = packet.serialize().accessByteBufWithCorrectSize()
+    }
+
+    @Benchmark
+    fun serialize(): FriendlyByteBuf = data.serialize()
+
+    @Benchmark
+    fun deserialize(): BenchRendererData = BenchRendererData().also { it.deserialize(FriendlyByteBuf(Unpooled.wrappedBuffer(bytes))) }
+
+    @Benchmark
+    fun serializeItems(): FriendlyByteBuf = FriendlyByteBuf(Unpooled.buffer(64)).also { buf ->
+        val items = data.getAllReflectableItems()
+        for (i in items.indices) { items[i].getByteCodec().serialize(items[i].it!!, buf) }
+    }
+
+    @Benchmark
+    fun deserializeItems(): BenchRendererData = BenchRendererData().also {
+        val buf = FriendlyByteBuf(Unpooled.wrappedBuffer(bytes))
+        val items = it.getReflectableItemsWithoutDataclassConstructorItems()
+        for (i in items.indices) { items[i].setValue(null, null, items[i].getByteCodec().deserialize(buf)!!) }
+    }
+
+    @Benchmark
+    fun tagSerialize(): CompoundTag = data.tSerialize()
+
+    @Benchmark
+    fun tagDeserialize(): BenchRendererData = BenchRendererData().also { it.tDeserialize(tag) }
+
+    @Benchmark
+    fun serializePacket(): FriendlyByteBuf = packet.serialize()
+
+    @Benchmark
+    fun constructPacket(): BenchPacket = BenchPacket::class.constructor(FriendlyByteBuf(Unpooled.wrappedBuffer(packetBytes)))
+}
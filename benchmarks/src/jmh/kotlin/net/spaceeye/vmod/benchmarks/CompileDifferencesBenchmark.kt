@@ -0,0 +1,117 @@
+package net.spaceeye.vmod.benchmarks
+
+import io.netty.buffer.ByteBuf
+import net.minecraft.network.FriendlyByteBuf
+import net.spaceeye.vmod.networking.AckedPage
+import net.spaceeye.vmod.networking.Serializable
+import net.spaceeye.vmod.networking.SerializedItemsCache
+import net.spaceeye.vmod.networking.T2RSynchronizationTickData
+import net.spaceeye.vmod.networking.compileDifferences
+import net.spaceeye.vmod.utils.Vector3d
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Transmitter side of SynchronisedData without networking. Pages are what ships are for rendering data, and every
+ * subscriber is subscribed to every page.
+ *
+ * [synchronizeUpdates] does what SynchronisedDataTransmitter.synchronizeUpdates does for every subscriber, except for
+ * sending the serialized packet, as transmitters can't be created without a network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class CompileDifferencesBenchmark {
+    @Param("64", "1000")
+    @JvmField var pages = 0
+    @Param("1024", "10000")
+    @JvmField var items = 0
+    @Param("1", "100")
+    @JvmField var subscribers = 0
+    @Param("32")
+    @JvmField var updatedItems = 0
+
+    private val itemWriter: (FriendlyByteBuf, Serializable) -> Unit = { buf, item -> buf.writeBytes(item.serialize()) }
+    private val itemReader: (FriendlyByteBuf) -> Serializable = { buf -> BenchRendererData().also { it.deserialize(buf) } }
+
+    private val data = mutableMapOf<Long, MutableMap<Int, Serializable>>()
+    private val updates = mutableMapOf<Long, MutableMap<Int, Serializable?>?>()
+    private val pageVersions = mutableMapOf<Long, Long>()
+    private val itemVersions = mutableMapOf<Int, Long>()
+    private var version = 0L
+
+    // subscribers that already have everything
+    private lateinit var syncedAcked: List<MutableMap<Long, AckedPage>>
+
+    @Setup
+    fun setup() {
+        for (idx in 0 until items) {
+            val page = (idx % pages).toLong()
+            data.getOrPut(page) { mutableMapOf() }[idx] = BenchRendererData().also { it.shipId1 = page; it.point1 = Vector3d(idx, idx, idx) }
+            itemVersions[idx] = ++version
+            pageVersions[page] = version
+        }
+
+        syncedAcked = List(subscribers) { newSubscriber().also {
+            compileDifferences(data, it, true, pageVersions, itemVersions, itemWriter, itemReader, null)
+        } }
+
+        val step = maxOf(1, items / updatedItems)
+        for (i in 0 until updatedItems) {
+            val itemIdx = (i * step) % items
+            val page = (itemIdx % pages).toLong()
+            updates.getOrPut(page) { mutableMapOf() }!![itemIdx] = data[page]!![itemIdx]
+        }
+    }
+
+    private fun newSubscriber() = data.keys.associateWithTo(mutableMapOf()) { AckedPage() }
+
+    private fun bumpUpdatedVersions() {
+        updates.forEach { (page, items) ->
+            items!!.keys.forEach { itemVersions[it] = ++version }
+            pageVersions[page] = version
+        }
+    }
+
+    private fun synchronizeUpdates(cache: () -> SerializedItemsCache?, bh: Blackhole) {
+        bumpUpdatedVersions()
+        val pass = cache()
+        for (acked in syncedAcked) {
+            val res = compileDifferences(updates, acked, false, pageVersions, itemVersions, itemWriter, itemReader, pass) ?: continue
+            bh.consume(res.serialize())
+        }
+    }
+
+    @Benchmark
+    fun fullSyncNewSubscriber(): T2RSynchronizationTickData? =
+        compileDifferences(data, newSubscriber(), true, pageVersions, itemVersions, itemWriter, itemReader, null)
+
+    @Benchmark
+    fun fullSyncUpToDateSubscriber(): T2RSynchronizationTickData? =
+        compileDifferences(data, syncedAcked[0], true, pageVersions, itemVersions, itemWriter, itemReader, null)
+
+    @Benchmark
+    fun incrementalUpdate(): T2RSynchronizationTickData? {
+        bumpUpdatedVersions()
+        return compileDifferences(updates, syncedAcked[0], false, pageVersions, itemVersions, itemWriter, itemReader, null)
+    }
+
+    @Benchmark
+    fun incrementalUpdateSerialized(): ByteBuf? {
+        bumpUpdatedVersions()
+        return compileDifferences(updates, syncedAcked[0], false, pageVersions, itemVersions, itemWriter, itemReader, SerializedItemsCache(itemWriter))?.serialize()
+    }
+
+    /**
+     * Items are serialized once per pass and copied for every subscriber
+     */
+    @Benchmark
+    fun synchronizeUpdates(bh: Blackhole) = synchronizeUpdates({ SerializedItemsCache(itemWriter) }, bh)
+
+    /**
+     * Every subscriber serializes items on its own, as before items were cached
+     */
+    @Benchmark
+    fun synchronizeUpdatesWithoutCache(bh: Blackhole) = synchronizeUpdates({ null }, bh)
+}
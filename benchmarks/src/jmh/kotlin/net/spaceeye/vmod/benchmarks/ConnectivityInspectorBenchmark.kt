@@ -0,0 +1,54 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.utils.MyConnectivityInspector
+import org.jgrapht.graph.AsSynchronizedGraph
+import org.jgrapht.graph.DefaultEdge
+import org.jgrapht.graph.DefaultListenableGraph
+import org.jgrapht.graph.Multigraph
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Same graph setup as VSJointsTracker. Ships are connected in chains, which is the worst case for edge removal
+ * as every removal has to traverse the rest of the chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class ConnectivityInspectorBenchmark {
+    @Param("100", "1000")
+    @JvmField var ships = 0
+    @Param("10")
+    @JvmField var chainLength = 0
+
+    private lateinit var graph: DefaultListenableGraph<Long, DefaultEdge>
+    private lateinit var inspector: MyConnectivityInspector<Long, DefaultEdge>
+    private var next = 0L
+
+    @Setup(Level.Iteration)
+    fun setup() {
+        graph = DefaultListenableGraph(AsSynchronizedGraph(Multigraph<Long, DefaultEdge>(DefaultEdge::class.java)))
+        inspector = MyConnectivityInspector(graph)
+        graph.addGraphListener(inspector)
+
+        for (id in 0L until ships) {
+            graph.addVertex(id)
+            if (id % chainLength != 0L) { graph.addEdge(id - 1, id) }
+        }
+        inspector.connectedSets()
+        next = 0L
+    }
+
+    // removes edge in the middle of a chain and connects it back, so graph is the same between invocations
+    @Benchmark
+    fun removeEdge(): Boolean {
+        val chain = next++ % (ships / chainLength)
+        val a = chain * chainLength + chainLength / 2 - 1
+        val b = a + 1
+
+        graph.removeEdge(a, b)
+        val connected = inspector.pathExists(a, b)
+        graph.addEdge(a, b)
+        return connected
+    }
+}
@@ -0,0 +1,70 @@
+package net.spaceeye.vmod.benchmarks
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import net.spaceeye.vmod.networking.deflate
+import net.spaceeye.vmod.networking.inflate
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Splitting and reassembling of data the same way DataStream does it, without sending packets
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class DataStreamBenchmark {
+    @Param("65536", "4194304")
+    @JvmField var size = 0
+    @Param("30000")
+    @JvmField var partByteAmount = 0
+    @Param("true", "false")
+    @JvmField var compress = false
+
+    private lateinit var raw: ByteBuf
+    private lateinit var parts: List<ByteBuf>
+    private var sentLength = 0
+
+    @Setup
+    fun setup() {
+        // schematics and synchronised data are mostly repeating small ints, so data is made to compress similarly
+        val random = Random(0)
+        raw = Unpooled.buffer(size)
+        while (raw.writerIndex() < size) {
+            raw.writeByte(if (random.nextInt(4) == 0) random.nextInt(256) else random.nextInt(8))
+        }
+
+        val sent = if (compress) deflate(raw) else raw
+        sentLength = sent.writerIndex()
+        parts = (0 until numParts(sentLength)).map { part ->
+            val start = part * partByteAmount
+            Unpooled.copiedBuffer(sent, start, min(sentLength - start, partByteAmount))
+        }
+    }
+
+    private fun numParts(length: Int) = max(1, (length + partByteAmount - 1) / partByteAmount)
+
+    @Benchmark
+    fun transmitterSplit(bh: Blackhole) {
+        val data = if (compress) deflate(raw) else raw
+        val length = data.writerIndex()
+        for (part in 0 until numParts(length)) {
+            val start = part * partByteAmount
+            val slice = data.retainedSlice(start, min(length - start, partByteAmount))
+            bh.consume(slice)
+            slice.release()
+        }
+    }
+
+    @Benchmark
+    fun receiverReassemble(): ByteBuf {
+        val data = Unpooled.buffer(sentLength, sentLength)
+        parts.forEachIndexed { i, part -> data.setBytes(i * partByteAmount, part, part.readerIndex(), part.readableBytes()) }
+        data.writerIndex(sentLength)
+        return if (compress) inflate(data, size)!! else data
+    }
+}
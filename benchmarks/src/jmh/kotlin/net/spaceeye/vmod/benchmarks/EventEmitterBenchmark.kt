@@ -0,0 +1,65 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.utils.KeyedEventEmitter
+import net.spaceeye.vmod.utils.SafeEventEmitter
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Emits from two threads at once (like phys and server threads do) while a third thread keeps adding listeners that
+ * unsubscribe themselves. Persistent listeners count their calls, and every iteration checks that none were lost or
+ * called twice.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class EventEmitterBenchmark {
+    @Param("16")
+    @JvmField var persistent = 0
+
+    private lateinit var emitter: SafeEventEmitter<Long>
+    private lateinit var keyed: KeyedEventEmitter<Long, Long>
+    private val calls = AtomicLong()
+    private val emits = AtomicLong()
+    private val keyedEmits = AtomicLong()
+
+    @Setup(Level.Iteration)
+    fun setup() {
+        emitter = SafeEventEmitter()
+        keyed = KeyedEventEmitter()
+        calls.set(0)
+        emits.set(0)
+        for (i in 0 until persistent) {
+            emitter.on { _, _ -> calls.incrementAndGet() }
+            keyed.on(i.toLong()) { _, _ -> }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    fun check() {
+        val expected = emits.get() * persistent
+        if (calls.get() != expected) throw IllegalStateException("Expected $expected calls of persistent listeners, got ${calls.get()}")
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(1)
+    fun physEmit() {
+        emitter.emit(0L)
+        emits.incrementAndGet()
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(1)
+    fun serverEmit() {
+        emitter.emit(1L)
+        emits.incrementAndGet()
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(1)
+    fun churn() {
+        val handle = emitter.on { _, unsubscribe -> unsubscribe() }
+        if (emits.get() and 1L == 0L) { handle.unsubscribe() }
+    }
+
+    @Benchmark @Group("keyed") @GroupThreads(2)
+    fun keyedEmit() = keyed.emit(keyedEmits.incrementAndGet() % persistent, 0L)
+}
@@ -0,0 +1,87 @@
+package net.spaceeye.vmod.benchmarks
+
+import com.mojang.blaze3d.platform.NativeImage
+import net.spaceeye.vmod.rendering.textures.GIFFrameStream
+import net.spaceeye.vmod.rendering.textures.GIFReader
+import org.lwjgl.system.MemoryUtil
+import org.openjdk.jmh.annotations.*
+import java.awt.Color
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.TimeUnit
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageTypeSpecifier
+
+/**
+ * Decoding of generated gif into texture memory. Textures are never uploaded, so [NativeImage] is replaced with a
+ * single dummy image, and memory is freed right after decoding.
+ *
+ * [streamFrames] decodes the same gif through [GIFFrameStream] into a single reused page, like streamed gifs are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class GIFReaderBenchmark {
+    @Param("128", "512")
+    @JvmField var frameSize = 0
+    @Param("32")
+    @JvmField var frames = 0
+    // what GL_MAX_ARRAY_TEXTURE_LAYERS usually is
+    @Param("2048")
+    @JvmField var maxLayers = 0
+
+    private lateinit var gif: ByteArray
+    private lateinit var dummyImage: NativeImage
+
+    @Setup
+    fun setup() {
+        gif = makeGif(frameSize, frames)
+        dummyImage = NativeImage(1, 1, false)
+    }
+
+    @TearDown
+    fun tearDown() { dummyImage.close() }
+
+    @Benchmark
+    fun readGifToTexturesFaster(): Int {
+        val textures = GIFReader.readGifToTexturesFaster(gif, maxLayers) { _, _, _ -> dummyImage }
+        textures.forEach { MemoryUtil.nmemFree(it.ptr) }
+        return textures.size
+    }
+
+    @Benchmark
+    fun streamFrames(): Int {
+        GIFFrameStream(gif).use { stream ->
+            val page = stream.allocPage()
+            val delays = IntArray(stream.numFrames)
+            var decoded = 0
+            while (decoded < stream.numFrames) { decoded += stream.decodePage(page, delays) }
+            MemoryUtil.memFree(page)
+            return decoded
+        }
+    }
+
+    private fun makeGif(size: Int, frames: Int): ByteArray {
+        val out = ByteArrayOutputStream()
+        val writer = ImageIO.getImageWritersByFormatName("gif").next()
+        ImageIO.createImageOutputStream(out).use { stream ->
+            writer.output = stream
+            writer.prepareWriteSequence(null)
+            val type = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB)
+            for (i in 0 until frames) {
+                val img = BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB)
+                val g = img.createGraphics()
+                g.color = Color.getHSBColor(i / frames.toFloat(), 1f, 1f)
+                g.fillRect(0, 0, size, size)
+                g.color = Color.WHITE
+                g.fillOval(i * size / frames, size / 4, size / 2, size / 2)
+                g.dispose()
+                writer.writeToSequence(IIOImage(img, null, writer.getDefaultImageMetadata(type, null)), null)
+            }
+            writer.endWriteSequence()
+        }
+        writer.dispose()
+        return out.toByteArray()
+    }
+}
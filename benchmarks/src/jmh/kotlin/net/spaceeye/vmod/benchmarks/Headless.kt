@@ -0,0 +1,18 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.minecraft.SharedConstants
+import net.minecraft.server.Bootstrap
+
+/**
+ * Vanilla registries are needed for anything that touches block states, but nothing of the client or server is started
+ */
+object Headless {
+    private var bootstrapped = false
+
+    @JvmStatic @Synchronized fun bootstrap() {
+        if (bootstrapped) return
+        SharedConstants.tryDetectVersion()
+        Bootstrap.bootStrap()
+        bootstrapped = true
+    }
+}
@@ -0,0 +1,90 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.utils.LongPosMapList
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jol.info.GraphLayout
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Usage pattern of VEntityManager, where positions are spread over a few ships in shipyard. Methods prefixed with
+ * "nested" do the same with [NestedPosMapList], the structure LongPosMapList replaced.
+ *
+ * Retained size of both filled structures is measured with JOL and printed on setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class LongPosMapListBenchmark {
+    @Param("1000", "100000", "1000000")
+    @JvmField var positions = 0
+
+    private lateinit var xs: IntArray
+    private lateinit var ys: IntArray
+    private lateinit var zs: IntArray
+    private lateinit var filled: LongPosMapList<Int>
+    private lateinit var nestedFilled: NestedPosMapList<Int>
+
+    @Setup
+    fun setup() {
+        val random = Random(0)
+        xs = IntArray(positions); ys = IntArray(positions); zs = IntArray(positions)
+        for (i in 0 until positions) {
+            // shipyard coordinates are large, ships are at most a few chunks wide
+            val ship = random.nextInt(16)
+            xs[i] = 28_000_000 + ship * 4096 + random.nextInt(64)
+            ys[i] = random.nextInt(384) - 64
+            zs[i] = 28_000_000 + random.nextInt(64)
+        }
+        filled = LongPosMapList()
+        for (i in 0 until positions) { filled.addItemTo(i, xs[i], ys[i], zs[i]) }
+        nestedFilled = NestedPosMapList()
+        for (i in 0 until positions) { nestedFilled.addItemTo(i, xs[i], ys[i], zs[i]) }
+
+        println("Retained size for $positions positions: LongPosMapList ${GraphLayout.parseInstance(filled).totalSize()} B, " +
+                "NestedPosMapList ${GraphLayout.parseInstance(nestedFilled).totalSize()} B")
+    }
+
+    @Benchmark
+    fun add(): LongPosMapList<Int> {
+        val map = LongPosMapList<Int>()
+        for (i in 0 until positions) { map.addItemTo(i, xs[i], ys[i], zs[i]) }
+        return map
+    }
+
+    @Benchmark
+    fun get(bh: Blackhole) {
+        for (i in 0 until positions) { bh.consume(filled.getItemsAt(xs[i], ys[i], zs[i])) }
+    }
+
+    @Benchmark
+    fun addRemove() {
+        for (i in 0 until positions) { filled.removeItemFromPos(i, xs[i], ys[i], zs[i]) }
+        for (i in 0 until positions) { filled.addItemTo(i, xs[i], ys[i], zs[i]) }
+    }
+
+    @Benchmark
+    fun forEachInBox(bh: Blackhole) {
+        val x = xs[0]; val z = zs[0]
+        filled.forEachInBox(x - 16, -64, z - 16, x + 16, 320, z + 16) { _, _, _, items -> bh.consume(items) }
+    }
+
+    @Benchmark
+    fun nestedAdd(): NestedPosMapList<Int> {
+        val map = NestedPosMapList<Int>()
+        for (i in 0 until positions) { map.addItemTo(i, xs[i], ys[i], zs[i]) }
+        return map
+    }
+
+    @Benchmark
+    fun nestedGet(bh: Blackhole) {
+        for (i in 0 until positions) { bh.consume(nestedFilled.getItemsAt(xs[i], ys[i], zs[i])) }
+    }
+
+    @Benchmark
+    fun nestedAddRemove() {
+        for (i in 0 until positions) { nestedFilled.removeItemFromPos(i, xs[i], ys[i], zs[i]) }
+        for (i in 0 until positions) { nestedFilled.addItemTo(i, xs[i], ys[i], zs[i]) }
+    }
+}
@@ -0,0 +1,33 @@
+package net.spaceeye.vmod.benchmarks
+
+/**
+ * y -> x -> z nested maps that LongPosMapList replaced, kept as a baseline
+ */
+class NestedPosMapList<T> {
+    // y, x, z
+    private val yxz: MutableMap<Int, MutableMap<Int, MutableMap<Int, MutableList<T>>>> = mutableMapOf()
+
+    fun addItemTo(item: T, x: Int, y: Int, z: Int) {
+        yxz.getOrPut(y) { mutableMapOf() }
+            .getOrPut(x) { mutableMapOf() }
+            .getOrPut(z) { mutableListOf()}
+            .add(item)
+    }
+
+    fun getItemsAt(x: Int, y: Int, z: Int) = yxz.get(y)?.get(x)?.get(z)
+
+    fun removeItemFromPos(item: T, x: Int, y: Int, zPos: Int): Boolean {
+        val xz = yxz[y] ?: return false
+        val  z =  xz[x] ?: return false
+        val it =   z[zPos] ?: return false
+        if (!it.remove(item)) { return false }
+
+        if (it.isNotEmpty()) { return true }
+        z.remove(zPos)
+        if (z.isNotEmpty())  { return true }
+        xz.remove(x)
+        if (xz.isNotEmpty()) { return true }
+        yxz.remove(y)
+        return true
+    }
+}
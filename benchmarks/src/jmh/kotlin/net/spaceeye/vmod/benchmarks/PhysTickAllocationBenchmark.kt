@@ -0,0 +1,95 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.shipAttachments.GravityController
+import net.spaceeye.vmod.utils.JVector3d
+import net.spaceeye.vmod.utils.Vector3d
+import net.spaceeye.vmod.vEntityManaging.types.entities.ThrusterVEntity
+import org.joml.Vector3dc
+import org.openjdk.jmh.annotations.*
+import org.valkyrienskies.core.api.VsBeta
+import org.valkyrienskies.core.api.ships.PhysShip
+import org.valkyrienskies.core.api.ships.properties.ShipId
+import org.valkyrienskies.core.internal.world.VsiPhysLevel
+import java.lang.management.ManagementFactory
+import java.lang.reflect.Proxy
+import java.util.concurrent.TimeUnit
+
+/**
+ * Phys ticks of thrusters and gravity controllers run for every ship on every phys tick, so they shouldn't allocate
+ * once they're warmed up. Run with "-prof gc", gc.alloc.rate.norm should be ~0 B/op.
+ *
+ * Setup also counts bytes allocated by the thread over [CHECKED_TICKS] ticks and fails the trial if ticks allocate.
+ */
+@OptIn(VsBeta::class)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class PhysTickAllocationBenchmark {
+    // everything that isn't overridden throws, as ticks shouldn't use it
+    private inline fun <reified T> unsupported(): T = Proxy.newProxyInstance(T::class.java.classLoader, arrayOf(T::class.java)) { _, method, _ ->
+        throw UnsupportedOperationException(method.name)
+    } as T
+
+    private class FakeShip(proxy: PhysShip): PhysShip by proxy {
+        var applied = 0
+
+        override val mass: Double get() = 1000.0
+        override fun applyInvariantForce(force: Vector3dc) { applied++ }
+        override fun applyBodyForce(force: Vector3dc, pos: Vector3dc) { applied++ }
+    }
+
+    private class FakePhysLevel(proxy: VsiPhysLevel, val ship: PhysShip): VsiPhysLevel by proxy {
+        override fun getShipById(id: ShipId): PhysShip? = ship
+    }
+
+    private lateinit var ship: FakeShip
+    private lateinit var level: FakePhysLevel
+    private lateinit var thruster: ThrusterVEntity
+    private lateinit var gravity: GravityController
+
+    @Setup
+    fun setup() {
+        Headless.bootstrap()
+        ship = FakeShip(unsupported())
+        level = FakePhysLevel(unsupported(), ship)
+
+        thruster = ThrusterVEntity(1L, Vector3d(1, 2, 3), Vector3d(0, 1, 0), 1000.0, "")
+        thruster.compiledForce = JVector3d(0.0, 500.0, 0.0)
+
+        gravity = GravityController("minecraft:overworld")
+        gravity.useDimensionGravity = false
+        gravity.gravityVector = JVector3d(0.0, -5.0, 0.0)
+
+        checkNoAllocations()
+    }
+
+    private fun allocatedBytes(): Long =
+        (ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean).getThreadAllocatedBytes(Thread.currentThread().id)
+
+    private fun checkNoAllocations() {
+        repeat(WARMUP_TICKS) { thrusterPhysTick(); gravityPhysTick() }
+        val before = allocatedBytes()
+        repeat(CHECKED_TICKS) { thrusterPhysTick(); gravityPhysTick() }
+        val perTick = (allocatedBytes() - before).toDouble() / CHECKED_TICKS
+        if (perTick > MAX_BYTES_PER_TICK) { throw IllegalStateException("Phys ticks allocate $perTick B per tick in steady state") }
+    }
+
+    @Benchmark
+    fun thrusterPhysTick(): Int {
+        thruster.physTick(level, 1.0 / 60.0)
+        return ship.applied
+    }
+
+    @Benchmark
+    fun gravityPhysTick(): Int {
+        gravity.physTick(ship, level)
+        return ship.applied
+    }
+
+    companion object {
+        private const val WARMUP_TICKS = 200_000
+        private const val CHECKED_TICKS = 1_000_000
+        // allocation counter itself allocates a little
+        private const val MAX_BYTES_PER_TICK = 0.01
+    }
+}
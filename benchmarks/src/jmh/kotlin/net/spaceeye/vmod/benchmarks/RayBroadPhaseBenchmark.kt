@@ -0,0 +1,75 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.vsStuff.RayBroadPhase
+import org.openjdk.jmh.annotations.*
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Broad phase of a batch of sensor rays, as PhysRaycastingScheduler does it at the end of a tick, with synthetic ships
+ * and world. Rays are short sensor rays scattered over an area with ships; a third of sections of the world are filled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class RayBroadPhaseBenchmark {
+    @Param("10", "100", "1000")
+    @JvmField var ships = 0
+    @Param("100", "1000")
+    @JvmField var rays = 0
+
+    private val broadPhase = RayBroadPhase()
+    private lateinit var shipBounds: DoubleArray
+    // [minX, minY, minZ, maxX, maxY, maxZ] per ray
+    private lateinit var rayBounds: DoubleArray
+
+    private val filter = RayBroadPhase.SectionFilter { sx, sy, sz -> ((sx * 31 + sy) * 31 + sz) % 3 == 0 }
+
+    @Setup
+    fun setup() {
+        val random = Random(0)
+        val area = 512.0
+
+        shipBounds = DoubleArray(ships * 6)
+        for (s in 0 until ships) {
+            val x = random.nextDouble() * area; val y = 32 + random.nextDouble() * 64; val z = random.nextDouble() * area
+            val size = 4 + random.nextDouble() * 28
+            shipBounds[s*6  ] = x;        shipBounds[s*6+1] = y;        shipBounds[s*6+2] = z
+            shipBounds[s*6+3] = x + size; shipBounds[s*6+4] = y + size; shipBounds[s*6+5] = z + size
+        }
+
+        rayBounds = DoubleArray(rays * 6)
+        for (r in 0 until rays) {
+            val x = random.nextDouble() * area; val y = 32 + random.nextDouble() * 64; val z = random.nextDouble() * area
+            val dist = 1 + random.nextDouble() * 15
+            val tx = x + (random.nextDouble() * 2 - 1) * dist
+            val ty = y + (random.nextDouble() * 2 - 1) * dist
+            val tz = z + (random.nextDouble() * 2 - 1) * dist
+            rayBounds[r*6  ] = min(x, tx); rayBounds[r*6+1] = min(y, ty); rayBounds[r*6+2] = min(z, tz)
+            rayBounds[r*6+3] = max(x, tx); rayBounds[r*6+4] = max(y, ty); rayBounds[r*6+5] = max(z, tz)
+        }
+    }
+
+    // amount of ray-ship pairs and rays that need a world clip, so that nothing is optimized away
+    @Benchmark
+    fun batch(): Int {
+        for (s in 0 until ships) {
+            val i = s * 6
+            broadPhase.addShip(shipBounds[i], shipBounds[i+1], shipBounds[i+2], shipBounds[i+3], shipBounds[i+4], shipBounds[i+5])
+        }
+
+        var candidates = 0
+        for (r in 0 until rays) {
+            val i = r * 6
+            val minX = rayBounds[i  ]; val minY = rayBounds[i+1]; val minZ = rayBounds[i+2]
+            val maxX = rayBounds[i+3]; val maxY = rayBounds[i+4]; val maxZ = rayBounds[i+5]
+            if (broadPhase.hasBlocksIn(minX, minY, minZ, maxX, maxY, maxZ, filter)) { candidates++ }
+            broadPhase.forEachOverlappingShip(minX, minY, minZ, maxX, maxY, maxZ) { candidates++ }
+        }
+
+        broadPhase.clear()
+        return candidates
+    }
+}
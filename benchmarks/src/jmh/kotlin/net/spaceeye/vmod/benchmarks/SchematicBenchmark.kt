@@ -0,0 +1,123 @@
+package net.spaceeye.vmod.benchmarks
+
+import io.netty.buffer.Unpooled
+import net.minecraft.network.FriendlyByteBuf
+import net.minecraft.world.level.block.Blocks
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.BlockItem
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.ChunkyBlockData
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.ShipInfo
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.ShipSchematicInfo
+import net.spaceeye.vmod.schematic.StreamingSchematicFile
+import net.spaceeye.vmod.schematic.VModShipSchematicV2
+import net.spaceeye.vmod.utils.accessByteBufWithCorrectSize
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.primitives.AABBi
+import org.openjdk.jmh.annotations.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serialization of synthetic schematic made of solid cubes, without any ships or levels.
+ *
+ * Setup fails the trial if schematic read back from a streaming file isn't equal to the one that was written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class SchematicBenchmark {
+    @Param("1", "8")
+    @JvmField var ships = 0
+    @Param("16", "64")
+    @JvmField var shipSize = 0
+
+    private lateinit var schem: VModShipSchematicV2
+    private lateinit var bytes: ByteArray
+    private lateinit var file: Path
+    private lateinit var readFile: Path
+
+    @Setup
+    fun setup() {
+        Headless.bootstrap()
+        val random = Random(0)
+        val states = listOf(Blocks.STONE, Blocks.OAK_PLANKS, Blocks.GLASS, Blocks.IRON_BLOCK, Blocks.OAK_STAIRS).map { it.defaultBlockState() }
+
+        schem = VModShipSchematicV2()
+        val ids = states.map { schem.blockPalette.toId(it) }
+        val half = shipSize / 2
+
+        for (ship in 0L until ships) {
+            val data = ChunkyBlockData<BlockItem>()
+            for (x in -half until half)
+            for (y in -half until half)
+            for (z in -half until half) {
+                data.add(x, y, z, BlockItem(ids[random.nextInt(ids.size)], -1))
+            }
+            schem.blockData[ship] = data
+        }
+
+        schem.info = ShipSchematicInfo(
+            Vector3d(half.toDouble()),
+            (0L until ships).map {
+                ShipInfo(
+                    it,
+                    Vector3d(it * shipSize.toDouble(), 0.0, 0.0),
+                    AABBi(-half, -half, -half, half, half, half),
+                    Vector3d(),
+                    Vector3d(),
+                    1.0,
+                    Quaterniond()
+                )
+            }
+        )
+
+        bytes = schem.serialize().accessByteBufWithCorrectSize()
+
+        file = Files.createTempFile("vmod-bench", ".vschem")
+        readFile = Files.createTempFile("vmod-bench-read", ".vschem")
+        StreamingSchematicFile.write(readFile, schem)
+        verifyRoundTrip()
+    }
+
+    // everything except block data is written by VSS, so it's compared as serialized by it
+    private fun withoutBlocks(schem: VModShipSchematicV2) = VModShipSchematicV2().also {
+        it.blockPalette = schem.blockPalette
+        it.entityData = schem.entityData
+        it.flatTagData = schem.flatTagData
+        it.extraData = schem.extraData
+        it.info = schem.info
+    }.serialize().accessByteBufWithCorrectSize()
+
+    private fun blocks(data: ChunkyBlockData<BlockItem>) = HashSet<String>().also { set ->
+        data.forEach { x, y, z, item -> set.add("$x $y $z ${item.paletteId} ${item.extraDataId}") }
+    }
+
+    private fun verifyRoundTrip() {
+        val read = StreamingSchematicFile.open(readFile).use { it.readAll() }
+        if (!withoutBlocks(schem).contentEquals(withoutBlocks(read))) throw IllegalStateException("Streaming schematic header differs after round trip")
+        if (schem.blockData.keys != read.blockData.keys) throw IllegalStateException("Streaming schematic ships differ after round trip")
+        schem.blockData.forEach { (id, data) ->
+            if (blocks(data) != blocks(read.blockData[id]!!)) throw IllegalStateException("Streaming schematic blocks of ship $id differ after round trip")
+        }
+    }
+
+    @TearDown
+    fun tearDown() {
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(readFile)
+    }
+
+    @Benchmark
+    fun serialize(): FriendlyByteBuf = schem.serialize()
+
+    @Benchmark
+    fun deserialize(): VModShipSchematicV2 = VModShipSchematicV2().also { it.deserialize(FriendlyByteBuf(Unpooled.wrappedBuffer(bytes))) }
+
+    @Benchmark
+    fun streamingWrite() = StreamingSchematicFile.write(file, schem)
+
+    @Benchmark
+    fun streamingRead(): VModShipSchematicV2 = StreamingSchematicFile.open(readFile).use { it.readAll() }
+}
@@ -0,0 +1,164 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.minecraft.core.BlockPos
+import net.minecraft.nbt.CompoundTag
+import net.minecraft.world.level.block.Block
+import net.minecraft.world.level.block.Blocks
+import net.minecraft.world.level.block.state.BlockState
+import net.minecraft.world.level.chunk.PalettedContainer
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.BlockItem
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.ChunkyBlockData
+import net.spaceeye.vmod.schematic.SchematicActionsQueue.CapturedChunk
+import net.spaceeye.vmod.schematic.VModShipSchematicV2
+import org.openjdk.jmh.annotations.*
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Schematic copying of synthetic chunks, block by block as it used to be done and from section copies as
+ * SchematicActionsQueue does it now. Chunks have partial bounds, empty sections and block entities, some of which are
+ * cancelled or have no tag, same as compat and unsaved containers do.
+ *
+ * Setup fails the trial if both ways don't produce identical block data, palette and flat tag data, with and without
+ * compat copying plain blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class SchematicCaptureBenchmark {
+    @Param("16", "256")
+    @JvmField var chunks = 0
+    @Param("false", "true")
+    @JvmField var plainBlocks = false
+
+    private class SyntheticChunk(
+        val cx: Int, val cz: Int,
+        val minX: Int, val maxX: Int, val minZ: Int, val maxZ: Int, val minY: Int, val maxY: Int,
+        // by section y
+        val sections: Map<Int, PalettedContainer<BlockState>>,
+        val blockEntities: Set<BlockPos>,
+    ) {
+        fun getBlockState(x: Int, y: Int, z: Int): BlockState = sections[y shr 4]?.get(x, y and 15, z) ?: Blocks.AIR.defaultBlockState()
+
+        // final tag of a block as server thread would have it
+        fun captureBlock(plainBlocks: Boolean, x: Int, y: Int, z: Int): CompoundTag? {
+            val hash = (x * 31 + y) * 31 + z
+            if (BlockPos(x + cx * 16, y, z + cz * 16) in blockEntities) return when {
+                hash % 7 == 0 -> CapturedChunk.CANCELLED
+                hash % 5 == 0 -> null
+                else -> CompoundTag().also { it.putString("id", "chest"); it.putInt("x", x); it.putInt("y", y); it.putInt("z", z) }
+            }
+            // compat that doesn't copy plain blocks can't cancel them
+            return if (plainBlocks && hash % 11 == 0) CapturedChunk.CANCELLED else null
+        }
+    }
+
+    private val shipCenter = BlockPos(8, 0, 8)
+    private lateinit var world: List<SyntheticChunk>
+
+    @Setup
+    fun setup() {
+        Headless.bootstrap()
+        val random = Random(0)
+        val states = listOf(Blocks.STONE, Blocks.OAK_PLANKS, Blocks.GLASS, Blocks.IRON_BLOCK, Blocks.OAK_STAIRS).map { it.defaultBlockState() }
+        val chest = Blocks.CHEST.defaultBlockState()
+
+        world = (0 until chunks).map { i ->
+            val cx = i % 16
+            val cz = i / 16
+            val minY = random.nextInt(16) - 16
+            val maxY = 64 + random.nextInt(16)
+            val blockEntities = HashSet<BlockPos>()
+            val sections = HashMap<Int, PalettedContainer<BlockState>>()
+            for (sectionY in (minY shr 4)..((maxY - 1) shr 4)) {
+                // every third section is empty
+                if (sectionY % 3 == 0) continue
+                val section = PalettedContainer(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES)
+                for (x in 0 until 16) for (y in 0 until 16) for (z in 0 until 16) {
+                    val r = random.nextInt(64)
+                    when {
+                        r < 24 -> {}
+                        r == 24 -> { section.set(x, y, z, chest); blockEntities.add(BlockPos(x + cx * 16, (sectionY shl 4) + y, z + cz * 16)) }
+                        else -> section.set(x, y, z, states[r % states.size])
+                    }
+                }
+                sections[sectionY] = section
+            }
+            SyntheticChunk(cx, cz, random.nextInt(4), 12 + random.nextInt(5), random.nextInt(4), 12 + random.nextInt(5), minY, maxY, sections, blockEntities)
+        }
+
+        verify(false)
+        verify(true)
+    }
+
+    private fun verify(plainBlocks: Boolean) {
+        val old = perBlock(plainBlocks)
+        val new = sectionCopy(plainBlocks)
+
+        fun blocks(schem: VModShipSchematicV2) = ArrayList<String>().also { list ->
+            schem.blockData[0L]!!.forEach { x, y, z, item -> list.add("$x $y $z ${item.paletteId} ${item.extraDataId}") }
+        }
+        if (blocks(old) != blocks(new)) throw IllegalStateException("Captured block data differs, plainBlocks=$plainBlocks")
+        if (old.flatTagData != new.flatTagData) throw IllegalStateException("Captured flat tag data differs, plainBlocks=$plainBlocks")
+        var id = 0
+        while (true) {
+            val state = old.blockPalette.fromId(id)
+            if (state != new.blockPalette.fromId(id)) throw IllegalStateException("Captured palettes differ at $id, plainBlocks=$plainBlocks")
+            if (state == null) break
+            id++
+        }
+    }
+
+    // copying before section copies, every block is read and passed to compat on the server thread
+    private fun perBlock(plainBlocks: Boolean): VModShipSchematicV2 {
+        val schem = VModShipSchematicV2()
+        val data = ChunkyBlockData<BlockItem>()
+        for (chunk in world) {
+            for (y in chunk.minY until chunk.maxY) {
+            for (x in chunk.minX until chunk.maxX) {
+            for (z in chunk.minZ until chunk.maxZ) {
+                val state = chunk.getBlockState(x, y, z)
+                if (state.isAir) {continue}
+
+                val tag = chunk.captureBlock(plainBlocks, x, y, z)
+                if (tag === CapturedChunk.CANCELLED) { continue }
+
+                val fed = if (tag == null) {-1} else {
+                    schem.flatTagData.add(tag)
+                    schem.flatTagData.size - 1
+                }
+
+                data.add(
+                    x + chunk.cx * 16 - shipCenter.x,
+                    y                 - shipCenter.y,
+                    z + chunk.cz * 16 - shipCenter.z,
+                    BlockItem(schem.blockPalette.toId(state), fed)
+                )
+            } } }
+        }
+        schem.blockData[0L] = data
+        return schem
+    }
+
+    private fun sectionCopy(plainBlocks: Boolean): VModShipSchematicV2 {
+        val captured = world.mapNotNull { chunk ->
+            CapturedChunk.capture(
+                chunk.cx, chunk.cz, chunk.minX, chunk.maxX, chunk.minZ, chunk.maxZ, chunk.minY, chunk.maxY,
+                plainBlocks, chunk.blockEntities,
+                { sectionY -> chunk.sections[sectionY]?.copy() },
+                { _, x, y, z -> chunk.captureBlock(plainBlocks, x, y, z) }
+            )
+        }
+        val schem = VModShipSchematicV2()
+        val data = ChunkyBlockData<BlockItem>()
+        captured.forEach { it.build(data, schem.flatTagData, schem.blockPalette, shipCenter) }
+        schem.blockData[0L] = data
+        return schem
+    }
+
+    @Benchmark
+    fun perBlock(): VModShipSchematicV2 = perBlock(plainBlocks)
+
+    @Benchmark
+    fun sectionCopy(): VModShipSchematicV2 = sectionCopy(plainBlocks)
+}
@@ -0,0 +1,54 @@
+package net.spaceeye.vmod.benchmarks
+
+import io.netty.buffer.Unpooled
+import net.minecraft.network.FriendlyByteBuf
+import net.spaceeye.vmod.utils.LongPosMap
+import net.spaceeye.vmod.utils.SectionFloatMap
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Custom masses of a [size]^3 ship where every block has one, as they were stored before ([LongPosMap] of boxed
+ * doubles) and after ([SectionFloatMap]).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class SectionFloatMapBenchmark {
+    @Param("64")
+    @JvmField var size = 0
+
+    private lateinit var floatMap: SectionFloatMap
+    private lateinit var posMap: LongPosMap<Double>
+    private lateinit var packed: ByteArray
+
+    @Setup
+    fun setup() {
+        floatMap = SectionFloatMap()
+        posMap = LongPosMap()
+        for (x in 0 until size) for (y in 0 until size) for (z in 0 until size) {
+            floatMap.set(x, y, z, (x + y + z).toFloat())
+            posMap.setItemTo((x + y + z).toDouble(), x, y, z)
+        }
+        packed = FriendlyByteBuf(Unpooled.buffer()).also { floatMap.write(it) }.let { it.array().copyOf(it.writerIndex()) }
+    }
+
+    @Benchmark
+    fun fillSectionFloatMap(): SectionFloatMap = SectionFloatMap().also { map ->
+        for (x in 0 until size) for (y in 0 until size) for (z in 0 until size) { map.set(x, y, z, 1f) }
+    }
+
+    @Benchmark
+    fun fillLongPosMap(): LongPosMap<Double> = LongPosMap<Double>().also { map ->
+        for (x in 0 until size) for (y in 0 until size) for (z in 0 until size) { map.setItemTo(1.0, x, y, z) }
+    }
+
+    @Benchmark
+    fun packSectionFloatMap(): Int = FriendlyByteBuf(Unpooled.buffer()).also { floatMap.write(it) }.writerIndex()
+
+    @Benchmark
+    fun unpackSectionFloatMap(): Int = SectionFloatMap().also { it.read(FriendlyByteBuf(Unpooled.wrappedBuffer(packed))) }.size
+
+    @Benchmark
+    fun listLongPosMap(): Int = posMap.asList().size
+}
@@ -0,0 +1,69 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.utils.ShipConnectivity
+import org.openjdk.jmh.annotations.*
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Joints are added mostly between ships close by id, so that there are many medium sized components instead of a single
+ * giant one. Churn removes a random joint and adds a new one, so amount of joints stays the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class ShipConnectivityBenchmark {
+    @Param("10000")
+    @JvmField var ships = 0
+    @Param("50000")
+    @JvmField var joints = 0
+    @Param("32")
+    @JvmField var neighbourhood = 0
+
+    private lateinit var connectivity: ShipConnectivity
+    private lateinit var jointShips1: LongArray
+    private lateinit var jointShips2: LongArray
+    private lateinit var random: Random
+
+    private fun randomJoint(i: Int) {
+        val ship1 = random.nextInt(ships).toLong()
+        val ship2 = (ship1 + 1 + random.nextInt(neighbourhood)) % ships
+        jointShips1[i] = ship1
+        jointShips2[i] = ship2
+    }
+
+    @Setup(Level.Iteration)
+    fun setup() {
+        random = Random(0)
+        connectivity = ShipConnectivity()
+        jointShips1 = LongArray(joints)
+        jointShips2 = LongArray(joints)
+        for (i in 0 until joints) {
+            randomJoint(i)
+            connectivity.addConnection(jointShips1[i], jointShips2[i])
+        }
+    }
+
+    @Benchmark
+    fun churn(): Int {
+        val i = random.nextInt(joints)
+        connectivity.removeConnection(jointShips1[i], jointShips2[i])
+        randomJoint(i)
+        return connectivity.addConnection(jointShips1[i], jointShips2[i])
+    }
+
+    @Benchmark
+    fun connected(): Boolean = connectivity.connected(random.nextInt(ships).toLong(), random.nextInt(ships).toLong())
+
+    @Benchmark
+    fun componentOf(): Int = connectivity.componentOf(random.nextInt(ships).toLong()).size
+
+    // removes ship with all of its joints and then connects it back
+    @Benchmark
+    fun removeShip(): Int {
+        val ship = random.nextInt(ships).toLong()
+        val neighbours = connectivity.removeShip(ship)
+        for (n in neighbours) { connectivity.addConnection(ship, n) }
+        return neighbours.size
+    }
+}
@@ -0,0 +1,40 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.spaceeye.vmod.network.SignalBus
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * A single tick of [channels] transmitters each sending [sendsPerChannel] signals to their own channel, with one
+ * receiver per channel. Run with "-prof gc" to check that a tick doesn't allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class SignalBusBenchmark {
+    @Param("100000")
+    @JvmField var channels = 0
+    @Param("1", "4")
+    @JvmField var sendsPerChannel = 0
+
+    private lateinit var bus: SignalBus
+    private var received = 0f
+
+    @Setup
+    fun setup() {
+        bus = SignalBus()
+        for (i in 0 until channels) {
+            bus.register(i) { percentage, _ -> received += percentage }
+        }
+    }
+
+    @Benchmark
+    fun tick(): Float {
+        for (s in 0 until sendsPerChannel) {
+        for (i in 0 until channels) {
+            bus.notify(i, s.toFloat() / sendsPerChannel)
+        } }
+        bus.deliver()
+        return received
+    }
+}
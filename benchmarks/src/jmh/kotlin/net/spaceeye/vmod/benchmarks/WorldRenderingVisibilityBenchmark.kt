@@ -0,0 +1,123 @@
+package net.spaceeye.vmod.benchmarks
+
+import net.minecraft.world.level.ChunkPos
+import net.spaceeye.vmod.networking.AckedPage
+import net.spaceeye.vmod.rendering.ChunkPages
+import org.openjdk.jmh.annotations.*
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Players moving one chunk every tick, as ServerWorldSynchronisedRenderingData sees them. Every op is a single tick
+ * in which every player moves, [fullRecompute] is how visible pages were found before they were updated incrementally.
+ *
+ * Setup fails the trial if incremental updates over random moves, including diagonal moves and jumps further than the
+ * view distance, don't leave every player with the same pages as a full recompute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class WorldRenderingVisibilityBenchmark {
+    @Param("200")
+    @JvmField var players = 0
+    @Param("32")
+    @JvmField var viewDistance = 0
+    @Param("100", "10000")
+    @JvmField var occupiedChunks = 0
+
+    private val chunkPages = ChunkPages()
+    private val cPosToPage = mutableMapOf<ChunkPos, Long>()
+
+    private lateinit var xs: IntArray
+    private lateinit var zs: IntArray
+    private lateinit var acked: Array<MutableMap<Long, AckedPage>>
+    private var step = 1
+
+    @Setup
+    fun setup() {
+        val random = Random(0)
+        // players and renderers are spread over the same area, so that most players see some of them
+        val area = 512
+        for (page in 0L until occupiedChunks) {
+            val x = random.nextInt(area) - area / 2
+            val z = random.nextInt(area) - area / 2
+            if (chunkPages[ChunkPos.asLong(x, z)] != null) continue
+            chunkPages.add(ChunkPos.asLong(x, z), page)
+            cPosToPage[ChunkPos(x, z)] = page
+        }
+
+        xs = IntArray(players) { random.nextInt(area) - area / 2 }
+        zs = IntArray(players) { random.nextInt(area) - area / 2 }
+        acked = Array(players) { i ->
+            mutableMapOf<Long, AckedPage>().also { acked -> chunkPages.forEachInSquare(xs[i], zs[i], viewDistance) { acked[it] = AckedPage() } }
+        }
+
+        verify(random)
+    }
+
+    private fun visiblePages(x: Int, z: Int): Set<Long> {
+        val pages = mutableSetOf<Long>()
+        for (cPos in ChunkPos.rangeClosed(ChunkPos(x, z), viewDistance)) { pages.add(cPosToPage[cPos] ?: continue) }
+        return pages
+    }
+
+    private fun verify(random: Random) {
+        for (i in 0 until players) {
+            var x = xs[i]; var z = zs[i]
+            val pages = acked[i].keys.toMutableSet()
+            if (pages != visiblePages(x, z)) throw IllegalStateException("Initial pages of player $i differ from full recompute")
+
+            repeat(VERIFIED_MOVES) { move ->
+                val reach = if (move % 8 == 0) viewDistance * 3 else 2
+                val nx = x + random.nextInt(reach * 2 + 1) - reach
+                val nz = z + random.nextInt(reach * 2 + 1) - reach
+                chunkPages.forEachOutside(x, z, nx, nz, viewDistance) { pages.remove(it) }
+                chunkPages.forEachOutside(nx, nz, x, z, viewDistance) { pages.add(it) }
+                x = nx; z = nz
+                if (pages != visiblePages(x, z)) throw IllegalStateException("Pages of player $i differ from full recompute after move $move to ($x, $z)")
+            }
+        }
+    }
+
+    // players walk back and forth, so they stay in the area
+    private fun nextStep(): Int {
+        step = -step
+        return step
+    }
+
+    @Benchmark
+    fun incremental(): Int {
+        val dx = nextStep()
+        var changed = 0
+        for (i in 0 until players) {
+            val x = xs[i]; val z = zs[i]
+            val playerAcked = acked[i]
+            chunkPages.forEachOutside(x, z, x + dx, z, viewDistance) { if (playerAcked.remove(it) != null) { changed++ } }
+            chunkPages.forEachOutside(x + dx, z, x, z, viewDistance) { if (!playerAcked.containsKey(it)) { playerAcked[it] = AckedPage(); changed++ } }
+            xs[i] = x + dx
+        }
+        return changed
+    }
+
+    @Benchmark
+    fun fullRecompute(): Int {
+        val dx = nextStep()
+        var changed = 0
+        for (i in 0 until players) {
+            xs[i] += dx
+            val playerAcked = acked[i]
+            val renderPages = visiblePages(xs[i], zs[i])
+
+            val toRemove = playerAcked.keys.subtract(renderPages)
+            val toAdd = renderPages.subtract(playerAcked.keys)
+            toRemove.forEach { playerAcked.remove(it) }
+            toAdd.forEach { playerAcked.getOrPut(it) { AckedPage() } }
+            changed += toRemove.size + toAdd.size
+        }
+        return changed
+    }
+
+    companion object {
+        private const val VERIFIED_MOVES = 64
+    }
+}
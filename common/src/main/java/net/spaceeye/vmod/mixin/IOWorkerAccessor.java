@@ -1,12 +1,22 @@
 package net.spaceeye.vmod.mixin;
 
+import com.mojang.datafixers.util.Either;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.storage.IOWorker;
 import net.minecraft.world.level.chunk.storage.RegionFileStorage;
 import org.jetbrains.annotations.NotNull;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.gen.Accessor;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 @Mixin(IOWorker.class)
 public interface IOWorkerAccessor {
     @Accessor("storage") @NotNull RegionFileStorage vmod$getStorage();
+    // only safe to access from tasks submitted with vmod$submitTask
+    @Accessor("pendingWrites") @NotNull Map<ChunkPos, ?> vmod$getPendingWrites();
+    @Invoker("submitTask") <T> CompletableFuture<T> vmod$submitTask(Supplier<Either<T, Exception>> task);
 }
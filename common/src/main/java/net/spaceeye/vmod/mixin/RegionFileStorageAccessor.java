@@ -1,5 +1,7 @@
 package net.spaceeye.vmod.mixin;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.minecraft.world.level.chunk.storage.RegionFile;
 import net.minecraft.world.level.chunk.storage.RegionFileStorage;
 import org.jetbrains.annotations.NotNull;
 import org.spongepowered.asm.mixin.Mixin;
@@ -10,4 +12,5 @@ import java.nio.file.Path;
 @Mixin(RegionFileStorage.class)
 public interface RegionFileStorageAccessor {
     @Accessor("folder") @NotNull Path vmod$getPath();
+    @Accessor("regionCache") @NotNull Long2ObjectLinkedOpenHashMap<RegionFile> vmod$getRegionCache();
 }
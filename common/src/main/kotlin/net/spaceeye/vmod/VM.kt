@@ -111,7 +111,7 @@ object VM {
         SchemCompatObj
         VSShipyardPruner
         VMToolgun
-//        PhysRaycastingScheduler //TODO
+        PhysRaycastingScheduler
         EnvExecutor.runInEnv(Env.CLIENT) { Runnable {
             ScreenWindow
             ClientPhysgunState
@@ -170,7 +170,7 @@ object VM {
             ServerObjectsHolder.shipObjectWorld = server.shipObjectWorld
             VEntityManager.initNewInstance()
 
-            VSGravityManager
+            VSGravityManager.registerEvents()
             PlayerAccessManager.afterInit()
         }
 
@@ -21,14 +21,10 @@ import net.minecraft.nbt.CompoundTag
 import net.minecraft.nbt.StreamTagVisitor
 import net.minecraft.network.chat.Component
 import net.minecraft.resources.ResourceLocation
-import net.minecraft.world.level.ChunkPos
 import net.minecraft.world.level.chunk.ChunkStatus
 import net.minecraft.world.level.chunk.storage.ChunkSerializer
 import net.spaceeye.valkyrien_ship_schematics.interfaces.v1.IShipSchematicDataV1
 import net.spaceeye.vmod.limits.ServerLimits
-import net.spaceeye.vmod.mixin.ChunkStorageAccessor
-import net.spaceeye.vmod.mixin.IOWorkerAccessor
-import net.spaceeye.vmod.mixin.RegionFileStorageAccessor
 import net.spaceeye.vmod.rendering.RenderingData
 import net.spaceeye.vmod.rendering.textures.GIFReader
 import net.spaceeye.vmod.rendering.textures.WrappedByteArrayInputStream
@@ -48,6 +44,7 @@ import net.spaceeye.vmod.utils.vs.teleportShipWithConnected
 import net.spaceeye.vmod.utils.vs.traverseGetAllTouchingShips
 import net.spaceeye.vmod.utils.vs.traverseGetConnectedShips
 import net.spaceeye.vmod.vsStuff.VSGravityManager
+import net.spaceeye.vmod.vsStuff.VSShipyardPruner
 import org.joml.Quaterniond
 import org.lwjgl.system.MemoryUtil
 import org.valkyrienskies.core.api.ships.LoadedServerShip
@@ -59,17 +56,11 @@ import org.valkyrienskies.mod.common.command.RelativeVector3Argument
 import org.valkyrienskies.mod.common.command.ShipArgument
 import org.valkyrienskies.mod.common.command.shipWorld
 import org.valkyrienskies.mod.common.dimensionId
-import org.valkyrienskies.mod.common.getShipManagingPos
-import org.valkyrienskies.mod.common.isChunkInShipyard
 import org.valkyrienskies.mod.common.shipObjectWorld
 import org.valkyrienskies.mod.common.util.toJOML
 import java.nio.file.Paths
 import java.util.UUID
 import kotlin.concurrent.thread
-import kotlin.io.path.deleteIfExists
-import kotlin.io.path.listDirectoryEntries
-import kotlin.io.path.name
-import kotlin.io.path.notExists
 import kotlin.math.max
 
 typealias MCS = CommandContext<CommandSourceStack>
@@ -355,38 +346,24 @@ object VMCommands {
             return 0
         }
 
-        fun pruneShipyardChunks(cc: CommandContext<CommandSourceStack>): Int { thread(true, true) {
-            cc.source.server.allLevels.forEach { level ->
-            val path = (((level.chunkSource.chunkMap as ChunkStorageAccessor).`vmod$getWorker`() as IOWorkerAccessor).`vmod$getStorage`() as RegionFileStorageAccessor).`vmod$getPath`()
-
-            if (path.notExists()) return@forEach
-
-            val regionsToCheck = path.listDirectoryEntries()
-                .map { it.fileName.name }
-                .filter { it.startsWith("r.") && it.endsWith(".mca") }
-                .map { it.removePrefix("r.").removeSuffix(".mca") }
-                .mapNotNull { try { it.split(".").map { it.toInt() }.let { Pair(it[0], it[1]) } } catch (_: Exception) {null} }
-                .map { (x, z) -> Pair(ChunkPos.minFromRegion(x, z), ChunkPos.maxFromRegion(x, z)) }
-                .filter { (min, max) -> level.isChunkInShipyard(min.x, min.z) || level.isChunkInShipyard(max.x, max.z) }
-
-            for ((i, bounds) in regionsToCheck.withIndex()) {
-                var allUnused = true
-                for (cPos in ChunkPos.rangeClosed(bounds.first, bounds.second)) {
-                    if (level.getShipManagingPos(cPos) == null) {continue}
-                    allUnused = false
-                    break
-                }
-                if (allUnused) {
-                    val regX = bounds.first.regionX
-                    val regZ = bounds.first.regionZ
-                    val path = path.resolve("r.$regX.${regZ}.mca")
-                    path.deleteIfExists()
-                    DLOG("Dimension: ${level.dimensionId} | Removed region ${bounds.first.regionX}.${bounds.first.regionZ} | ${i+1}/${regionsToCheck.size}")
-                } else {
-                    DLOG("Dimension: ${level.dimensionId} | Processed ${i+1}/${regionsToCheck.size}")
-                }
+        fun pruneShipyardChunks(cc: CommandContext<CommandSourceStack>): Int {
+            if (!VSShipyardPruner.scanAll(cc.source.server)) {
+                cc.source.sendFailure(Component.literal("Shipyard is already being scanned"))
+                return 1
             }
-            } }
+            cc.source.sendSuccess({ Component.literal("Started scanning shipyard regions") }, true)
+            return 0
+        }
+
+        fun pruneShipyardChunksStatus(cc: CommandContext<CommandSourceStack>): Int {
+            val progress = VSShipyardPruner.progress(cc.source.server)
+            cc.source.sendSuccess({ Component.literal("Pending regions: ${progress.pendingRegions} | Pruned regions: ${progress.prunedRegions}${if (progress.scanning) " | Scanning" else ""}") }, false)
+            return 0
+        }
+
+        fun pruneShipyardChunksCancel(cc: CommandContext<CommandSourceStack>): Int {
+            VSShipyardPruner.cancel()
+            cc.source.sendSuccess({ Component.literal("Cancelled scan of shipyard regions, regions of deleted ships are still pruned") }, true)
             return 0
         }
     }
@@ -580,6 +557,8 @@ object VMCommands {
                 ).then(lt("clear-vmod-attachments").executes { OP.clearVmodAttachments(it) }
 //                ).then(lt("delete-phys-entities").executes { OP.deletePhysEntities(it) }
                 ).then(lt("prune-shipyard-chunks").executes { OP.pruneShipyardChunks(it) }
+                    .then(lt("status").executes { OP.pruneShipyardChunksStatus(it) })
+                    .then(lt("cancel").executes { OP.pruneShipyardChunksCancel(it) })
                 )
             ).also {
                 if (!Platform.isDevelopmentEnvironment()) return@also
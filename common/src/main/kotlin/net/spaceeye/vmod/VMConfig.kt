@@ -25,9 +25,12 @@ object VMConfig {
 
         class ClientRenderingSettings: ConfigSubDirectory() {
             val MAX_RENDERING_DISTANCE: Double by CDouble(200.0, "Max distance in blocks some renderers are able to render. Reload the game for change to take the effect.", Pair(1.0, Double.MAX_VALUE))
+            val GIF_DECODER_THREADS: Int by CInt(2, "Number of threads loading and decoding gifs. Reload the game for change to take the effect.", Pair(1, 8))
         }
     }
-    class Common: ConfigSubDirectory()
+    class Common: ConfigSubDirectory() {
+        val STREAMING_SCHEMATIC_FORMAT: Boolean by CBool(false, "Saves schematics in a format that is written and loaded without keeping the whole file in memory. Schematics saved in it can't be loaded by older versions of VMod or shared with people using them.")
+    }
     class Server: ConfigSubDirectory() {
 
         val SCALE_THRUSTERS_THRUST: Boolean by CBool(true)
@@ -54,6 +57,7 @@ object VMConfig {
             val MAX_SHIPS_ALLOWED_TO_COPY: Int by CInt(-1, "Number of connected ships a player can copy in one request. <=0 for unlimited.", do_show = false)
 
             val SCHEMATIC_PACKET_PART_SIZE: Int by CInt(30000, "Reload the game for change to take the effect.", Pair(512, 1000000))
+            val MAX_SCHEMATIC_UPLOAD_SIZE_MB: Int by CInt(64, "Max size of a schematic a player can send to the server, in megabytes.", Pair(1, 2047))
         }
 
         class Permissions: ConfigSubDirectory() {
@@ -77,6 +81,7 @@ object VMConfig {
 
         class ShipyardPruner: ConfigSubDirectory() {
             var CLEAR_SHIP_PLOT_ON_DELETION: Boolean by CBool(true, "Will automatically delete region files of deleted ships")
+            val REGIONS_PER_BATCH: Int by CInt(8, "Max number of region files deleted in one IO task. Only one task is running at a time.", 1 to 1024)
         }
     }
 }
\ No newline at end of file
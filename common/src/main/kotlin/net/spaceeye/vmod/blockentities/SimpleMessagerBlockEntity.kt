@@ -10,17 +10,22 @@ import net.spaceeye.vmod.network.Message
 import net.spaceeye.vmod.network.MessageTypes
 import net.spaceeye.vmod.network.MessagingNetwork
 import net.spaceeye.vmod.network.Signal
+import net.spaceeye.vmod.utils.EventHandle
 
 class SimpleMessagerBlockEntity(pos: BlockPos, state: BlockState): BlockEntity(VMBlockEntities.SIMPLE_MESSAGER.get(), pos, state) {
     private var _transmit: Boolean = true
     private var _channel: String = "hydraulics"
-    private var num = 0
+    private var handle: EventHandle? = null
 
+    var channelId = MessagingNetwork.channelId(_channel)
+        private set
     var channel
         get() = _channel
         set(value) {
             _channel = value
-            num++
+            channelId = MessagingNetwork.channelId(value)
+            handle?.unsubscribe()
+            handle = null
             if (!transmit) {
                 initNetworkMaybe()
             }
@@ -43,14 +48,18 @@ class SimpleMessagerBlockEntity(pos: BlockPos, state: BlockState): BlockEntity(V
     }
 
     private fun initNetworkMaybe() {
-        var control = num
-        MessagingNetwork.register(channel) { msg, unregister ->
-            if (num != control) { unregister(); return@register }
-            if (msg !is Signal) {return@register}
-            this.msg = msg
+        handle = MessagingNetwork.registerSignal(channelId) { percentage, _ ->
+            val msg = msg
+            if (msg is Signal) { msg.percentage = percentage.toDouble() } else { this.msg = Signal(percentage.toDouble()) }
         }
     }
 
+    override fun setRemoved() {
+        super.setRemoved()
+        handle?.unsubscribe()
+        handle = null
+    }
+
     override fun load(tag: CompoundTag) {
         super.load(tag)
         msg = MessageTypes.deserialize(tag.getCompound("msg"))
@@ -45,15 +45,17 @@ class SimpleMessager(properties: Properties): BaseEntityBlock(properties) {
         if (!level.hasNeighborSignal(blockPos)) {
             if (msg is Signal && msg.percentage != 0.0) {
                 msg.percentage = 0.0
-                MessagingNetwork.notify(blockEntity.channel, msg)
+                MessagingNetwork.notifySignal(blockEntity.channelId, 0f)
             }
             return
         }
         if (msg is Signal) {
             val signal = level.getBestNeighborSignal(blockPos)
             msg.percentage = signal.toDouble() / 15.0
+            MessagingNetwork.notifySignal(blockEntity.channelId, signal / 15f)
+            return
         }
-        MessagingNetwork.notify(blockEntity.channel, msg)
+        MessagingNetwork.notify(blockEntity.channelId, msg)
     }
 
     private fun receiveMode(blockEntity: SimpleMessagerBlockEntity, level: ServerLevel, blockPos: BlockPos) {
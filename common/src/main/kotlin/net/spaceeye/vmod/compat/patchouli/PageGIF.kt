@@ -1,6 +1,7 @@
 package net.spaceeye.vmod.compat.patchouli
 
 import com.mojang.blaze3d.systems.RenderSystem
+import dev.architectury.event.events.client.ClientTickEvent
 import net.minecraft.client.Minecraft
 import net.minecraft.client.gui.GuiGraphics
 import net.minecraft.resources.ResourceLocation
@@ -15,43 +16,33 @@ class PageGIF: PageWithText() {
     var border = false
     var images = ArrayList<ResourceLocation>()
 
-    @Transient private var currentFrame: Int = 0
-    @Transient private var time: Float = 0f
+    @Transient private val playback = GIFTexture.Playback()
+    @Transient private var ref: GIFManager.Handle<GIFTexture>? = null
+    @Transient private var lastRendered = 0L
 
     override fun getTextHeight(): Int = 120
 
     override fun onDisplayed(parent: GuiBookEntry?, left: Int, top: Int) {
         super.onDisplayed(parent, left, top)
-        currentFrame = 0
-        time = 0f
+        playback.reset()
+        lastRendered = ticks
+        if (images.isNotEmpty()) { acquire() }
     }
 
-    private fun advanceTime(delta: Float, gif: GIFTexture) {
-        if (!gif.loadedSuccessfully.isDone || !gif.loadedSuccessfully.get()) return
-        // gif uses 1/100 th of a second and not milliseconds
-        time += delta / 10f
-        var delay = gif.sprites[currentFrame / gif.framesPerSprite].delays[currentFrame % gif.framesPerSprite]
-        if (time <= delay) return
-
-        //if delay is over a second then just reset
-        if (time > 100f) { time = 0f }
-
-        while (true) {
-            time -= delay
-            currentFrame++
-            if (currentFrame >= gif.totalFrames) { currentFrame = 0 }
-
-            delay = gif.sprites[currentFrame / gif.framesPerSprite].delays[currentFrame % gif.framesPerSprite]
-            if (time <= delay) {break}
-        }
+    private fun acquire(): GIFManager.Handle<GIFTexture> = ref ?: GIFManager.getTextureFromLocation(images[0]).also {
+        ref = it
+        displayed.add(this)
+    }
 
-        return
+    private fun release() {
+        ref?.close()
+        ref = null
     }
 
     override fun render(graphics: GuiGraphics, mouseX: Int, mouseY: Int, pticks: Float) {
-        //creates new object each frame but PageWithText doesn't have onClose so i have to do this otherwise i can't free texture after player closes page
         if (images.isEmpty()) { return }
-        val ref = GIFManager.getTextureFromLocation(images[0])
+        val ref = acquire()
+        lastRendered = ticks
 
         var x = GuiBook.PAGE_WIDTH / 2 - 53
         var y = 7
@@ -62,8 +53,8 @@ class PageGIF: PageWithText() {
 
         //ptick = delta / ms_per_tick
         //ms_per_tick = 50
-        advanceTime(Minecraft.getInstance().deltaFrameTime * 50, ref.it)
-        ref.it.blit(graphics.pose(), currentFrame, x*2+6, y*2+6, 200, 200)
+        ref.it.advance(playback, Minecraft.getInstance().deltaFrameTime * 50)
+        ref.it.blit(graphics.pose(), playback.frame, x*2+6, y*2+6, 200, 200)
 
         graphics.pose().scale(2f, 2f, 2f)
 
@@ -75,7 +66,18 @@ class PageGIF: PageWithText() {
         }
 
         super.render(graphics, mouseX, mouseY, pticks)
+    }
 
-        ref.close()
+    companion object {
+        private var ticks = 0L
+        private val displayed = mutableSetOf<PageGIF>()
+
+        // PageWithText doesn't have onClose, so pages that weren't rendered for a tick free their textures
+        init {
+            ClientTickEvent.CLIENT_POST.register {
+                ticks++
+                displayed.removeIf { page -> (ticks - page.lastRendered > 1).also { if (it) page.release() } }
+            }
+        }
     }
 }
\ No newline at end of file
@@ -30,6 +30,11 @@ interface SchemCompatItem {
 
     fun onEntityCopy(level: ServerLevel, entity: Entity, tag: CompoundTag, pos: Vector3d, shipCenter: Vector3d) {}
     fun onEntityPaste(level: ServerLevel, oldToNewId: Map<Long, Long>, tag: CompoundTag, pos: Vector3d, shipCenter: Vector3d) {}
+
+    /**
+     * If false, [onCopy] is only called for blocks with block entities or [net.spaceeye.valkyrien_ship_schematics.interfaces.ICopyableBlock]s
+     */
+    val copiesPlainBlocks: Boolean get() = false
 }
 
 interface ExternalVSchemCompatProvider {
@@ -38,11 +43,19 @@ interface ExternalVSchemCompatProvider {
 
     fun onEntityCopy(level: ServerLevel, entity: Entity, tag: CompoundTag, pos: Vector3d, shipCenter: Vector3d)
     fun onEntityPaste(level: ServerLevel, oldToNewId: Map<Long, Long>, tag: CompoundTag, pos: Vector3d, shipCenter: Vector3d)
+
+    /**
+     * If false, [onCopy] is only called for blocks with block entities or [net.spaceeye.valkyrien_ship_schematics.interfaces.ICopyableBlock]s,
+     * which allows every other block to be copied off-thread
+     */
+    val copiesPlainBlocks: Boolean get() = true
 }
 
 open class BaseVSchemCompatProvider(val logger: Logger): ExternalVSchemCompatProvider {
     private val items = mutableListOf<SchemCompatItem>()
 
+    override val copiesPlainBlocks: Boolean get() = items.any { it.copiesPlainBlocks }
+
     fun safeAdd(name: String, supplier: () -> SchemCompatItem) {
         try {
             if (Platform.isModLoaded(name)) {items.add(supplier()) }
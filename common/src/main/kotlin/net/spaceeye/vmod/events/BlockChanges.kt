@@ -0,0 +1,226 @@
+package net.spaceeye.vmod.events
+
+import dev.architectury.event.events.common.TickEvent
+import it.unimi.dsi.fastutil.ints.IntList
+import net.minecraft.core.BlockPos
+import net.minecraft.core.SectionPos
+import net.minecraft.server.level.ServerLevel
+import net.minecraft.world.level.block.Block
+import net.minecraft.world.level.block.Blocks
+import net.minecraft.world.level.block.state.BlockState
+import net.minecraft.world.level.chunk.LevelChunk
+import net.spaceeye.vmod.utils.EventHandle
+import net.spaceeye.vmod.utils.KeyedEventEmitter
+import net.spaceeye.vmod.utils.Listeners
+import net.spaceeye.vmod.utils.LongHashMap
+import net.spaceeye.vmod.utils.ServerClosable
+import org.valkyrienskies.core.api.ships.properties.ShipId
+import org.valkyrienskies.mod.common.dimensionId
+import org.valkyrienskies.mod.common.getShipManagingPos
+import org.valkyrienskies.mod.common.isChunkInShipyard
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Block state changes of server levels. Changes are buffered per chunk section and delivered in bulk at the end of a
+ * server tick, and only changes that someone listens to are buffered:
+ * * [onShip] gets every change of sections in shipyard of a ship
+ * * [onSection] gets every change of a section
+ * * [onBlock] gets batches with at least one change from or to an instance of a block class
+ *
+ * Whether section is listened to by ship or section listeners is only checked once per section per tick, so changes
+ * of sections nobody listens to cost a single lookup.
+ */
+object BlockChanges: ServerClosable() {
+    private const val MAX_POOLED = 256
+    // batches that grew past this many changes aren't pooled, so that a single big tick doesn't keep their arrays
+    private const val MAX_POOLED_CAPACITY = 1024
+
+    /**
+     * Changes of a single section in the order they were made. Reused after delivery, so it shouldn't be kept.
+     */
+    class Batch internal constructor() {
+        lateinit var level: ServerLevel
+            internal set
+        /**
+         * [SectionPos.asLong]
+         */
+        var section = 0L
+            internal set
+        /**
+         * Ship which shipyard section is in, or -1
+         */
+        var shipId: ShipId = -1L
+            internal set
+        var size = 0
+            internal set
+
+        // ship or section listeners want every change of the section, otherwise only changes of listened blocks are added
+        internal var wholeSection = false
+
+        internal val capacity get() = positions.size
+
+        private var positions = LongArray(16)
+        private var oldStates = IntArray(16)
+        private var newStates = IntArray(16)
+        private var moving = BooleanArray(16)
+
+        /**
+         * [BlockPos.asLong]
+         */
+        fun pos(i: Int) = positions[i]
+        fun oldState(i: Int): BlockState = Block.stateById(oldStates[i])
+        fun newState(i: Int): BlockState = Block.stateById(newStates[i])
+        fun isMoving(i: Int) = moving[i]
+
+        internal fun add(pos: Long, oldState: BlockState, newState: BlockState, isMoving: Boolean) {
+            if (size == positions.size) {
+                positions = positions.copyOf(size * 2)
+                oldStates = oldStates.copyOf(size * 2)
+                newStates = newStates.copyOf(size * 2)
+                moving = moving.copyOf(size * 2)
+            }
+            positions[size] = pos
+            oldStates[size] = Block.getId(oldState)
+            newStates[size] = Block.getId(newState)
+            moving[size] = isMoving
+            size++
+        }
+    }
+
+    private class BlockListener(@JvmField val cls: Class<*>, @JvmField val fn: (Batch) -> Unit)
+
+    private val shipListeners = KeyedEventEmitter<ShipId, Batch>()
+    private val sectionListeners = ConcurrentHashMap<String, KeyedEventEmitter<Long, Batch>>()
+    private val blockListeners = Listeners<BlockListener>()
+
+    private val lock = Any()
+    // level -> section -> batch, only accessed under lock
+    private val batches = IdentityHashMap<ServerLevel, LongHashMap<Batch>>()
+    private var pending = ArrayList<Batch>()
+    private var delivering = ArrayList<Batch>()
+    private val pool = ArrayList<Batch>()
+
+    fun onShip(shipId: ShipId, fn: (batch: Batch, unsubscribe: () -> Unit) -> Unit): EventHandle = shipListeners.on(shipId, fn)
+
+    fun onSection(level: ServerLevel, section: Long, fn: (batch: Batch, unsubscribe: () -> Unit) -> Unit): EventHandle =
+        sectionListeners.computeIfAbsent(level.dimensionId) { KeyedEventEmitter() }.on(section, fn)
+
+    fun onBlock(cls: Class<out Block>, fn: (batch: Batch) -> Unit): EventHandle = blockListeners.add(BlockListener(cls, fn))
+
+    private fun isListenedBlock(state: BlockState): Boolean {
+        val block = state.block
+        for (listener in blockListeners.current) {
+            if (!listener.removed && listener.fn.cls.isInstance(block)) return true
+        }
+        return false
+    }
+
+    private fun newBatch(level: ServerLevel, section: Long, pos: BlockPos): Batch {
+        val batch = if (pool.isEmpty()) Batch() else pool.removeAt(pool.size - 1)
+        batch.level = level
+        batch.section = section
+        batch.size = 0
+        batch.shipId = if (level.isChunkInShipyard(pos.x shr 4, pos.z shr 4)) level.getShipManagingPos(pos)?.id ?: -1L else -1L
+        batch.wholeSection = batch.shipId != -1L && shipListeners.hasListeners(batch.shipId)
+                || sectionListeners[level.dimensionId]?.hasListeners(section) ?: false
+        pending.add(batch)
+        return batch
+    }
+
+    /**
+     * Called by LevelChunkMixin before the block is changed
+     */
+    @JvmStatic
+    fun onSetBlockState(chunk: LevelChunk, level: ServerLevel, pos: BlockPos, newState: BlockState, isMoving: Boolean) {
+        synchronized(lock) {
+            val section = SectionPos.asLong(pos)
+            val forLevel = batches.getOrPut(level) { LongHashMap() }
+            val batch = forLevel[section] ?: newBatch(level, section, pos).also { forLevel[section] = it }
+
+            if (!batch.wholeSection && blockListeners.current.isEmpty()) return
+            val oldState = chunk.getBlockState(pos)
+            if (oldState === newState) return
+            if (!batch.wholeSection && !isListenedBlock(oldState) && !isListenedBlock(newState)) return
+
+            batch.add(pos.asLong(), oldState, newState, isMoving)
+        }
+    }
+
+    /**
+     * Called when a section that only had air was replaced without calling setBlockState. [positions] are packed as
+     * y shl 8 or z shl 4 or x, [states] are the new states at them.
+     */
+    @JvmStatic
+    fun onSectionFilled(level: ServerLevel, sx: Int, sy: Int, sz: Int, positions: IntList, states: List<BlockState>) {
+        val bx = SectionPos.sectionToBlockCoord(sx)
+        val by = SectionPos.sectionToBlockCoord(sy)
+        val bz = SectionPos.sectionToBlockCoord(sz)
+        synchronized(lock) {
+            val section = SectionPos.asLong(sx, sy, sz)
+            val forLevel = batches.getOrPut(level) { LongHashMap() }
+            val batch = forLevel[section] ?: newBatch(level, section, BlockPos(bx, by, bz)).also { forLevel[section] = it }
+
+            if (!batch.wholeSection && blockListeners.current.isEmpty()) return
+            val air = Blocks.AIR.defaultBlockState()
+            for (i in 0 until positions.size) {
+                val state = states[i]
+                if (state.isAir || !batch.wholeSection && !isListenedBlock(state)) continue
+                val p = positions.getInt(i)
+                batch.add(BlockPos.asLong(bx + (p and 15), by + ((p shr 8) and 15), bz + ((p shr 4) and 15)), air, state, false)
+            }
+        }
+    }
+
+    private fun deliver() {
+        // listeners can change blocks, which will be delivered on the next tick
+        val toDeliver = synchronized(lock) {
+            if (pending.isEmpty()) return
+            batches.clear()
+            pending.also { pending = delivering; delivering = it }
+        }
+
+        for (batch in toDeliver) {
+            if (batch.size == 0) continue
+            if (batch.shipId != -1L) { shipListeners.emit(batch.shipId, batch) }
+            sectionListeners[batch.level.dimensionId]?.emit(batch.section, batch)
+            for (listener in blockListeners.current) {
+                if (listener.removed || !hasListenedChange(batch, listener.fn.cls)) continue
+                listener.fn.fn(batch)
+            }
+        }
+
+        synchronized(lock) {
+            for (batch in toDeliver) {
+                if (pool.size >= MAX_POOLED || batch.capacity > MAX_POOLED_CAPACITY) continue
+                pool.add(batch)
+            }
+        }
+        toDeliver.clear()
+    }
+
+    private fun hasListenedChange(batch: Batch, cls: Class<*>): Boolean {
+        for (i in 0 until batch.size) {
+            if (cls.isInstance(batch.oldState(i).block) || cls.isInstance(batch.newState(i).block)) return true
+        }
+        return false
+    }
+
+    init {
+        TickEvent.SERVER_POST.register { deliver() }
+    }
+
+    // block listeners aren't removed, as they're usually registered once on init
+    override fun close() {
+        shipListeners.clear()
+        sectionListeners.values.forEach { it.clear() }
+        sectionListeners.clear()
+        // pooled batches reference levels of the closed server
+        synchronized(lock) {
+            batches.clear()
+            pending.clear()
+            delivering.clear()
+            pool.clear()
+        }
+    }
+}
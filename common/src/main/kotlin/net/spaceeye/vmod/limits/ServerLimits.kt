@@ -75,6 +75,7 @@ open class ServerLimitsInstance: ReflectableObject {
 
     var thrusterScale: DoubleLimit by get(i++, DoubleLimit(0.001, 10.0))
     var sensorScale: DoubleLimit by get(i++, DoubleLimit(0.001, 10.0))
+    var sensorSampleInterval: IntLimit by get(i++, IntLimit(1, 200))
 
     fun toPacket() = ServerLimitsPacket(this)
 }
@@ -1,28 +1,72 @@
 package net.spaceeye.vmod.network
 
 import net.spaceeye.vmod.ELOG
+import net.spaceeye.vmod.events.PersistentEvents
+import net.spaceeye.vmod.utils.EventHandle
+import net.spaceeye.vmod.utils.Listeners
 import net.spaceeye.vmod.utils.ServerClosable
+import java.util.concurrent.ConcurrentHashMap
 
 typealias handlerType = (msg: Message, unregister: () -> Unit) -> Unit
 
+/**
+ * Channels are interned into ids that stay the same until the game is closed, so listeners and senders should get
+ * the id once with [channelId] and use it instead of the channel name.
+ *
+ * Signals are coalesced: only the last signal sent to a channel during the tick is delivered to signal handlers, once,
+ * after the server tick. Other messages are delivered immediately. Only accessed from the server thread.
+ */
 object MessagingNetwork: ServerClosable() {
-    val listeners = mutableMapOf<String, MutableList<handlerType>>()
+    private val channelIds = ConcurrentHashMap<String, Int>()
+    private val channelNames = ArrayList<String>()
 
-    fun register(channel: String, fn: handlerType) {
-        listeners.getOrPut(channel) { mutableListOf() }.add(fn)
+    private var listeners = arrayOfNulls<Listeners<handlerType>>(16)
+    private val signals = SignalBus()
+
+    init {
+        PersistentEvents.serverAfterTick.on { _, _ -> signals.deliver() }
+    }
+
+    fun channelId(channel: String): Int = channelIds[channel] ?: synchronized(channelNames) {
+        channelIds.getOrPut(channel) { channelNames.add(channel); channelNames.size - 1 }
+    }
+
+    fun channelName(id: Int): String = synchronized(channelNames) { channelNames[id] }
+
+    fun register(channel: String, fn: handlerType): EventHandle = register(channelId(channel), fn)
+    fun register(channelId: Int, fn: handlerType): EventHandle {
+        if (channelId >= listeners.size) { listeners = listeners.copyOf(maxOf(listeners.size * 2, channelId + 1)) }
+        return (listeners[channelId] ?: Listeners<handlerType>().also { listeners[channelId] = it }).add(fn)
     }
 
-    fun notify(channel: String, msg: Message) {
-        val toRemove = mutableListOf<handlerType>()
+    fun registerSignal(channel: String, fn: SignalHandler): EventHandle = signals.register(channelId(channel), fn)
+    fun registerSignal(channelId: Int, fn: SignalHandler): EventHandle = signals.register(channelId, fn)
+
+    /**
+     * Delivers [msg] to message handlers of the channel immediately. [Signal]s are also sent to signal handlers.
+     */
+    fun notify(channel: String, msg: Message) = notify(channelId(channel), msg)
+    fun notify(channelId: Int, msg: Message) {
+        if (msg is Signal) { signals.notify(channelId, msg.percentage.toFloat()) }
+        val forChannel = listeners.getOrNull(channelId) ?: return
         try {
-            (listeners[channel] ?: return).forEach { handler: handlerType -> handler(msg) { toRemove.add(handler) } }
-            listeners[channel]!!.removeAll(toRemove)
+            for (listener in forChannel.current) {
+                if (listener.removed) continue
+                listener.fn(msg, listener.unsubscribeFn)
+            }
         } catch (e: Exception) {
             ELOG("Notify has failed.\n${e.stackTraceToString()}")
         }
     }
 
+    /**
+     * Overrides signal of the channel for this tick
+     */
+    fun notifySignal(channelId: Int, percentage: Float) = signals.notify(channelId, percentage)
+
     override fun close() {
-        listeners.clear()
+        listeners.forEach { it?.clear() }
+        listeners.fill(null)
+        signals.clear()
     }
-}
\ No newline at end of file
+}
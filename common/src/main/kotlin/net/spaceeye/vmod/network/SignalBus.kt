@@ -0,0 +1,72 @@
+package net.spaceeye.vmod.network
+
+import net.spaceeye.vmod.ELOG
+import net.spaceeye.vmod.utils.EventHandle
+import net.spaceeye.vmod.utils.Listeners
+
+fun interface SignalHandler {
+    fun onSignal(percentage: Float, unregister: () -> Unit)
+}
+
+/**
+ * Signals of channel ids, coalesced until [deliver]: only the last signal sent to a channel is delivered, once.
+ * Neither sending nor delivering allocates. Not thread safe.
+ */
+class SignalBus {
+    private var listeners = arrayOfNulls<Listeners<SignalHandler>>(16)
+    private var values = FloatArray(16)
+    private var pending = BooleanArray(16)
+    private var pendingChannels = IntArray(16)
+    private var numPending = 0
+
+    private fun ensureCapacity(id: Int) {
+        if (id < values.size) return
+        var size = values.size
+        while (size <= id) { size *= 2 }
+        listeners = listeners.copyOf(size)
+        values = values.copyOf(size)
+        pending = pending.copyOf(size)
+    }
+
+    fun register(channelId: Int, fn: SignalHandler): EventHandle {
+        ensureCapacity(channelId)
+        return (listeners[channelId] ?: Listeners<SignalHandler>().also { listeners[channelId] = it }).add(fn)
+    }
+
+    fun notify(channelId: Int, percentage: Float) {
+        ensureCapacity(channelId)
+        values[channelId] = percentage
+        if (pending[channelId]) return
+        pending[channelId] = true
+        if (numPending == pendingChannels.size) { pendingChannels = pendingChannels.copyOf(numPending * 2) }
+        pendingChannels[numPending++] = channelId
+    }
+
+    fun deliver() {
+        // signals sent by handlers of already delivered channels are left for the next delivery
+        val count = numPending
+        for (i in 0 until count) {
+            val id = pendingChannels[i]
+            pending[id] = false
+            val forChannel = listeners[id] ?: continue
+            val value = values[id]
+            try {
+                for (listener in forChannel.current) {
+                    if (listener.removed) continue
+                    listener.fn.onSignal(value, listener.unsubscribeFn)
+                }
+            } catch (e: Exception) {
+                ELOG("Signal delivery has failed.\n${e.stackTraceToString()}")
+            }
+        }
+        System.arraycopy(pendingChannels, count, pendingChannels, 0, numPending - count)
+        numPending -= count
+    }
+
+    fun clear() {
+        listeners.forEach { it?.clear() }
+        listeners.fill(null)
+        pending.fill(false)
+        numPending = 0
+    }
+}
@@ -2,14 +2,20 @@ package net.spaceeye.vmod.networking
 
 import dev.architectury.networking.NetworkManager
 import dev.architectury.networking.NetworkManager.PacketContext
+import io.netty.buffer.ByteBuf
 import io.netty.buffer.Unpooled
 import net.minecraft.network.FriendlyByteBuf
 import net.minecraft.resources.ResourceLocation
+import net.spaceeye.vmod.WLOG
 import net.spaceeye.vmod.utils.Either
 import net.spaceeye.vmod.utils.ServerClosable
 import net.spaceeye.vmod.utils.getNow_ms
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import kotlin.math.max
 import kotlin.math.min
 
 abstract class DataStream<
@@ -32,6 +38,15 @@ abstract class DataStream<
     ): this(streamName, transmitterSide, NetworkManager.Side.S2C, modId, true, receiverWrapper, transmitterWrapper)
 
     open val partByteAmount: Int = 30000
+    // amount of parts that can be in flight without being acknowledged by the receiver
+    open val windowSize: Int = 8
+    // if true, data bigger than compressionThreshold will be deflated before sending
+    open val compress: Boolean = false
+    open val compressionThreshold: Int = 4096
+    // transfers that weren't updated for this long are dropped
+    open val staleTimeout_ms: Long = 60000L
+    // transfers bigger than this (compressed or not) are rejected by the receiver
+    open val maxTransferLength: Int = 256 * 1024 * 1024
 
     /**
      * Has to create but not deserialize
@@ -61,20 +76,44 @@ abstract class DataStream<
         fn(pkt)
     }
 
-    private fun sendPart(context: PacketContext, uuid: UUID, part: Int) {
+    // sends all parts that fit into the window after the acknowledged part
+    private fun sendParts(context: PacketContext, uuid: UUID, ackedPart: Int) {
         val req = transmitterData.requestsHolder[uuid] ?: return
 
-        val partData = mutableListOf<Byte>()
-        req.data.forEachByte((part - 1) * req.partByteAmount, min(req.data.array().size - (part - 1) * req.partByteAmount, req.partByteAmount)) { partData.add(it) }
-        req.lastUpdated = getNow_ms()
-        t2rSendPart.transmitData(DataPartPkt(part, req.numParts, uuid, partData.toByteArray()), context)
+        synchronized(req) {
+            req.lastUpdated = getNow_ms()
+            val lastPart = min(ackedPart + req.windowSize, req.numParts)
+            while (req.nextPart <= lastPart) {
+                val part = req.nextPart++
+                val start = (part - 1) * req.partByteAmount
+                val length = min(req.data.writerIndex() - start, req.partByteAmount)
+                t2rSendPart.transmitData(DataPartPkt(part, uuid, req, req.data.retainedSlice(start, length)), context)
+            }
+        }
     }
 
     fun startSendingDataToReceiver(data: TData, context: PacketContext) {
-        val dataBuf = data.serialize()
-        val length = dataBuf.array().size / partByteAmount + 1
-        val uuid = transmitterData.addRequest(DataStreamTransmitterDataHolder.RequestItem(dataBuf, partByteAmount, length))
-        sendPart(context, uuid, 1)
+        val rawBuf = data.serialize()
+        val rawLength = rawBuf.writerIndex()
+
+        var dataBuf: ByteBuf = rawBuf
+        var compressed = false
+        if (compress && rawLength > compressionThreshold) {
+            val deflated = deflate(rawBuf)
+            if (deflated.writerIndex() < rawLength) {
+                dataBuf = deflated
+                compressed = true
+            }
+        }
+
+        val partSize = partByteAmount
+        val numParts = max(1, (dataBuf.writerIndex() + partSize - 1) / partSize)
+
+        transmitterData.removeStale(staleTimeout_ms)
+        val uuid = transmitterData.addRequest(DataStreamTransmitterDataHolder.RequestItem(
+            dataBuf, partSize, numParts, max(1, windowSize), compressed, rawLength
+        ))
+        sendParts(context, uuid, 0)
     }
 
     private inline fun deserializeRequestPkt(buf: FriendlyByteBuf, fn: (TRequest) -> Unit) = fn(requestPacketConstructor(buf).also { it.deserialize(buf) })
@@ -107,32 +146,52 @@ abstract class DataStream<
             override val id = ResourceLocation(modId, "tr_${streamName}_$it")
             override fun handlerFn(buf: FriendlyByteBuf, context: PacketContext) {
                 val pkt = DataPartPkt(buf)
-                val data = receiverData.updateReceived(pkt.requestUUID, pkt.data)
+                val item = receiverData.updateReceived(pkt, staleTimeout_ms, maxTransferLength)
+                if (item == null) {
+                    WLOG("Dropped invalid part ${pkt.part}/${pkt.numParts} of transfer ${pkt.requestUUID} of stream $streamName")
+                    return
+                }
 
-                if (pkt.part == pkt.maxParts) {
-                    val dataPkt = dataPacketConstructor()
-                    dataPkt.deserialize(FriendlyByteBuf(Unpooled.wrappedBuffer(data.toByteArray())))
+                if (item.receivedParts >= item.numParts) {
                     receiverData.receivedData.remove(pkt.requestUUID)
+                    // lets transmitter drop the request
+                    r2tAckParts.transmitData(AckParts(item.receivedParts, pkt.requestUUID), context)
+                    val data = if (item.compressed) { inflate(item.data, item.rawLength) } else { item.data }
+                    if (data == null) {
+                        WLOG("Dropped transfer ${pkt.requestUUID} of stream $streamName, it didn't inflate to ${item.rawLength} bytes")
+                        receiverWrapper { receiverDataTransmissionFailed(RequestFailurePkt()) }
+                        return
+                    }
+
+                    val dataPkt = dataPacketConstructor()
+                    dataPkt.deserialize(FriendlyByteBuf(data))
                     receiverWrapper { receiverDataTransmitted(pkt.requestUUID, dataPkt, context) }
                     return
                 }
 
-                r2tRequestPart.transmitData(RequestPart(pkt.part+1, pkt.requestUUID), context)
+                // cumulative ack, acknowledging every half a window keeps the transmitter from stalling
+                if (item.receivedParts % max(1, pkt.windowSize / 2) != 0) { return }
+                r2tAckParts.transmitData(AckParts(item.receivedParts, pkt.requestUUID), context)
             }
         }
     }
 
-    private val r2tRequestPart = registerTR("request_part", currentSide, unified) {
-        object : TRConnection<RequestPart>(transmitterSide.opposite()) {
+    private val r2tAckParts = registerTR("ack_parts", currentSide, unified) {
+        object : TRConnection<AckParts>(transmitterSide.opposite()) {
             override val id = ResourceLocation(modId, "tr_${streamName}_$it")
             override fun handlerFn(buf: FriendlyByteBuf, context: PacketContext) {
-                val pkt = RequestPart(buf)
-                val item = transmitterData.requestsHolder[pkt.requestUUID]
-                if (item == null) {
+                val pkt = AckParts(buf)
+                val req = transmitterData.requestsHolder[pkt.requestUUID]
+                if (req == null || pkt.ackedPart < 0 || pkt.ackedPart > req.numParts) {
                     t2rRequestFailure.transmitData(RequestFailurePkt(), context)
                     return
                 }
-                sendPart(context, pkt.requestUUID, pkt.partNum)
+                // receiver acks the last part once everything is received
+                if (pkt.ackedPart == req.numParts) {
+                    transmitterData.requestsHolder.remove(pkt.requestUUID)
+                    return
+                }
+                sendParts(context, pkt.requestUUID, pkt.ackedPart)
             }
         }
     }
@@ -140,13 +199,55 @@ abstract class DataStream<
     private class DataStreamReceiverDataHolder: ServerClosable() {
         val receivedData = ConcurrentHashMap<UUID, ReceiverItem>()
 
-        fun updateReceived(uuid: UUID, data: ByteArray): MutableList<Byte> {
-            val item = receivedData.getOrPut(uuid) { ReceiverItem(mutableListOf()) }
-            item.data.addAll(data.toMutableList())
-            return item.data
+        /**
+         * @return null if part is invalid, in which case the whole transfer is dropped
+         */
+        fun updateReceived(pkt: DataPartPkt, staleTimeout_ms: Long, maxLength: Int): ReceiverItem? {
+            val item = receivedData[pkt.requestUUID] ?: run {
+                if (!isValidHeader(pkt, maxLength)) return null
+                removeStale(staleTimeout_ms)
+                ReceiverItem(Unpooled.buffer(pkt.totalLength, pkt.totalLength), pkt).also { receivedData[pkt.requestUUID] = it }
+            }
+
+            val offset = (pkt.part - 1).toLong() * item.partByteAmount
+            if (pkt.part < 1 || pkt.part > item.numParts
+                || pkt.totalLength != item.data.capacity() || pkt.numParts != item.numParts || pkt.partByteAmount != item.partByteAmount
+                || offset + pkt.data.readableBytes() > item.data.capacity()) {
+                receivedData.remove(pkt.requestUUID)
+                return null
+            }
+
+            item.lastUpdated = getNow_ms()
+            // duplicates don't count towards completion
+            if (item.parts.get(pkt.part)) return item
+            item.parts.set(pkt.part)
+            item.data.setBytes(offset.toInt(), pkt.data)
+            item.receivedParts++
+            if (item.receivedParts >= item.numParts) { item.data.writerIndex(item.data.capacity()) }
+            return item
         }
 
-        data class ReceiverItem(val data: MutableList<Byte>, var lastUpdated: Long = getNow_ms())
+        private fun isValidHeader(pkt: DataPartPkt, maxLength: Int): Boolean {
+            if (pkt.totalLength < 0 || pkt.totalLength > maxLength || pkt.partByteAmount <= 0) return false
+            if (pkt.compressed && (pkt.rawLength < 0 || pkt.rawLength > maxLength)) return false
+            val numParts = max(1L, (pkt.totalLength.toLong() + pkt.partByteAmount - 1) / pkt.partByteAmount)
+            return pkt.numParts.toLong() == numParts
+        }
+
+        fun removeStale(timeout_ms: Long) {
+            val now = getNow_ms()
+            receivedData.values.removeIf { now - it.lastUpdated > timeout_ms }
+        }
+
+        class ReceiverItem(val data: ByteBuf, header: DataPartPkt) {
+            val numParts = header.numParts
+            val partByteAmount = header.partByteAmount
+            val compressed = header.compressed
+            val rawLength = header.rawLength
+            val parts = BitSet(numParts + 1)
+            var receivedParts = 0
+            var lastUpdated = getNow_ms()
+        }
 
         override fun close() {
             receivedData.clear()
@@ -164,15 +265,23 @@ abstract class DataStream<
             return uuid
         }
 
+        fun removeStale(timeout_ms: Long) {
+            val now = getNow_ms()
+            requestsHolder.values.removeIf { now - it.lastUpdated > timeout_ms }
+        }
+
         override fun close() {
             requestsHolder.clear()
         }
 
-        data class RequestItem(
-            val data: FriendlyByteBuf,
+        class RequestItem(
+            val data: ByteBuf,
             val partByteAmount: Int,
             val numParts: Int,
-            var currentPart: Int = 0,
+            val windowSize: Int,
+            val compressed: Boolean,
+            val rawLength: Int,
+            var nextPart: Int = 1,
             var lastUpdated: Long = getNow_ms())
     }
 
@@ -196,44 +305,66 @@ abstract class DataStream<
 
     private class DataPartPkt(): Serializable {
         var part: Int = 0
-        var maxParts: Int = 0
+        var numParts: Int = 0
+        var windowSize: Int = 0
+        var partByteAmount: Int = 0
+        var compressed: Boolean = false
+        var totalLength: Int = 0
+        var rawLength: Int = 0
         lateinit var requestUUID: UUID
-        lateinit var data: ByteArray
+        lateinit var data: ByteBuf
 
-        constructor(part: Int, maxParts: Int, requestUUID: UUID, data: ByteArray): this() {
+        constructor(part: Int, requestUUID: UUID, req: DataStreamTransmitterDataHolder.RequestItem, data: ByteBuf): this() {
             this.part = part
-            this.maxParts = maxParts
+            this.numParts = req.numParts
+            this.windowSize = req.windowSize
+            this.partByteAmount = req.partByteAmount
+            this.compressed = req.compressed
+            this.totalLength = req.data.writerIndex()
+            this.rawLength = req.rawLength
             this.requestUUID = requestUUID
             this.data = data
         }
 
         constructor(buf: FriendlyByteBuf): this() {deserialize(buf)}
 
+        // data slice is not copied, it's appended to the header as is
         override fun serialize(): FriendlyByteBuf {
             val buf = getBuffer()
 
-            buf.writeInt(part)
-            buf.writeInt(maxParts)
+            buf.writeVarInt(part)
+            buf.writeVarInt(numParts)
+            buf.writeVarInt(windowSize)
+            buf.writeVarInt(partByteAmount)
+            buf.writeBoolean(compressed)
+            buf.writeVarInt(totalLength)
+            buf.writeVarInt(rawLength)
             buf.writeUUID(requestUUID)
-            buf.writeByteArray(data)
+            buf.writeVarInt(data.readableBytes())
 
-            return buf
+            return FriendlyByteBuf(Unpooled.wrappedBuffer(buf, data))
         }
 
+        // data is a view into the incoming buffer, so it should be consumed before handler returns
         override fun deserialize(buf: FriendlyByteBuf) {
-            part = buf.readInt()
-            maxParts = buf.readInt()
+            part = buf.readVarInt()
+            numParts = buf.readVarInt()
+            windowSize = buf.readVarInt()
+            partByteAmount = buf.readVarInt()
+            compressed = buf.readBoolean()
+            totalLength = buf.readVarInt()
+            rawLength = buf.readVarInt()
             requestUUID = buf.readUUID()
-            data = buf.readByteArray()
+            data = buf.readSlice(buf.readVarInt())
         }
     }
 
-    private class RequestPart(): Serializable {
-        var partNum = 0
+    private class AckParts(): Serializable {
+        var ackedPart = 0
         lateinit var requestUUID: UUID
 
-        constructor(parNum: Int, requestUUID: UUID): this() {
-            this.partNum = parNum
+        constructor(ackedPart: Int, requestUUID: UUID): this() {
+            this.ackedPart = ackedPart
             this.requestUUID = requestUUID
         }
 
@@ -242,15 +373,57 @@ abstract class DataStream<
         override fun serialize(): FriendlyByteBuf {
             val buf = getBuffer()
 
-            buf.writeInt(partNum)
+            buf.writeVarInt(ackedPart)
             buf.writeUUID(requestUUID)
 
             return buf
         }
 
         override fun deserialize(buf: FriendlyByteBuf) {
-            partNum = buf.readInt()
+            ackedPart = buf.readVarInt()
             requestUUID = buf.readUUID()
         }
     }
-}
\ No newline at end of file
+}
+
+internal fun deflate(data: ByteBuf): ByteBuf {
+    val deflater = Deflater(Deflater.BEST_SPEED)
+    deflater.setInput(data.nioBuffer(0, data.writerIndex()))
+    deflater.finish()
+
+    val out = Unpooled.buffer(max(64, data.writerIndex() / 2))
+    while (!deflater.finished()) {
+        out.ensureWritable(8192)
+        val written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes())
+        out.writerIndex(out.writerIndex() + written)
+    }
+    deflater.end()
+    return out
+}
+
+/**
+ * @return null if data isn't a complete deflate stream of exactly [rawLength] bytes
+ */
+internal fun inflate(data: ByteBuf, rawLength: Int): ByteBuf? {
+    val inflater = Inflater()
+    inflater.setInput(data.nioBuffer(0, data.writerIndex()))
+
+    val out = Unpooled.buffer(rawLength, rawLength)
+    var written = 0
+    try {
+        while (!inflater.finished() && written < rawLength) {
+            val n = inflater.inflate(out.array(), out.arrayOffset() + written, rawLength - written)
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) { break }
+            written += n
+        }
+        // end of stream may be left unread when output is full, anything after it means stream is longer than rawLength
+        if (!inflater.finished() && inflater.inflate(ByteArray(1)) != 0) { return null }
+        if (written != rawLength || !inflater.finished()) { return null }
+    } catch (_: DataFormatException) {
+        return null
+    } finally {
+        inflater.end()
+    }
+    out.writerIndex(written)
+    return out
+}
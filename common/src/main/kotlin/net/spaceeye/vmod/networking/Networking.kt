@@ -11,7 +11,6 @@ import net.minecraft.resources.ResourceLocation
 import net.minecraft.server.level.ServerPlayer
 import net.minecraft.world.entity.player.Player
 import net.spaceeye.vmod.reflectable.constructor
-import java.security.MessageDigest
 import kotlin.reflect.KClass
 
 interface Connection {
@@ -27,9 +26,6 @@ interface Serializable {
     fun getBuffer() = FriendlyByteBuf(Unpooled.buffer(64))
 }
 
-private val hasher = MessageDigest.getInstance("MD5")
-fun Serializable.hash() = hasher.digest(serialize().accessByteBufWithCorrectSize())
-
 val registeredIDs = mutableSetOf<String>()
 
 @Deprecated("For internal use. You should probably not use this", replaceWith = ReplaceWith("regS2C"))
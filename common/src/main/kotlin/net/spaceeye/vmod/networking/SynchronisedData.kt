@@ -2,6 +2,8 @@ package net.spaceeye.vmod.networking
 
 import dev.architectury.networking.NetworkManager
 import dev.architectury.networking.NetworkManager.Side
+import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
 import net.minecraft.network.FriendlyByteBuf
 import net.minecraft.server.level.ServerPlayer
 import net.minecraft.world.entity.player.Player
@@ -11,12 +13,42 @@ import net.spaceeye.vmod.utils.Either
 import net.spaceeye.vmod.utils.readVarLongArray
 import net.spaceeye.vmod.utils.writeVarLongArray
 import java.lang.IllegalStateException
+import java.util.IdentityHashMap
 import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedDeque
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.math.max
 
+/**
+ * Versions of a page that subscriber has acknowledged
+ */
+class AckedPage {
+    // version of the page at the moment of the last full comparison, -1 if there wasn't one
+    var pageVersion = -1L
+    // item index to version of the item subscriber has
+    val items = mutableMapOf<Int, Long>()
+}
+
+/**
+ * Serializes every item only once and copies the bytes for every subscriber that needs it.
+ * Only valid while items aren't modified, so it should live only for a single synchronization pass.
+ */
+class SerializedItemsCache(val itemWriter: (buf: FriendlyByteBuf, item: Serializable) -> Unit) {
+    private val shared = FriendlyByteBuf(Unpooled.buffer(1024))
+    // item to (start shl 32 or length) in the shared buffer
+    private val itemToRange = IdentityHashMap<Serializable, Long>()
+
+    fun write(buf: FriendlyByteBuf, item: Serializable) {
+        val range = itemToRange.getOrPut(item) {
+            val start = shared.writerIndex()
+            itemWriter(shared, item)
+            (start.toLong() shl 32) or (shared.writerIndex() - start).toLong()
+        }
+        buf.writeBytes(shared, (range ushr 32).toInt(), range.toInt())
+    }
+}
+
 //TODO make more abstract
 abstract class SynchronisedDataTransmitter<T: Serializable> (
     streamName: String,
@@ -26,11 +58,18 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
     val itemWriter: (buf: FriendlyByteBuf, item: Serializable) -> Unit,
     val itemReader: (buf: FriendlyByteBuf) -> Serializable
 ) {
-    protected val subscribersSavedChecksums = mutableMapOf<UUID, MutableMap<Long, MutableMap<Int, ByteArray>>>()
+    protected val subscribersAckedVersions = mutableMapOf<UUID, MutableMap<Long, AckedPage>>()
 
     private val data = mutableMapOf<Long, MutableMap<Int, T>>()
     private val dataUpdates = mutableMapOf<Long, MutableMap<Int, T?>?>()
 
+    // every modification gets a new version, so versions only increase
+    private var versionCounter = 0L
+    private val itemVersions = mutableMapOf<Int, Long>()
+    private val pageVersions = mutableMapOf<Long, Long>()
+    // index -> amount of pages it's in, so that its version is dropped once it's in none of them
+    private val itemPageCounts = Int2IntOpenHashMap()
+
     protected val uuidToPlayer = mutableMapOf<UUID, Player?>()
 
     protected val lock = ReentrantLock()
@@ -43,9 +82,12 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
 
 
     protected fun close() {
-        subscribersSavedChecksums.clear()
+        subscribersAckedVersions.clear()
         data.clear()
         dataUpdates.clear()
+        itemVersions.clear()
+        pageVersions.clear()
+        itemPageCounts.clear()
         uuidToPlayer.clear()
         counter = 0
     }
@@ -66,7 +108,7 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
     }
 
     internal fun set(page: Long, index: Int, item: T) = lock {
-        data.getOrPut(page) { mutableMapOf() }[index] = item
+        if (data.getOrPut(page) { mutableMapOf() }.put(index, item) == null) { itemPageCounts.addTo(index, 1) }
 
         var updatePage = dataUpdates.getOrPut(page) { mutableMapOf() }
         if (updatePage == null) {
@@ -75,6 +117,10 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
         }
         updatePage[index] = item
 
+        val version = ++versionCounter
+        itemVersions[index] = version
+        pageVersions[page] = version
+
         counter = max(index + 1, counter)
     }
 
@@ -85,76 +131,35 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
     internal fun remove(page: Long, index: Int): Boolean = lock {
         data[page]?.remove(index) ?: return false
         dataUpdates.getOrPut(page) {mutableMapOf()}?.set(index, null)
+        pageVersions[page] = ++versionCounter
+        onRemovedFromPage(index)
         return true
     }
 
+    private fun onRemovedFromPage(index: Int) {
+        if (itemPageCounts.addTo(index, -1) > 1) return
+        itemPageCounts.remove(index)
+        itemVersions.remove(index)
+    }
+
     internal fun remove(page: Long) = lock {
-        data.remove(page)
+        data.remove(page)?.keys?.forEach { onRemovedFromPage(it) }
         dataUpdates[page] = null
+        pageVersions.remove(page)
     }
 
     internal fun subscribeTo(uuid: UUID, player: Player, page: Long) = lock {
         uuidToPlayer[uuid] = player
-        subscribersSavedChecksums.getOrPut(uuid) {mutableMapOf()}.getOrPut(page) {mutableMapOf()}
+        subscribersAckedVersions.getOrPut(uuid) {mutableMapOf()}.getOrPut(page) { AckedPage() }
     }
 
     internal fun unsubscribeFrom(uuid: UUID, page: Long) = lock {
-        subscribersSavedChecksums[uuid]?.remove(page)
+        subscribersAckedVersions[uuid]?.remove(page)
     }
 
     internal fun removeSubscriber(uuid: UUID) = lock {
         uuidToPlayer.remove(uuid)
-        subscribersSavedChecksums.remove(uuid)
-    }
-
-    private fun compileDifferences(origin: MutableMap<Long, MutableMap<Int, T?>?>, against: MutableMap<Long, MutableMap<Int, ByteArray>>):
-        Pair<
-            MutableMap<Long, MutableMap<Int, ByteArray?>?>,
-            MutableMap<Long, MutableMap<Int, T>>
-            >
-    {
-        val newData = mutableMapOf<Long, MutableMap<Int, T>>()
-        return Pair(origin.mapNotNull { (page, updates) ->
-            val fromState = against[page] ?: return@mapNotNull null
-            // page was deleted
-            if (updates == null) { return@mapNotNull Pair(page, null) }
-
-            return@mapNotNull Pair(page,
-                updates
-                    .map { (idx, value) -> Pair(idx, value?.hash()) }
-                    .filter { (idx, value) -> !value.contentEquals(fromState[idx]) }
-                    .associate { pair ->
-                        if (pair.second != null) newData.getOrPut(page) { mutableMapOf() }[pair.first] = updates[pair.first]!!
-                        pair
-                    }.toMutableMap()
-            )
-
-        }.toMap().toMutableMap(), newData)
-    }
-
-    private fun compileUpdateDataForSubscriber(
-        origin: MutableMap<Long, MutableMap<Int, T?>?>,
-        checksums: MutableMap<Long, MutableMap<Int, ByteArray>>): T2RSynchronizationTickData? {
-        val (diff, data) = compileDifferences(origin, checksums)
-        if (diff.isEmpty() && data.isEmpty()) { return null }
-        diff.forEach { (page, updates) ->
-            if (updates == null) { checksums.remove(page); return@forEach }
-            val line = checksums.getOrPut(page) { mutableMapOf() }
-            updates.forEach { (idx, item) ->
-                if (item == null) { line.remove(idx); return@forEach }
-                line[idx] = item
-            }
-        }
-
-        val removedPages = mutableListOf<Long>()
-
-        var idToPageCsms = mutableMapOf<Int, Pair<ByteArray?, MutableList<Long>>>()
-        diff.forEach { (page, idCsm) -> idCsm?.forEach { (id, csm) -> idToPageCsms.getOrPut(id) { Pair(csm, mutableListOf()) }.second.add(page) } ?: removedPages.add(page) }
-
-        var idToPageItem = mutableMapOf<Int, Pair<Serializable, MutableList<Long>>>()
-        data.forEach { (page, idCsm) -> idCsm.forEach { (id, csm) -> idToPageItem.getOrPut(id) { Pair(csm, mutableListOf()) }.second.add(page) } }
-
-        return T2RSynchronizationTickData(itemWriter, itemReader, removedPages, idToPageCsms, idToPageItem)
+        subscribersAckedVersions.remove(uuid)
     }
 
     /**
@@ -164,9 +169,11 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
         if (dataUpdates.isEmpty()) {return}
         lock {
             try {
-            subscribersSavedChecksums.forEach { (sub, checksums) ->
-                val res = compileUpdateDataForSubscriber(dataUpdates, checksums) ?: return@forEach
-                trSynchronizeData.startSendingDataToReceiver(res, FakePacketContext((uuidToPlayer[sub] ?: return@forEach) as ServerPlayer))
+            val cache = SerializedItemsCache(itemWriter)
+            subscribersAckedVersions.forEach { (sub, acked) ->
+                val player = uuidToPlayer[sub] ?: return@forEach
+                val res = compileDifferences(dataUpdates, acked, false, pageVersions, itemVersions, itemWriter, itemReader, cache) ?: return@forEach
+                trSynchronizeData.startSendingDataToReceiver(res, FakePacketContext(player as ServerPlayer))
             }
             dataUpdates.clear()
             } catch (e: Exception) {ELOG(e.stackTraceToString())}
@@ -174,9 +181,12 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
     }
 
     fun completeSynchronize(forSubscribers: Set<UUID>) = lock {
-        forSubscribers.forEach { sub -> val checksums = subscribersSavedChecksums[sub] ?: return@forEach
-            val res = compileUpdateDataForSubscriber(data as MutableMap<Long, MutableMap<Int, T?>?>, checksums) ?: return@forEach
-            trSynchronizeData.startSendingDataToReceiver(res, FakePacketContext((uuidToPlayer[sub] ?: return@forEach) as ServerPlayer))
+        if (forSubscribers.isEmpty()) { return@lock }
+        val cache = SerializedItemsCache(itemWriter)
+        forSubscribers.forEach { sub -> val acked = subscribersAckedVersions[sub] ?: return@forEach
+            val player = uuidToPlayer[sub] ?: return@forEach
+            val res = compileDifferences(data, acked, true, pageVersions, itemVersions, itemWriter, itemReader, cache) ?: return@forEach
+            trSynchronizeData.startSendingDataToReceiver(res, FakePacketContext(player as ServerPlayer))
         }
     }
 
@@ -193,36 +203,89 @@ abstract class SynchronisedDataTransmitter<T: Serializable> (
         override fun receiverDataTransmissionFailed(failurePkt: RequestFailurePkt) { throw AssertionError() }
         override fun receiverDataTransmitted(uuid: UUID, data: T2RSynchronizationTickData, ctx: NetworkManager.PacketContext) { throw AssertionError() }
 
-        override fun transmitterRequestProcessor(pkt: R2TSynchronizationTickData, ctx: NetworkManager.PacketContext): Either<T2RSynchronizationTickData, RequestFailurePkt>? {
+        override fun transmitterRequestProcessor(pkt: R2TSynchronizationTickData, ctx: NetworkManager.PacketContext): Either<T2RSynchronizationTickData, RequestFailurePkt>? = lock {
             val uuid = ctx.player.uuid
             uuidToPlayer[uuid] = ctx.player
-            val checksums = subscribersSavedChecksums.getOrPut(uuid) {mutableMapOf()}
-            val tempData = (data as MutableMap<Long, MutableMap<Int, T?>?>).toMutableMap()
+            val acked = subscribersAckedVersions.getOrPut(uuid) {mutableMapOf()}
+            val tempData = HashMap<Long, Map<Int, T?>?>(data)
 
-            pkt.checksumsToUpdate.forEach { checksums[it] = mutableMapOf() }
+            pkt.pagesToResync.forEach { acked[it] = AckedPage() }
             pkt.pageDataToUpdate.forEach { (page, line) ->
-                val dataLine = checksums.getOrPut(page) {mutableMapOf()}
-                line.forEach { idx ->
-                    dataLine[idx] = byteArrayOf()
-                }
+                val ackedPage = acked.getOrPut(page) { AckedPage() }
+                ackedPage.pageVersion = -1L
+                line.forEach { idx -> ackedPage.items[idx] = -1L }
             }
             pkt.subscriptions.forEach { (page, subscribe) ->
                 when (subscribe) {
-                    true -> checksums[page] = mutableMapOf()
+                    true -> acked[page] = AckedPage()
                     false -> {
-                        checksums.remove(page)
+                        acked.remove(page)
                         tempData.remove(page)
-                        subscribersSavedChecksums[uuid]?.remove(page)
                     }
                 }
             }
 
-            val res = compileUpdateDataForSubscriber(tempData, subscribersSavedChecksums[uuid]!!) ?: return null
+            val res = compileDifferences(tempData, acked, true, pageVersions, itemVersions, itemWriter, itemReader, null) ?: return null
             return Either.Left(res)
         }
     }
 }
 
+/**
+ * Compares versions subscriber has with current versions and updates subscriber's state, as everything that differs
+ * will be sent to it. If [fullPages] is true then [origin] contains whole pages and not only updates, in which case
+ * pages that didn't change since the last full comparison are skipped.
+ */
+internal fun compileDifferences(
+    origin: Map<Long, Map<Int, Serializable?>?>,
+    acked: MutableMap<Long, AckedPage>,
+    fullPages: Boolean,
+    pageVersions: Map<Long, Long>,
+    itemVersions: Map<Int, Long>,
+    itemWriter: (buf: FriendlyByteBuf, item: Serializable) -> Unit,
+    itemReader: (buf: FriendlyByteBuf) -> Serializable,
+    cache: SerializedItemsCache?
+): T2RSynchronizationTickData? {
+    val removedPages = mutableListOf<Long>()
+    val removedItems = mutableMapOf<Int, MutableList<Long>>()
+    val newItems = mutableMapOf<Int, Pair<Serializable, MutableList<Long>>>()
+
+    for ((page, updates) in origin) {
+        val ackedPage = acked[page] ?: continue
+        // page was deleted
+        if (updates == null) { acked.remove(page); removedPages.add(page); continue }
+
+        val pageVersion = pageVersions[page] ?: -1L
+        if (fullPages && ackedPage.pageVersion == pageVersion) continue
+
+        for ((idx, item) in updates) {
+            if (item == null) {
+                if (ackedPage.items.remove(idx) != null) { removedItems.getOrPut(idx) { mutableListOf() }.add(page) }
+                continue
+            }
+            val version = itemVersions[idx] ?: continue
+            if (ackedPage.items.put(idx, version) == version) continue
+            newItems.getOrPut(idx) { Pair(item, mutableListOf()) }.second.add(page)
+        }
+
+        if (!fullPages) continue
+        // subscriber can still have items that were removed from the page
+        if (ackedPage.items.size > updates.size) {
+            val iter = ackedPage.items.keys.iterator()
+            while (iter.hasNext()) {
+                val idx = iter.next()
+                if (updates.containsKey(idx)) continue
+                iter.remove()
+                removedItems.getOrPut(idx) { mutableListOf() }.add(page)
+            }
+        }
+        ackedPage.pageVersion = pageVersion
+    }
+
+    if (removedPages.isEmpty() && removedItems.isEmpty() && newItems.isEmpty()) { return null }
+    return T2RSynchronizationTickData(itemWriter, itemReader, removedPages, removedItems, newItems, cache)
+}
+
 abstract class SynchronisedDataReceiver<T: Serializable> (
     streamName: String,
     transmitterSide: Side,
@@ -237,9 +300,6 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
     //if item null then remove it
     private val newData = mutableMapOf<Long, MutableMap<Int, T?>?>()
 
-    private val serverChecksums = mutableMapOf<Long, MutableMap<Int, ByteArray>>()
-    private val cachedChecksums = mutableMapOf<Long, MutableMap<Int, ByteArray>>()
-
     val lock = ReentrantLock()
 
     protected open fun onClear() {}
@@ -257,8 +317,6 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
         cachedData.clear()
         dataChanged = false
         newData.clear()
-        serverChecksums.clear()
-        cachedChecksums.clear()
 
         onClear()
     }
@@ -267,16 +325,12 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
         onRemove(page)
         cachedData.remove(page)
         newData.remove(page)
-        serverChecksums.remove(page)
-        cachedChecksums.remove(page)
     }
 
     protected fun remove(page: Long, idx: Int) = lock {
         onRemove(page, idx)
         cachedData[page]?.remove(idx)
         newData[page]?.remove(idx)
-        serverChecksums[page]?.remove(idx)
-        cachedChecksums[page]?.remove(idx)
     }
 
     protected fun add(page: Long, item: T): Int = lock {
@@ -296,7 +350,7 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
 
         lock {
             newData.forEach { (page, updates) ->
-                if (updates == null) {cachedData.remove(page); onRemove(page); return@forEach}
+                if (updates == null) {onRemove(page); cachedData.remove(page); return@forEach}
                 val dataPage = cachedData.getOrPut(page) {mutableMapOf()}
                 updates.forEach { (idx, item) ->
                     if (item == null) {
@@ -317,11 +371,11 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
 
 //    abstract fun sendRequestToServer(req: R2TSynchronizationTickData)
 
-    private val pageChecksumsToUpdate = ConcurrentLinkedDeque<Long>()
+    private val pagesToResync = ConcurrentLinkedDeque<Long>()
     private val pageDataToUpdate = ConcurrentHashMap<Long, MutableSet<Int>>()
     private val pagesToUpdateSubscriptionTo = ConcurrentLinkedDeque<Pair<Long, Boolean>>()
 
-    fun requestChecksumUpdate(page: Long) {pageChecksumsToUpdate.add(page)}
+    fun requestPageResync(page: Long) {pagesToResync.add(page)}
     fun requestDataUpdate(page: Long, index: Int) {pageDataToUpdate.getOrPut(page){ mutableSetOf() }.add(index)}
 
     fun subscribeToPageUpdates(page: Long) {pagesToUpdateSubscriptionTo.add(Pair(page, true))}
@@ -329,11 +383,11 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
 
     // call when receiver is allowed to request
     fun synchronizationTick() {
-        synchronized(pageChecksumsToUpdate) {
+        synchronized(pagesToResync) {
         synchronized(pageDataToUpdate) {
         synchronized(pagesToUpdateSubscriptionTo) {
 
-        if (pageChecksumsToUpdate.isEmpty()
+        if (pagesToResync.isEmpty()
          && pageDataToUpdate.isEmpty()
          && pagesToUpdateSubscriptionTo.isEmpty()) {
             return
@@ -342,10 +396,10 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
         try {
         trSynchronizeData.r2tRequestData.transmitData(R2TSynchronizationTickData(
             pagesToUpdateSubscriptionTo.toMutableList(),
-            pageChecksumsToUpdate.toMutableList(),
+            pagesToResync.toMutableList(),
             pageDataToUpdate.toList().map {Pair(it.first, it.second.toMutableList())}.toMutableList()
         ))
-        pageChecksumsToUpdate.clear()
+        pagesToResync.clear()
         pageDataToUpdate.clear()
         pagesToUpdateSubscriptionTo.clear()
         //will happen when user exits the server so ignore it
@@ -370,25 +424,15 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
                 pkt.dataUpdates.forEach { (idx, pair) ->
                     val (item, pages) = pair
                     pages.forEach { page ->
-                        val dataPage = newData  .getOrPut(page) {mutableMapOf()}!!
-                        val sc = serverChecksums.getOrPut(page) {mutableMapOf()}
-                        val cc = cachedChecksums.getOrPut(page) {mutableMapOf()}
-
-                        dataPage[idx] = item as T
-                        val hash = item.hash()
-                        sc[idx] = hash
-                        cc[idx] = hash
+                        newData
+                            .getOrPut(page) {mutableMapOf()}
+                            .let { it ?: mutableMapOf<Int, T?>().also { newData[page] = it } }
+                            .set(idx, item as T)
                     }
                 }
 
-                pkt.checksumsUpdates.forEach { (idx, pair) ->
-                    val (csm, pages) = pair
-                    if (csm != null) {
-                        pages.forEach { page -> serverChecksums.getOrPut(page) {mutableMapOf()}[idx] = csm }
-                        return@forEach
-                    }
+                pkt.removedItems.forEach { (idx, pages) ->
                     pages.forEach { page ->
-                        serverChecksums[page]?.remove(idx)
                         cachedData[page]?.remove(idx)
                         newData
                             .getOrPut(page) {mutableMapOf()}
@@ -397,11 +441,7 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
                     }
                 }
 
-                pkt.removedPages.forEach { page ->
-                    serverChecksums.remove(page)
-                    cachedChecksums.remove(page)
-                    newData[page] = null
-                }
+                pkt.removedPages.forEach { page -> newData[page] = null }
 
                 dataChanged = true
             }
@@ -411,16 +451,16 @@ abstract class SynchronisedDataReceiver<T: Serializable> (
 
 class R2TSynchronizationTickData(): Serializable {
     var subscriptions = mutableListOf<Pair<Long, Boolean>>()
-    var checksumsToUpdate = mutableListOf<Long>()
+    var pagesToResync = mutableListOf<Long>()
     var pageDataToUpdate = mutableListOf<Pair<Long, MutableList<Int>>>()
 
     constructor(
         _subscriptions: MutableList<Pair<Long, Boolean>>,
-        _checksumsToUpdate: MutableList<Long>,
+        _pagesToResync: MutableList<Long>,
         _pageDataToUpdate: MutableList<Pair<Long, MutableList<Int>>>
     ): this() {
         subscriptions = _subscriptions
-        checksumsToUpdate = _checksumsToUpdate
+        pagesToResync = _pagesToResync
         pageDataToUpdate = _pageDataToUpdate
     }
 
@@ -428,7 +468,7 @@ class R2TSynchronizationTickData(): Serializable {
         val buf = getBuffer()
 
         buf.writeCollection(subscriptions) {buf, it -> buf.writeVarLong(it.first); buf.writeBoolean(it.second)}
-        buf.writeVarLongArray(checksumsToUpdate)
+        buf.writeVarLongArray(pagesToResync)
         buf.writeCollection(pageDataToUpdate) {buf, it -> buf.writeVarLong(it.first); buf.writeVarIntArray(it.second.toIntArray())}
 
         return buf
@@ -436,7 +476,7 @@ class R2TSynchronizationTickData(): Serializable {
 
     override fun deserialize(buf: FriendlyByteBuf) {
         subscriptions = buf.readCollection({mutableListOf()}) {buf -> Pair(buf.readVarLong(), buf.readBoolean())}
-        checksumsToUpdate = buf.readVarLongArray()
+        pagesToResync = buf.readVarLongArray()
         pageDataToUpdate = buf.readCollection({mutableListOf()}) {buf -> Pair(buf.readVarLong(), buf.readVarIntArray().toMutableList())}
     }
 }
@@ -446,38 +486,39 @@ class T2RSynchronizationTickData(
     val itemReader: (buf: FriendlyByteBuf) -> Serializable
 ): Serializable {
     var removedPages = longArrayOf()
-    var checksumsUpdates = mutableListOf<Pair<Int, Pair<ByteArray?, MutableList<Long>>>>()
+    var removedItems = mutableListOf<Pair<Int, MutableList<Long>>>()
     var dataUpdates = mutableListOf<Pair<Int, Pair<Serializable, MutableList<Long>>>>()
 
+    private var cache: SerializedItemsCache? = null
+
     constructor(
         itemWriter: (buf: FriendlyByteBuf, item: Serializable) -> Unit,
         itemReader: (buf: FriendlyByteBuf) -> Serializable,
         removedPages: MutableList<Long>,
-        checksumsUpdates: MutableMap<Int, Pair<ByteArray?, MutableList<Long>>>,
-        dataUpdates: MutableMap<Int, Pair<Serializable, MutableList<Long>>>
+        removedItems: MutableMap<Int, MutableList<Long>>,
+        dataUpdates: MutableMap<Int, Pair<Serializable, MutableList<Long>>>,
+        cache: SerializedItemsCache? = null
     ): this(itemWriter, itemReader) {
         this.removedPages = removedPages.toLongArray()
-        this.checksumsUpdates = checksumsUpdates.toList().toMutableList()
+        this.removedItems = removedItems.toList().toMutableList()
         this.dataUpdates = dataUpdates.toList().toMutableList()
+        this.cache = cache
     }
 
     override fun serialize(): FriendlyByteBuf {
         val buf = getBuffer()
+        val cache = cache
 
         buf.writeLongArray(removedPages)
 
         buf.writeCollection(dataUpdates) {buf, (index, pair) ->
             buf.writeVarInt(index)
-            itemWriter(buf, pair.first)
+            if (cache != null) { cache.write(buf, pair.first) } else { itemWriter(buf, pair.first) }
             buf.writeVarLongArray(pair.second)
         }
 
-        buf.writeCollection(checksumsUpdates) { buf, (index, pair) ->
-            val (csm, pages) = pair
-
+        buf.writeCollection(removedItems) { buf, (index, pages) ->
             buf.writeVarInt(index)
-            buf.writeBoolean(csm != null)
-            csm?.let { buf.writeByteArray(it) }
             buf.writeVarLongArray(pages)
         }
 
@@ -494,12 +535,8 @@ class T2RSynchronizationTickData(
             ))
         }
 
-        checksumsUpdates = buf.readCollection({mutableListOf()}) { buf ->
-            Pair(   buf.readVarInt(), Pair(
-                if (buf.readBoolean())
-                   {buf.readByteArray()} else {null},
-                    buf.readVarLongArray()
-            ))
+        removedItems = buf.readCollection({mutableListOf()}) { buf ->
+            Pair(buf.readVarInt(), buf.readVarLongArray())
         }
     }
-}
\ No newline at end of file
+}
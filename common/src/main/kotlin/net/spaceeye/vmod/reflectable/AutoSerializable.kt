@@ -22,6 +22,8 @@ import java.util.UUID
 import kotlin.reflect.KClass
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.full.primaryConstructor
+import kotlin.reflect.jvm.isAccessible
+import kotlin.reflect.jvm.javaConstructor
 import kotlin.reflect.jvm.jvmErasure
 
 /**
@@ -77,27 +79,118 @@ interface AutoSerializable: Serializable, ReflectableObject {
     override fun getBuffer() = super.getBuffer()
 }
 
-fun ReflectableObject.serialize(buf: FriendlyByteBuf? = null) = (buf ?: FriendlyByteBuf(Unpooled.buffer(64))).also { buf ->
-    getAllReflectableItems().forEach {
-        (it.metadata["byteSerialize"] as? ByteSerializeFn)?.invoke(it.it!!, buf)
-            ?: typeToSerDeser[it.it!!::class]?.let { (ser, deser) -> ser(it.it!!, buf) }
-            ?: run {
-                if (it.it !is Enum<*>) throw AssertionError("Can't serialize ${it.it!!::class.simpleName}")
-                buf.writeEnum(it.it!! as Enum<*>)
-            }
+private val writeEnum: ByteSerializeFn = { it, buf -> buf.writeEnum(it as Enum<*>) }
+
+/**
+ * Serializer and deserializer resolved for values of [type]. They are published together as a single immutable object,
+ * so that a thread can't see serializer resolved for one type with deserializer resolved for another.
+ */
+internal class ResolvedByteCodec(@JvmField val type: Class<*>, @JvmField val serialize: ByteSerializeFn, @JvmField val deserialize: ByteDeserializeFn<*>)
+
+private fun resolveByteCodec(type: Class<*>, metadata: Map<String, Any>): ResolvedByteCodec {
+    val isEnum = Enum::class.java.isAssignableFrom(type)
+    val ser = (metadata["byteSerialize"] as? ByteSerializeFn)
+        ?: typeToSerDeser[type.kotlin]?.first
+        ?: run {
+            if (!isEnum) throw AssertionError("Can't serialize ${type.simpleName}")
+            writeEnum
+        }
+    val deser = (metadata["byteDeserialize"] as? ByteDeserializeFn<*>)
+        ?: typeToSerDeser[type.kotlin]?.second
+        ?: run {
+            if (!isEnum) throw AssertionError("Can't deserialize ${type.simpleName}")
+            val enumClass = type as Class<out Enum<*>>
+            ({ buf: FriendlyByteBuf -> buf.readEnum(enumClass) })
+        }
+    return ResolvedByteCodec(type, ser, deser)
+}
+
+// serializers are resolved once per delegate instead of looking them up for every item on every serialization
+internal fun ReflectableItemDelegate<*>.getByteCodec(): ResolvedByteCodec {
+    val type = it!!.javaClass
+    val codec = byteCodec
+    if (codec != null && codec.type === type) { return codec }
+    return resolveByteCodec(type, metadata).also { byteCodec = it }
+}
+
+private fun ReflectableClassInfo.getDataByteCodec(i: Int, type: Class<*>): ResolvedByteCodec {
+    val codecs = dataByteCodecs!!
+    val codec = codecs[i]
+    if (codec != null && codec.type === type) { return codec }
+    return resolveByteCodec(type, emptyMap()).also { codecs[i] = it }
+}
+
+// Items are read straight from fields resolved once per class. Objects with an override or delegates in an unexpected
+// order go through getAllReflectableItems instead.
+fun ReflectableObject.serialize(buf: FriendlyByteBuf? = null): FriendlyByteBuf {
+    val out = buf ?: FriendlyByteBuf(Unpooled.buffer(64))
+    val info = ReflectableClassInfo.of(javaClass)
+    val fields = if (reflectObjectOverride == null) info.sortedDelegateFields(this) else null
+    if (fields == null) {
+        val items = getAllReflectableItems()
+        for (i in items.indices) {
+            val item = items[i]
+            item.getByteCodec().serialize(item.it!!, out)
+        }
+        return out
     }
+
+    info.dataProperties?.let { properties ->
+        for (i in properties.indices) {
+            val value = info.getDataValue(this, i)!!
+            info.getDataByteCodec(i, value.javaClass).serialize(value, out)
+        }
+    }
+    for (i in fields.indices) {
+        val item = fields[i].get(this) as ReflectableItemDelegate<*>
+        item.getByteCodec().serialize(item.it!!, out)
+    }
+    return out
 }
 
 fun ReflectableObject.deserialize(buf: FriendlyByteBuf) {
-    getReflectableItemsWithoutDataclassConstructorItems().forEach {
-        it.setValue(null, null,
-            (it.metadata["byteDeserialize"] as? ByteDeserializeFn<Any>)?.invoke(buf)
-                ?: typeToSerDeser[it.it!!::class]?.let { (ser, deser) -> deser(buf) }
-                ?: let {_ ->
-                    if (it.it !is Enum<*>) throw AssertionError("Can't deserialize ${it.it!!::class.simpleName}")
-                    buf.readEnum(it.it!!.javaClass as Class<out Enum<*>>)
-                }
-        )
+    val fields = if (reflectObjectOverride == null) ReflectableClassInfo.of(javaClass).sortedDelegateFields(this) else null
+    if (fields == null) {
+        val items = getReflectableItemsWithoutDataclassConstructorItems()
+        for (i in items.indices) {
+            val item = items[i]
+            item.setValue(null, null, item.getByteCodec().deserialize(buf)!!)
+        }
+        return
+    }
+
+    for (i in fields.indices) {
+        val item = fields[i].get(this) as ReflectableItemDelegate<*>
+        item.setValue(null, null, item.getByteCodec().deserialize(buf)!!)
+    }
+}
+
+/**
+ * Constructor of a [Serializable] class with deserializers of its dataclass members, resolved once per class
+ */
+private class SerializableConstructor(val clazz: KClass<*>) {
+    val constructor = clazz.primaryConstructor!!.also { it.isAccessible = true }
+    val javaConstructor = constructor.javaConstructor!!.also { it.isAccessible = true }
+
+    val deserializers: List<ByteDeserializeFn<*>> by lazy {
+        val order = constructor.parameters
+        if (order.isEmpty()) throw AssertionError("Impossible Situation. Dataclass has no members.")
+        val members = order.map {item -> clazz.memberProperties.find { it.name == item.name }!! }
+
+        members.map {
+            val clazz = it.returnType.jvmErasure
+            if (!clazz.java.isEnum) {
+                typeToSerDeser[clazz]!!.second
+            } else {
+                {buf -> buf.readEnum(clazz.java as Class<out Enum<*>>)}
+            }
+        }
+    }
+
+    companion object {
+        val cache = object : ClassValue<SerializableConstructor>() {
+            override fun computeValue(type: Class<*>) = SerializableConstructor(type.kotlin)
+        }
     }
 }
 
@@ -106,30 +199,21 @@ fun ReflectableObject.deserialize(buf: FriendlyByteBuf) {
  * Dataclasses need all items already deserialized and ready to be used in constructor
  */
 fun <T: Serializable> KClass<T>.constructor(buf: FriendlyByteBuf? = null): T {
+    val ctor = SerializableConstructor.cache.get(this.java)
     if (!this.isData) {
-        return this.primaryConstructor!!.call()
+        return ctor.javaConstructor.newInstance() as T
     }
 
-    val order = this.primaryConstructor?.parameters ?: listOf()
-    if (order.isEmpty()) throw AssertionError("Impossible Situation. Dataclass has no members.")
+    if (ctor.constructor.parameters.isEmpty()) throw AssertionError("Impossible Situation. Dataclass has no members.")
     if (buf == null) {
-        return this.primaryConstructor!!.call()
-    }
-
-    val members = order.map {item -> this.memberProperties.find { it.name == item.name }!! }
-
-    val deserializers = members.map {
-        val clazz = it.returnType.jvmErasure
-        if (!clazz.java.isEnum) {
-            typeToSerDeser[clazz]!!.second
-        } else {
-            {buf -> buf.readEnum(clazz.java as Class<out Enum<*>>)}
-        }
+        return ctor.constructor.call() as T
     }
 
-    val items = deserializers.map { it.invoke(buf) }
+    val deserializers = ctor.deserializers
+    val items = arrayOfNulls<Any>(deserializers.size)
+    for (i in deserializers.indices) { items[i] = deserializers[i].invoke(buf) }
 
-    return this.primaryConstructor!!.call(*items.toTypedArray())
+    return ctor.javaConstructor.newInstance(*items) as T
 }
 
 typealias ByteSerializeFn = ((it: Any, buf: FriendlyByteBuf) -> Unit)
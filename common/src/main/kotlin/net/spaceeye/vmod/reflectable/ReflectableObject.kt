@@ -2,10 +2,13 @@ package net.spaceeye.vmod.reflectable
 
 import com.fasterxml.jackson.annotation.JsonIgnore
 import org.jetbrains.annotations.ApiStatus
+import java.lang.reflect.Field
 import kotlin.reflect.KProperty
+import kotlin.reflect.KProperty1
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.full.primaryConstructor
 import kotlin.reflect.jvm.javaField
+import kotlin.reflect.jvm.javaGetter
 
 open class ReflectableItemDelegate <T : Any>(
     var reflectionPos: Int,
@@ -15,6 +18,10 @@ open class ReflectableItemDelegate <T : Any>(
     var getWrapper: ((value: T) -> T)? = null
 ) {
     lateinit var cachedName: String
+
+    // serializers resolved on first use for the class of the value
+    @JvmField internal var byteCodec: ResolvedByteCodec? = null
+    @JvmField internal var tagCodec: ResolvedTagCodec? = null
     open operator fun getValue(thisRef: Any?, property: KProperty<*>?):T {
         return getWrapper?.invoke(it!!) ?: it!!
     }
@@ -40,6 +47,89 @@ open class ReflectableItemDelegate <T : Any>(
 //TODO add explanation
 annotation class SubReflectable
 
+/**
+ * Everything reflection finds out about a class, resolved once per class so that getting reflectable items of an
+ * instance only reads fields
+ */
+internal class ReflectableClassInfo private constructor(clazz: Class<*>) {
+    // properties of a data class constructor in constructor order, null if not a data class
+    val dataProperties: List<KProperty1<Any, *>>?
+    val dataGetters: List<java.lang.reflect.Method?>?
+
+    val fields: Array<Field>
+    val isDelegate: BooleanArray
+    val isSubReflectable: BooleanArray
+
+    init {
+        val kclass = clazz.kotlin
+        val constructorItems = (if (kclass.isData) kclass.primaryConstructor?.parameters?.map { it.name }?.toSet() else null) ?: emptySet()
+        val members = kclass.memberProperties as Collection<KProperty1<Any, *>>
+
+        dataProperties = if (kclass.isData) {
+            val order = kclass.primaryConstructor?.parameters ?: listOf()
+            order.map { item -> members.find { it.name == item.name }!! }
+        } else null
+        dataGetters = dataProperties?.map { prop -> prop.javaGetter?.also { it.isAccessible = true } }
+
+        val fields = mutableListOf<Field>()
+        val isDelegate = mutableListOf<Boolean>()
+        val isSubReflectable = mutableListOf<Boolean>()
+        members.forEach { item ->
+            if (constructorItems.contains(item.name)) return@forEach
+            val javaField = item.javaField ?: return@forEach
+            val sub = item.annotations.contains(SubReflectable())
+            val delegate = ReflectableItemDelegate::class.java.isAssignableFrom(javaField.type)
+            if (!sub && !delegate) return@forEach
+
+            javaField.isAccessible = true
+            fields.add(javaField)
+            isDelegate.add(delegate)
+            isSubReflectable.add(sub)
+        }
+        this.fields = fields.toTypedArray()
+        this.isDelegate = isDelegate.toBooleanArray()
+        this.isSubReflectable = isSubReflectable.toBooleanArray()
+    }
+
+    // byte codecs of data class properties, resolved for the class of their last value
+    @JvmField val dataByteCodecs: Array<ResolvedByteCodec?>? = dataProperties?.let { arrayOfNulls(it.size) }
+
+    private class SortedDelegates(@JvmField val fields: Array<Field>, @JvmField val positions: IntArray)
+    // resolved from the first instance, as positions are only known once delegates are created
+    @Volatile private var sorted: SortedDelegates? = null
+
+    fun getDataValue(obj: Any, i: Int): Any? = dataGetters!![i]?.invoke(obj) ?: dataProperties!![i].call(obj)
+
+    /**
+     * @return delegate fields in the same order as [ReflectableObject.getReflectableItemsWithoutDataclassConstructorItems]
+     * returns them, or null if positions of delegates of [obj] differ from the ones the order was resolved for
+     */
+    fun sortedDelegateFields(obj: Any): Array<Field>? {
+        val sorted = sorted ?: sortDelegates(obj).also { sorted = it }
+        val fields = sorted.fields
+        for (i in fields.indices) {
+            if ((fields[i].get(obj) as ReflectableItemDelegate<*>).reflectionPos != sorted.positions[i]) return null
+        }
+        return fields
+    }
+
+    private fun sortDelegates(obj: Any): SortedDelegates {
+        val delegates = fields.indices
+            .filter { isDelegate[it] }
+            .map { Pair(fields[it], (fields[it].get(obj) as ReflectableItemDelegate<*>).reflectionPos) }
+            .sortedBy { it.second }
+        return SortedDelegates(delegates.map { it.first }.toTypedArray(), delegates.map { it.second }.toIntArray())
+    }
+
+    companion object {
+        private val cache = object : ClassValue<ReflectableClassInfo>() {
+            override fun computeValue(type: Class<*>) = ReflectableClassInfo(type)
+        }
+
+        fun of(clazz: Class<*>): ReflectableClassInfo = cache.get(clazz)
+    }
+}
+
 interface ReflectableObject {
     /**
      * If you can't directly serialize some class, make main class inherit ReflectableObject, and override this fn so that it returns state instance
@@ -64,12 +154,10 @@ interface ReflectableObject {
 
         val toReturn = mutableListOf<ReflectableItemDelegate<*>>()
 
-        if (this::class.isData) {
-            val order = this::class.primaryConstructor?.parameters ?: listOf()
-            val orderNames = order.map { it.name!! }
-            val members = orderNames.map { item -> this::class.memberProperties.find { it.name == item }!! }
-            val delegates = members
-                .map { it -> ReflectableItemDelegate(-1, it.call(this)!!) }
+        val info = ReflectableClassInfo.of(this.javaClass)
+        if (info.dataProperties != null) {
+            val delegates = info.dataProperties.indices
+                .map { ReflectableItemDelegate(-1, info.getDataValue(this, it)!!) }
                 .filter(filterBy)
 
             toReturn.addAll(delegates)
@@ -84,28 +172,20 @@ interface ReflectableObject {
     fun getReflectableItemsWithoutDataclassConstructorItems(processSubReflectables: Boolean = false, filterBy: (ReflectableItemDelegate<*>) -> Boolean = {true}): List<ReflectableItemDelegate<*>> {
         reflectObjectOverride?.also { return it.getAllReflectableItems() }
 
-        val constructorItems = (if (this::class.isData) this::class.primaryConstructor?.parameters?.map { it.name }?.toSet() else null) ?: emptySet()
-
+        val info = ReflectableClassInfo.of(this.javaClass)
         val subReflectables = mutableListOf<Any>()
 
-        val delegates = this::class.memberProperties.filter {
-            !constructorItems.contains(it.name)
-        }.mapNotNull { item ->
-            val javaField = item.javaField ?: return@mapNotNull null
-            if (processSubReflectables && item.annotations.contains(SubReflectable())) {
-                javaField.isAccessible = true
-                val item = javaField.get(this) ?: return@mapNotNull null
-                subReflectables.add(item)
-                return@mapNotNull null
+        val delegates = ArrayList<ReflectableItemDelegate<*>>(info.fields.size)
+        for (i in info.fields.indices) {
+            if (processSubReflectables && info.isSubReflectable[i]) {
+                subReflectables.add(info.fields[i].get(this) ?: continue)
+                continue
             }
-
-            if (!ReflectableItemDelegate::class.java.isAssignableFrom(javaField.type)) return@mapNotNull null
-
-            javaField.isAccessible = true
-            javaField.get(this) as ReflectableItemDelegate<*>
-        }.sortedBy {
-            it.reflectionPos
-        }.filter(filterBy).toMutableList()
+            if (!info.isDelegate[i]) continue
+            delegates.add(info.fields[i].get(this) as ReflectableItemDelegate<*>)
+        }
+        delegates.sortBy { it.reflectionPos }
+        delegates.retainAll(filterBy)
 
         delegates.addAll(subReflectables.map { item ->
             when (item) {
@@ -75,33 +75,74 @@ interface TagAutoSerializable: TagSerializable, ReflectableObject {
     @JsonIgnore override fun tGetBuffer() = super.tGetBuffer()
 }
 
+private val putEnum: TagSerializeFn = { it, tag, key -> tag.putString(key, (it as Enum<*>).name) }
+
+/**
+ * Same as [ResolvedByteCodec]. null deserializer means that value is left as is
+ */
+internal class ResolvedTagCodec(@JvmField val type: Class<*>, @JvmField val serialize: TagSerializeFn?, @JvmField val deserialize: TagDeserializeFn<*>?)
+
+// same as with byte serializers, resolved once per delegate
+internal fun ReflectableItemDelegate<*>.getTagCodec(): ResolvedTagCodec {
+    val type = it!!.javaClass
+    val codec = tagCodec
+    if (codec != null && codec.type === type) { return codec }
+
+    val isEnum = Enum::class.java.isAssignableFrom(type)
+    val serDeser = typeToTagSerDeser[type.kotlin]
+    val ser = serDeser?.first ?: if (isEnum) putEnum else null
+    val deser = serDeser?.second ?: run {
+        if (!isEnum) return@run null
+        val enumClass = type as Class<out Enum<*>>
+        ({ tag: CompoundTag, key: String -> java.lang.Enum.valueOf(enumClass, tag.getString(key)) })
+    }
+
+    return ResolvedTagCodec(type, ser, deser).also { tagCodec = it }
+}
+
+private fun ReflectableItemDelegate<*>.tSerializeItem(tag: CompoundTag) {
+    if (metadata.contains("NoTagSerialization")) return
+    val ser = getTagCodec().serialize ?: throw AssertionError("Can't serialize ${it!!.javaClass.simpleName}")
+    ser.invoke(it!!, tag, cachedName)
+}
+
+private fun ReflectableItemDelegate<*>.tDeserializeItem(tag: CompoundTag) {
+    if (metadata.contains("NoTagSerialization")) return
+    try {
+        // enums and registered types can always be deserialized, everything else is left as is
+        val deser = getTagCodec().deserialize
+        setValue(null, null, deser?.invoke(tag, cachedName) ?: it!!)
+    } catch (e: Exception) {
+        ELOG(e.stackTraceToString())
+    }
+}
+
+// Same as with byte serialization, items are read from fields resolved once per class. Data classes are serialized
+// through getAllReflectableItems.
 //TODO you can't define custom ser/deser
-fun ReflectableObject.tSerialize(buf: CompoundTag? = null) = (buf ?: CompoundTag()).also { buf ->
-    getAllReflectableItems().forEach {
-        if (it.metadata.contains("NoTagSerialization")) {return@forEach}
-        typeToTagSerDeser[it.it!!::class]?.let { (ser, deser) -> ser(it.it!!, buf, it.cachedName) }
-            ?: run {
-                if (it.it !is Enum<*>) throw AssertionError("Can't serialize ${it.it!!::class.simpleName}")
-                buf.putString(it.cachedName, (it.it as Enum<*>).name)
-            }
+fun ReflectableObject.tSerialize(buf: CompoundTag? = null): CompoundTag {
+    val out = buf ?: CompoundTag()
+    val info = ReflectableClassInfo.of(javaClass)
+    val fields = if (reflectObjectOverride == null && info.dataProperties == null) info.sortedDelegateFields(this) else null
+    if (fields == null) {
+        val items = getAllReflectableItems()
+        for (i in items.indices) { items[i].tSerializeItem(out) }
+        return out
     }
+
+    for (i in fields.indices) { (fields[i].get(this) as ReflectableItemDelegate<*>).tSerializeItem(out) }
+    return out
 }
 
 fun ReflectableObject.tDeserialize(tag: CompoundTag) {
-    getReflectableItemsWithoutDataclassConstructorItems().forEach {
-        if (it.metadata.contains("NoTagSerialization")) {return@forEach}
-        try {
-        it.setValue(null, null,
-            typeToTagSerDeser[it.it!!::class]?.let { (ser, deser) -> deser(tag, it.cachedName) }
-                ?: let { _ ->
-                    if (it.it !is Enum<*>) return@let it.it!! //throw AssertionError("Can't deserialize ${it.it!!::class.simpleName}")
-                    java.lang.Enum.valueOf(it.it!!.javaClass as Class<out Enum<*>>, tag.getString(it.cachedName))
-                }
-        )
-        } catch (e: Exception) {
-            ELOG(e.stackTraceToString())
-        }
+    val fields = if (reflectObjectOverride == null) ReflectableClassInfo.of(javaClass).sortedDelegateFields(this) else null
+    if (fields == null) {
+        val items = getReflectableItemsWithoutDataclassConstructorItems()
+        for (i in items.indices) { items[i].tDeserializeItem(tag) }
+        return
     }
+
+    for (i in fields.indices) { (fields[i].get(this) as ReflectableItemDelegate<*>).tDeserializeItem(tag) }
 }
 
 typealias TagSerializeFn = (it: Any, tag: CompoundTag, key: String) -> Unit
@@ -1,5 +1,6 @@
 package net.spaceeye.vmod.rendering
 
+import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.PoseStack
 import net.minecraft.client.Camera
 import net.minecraft.client.Minecraft
@@ -7,24 +8,29 @@ import net.minecraft.client.renderer.ItemBlockRenderTypes
 import net.minecraft.client.renderer.LevelRenderer.DIRECTIONS
 import net.minecraft.client.renderer.MultiBufferSource
 import net.minecraft.client.renderer.block.model.ItemTransforms
+import net.minecraft.client.renderer.culling.Frustum
 import net.minecraft.client.resources.model.BakedModel
 import net.minecraft.util.RandomSource
 import net.minecraft.world.item.ItemDisplayContext
 import net.minecraft.world.item.ItemStack
 import net.minecraft.world.level.block.RenderShape
 import net.minecraft.world.level.block.state.BlockState
+import net.minecraft.world.phys.AABB
 import net.spaceeye.vmod.ELOG
 import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.events.PersistentEvents
 import net.spaceeye.vmod.mixin.BlockRenderDispatcherAccessor
+import net.spaceeye.vmod.rendering.types.BaseRenderer
 import net.spaceeye.vmod.rendering.types.BlockRenderer
 import net.spaceeye.vmod.rendering.types.PositionDependentRenderer
 import net.spaceeye.vmod.rendering.types.TimedRenderer
 import net.spaceeye.vmod.utils.Vector3d
 import net.spaceeye.vmod.utils.getNow_ms
+import org.joml.Matrix4f
 import org.valkyrienskies.core.impl.game.ships.ShipObjectClientWorld
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.awt.Color
+import java.util.WeakHashMap
 
 object ReservedRenderingPages {
     const val WorldRenderingObject = -1L
@@ -84,6 +90,26 @@ internal object RenderingStuff {
 
 private var renderTick = 0L
 
+// instead of creating a new pose stack for every renderer, a single one is reset to the base pose
+private val sharedPoseStack = PoseStack()
+private fun resetPoseStack(basePose: Matrix4f): PoseStack {
+    while (!sharedPoseStack.clear()) { sharedPoseStack.popPose() }
+    sharedPoseStack.setIdentity()
+    sharedPoseStack.last().pose().set(basePose)
+    return sharedPoseStack
+}
+
+private fun renderObject(render: BaseRenderer, basePose: Matrix4f, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long, renderTick: Long) {
+    if (render.renderingTick == renderTick) { return }
+    if ((render is BlockRenderer) != renderBlockRenderers) { return }
+    render.renderingTick = renderTick
+    when (render) {
+        is BlockRenderer -> render.renderBlockData(resetPoseStack(basePose), camera, RenderingStuff.blockBuffer, timestamp)
+        is BatchedRenderer -> RenderBatches.add(render, resetPoseStack(basePose), camera, timestamp)
+        else -> render.renderData(resetPoseStack(basePose), camera, timestamp)
+    }
+}
+
 //TODO renderBlockRenderers is fucking stupid
 //this is called from two places: GameRendererMixin and LevelRendererMixin.
 // from GameRendererMixin it renders VEntities and from LevelRendererMixin it renders BlockRenderers
@@ -94,24 +120,33 @@ fun renderInWorld(poseStack: PoseStack, camera: Camera, minecraft: Minecraft, re
     val now = getNow_ms()
     PersistentEvents.clientPreRender.emit(PersistentEvents.ClientPreRender(now))
 
+    val basePose = poseStack.last().pose()
+
     minecraft.profiler.push("vmod_rendering_ship_objects")
-    renderShipObjects(poseStack, camera, renderBlockRenderers, now, renderTick++)
+    renderShipObjects(basePose, camera, renderBlockRenderers, now, renderTick++)
     minecraft.profiler.pop()
 
     minecraft.profiler.push("vmod_rendering_timed_objects")
-    renderTimedObjects(poseStack, camera, renderBlockRenderers, now)
+    renderTimedObjects(basePose, camera, renderBlockRenderers, now)
     minecraft.profiler.pop()
 
     minecraft.profiler.push("vmod_rendering_clientside_objects")
-    renderClientsideObjects(poseStack, camera, renderBlockRenderers, now)
+    renderClientsideObjects(basePose, camera, renderBlockRenderers, now)
     minecraft.profiler.pop()
 
     minecraft.profiler.push("vmod_rendering_world_objects")
-    renderWorldObjects(poseStack, camera, renderBlockRenderers, now, renderTick)
+    renderWorldObjects(basePose, camera, renderBlockRenderers, now, renderTick)
+    minecraft.profiler.pop()
+
+    minecraft.profiler.push("vmod_rendering_batches")
+    try {
+        RenderBatches.drawAll()
+    } catch (e: Exception) { ELOG("Renderer raised exception:\n${e.stackTraceToString()}")
+    } catch (e: Error) { ELOG("Renderer raised error!!!\n${e.stackTraceToString()}") }
     minecraft.profiler.pop()
 }
 
-private fun renderShipObjects(poseStack: PoseStack, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long, renderTick: Long) {
+private fun renderShipObjects(basePose: Matrix4f, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long, renderTick: Long) {
     val level = Minecraft.getInstance().level!!
 
     //TODO why tf does try wrap everything and not individual objects
@@ -121,14 +156,7 @@ private fun renderShipObjects(poseStack: PoseStack, camera: Camera, renderBlockR
     ids.addAll((level.shipObjectWorld as ShipObjectClientWorld).physicsEntities.map { it.key })
     for (id in ids) {
         for ((_, render) in data[id] ?: continue) {
-            val poseStack = PoseStack().also {
-                it.setIdentity()
-                it.mulPoseMatrix(poseStack.last().pose())
-            }
-            when (render) {
-                is BlockRenderer -> if (renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderBlockData(poseStack, camera, RenderingStuff.blockBuffer, timestamp)
-                else -> if(!renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderData(poseStack, camera, timestamp)
-            }
+            renderObject(render, basePose, camera, renderBlockRenderers, timestamp, renderTick)
         }
     }
     // let's hope that it never happens, but if it does, then do nothing
@@ -137,7 +165,7 @@ private fun renderShipObjects(poseStack: PoseStack, camera: Camera, renderBlockR
     } catch (e: Error) { ELOG("Renderer raised error!!!\n${e.stackTraceToString()}") }
 }
 
-private fun renderTimedObjects(poseStack: PoseStack, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long) {
+private fun renderTimedObjects(basePose: Matrix4f, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long) {
     if (renderBlockRenderers) {return}
     try {
     val cpos = Vector3d(Minecraft.getInstance().player!!.position())
@@ -151,12 +179,12 @@ private fun renderTimedObjects(poseStack: PoseStack, camera: Camera, renderBlock
         if (render.activeFor_ms + render.timestampOfBeginning < now) { toDelete.add(idx); continue }
         if ((render.renderingPosition - cpos).sqrDist() > RenderingSettings.renderingArea*RenderingSettings.renderingArea) { continue }
 
-        val poseStack = PoseStack().also {
-            it.setIdentity()
-            it.mulPoseMatrix(poseStack.last().pose())
-        }
         render.wasActivated = true
-        render.renderData(poseStack, camera, timestamp)
+        if (render is BatchedRenderer) {
+            RenderBatches.add(render, resetPoseStack(basePose), camera, timestamp)
+        } else {
+            render.renderData(resetPoseStack(basePose), camera, timestamp)
+        }
     }
 
     if (toDelete.isEmpty()) {return}
@@ -165,18 +193,11 @@ private fun renderTimedObjects(poseStack: PoseStack, camera: Camera, renderBlock
     } catch (e: Error) { ELOG("Renderer raised error!!!\n${e.stackTraceToString()}") }
 }
 
-private fun renderClientsideObjects(poseStack: PoseStack, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long) {
+private fun renderClientsideObjects(basePose: Matrix4f, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long) {
     val page = RenderingData.client.getData()[ReservedRenderingPages.ClientsideRenderingObjects] ?: return
     try {
     for ((_, render) in page) {
-        val poseStack = PoseStack().also {
-            it.setIdentity()
-            it.mulPoseMatrix(poseStack.last().pose())
-        }
-        when (render) {
-            is BlockRenderer -> if (renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderBlockData(poseStack, camera, RenderingStuff.blockBuffer, timestamp)
-            else -> if(!renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderData(poseStack, camera, timestamp)
-        }
+        renderObject(render, basePose, camera, renderBlockRenderers, timestamp, renderTick)
     }
     // let's hope that it never happens, but if it does, then do nothing
     //TODO show that error happened to player?
@@ -184,25 +205,21 @@ private fun renderClientsideObjects(poseStack: PoseStack, camera: Camera, render
     } catch (e: Error) { ELOG("Renderer raised error!!!\n${e.stackTraceToString()}") }
 }
 
-private fun renderWorldObjects(poseStack: PoseStack, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long, renderTick: Long) {
+// world renderers don't move, so their bounds are computed once and reused until the renderer is gone
+private val worldRenderersAABBs = WeakHashMap<BaseRenderer, AABB>()
+
+private fun renderWorldObjects(basePose: Matrix4f, camera: Camera, renderBlockRenderers: Boolean, timestamp: Long, renderTick: Long) {
     val cameraPos = camera.position
-    val maxDist = Minecraft.getInstance().gameRenderer.renderDistance
+    val frustum = Frustum(basePose, RenderSystem.getProjectionMatrix()).also { it.prepare(cameraPos.x, cameraPos.y, cameraPos.z) }
     for ((_, page) in RenderingData.clientWorld.getData()) {
         for ((_, render) in page) {
             try {
             render as PositionDependentRenderer
-            if ((render.renderingPosition.copy().also { it.y = 0.0 }.sub(cameraPos.x, 0, cameraPos.z)).dist() > maxDist) { continue }
+            if (!frustum.isVisible(worldRenderersAABBs.getOrPut(render) { render.renderingAABB })) { continue }
 
-            val poseStack = PoseStack().also {
-                it.setIdentity()
-                it.mulPoseMatrix(poseStack.last().pose())
-            }
-            when (render) {
-                is BlockRenderer -> if (renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderBlockData(poseStack, camera, RenderingStuff.blockBuffer, timestamp)
-                else -> if(!renderBlockRenderers) if (render.renderingTick != renderTick) render.also { it.renderingTick = renderTick }.renderData(poseStack, camera, timestamp)
-            }
+            renderObject(render, basePose, camera, renderBlockRenderers, timestamp, renderTick)
             } catch (e: Exception) { ELOG("Renderer raised exception:\n${e.stackTraceToString()}")
             } catch (e: Error) { ELOG("Renderer raised error!!!\n${e.stackTraceToString()}") }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,99 @@
+package net.spaceeye.vmod.rendering
+
+import com.mojang.blaze3d.systems.RenderSystem
+import com.mojang.blaze3d.vertex.BufferBuilder
+import com.mojang.blaze3d.vertex.BufferUploader
+import com.mojang.blaze3d.vertex.PoseStack
+import com.mojang.blaze3d.vertex.Tesselator
+import com.mojang.blaze3d.vertex.VertexConsumer
+import com.mojang.blaze3d.vertex.VertexFormat
+import net.minecraft.client.Camera
+import net.minecraft.client.renderer.GameRenderer
+import net.minecraft.resources.ResourceLocation
+
+/**
+ * Describes render state shared by everything in a single batch. Renderers that return equal batch types
+ * are drawn with one begin/end and one draw call per frame.
+ */
+abstract class RenderBatchType {
+    open val mode: VertexFormat.Mode get() = VertexFormat.Mode.QUADS
+    abstract val format: VertexFormat
+
+    abstract fun setup()
+    abstract fun clear()
+}
+
+class FullRenderingBatch private constructor(val texture: ResourceLocation): RenderBatchType() {
+    override val format: VertexFormat get() = GameRenderer.getRendertypeTranslucentShader()!!.vertexFormat
+
+    override fun setup() {
+        RenderSetups.setupFullRendering()
+        RenderSystem.setShaderTexture(0, texture)
+    }
+
+    override fun clear() = RenderSetups.clearFullRendering()
+
+    companion object {
+        private val types = HashMap<ResourceLocation, FullRenderingBatch>()
+        fun of(texture: ResourceLocation) = types.getOrPut(texture) { FullRenderingBatch(texture) }
+    }
+}
+
+/**
+ * Renderer that only writes vertices, leaving render state and draw calls to [RenderBatches].
+ */
+interface BatchedRenderer {
+    // null if renderer shouldn't render anything this frame
+    fun getBatchType(): RenderBatchType?
+    fun renderBatched(buffer: VertexConsumer, poseStack: PoseStack, camera: Camera, timestamp: Long)
+}
+
+object RenderBatches {
+    private const val INITIAL_BUFFER_SIZE = 2048
+
+    private val builders = HashMap<RenderBatchType, BufferBuilder>()
+    private val active = ArrayList<RenderBatchType>()
+
+    fun getBuffer(type: RenderBatchType): BufferBuilder {
+        val builder = builders.getOrPut(type) { BufferBuilder(INITIAL_BUFFER_SIZE) }
+        if (!builder.building()) {
+            builder.begin(type.mode, type.format)
+            active.add(type)
+        }
+        return builder
+    }
+
+    fun add(renderer: BatchedRenderer, poseStack: PoseStack, camera: Camera, timestamp: Long) {
+        val type = renderer.getBatchType() ?: return
+        renderer.renderBatched(getBuffer(type), poseStack, camera, timestamp)
+    }
+
+    /**
+     * Draws and resets all batches that were started since the last call
+     */
+    fun drawAll() {
+        for (type in active) {
+            val rendered = builders[type]!!.end()
+            if (rendered.isEmpty) { rendered.release(); continue }
+            type.setup()
+            BufferUploader.drawWithShader(rendered)
+            type.clear()
+        }
+        active.clear()
+    }
+
+    /**
+     * Renders a single renderer with its own draw call, for when it's rendered outside of the main pipeline
+     */
+    fun renderImmediately(renderer: BatchedRenderer, poseStack: PoseStack, camera: Camera, timestamp: Long) {
+        val type = renderer.getBatchType() ?: return
+        val tesselator = Tesselator.getInstance()
+        val builder = tesselator.builder
+
+        builder.begin(type.mode, type.format)
+        renderer.renderBatched(builder, poseStack, camera, timestamp)
+        type.setup()
+        tesselator.end()
+        type.clear()
+    }
+}
@@ -23,7 +23,9 @@ import java.util.*
 
 internal fun serializeItem(buf: FriendlyByteBuf, item: Serializable) {
     buf.writeInt(RenderingTypes.typeToIdx(item::class.java as Class<out BaseRenderer>)!!)
-    buf.writeByteArray(item.serialize().array())
+    val data = item.serialize()
+    buf.writeVarInt(data.writerIndex())
+    buf.writeBytes(data, 0, data.writerIndex())
 }
 
 internal fun deserializeItem(buf: FriendlyByteBuf): Serializable {
@@ -56,11 +58,11 @@ class ClientSynchronisedRenderingData(streamName: String = "rendering_data"):
     private val idToItem = mutableMapOf<Int, BaseRenderer>()
     fun getItem(idx: Int) = idToItem[idx]
 
-    override fun onClear() { idToItem.clear() }
-    override fun onRemove(page: Long) { cachedData[page]?.forEach {idToItem.remove(it.key)} }
-    override fun onRemove(page: Long, idx: Int) { idToItem.remove(idx) }
+    override fun onClear() { idToItem.values.forEach { it.onRemoved() }; idToItem.clear() }
+    override fun onRemove(page: Long) { cachedData[page]?.forEach { idToItem.remove(it.key)?.onRemoved() } }
+    override fun onRemove(page: Long, idx: Int) { idToItem.remove(idx)?.onRemoved() }
     override fun onAdd(page: Long, idx: Int, item: BaseRenderer) {
-        idToItem[idx] = item
+        idToItem.put(idx, item)?.let { if (it !== item) it.onRemoved() }
         if (item is AutoSerializable) {item.getAllReflectableItems().forEach { it.setValue(null, null, (it.metadata["verification"] as? (Any) -> Any)?.invoke(it.it!!) ?: it.it!!) }}
     }
 
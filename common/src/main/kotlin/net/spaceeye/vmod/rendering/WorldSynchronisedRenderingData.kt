@@ -1,16 +1,88 @@
 package net.spaceeye.vmod.rendering
 
 import dev.architectury.networking.NetworkManager
+import net.minecraft.server.level.ServerPlayer
 import net.minecraft.world.level.ChunkPos
 import net.spaceeye.vmod.events.PersistentEvents
+import net.spaceeye.vmod.networking.AckedPage
 import net.spaceeye.vmod.networking.SynchronisedDataTransmitter
 import net.spaceeye.vmod.rendering.types.BaseRenderer
 import net.spaceeye.vmod.rendering.types.PositionDependentRenderer
+import net.spaceeye.vmod.utils.LongHashMap
 import net.spaceeye.vmod.utils.addCustomServerClosable
 import net.spaceeye.vmod.utils.toChunkPos
 import org.valkyrienskies.mod.common.dimensionId
 import java.util.UUID
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
 
+/**
+ * Pages of chunks of a single dimension that have world renderers in them. Only occupied chunks are in it, so when
+ * there are fewer of them than chunks in an area, they are visited instead of the area.
+ */
+internal class ChunkPages {
+    // ChunkPos.toLong -> page
+    val chunks = LongHashMap<Long>()
+
+    operator fun get(chunk: Long): Long? = chunks[chunk]
+    fun add(chunk: Long, page: Long) { chunks[chunk] = page }
+    fun remove(chunk: Long) = chunks.remove(chunk)
+
+    /**
+     * Calls [fn] with pages of chunks in square of [radius] around ([x], [z])
+     */
+    inline fun forEachInSquare(x: Int, z: Int, radius: Int, fn: (page: Long) -> Unit) {
+        val side = radius * 2 + 1
+        if (chunks.size < side.toLong() * side) {
+            chunks.forEach { chunk, page ->
+                if (abs(ChunkPos.getX(chunk) - x) <= radius && abs(ChunkPos.getZ(chunk) - z) <= radius) { fn(page) }
+            }
+            return
+        }
+        for (cx in x - radius..x + radius) {
+            for (cz in z - radius..z + radius) { fn(chunks[ChunkPos.asLong(cx, cz)] ?: continue) }
+        }
+    }
+
+    /**
+     * Calls [fn] with pages of chunks that are in square of [radius] around ([x], [z]), but aren't in square of the
+     * same radius around ([otherX], [otherZ]). When squares overlap only the strips along the edges are visited.
+     */
+    inline fun forEachOutside(x: Int, z: Int, otherX: Int, otherZ: Int, radius: Int, fn: (page: Long) -> Unit) {
+        val side = radius * 2 + 1
+        val dx = min(abs(x - otherX), side)
+        val dz = min(abs(z - otherZ), side)
+        val cells = dx.toLong() * side + dz.toLong() * (side - dx)
+        if (cells == 0L) return
+
+        if (chunks.size < cells) {
+            chunks.forEach { chunk, page ->
+                val cx = ChunkPos.getX(chunk)
+                val cz = ChunkPos.getZ(chunk)
+                if (abs(cx - x) <= radius && abs(cz - z) <= radius
+                && (abs(cx - otherX) > radius || abs(cz - otherZ) > radius)) { fn(page) }
+            }
+            return
+        }
+
+        // rows of columns shared by both squares that aren't in the other square
+        val fromZ = if (z > otherZ) max(otherZ + radius + 1, z - radius) else z - radius
+        val toZ   = if (z > otherZ) z + radius else min(otherZ - radius - 1, z + radius)
+        for (cx in x - radius..x + radius) {
+            if (abs(cx - otherX) > radius) {
+                for (cz in z - radius..z + radius) { fn(chunks[ChunkPos.asLong(cx, cz)] ?: continue) }
+            } else {
+                for (cz in fromZ..toZ) { fn(chunks[ChunkPos.asLong(cx, cz)] ?: continue) }
+            }
+        }
+    }
+}
+
+/**
+ * Every chunk with world renderers has its own page. Players are subscribed to pages of chunks in their view distance,
+ * and when they move only pages of chunks that entered or left it are changed.
+ */
 class ServerWorldSynchronisedRenderingData: SynchronisedDataTransmitter<BaseRenderer>(
     "world_rendering_data",
     NetworkManager.Side.C2S,
@@ -19,15 +91,25 @@ class ServerWorldSynchronisedRenderingData: SynchronisedDataTransmitter<BaseRend
     ::serializeItem,
     ::deserializeItem
 ) {
+    private class PageChunk(val dimension: String, val chunk: Long)
+
     private var nextPage: Long = 0
     private var idToPage = mutableMapOf<Int, Long>()
-    private val dimToCPosToPage = mutableMapOf<String, MutableMap<ChunkPos, Long>>()
+    private val dimToChunkPages = mutableMapOf<String, ChunkPages>()
+    private val pageToChunk = LongHashMap<PageChunk>()
+    // pages created since the last tick, players that already see their chunks are subscribed to them on tick
+    private val newPages = mutableListOf<Long>()
 
     val playerUpdates = mutableSetOf<UUID>()
 
     fun <T> addRenderer(dimensionId: String, render: T): Int where T: BaseRenderer, T: PositionDependentRenderer = lock {
-        val cpos = render.renderingPosition.toChunkPos()
-        val page = dimToCPosToPage.getOrPut(dimensionId) { mutableMapOf() }.getOrPut(cpos) { nextPage++ }
+        val chunk = render.renderingPosition.toChunkPos().toLong()
+        val chunkPages = dimToChunkPages.getOrPut(dimensionId) { ChunkPages() }
+        val page = chunkPages[chunk] ?: nextPage++.also {
+            chunkPages.add(chunk, it)
+            pageToChunk[it] = PageChunk(dimensionId, chunk)
+            newPages.add(it)
+        }
         val id = add(page, render)
         idToPage[id] = page
         return id
@@ -42,7 +124,13 @@ class ServerWorldSynchronisedRenderingData: SynchronisedDataTransmitter<BaseRend
     fun removeRenderer(id: Int): Long? = lock {
         val page = idToPage[id] ?: return null
         idToPage.remove(id)
-        return if(remove(page, id)) page else null
+        if (!remove(page, id)) return null
+        // empty chunks are removed from the index, subscribers get page removal on the next synchronization
+        if (get(page).isNullOrEmpty()) {
+            pageToChunk.remove(page)?.let { dimToChunkPages[it.dimension]?.remove(it.chunk) }
+            remove(page)
+        }
+        return page
     }
 
     fun getRenderer(id: Int): BaseRenderer? = lock {
@@ -50,49 +138,78 @@ class ServerWorldSynchronisedRenderingData: SynchronisedDataTransmitter<BaseRend
         return get(page)?.get(id)
     }
 
-    private data class PlayerState(var dimension: String, var lastCPos: ChunkPos)
+    private class PlayerState {
+        // null if player isn't subscribed to anything
+        var dimension: String? = null
+        var x = 0
+        var z = 0
+        var radius = 0
+    }
     private var players = mutableMapOf<UUID, PlayerState>()
 
+    private fun updateVisible(player: ServerPlayer, state: PlayerState, dimension: String, x: Int, z: Int, radius: Int) {
+        val acked = subscribersAckedVersions.getOrPut(player.uuid) { mutableMapOf() }
+        uuidToPlayer[player.uuid] = player
+        var changed = false
+
+        val unsubscribe = { page: Long -> if (acked.remove(page) != null) { changed = true } }
+        val subscribe = { page: Long -> if (!acked.containsKey(page)) { acked[page] = AckedPage(); changed = true } }
+
+        val lastDimension = state.dimension
+        if (lastDimension == dimension && state.radius == radius) {
+            dimToChunkPages[dimension]?.let {
+                it.forEachOutside(state.x, state.z, x, z, radius, unsubscribe)
+                it.forEachOutside(x, z, state.x, state.z, radius, subscribe)
+            }
+        } else {
+            if (lastDimension != null) { dimToChunkPages[lastDimension]?.forEachInSquare(state.x, state.z, state.radius, unsubscribe) }
+            dimToChunkPages[dimension]?.forEachInSquare(x, z, radius, subscribe)
+        }
+
+        state.dimension = dimension
+        state.x = x
+        state.z = z
+        state.radius = radius
+        if (changed) { playerUpdates.add(player.uuid) }
+    }
+
+    private fun subscribeToNewPages() {
+        if (newPages.isEmpty()) return
+        for (page in newPages) {
+            val chunk = pageToChunk[page] ?: continue
+            val cx = ChunkPos.getX(chunk.chunk)
+            val cz = ChunkPos.getZ(chunk.chunk)
+            players.forEach { (uuid, state) ->
+                if (state.dimension != chunk.dimension || abs(cx - state.x) > state.radius || abs(cz - state.z) > state.radius) return@forEach
+                val acked = subscribersAckedVersions[uuid] ?: return@forEach
+                if (acked.containsKey(page)) return@forEach
+                acked[page] = AckedPage()
+                playerUpdates.add(uuid)
+            }
+        }
+        newPages.clear()
+    }
+
     init {
-        addCustomServerClosable { close(); players.clear() }
+        addCustomServerClosable { close(); players.clear(); dimToChunkPages.clear(); pageToChunk.clear(); newPages.clear() }
 
+        // subscriptions of all players are changed at once
         PersistentEvents.serverOnTick.on { (server), _ ->
             val viewDistance = server.playerList.viewDistance
-            for (player in server.playerList.players) {
-                val level = player.serverLevel()
-                val playerDimension = level.dimensionId
-                val curCPos = player.blockPosition().toChunkPos()
-
-                val state = players.getOrPut(player.uuid) { PlayerState("", ChunkPos(-999999999, -999999999)) }
-                if (state.dimension != playerDimension) {
-                    state.dimension = playerDimension
-                    state.lastCPos = ChunkPos(-999999999, -999999999)
-                }
-                if (state.lastCPos == curCPos) continue
-                val cPosToPage = dimToCPosToPage[playerDimension] ?: continue
-                state.lastCPos = curCPos
-
-                lock {
-                    uuidToPlayer[player.uuid] = player
-                    val playerCached = subscribersSavedChecksums.getOrPut(player.uuid) { mutableMapOf() }
-                    val oldCached = playerCached.keys
-                    val renderPages = mutableSetOf<Long>()
-
-                    for (cPos in ChunkPos.rangeClosed(curCPos, viewDistance)) {
-                        val page = cPosToPage[cPos] ?: continue
-                        renderPages.add(page)
-                    }
-
-                    val toRemove = oldCached.subtract(renderPages)
-                    val toAdd = renderPages.subtract(oldCached)
-
-                    toRemove.forEach { playerCached.remove(it) }
-                    toAdd.forEach { playerCached.getOrPut(it) { mutableMapOf() } }
-                    if (toRemove.isNotEmpty() || toAdd.isNotEmpty()) {
-                        playerUpdates.add(player.uuid)
-                    }
+            lock {
+                for (player in server.playerList.players) {
+                    val playerDimension = player.serverLevel().dimensionId
+                    val curCPos = player.blockPosition().toChunkPos()
+
+                    val state = players.getOrPut(player.uuid) { PlayerState() }
+                    // subscriptions are dropped when player leaves
+                    if (!subscribersAckedVersions.containsKey(player.uuid)) { state.dimension = null }
+                    if (state.dimension == playerDimension && state.x == curCPos.x && state.z == curCPos.z && state.radius == viewDistance) continue
+
+                    updateVisible(player, state, playerDimension, curCPos.x, curCPos.z, viewDistance)
                 }
+                subscribeToNewPages()
             }
         }
     }
-}
\ No newline at end of file
+}
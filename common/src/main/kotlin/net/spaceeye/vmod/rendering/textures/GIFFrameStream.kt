@@ -0,0 +1,153 @@
+package net.spaceeye.vmod.rendering.textures
+
+import net.spaceeye.vmod.gif.GIFImageReader
+import net.spaceeye.vmod.gif.GIFImageReaderSpi
+import org.lwjgl.system.MemoryUtil
+import java.awt.Color
+import java.awt.Graphics2D
+import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Decodes gif a page at a time, going back to the first frame after the last one. Only the compressed gif, the last
+ * decoded frame and pages given to [decodePage] are kept in memory, so it doesn't depend on the length of the gif.
+ *
+ * Page is [framesPerPage] frames of [width] x [height] RGBA placed one after another, like layers of an array texture.
+ *
+ * Not thread safe, but can be used by different threads one after another.
+ */
+class GIFFrameStream(bytes: ByteArray, maxFramesPerPage: Int = MAX_FRAMES_PER_PAGE, maxPageHeight: Int = MAX_PAGE_HEIGHT): AutoCloseable {
+    private val stream = WrappedByteArrayInputStream(bytes)
+    // every stream has its own reader, as readers keep decoding state between frames
+    private val reader = GIFImageReader(GIFImageReaderSpi())
+    private val imgStartPos: Long
+
+    val width: Int
+    val height: Int
+    val numFrames: Int
+    val framesPerPage: Int
+    val numPages: Int
+    val frameBytes: Int
+    val pageBytes: Int
+
+    /**
+     * Index of the frame that will be decoded next
+     */
+    var nextFrame = 0
+        private set
+
+    private val lastFrame: ByteBuffer
+    private var master: BufferedImage? = null
+    private var masterGraphics: Graphics2D? = null
+
+    init {
+        reader.setInput(stream)
+        reader.streamMetadata
+        imgStartPos = stream.streamPosition
+        numFrames = reader.getNumImages(true)
+
+        reader.resetStreamSettingsWithoutMetadata()
+        stream.seek(imgStartPos)
+
+        val metadata = reader.streamMetadata!!
+        width = metadata.logicalScreenWidth
+        height = metadata.logicalScreenHeight
+
+        if (width <= 0 || height <= 0) {
+            throw RuntimeException("Cannot read texture as width or height are not defined in stream metadata")
+        }
+        if (numFrames <= 0) { throw RuntimeException("Gif has no frames") }
+
+        val builder = GIFReader.NativeTextureBuilder(width, height, width, max(height, maxPageHeight))
+        framesPerPage = builder.calculateDimensions(min(numFrames, maxFramesPerPage)).numFrames
+        numPages = (numFrames + framesPerPage - 1) / framesPerPage
+        frameBytes = width * height * 4
+        pageBytes = frameBytes * framesPerPage
+
+        lastFrame = MemoryUtil.memAlloc(frameBytes)
+    }
+
+    fun allocPage(): ByteBuffer = MemoryUtil.memAlloc(pageBytes)
+
+    /**
+     * Decodes up to [framesPerPage] frames starting from [nextFrame] into [page]. Last page of the gif can have less
+     * frames, after it decoding starts from the first frame again.
+     *
+     * @param delays delays of decoded frames are written to it at their frame indices
+     * @return number of decoded frames
+     */
+    fun decodePage(page: ByteBuffer, delays: IntArray): Int {
+        if (nextFrame == numFrames) { restart() }
+        val first = nextFrame
+        val count = min(framesPerPage, numFrames - first)
+
+        for (i in 0 until count) {
+            val start = i * frameBytes
+            val prevStart: Int
+            val prevBuffer: ByteBuffer
+            when {
+                first + i == 0 -> { prevStart = -1;                 prevBuffer = lastFrame }
+                i == 0         -> { prevStart = 0;                  prevBuffer = lastFrame }
+                else           -> { prevStart = start - frameBytes; prevBuffer = page }
+            }
+            decodeFrame(first + i, start, page, prevStart, prevBuffer, delays)
+        }
+
+        MemoryUtil.memCopy(MemoryUtil.memAddress(page) + (count - 1) * frameBytes, MemoryUtil.memAddress(lastFrame), frameBytes.toLong())
+        nextFrame = first + count
+        return count
+    }
+
+    private fun restart() {
+        reader.resetStreamSettingsWithoutMetadata()
+        stream.seek(imgStartPos)
+        nextFrame = 0
+    }
+
+    private fun decodeFrame(frameIndex: Int, start: Int, dst: ByteBuffer, prevStart: Int, prevBuffer: ByteBuffer, delays: IntArray) {
+        val image = reader.readNext(width, height, start, dst, prevStart, prevBuffer)
+        val metadata = reader.getImageMetadata(frameIndex)
+        delays[frameIndex] = metadata.delayTime
+
+        // frame was written directly
+        if (image == null) return
+
+        var x = 0
+        var y = 0
+
+        val master = master?.also {
+            x = metadata.imageLeftPosition
+            y = metadata.imageTopPosition
+        } ?: BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB).also {
+            master = it
+            masterGraphics = it.createGraphics().also { it.background = Color(0, 0, 0, 0) }
+        }
+        val pixels = (master.raster.dataBuffer as DataBufferInt).data
+
+        if (prevStart >= 0) {
+            for (i in 0 until width * height) {
+                pixels[i] = GIFReader.abgr2rgba(prevBuffer.getInt(prevStart + i * 4))
+            }
+        }
+
+        masterGraphics!!.drawImage(image, x, y, null)
+
+        for (i in 0 until width * height) {
+            dst.putInt(start + i * 4, GIFReader.abgr2rgba(pixels[i]))
+        }
+    }
+
+    override fun close() {
+        MemoryUtil.memFree(lastFrame)
+        masterGraphics?.dispose()
+        reader.dispose()
+    }
+
+    companion object {
+        const val MAX_FRAMES_PER_PAGE = 8
+        const val MAX_PAGE_HEIGHT = 2048
+    }
+}
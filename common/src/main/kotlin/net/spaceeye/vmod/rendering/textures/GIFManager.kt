@@ -2,147 +2,103 @@ package net.spaceeye.vmod.rendering.textures
 
 import net.minecraft.client.Minecraft
 import net.minecraft.resources.ResourceLocation
-import net.spaceeye.valkyrien_ship_schematics.ELOG
-import net.spaceeye.vmod.OnFinalize
-import net.spaceeye.vmod.utils.getNow_ms
+import net.spaceeye.vmod.ELOG
+import net.spaceeye.vmod.VMConfig
 import java.io.FileNotFoundException
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.LinkedBlockingQueue
-import kotlin.concurrent.thread
-import kotlin.math.max
-
+import java.lang.ref.Cleaner
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Gifs are shared between everyone using the same location, and are unloaded once nothing has used them for
+ * [UNLOAD_AFTER_MS]. Loading and decoding is done by a fixed number of worker threads.
+ */
 object GIFManager {
-    private val toLoad = LinkedBlockingQueue<Pair<ResourceLocation, GIFTexture>>()
-    private val toUnload = ConcurrentHashMap<String, Long>()
-    private val processing = ConcurrentHashMap.newKeySet<ResourceLocation>()
-    init {
-        thread(isDaemon = true, name = "VMod GIF Textures loader", priority = Thread.MAX_PRIORITY, block = ::loadThread)
-        thread(isDaemon = true, name = "VMod GIF Textures unloader", block = ::unloadThread)
-    }
+    private const val UNLOAD_AFTER_MS = 1000L
 
-    //TODO i don't like it
-    @JvmStatic private fun loadThread() {
-        while (true) {
-            val (location, texture) = toLoad.take()
-            if (processing.contains(location) || storage[location.toString()]?.texture?.loadedSuccessfully?.isDone == true) continue
-            processing.add(location)
-            texture.loadedSuccessfully.thenAccept { processing.remove(location) }
-
-            val bytes = try {
-                resourceManager.getResourceOrThrow(location).open().readAllBytes()
-            } catch (e: FileNotFoundException) {
-                ELOG("Failed to load location $location because it doesn't exist")
-                texture.loadedSuccessfully.complete(false)
-                continue
-            }
-
-            try {
-                texture.loadFromBytes(bytes)
-            } catch (e: Exception) {
-                ELOG("Failed to load location $location with exception\n${e.stackTraceToString()}")
-                texture.loadedSuccessfully.complete(false)
-            }
-        }
-    }
+    private val threadNum = AtomicInteger()
+    private val workers = ScheduledThreadPoolExecutor(VMConfig.CLIENT.RENDERING.GIF_DECODER_THREADS) {
+        Thread(it, "VMod GIF decoder ${threadNum.getAndIncrement()}").also { it.isDaemon = true }
+    }.also { it.removeOnCancelPolicy = true }
+    private val cleaner = Cleaner.create()
 
-    //for debug purposes
-    private var timeUnused = 1000L
-    private var doUnload = true
-
-    //TODO I don't entirely like it
-    @JvmStatic private fun unloadThread() {
-        while (true) {
-            Thread.sleep(1000L)
-            //add conditional variables here maybe
-            if (toUnload.isEmpty()) continue
-            synchronized(storage) {
-            synchronized(toUnload) {
-                if (!doUnload) return@synchronized
-                val now = getNow_ms()
-                val toRemoveKeys = mutableListOf<String>()
-                toUnload.forEach { (k, v) ->
-                    val (usages, lastUsed, texture) = storage[k] ?: return@forEach
-                    if (usages != 0) { return@forEach }
-                    if (now - v < timeUnused || now - lastUsed < timeUnused) { return@forEach }
-                    toRemoveKeys.add(k)
-                    storage.remove(k)
-
-                    texture.close()
-                }
-                toRemoveKeys.forEach { toUnload.remove(it) }
-            }}
-        }
+    private class GIFUnit(val texture: GIFTexture) {
+        var references = 0
+        var unloadTask: ScheduledFuture<*>? = null
     }
 
+    private val storage = HashMap<String, GIFUnit>()
+    private val resourceManager = Minecraft.getInstance().resourceManager
+
     /**
-     * On being collected by GC will decrease ref counter of texture. Uses finalize which is probably not great but whatever
+     * Keeps gif loaded until closed. Handles that were collected without being closed are closed by [Cleaner].
      */
-    data class WeakReference<T>(val id: String, var it: T, private val wasFinalized: () -> Unit): OnFinalize(), AutoCloseable {
-        private var closed = false
-        override fun onFinalize() {
-            if (!closed) wasFinalized()
-            closed = true
+    class Handle<T> internal constructor(val id: String, val it: T, release: Runnable): AutoCloseable {
+        private val cleanable = cleaner.register(this, release)
+
+        operator fun component1() = id
+        operator fun component2() = it
+
+        override fun close() = cleanable.clean()
+    }
+
+    internal fun submit(task: Runnable) = workers.execute(task)
+
+    private fun load(location: ResourceLocation, texture: GIFTexture) {
+        val bytes = try {
+            resourceManager.getResourceOrThrow(location).open().use { it.readAllBytes() }
+        } catch (e: FileNotFoundException) {
+            ELOG("Failed to load location $location because it doesn't exist")
+            texture.loadedSuccessfully.complete(false)
+            return
         }
 
-        override fun close() {
-            if (closed) return
-            closed = true
-            wasFinalized()
+        try {
+            texture.start(GIFFrameStream(bytes))
+        } catch (e: Exception) {
+            ELOG("Failed to load location $location with exception\n${e.stackTraceToString()}")
+            texture.loadedSuccessfully.complete(false)
         }
     }
 
-    private data class GIFUnit(var numReferences: Int, var lastTimeUsed: Long, var texture: GIFTexture)
+    private fun <T> acquire(location: ResourceLocation, make: (GIFTexture) -> T): Handle<T> = synchronized(storage) {
+        val id = location.toString()
+        val unit = storage.getOrPut(id) {
+            GIFUnit(GIFTexture()).also { workers.execute { load(location, it.texture) } }
+        }
+        unit.references++
+        unit.unloadTask?.cancel(false)
+        unit.unloadTask = null
 
-    private val storage = ConcurrentHashMap<String, GIFUnit>()
-    private val resourceManager = Minecraft.getInstance().resourceManager
+        // shouldn't reference handle, or it will never be collected
+        return Handle(id, make(unit.texture)) { release(id, unit) }
+    }
 
-    private fun makeRef(id: String, item: GIFUnit): WeakReference<GIFTexture> {
-        item.numReferences++
-        item.lastTimeUsed = getNow_ms()
-        return WeakReference(id, item.texture) {
-            item.numReferences--
-            if (item.numReferences <= 0) {
-                synchronized(toUnload) {
-                    val now = getNow_ms()
-                    toUnload[id] = max(toUnload[id]?:0L, now)
-                }
-            }
+    private fun release(id: String, unit: GIFUnit) {
+        synchronized(storage) {
+            unit.references--
+            if (unit.references > 0) return
+            unit.unloadTask = workers.schedule(Runnable { unload(id, unit) }, UNLOAD_AFTER_MS, TimeUnit.MILLISECONDS)
         }
     }
 
-    private fun makeAnimatedRef(id: String, item: GIFUnit): WeakReference<AnimatedGIFTexture> {
-        item.numReferences++
-        item.lastTimeUsed = getNow_ms()
-        return WeakReference(id, item.texture.animated()) {
-            item.numReferences--
-            if (item.numReferences <= 0) {
-                synchronized(toUnload) {
-                    val now = getNow_ms()
-                    toUnload[id] = max(toUnload[id]?:0L, now)
-                }
-            }
+    private fun unload(id: String, unit: GIFUnit) {
+        synchronized(storage) {
+            if (unit.references > 0 || storage[id] !== unit) return
+            storage.remove(id)
         }
+        unit.texture.close()
     }
 
     /**
-     * SAVE REFERENCE, DO NOT SAVE TEXTURE ITSELF. Will unload location on GC if nothing references it.
+     * SAVE HANDLE, DO NOT SAVE TEXTURE ITSELF. Close it once it's no longer used.
      */
-    fun getTextureFromLocation(location: ResourceLocation): WeakReference<GIFTexture> = synchronized(storage) {
-        val strId = location.toString()
-        storage[strId]?.also { return makeRef(strId, it) }
-
-        val texture = GIFTexture().also { toLoad.add(Pair(location, it)) }
-        return makeRef(strId, GIFUnit(0, getNow_ms(), texture).also { storage[strId] = it })
-    }
+    fun getTextureFromLocation(location: ResourceLocation): Handle<GIFTexture> = acquire(location) { it }
 
     /**
-     * SAVE REFERENCE, DO NOT SAVE TEXTURE ITSELF. Will unload location on GC if nothing references it.
+     * SAVE HANDLE, DO NOT SAVE TEXTURE ITSELF. Close it once it's no longer used.
      */
-    fun getAnimatedTextureFromLocation(location: ResourceLocation): WeakReference<AnimatedGIFTexture> = synchronized(storage) {
-        val strId = location.toString()
-        storage[strId]?.also { return makeAnimatedRef(strId, it) }
-
-        val texture = GIFTexture().also { toLoad.add(Pair(location, it)) }
-        return makeAnimatedRef(strId, GIFUnit(0, getNow_ms(), texture).also { storage[strId] = it })
-    }
-}
\ No newline at end of file
+    fun getAnimatedTextureFromLocation(location: ResourceLocation): Handle<AnimatedGIFTexture> = acquire(location) { it.animated() }
+}
@@ -161,7 +161,8 @@ object GIFReader {
         val frameWidth: Int,
         val frameHeight: Int,
         var maxWidth: Int,
-        var maxHeight: Int
+        var maxHeight: Int,
+        val makeImage: (width: Int, height: Int, ptr: Long) -> NativeImage = GIFReader::wrapNativeImage
     ) {
         data class Data(val spriteWidth: Int, val spriteHeight: Int, val widthTiles: Int, val heightTiles: Int, val numFrames: Int)
         fun calculateDimensions(requiredFrames: Int): Data {
@@ -197,7 +198,7 @@ object GIFReader {
             val size = spriteWidth * spriteHeight * 4
             val ptr = MemoryUtil.nmemAlloc(size.toLong())
             val buf = MemoryUtil.memByteBuffer(ptr, size)
-            val img = NativeImageInvoker.theConstructor(NativeImage.Format.RGBA, spriteWidth, spriteHeight, false, ptr)
+            val img = makeImage(spriteWidth, spriteHeight, ptr)
 
             return NativeTextureWithData(
                 img, buf, ptr,
@@ -213,6 +214,9 @@ object GIFReader {
         }
     }
 
+    // wraps already allocated memory without copying
+    @JvmStatic fun wrapNativeImage(width: Int, height: Int, ptr: Long): NativeImage = NativeImageInvoker.theConstructor(NativeImage.Format.RGBA, width, height, false, ptr)
+
     @JvmStatic fun abgr2rgba(it: Int): Int {
                                                   //   a b g r       a r g b
         return  ((it and -16777216 ))  or         // 0xff000000 -> 0xff000000
@@ -225,8 +229,15 @@ object GIFReader {
 
     /**
      * Not thread safe as it uses global reader instance (creating reader is surprisingly slow)
+     *
+     * @param maxLayers max amount of frames stacked vertically in a single texture
+     * @param makeImage wraps allocated texture memory into [NativeImage]
      */
-    fun readGifToTexturesFaster(bytes: ByteArray): MutableList<NativeTextureWithData> {
+    fun readGifToTexturesFaster(
+        bytes: ByteArray,
+        maxLayers: Int = GLMaxArrayTextureLayers,
+        makeImage: (width: Int, height: Int, ptr: Long) -> NativeImage = GIFReader::wrapNativeImage
+    ): MutableList<NativeTextureWithData> {
         var stream = WrappedByteArrayInputStream(bytes)
         fastReader.reset()
         fastReader.setInput(stream)
@@ -247,7 +258,7 @@ object GIFReader {
             throw RuntimeException("Cannot read texture as width or height are not defined in stream metadata")
         }
 
-        val textureBuilder = NativeTextureBuilder(width, height, width, height * GLMaxArrayTextureLayers)
+        val textureBuilder = NativeTextureBuilder(width, height, width, height * maxLayers, makeImage)
         val textures = mutableListOf<NativeTextureWithData>()
         val (_, _, _, _, framesPerTexture) = textureBuilder.calculateDimensions(numFrames)
 
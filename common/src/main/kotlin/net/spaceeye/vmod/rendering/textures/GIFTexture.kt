@@ -2,139 +2,311 @@ package net.spaceeye.vmod.rendering.textures
 
 import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.PoseStack
-import net.minecraft.client.renderer.texture.AbstractTexture
+import net.minecraft.Util
 import net.minecraft.resources.ResourceLocation
-import net.minecraft.server.packs.resources.ResourceManager
+import net.spaceeye.vmod.ELOG
 import net.spaceeye.vmod.MOD_ID
 import net.spaceeye.vmod.utils.Vector3d
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.math.min
 
-class AnimatedGIFTexture(val gif: GIFTexture): AutoCloseable {
-    var currentFrame: Int = 0
-
-    /**
-     * 1/100th of a second
-     */
-    var time = 0f
+class AnimatedGIFTexture(val gif: GIFTexture) {
+    val playback = GIFTexture.Playback()
+    val currentFrame: Int get() = playback.frame
 
     //https://usage.imagemagick.org/anim_basics/
     /**
      * @param delta in milliseconds
      */
-    fun advanceTime(delta: Float): Boolean {
-        if (!gif.loadedSuccessfully.isDone || !gif.loadedSuccessfully.get()) return false
+    fun advanceTime(delta: Float): Boolean = gif.advance(playback, delta)
 
-        // gif uses 1/100 th of a second and not milliseconds
-        time += delta / 10f
-        var delay = gif.sprites[currentFrame / gif.framesPerSprite].delays[currentFrame % gif.framesPerSprite]
-        if (time <= delay) return false
+    fun blit(pose: PoseStack, x: Int, y: Int, uWidth: Int, vHeight: Int, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
+        gif.blit(pose, playback.frame, x, y, uWidth, vHeight, u0, u1, v0, v1)
+    }
 
-        //if delay is over a second then just reset
-        if (time > 100f) { time = 0f }
+    fun draw(pose: PoseStack, lu: Vector3d, ld: Vector3d, rd: Vector3d, ru: Vector3d, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
+        gif.draw(pose, playback.frame, lu, ld, rd, ru, u0, u1, v0, v1)
+    }
+
+    fun reset() = playback.reset()
+}
 
-        while (true) {
-            time -= delay
-            currentFrame++
-            if (currentFrame >= gif.totalFrames) { currentFrame = 0 }
+/**
+ * Gif that is decoded by [GIFManager] workers a page at a time into a ring of [SlidingFrameTexture]s.
+ *
+ * Gifs that fit into [RING_PAGES] pages are decoded once, and everyone showing them has their own [Playback]. Longer
+ * gifs are streamed: next pages are decoded and uploaded in place of already shown ones, so only [RING_PAGES] pages are
+ * in VRAM and [RAM_PAGES] in RAM. As only frames around the shown one exist, everyone showing a streamed gif shares it.
+ *
+ * Render thread never waits for decoding, if the next frame isn't decoded yet the current one is shown for longer.
+ */
+class GIFTexture: AutoCloseable {
+    /**
+     * Position of someone showing the gif
+     */
+    class Playback {
+        var frame = 0
+        /**
+         * 1/100th of a second
+         */
+        var time = 0f
 
-            delay = gif.sprites[currentFrame / gif.framesPerSprite].delays[currentFrame % gif.framesPerSprite]
-            if (time <= delay) {break}
+        fun reset() {
+            frame = 0
+            time = 0f
         }
-
-        return true
     }
 
-    fun blit(pose: PoseStack, x: Int, y: Int, uWidth: Int, vHeight: Int, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
-        gif.blit(pose, currentFrame, x, y, uWidth, vHeight, u0, u1, v0, v1)
-    }
+    private class DecodedPage(val buffer: ByteBuffer, val sequence: Long, val firstFrame: Int, val numFrames: Int)
 
-    fun draw(pose: PoseStack, lu: Vector3d, ld: Vector3d, rd: Vector3d, ru: Vector3d, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
-        gif.draw(pose, currentFrame, lu, ld, rd, ru, u0, u1, v0, v1)
+    val loadedSuccessfully = CompletableFuture<Boolean>()
+
+    var width = 0
+        private set
+    var height = 0
+        private set
+    var totalFrames = 0
+        private set
+    var streamed = false
+        private set
+
+    private var framesPerPage = 0
+    private var ringSize = 0
+    // written by decoder before the page is queued, so frames of uploaded pages always have their delays
+    private var delays = IntArray(0)
+
+    private val decodeLock = Any()
+    private var stream: GIFFrameStream? = null
+    private val decoding = AtomicBoolean()
+    @Volatile private var failed = false
+    @Volatile private var closed = false
+
+    private val decoded = ConcurrentLinkedQueue<DecodedPage>()
+    private val freeBuffers = ConcurrentLinkedQueue<ByteBuffer>()
+
+    // page with sequence number n is uploaded into ring slot n % ringSize
+    @Volatile private var nextSequence = 0L
+    // sequence number of the page of the shared frame, only for streamed gifs
+    @Volatile private var shownSequence = 0L
+
+    // only accessed on the render thread
+    private var ring = arrayOfNulls<SlidingFrameTexture>(0)
+    private var ringSequences = LongArray(0)
+    private val shared = Playback()
+    private var lastSharedAdvance = 0L
+
+    /**
+     * Called by [GIFManager] worker
+     */
+    internal fun start(stream: GIFFrameStream) {
+        synchronized(decodeLock) {
+            if (closed) { stream.close(); return }
+            this.stream = stream
+            width = stream.width
+            height = stream.height
+            totalFrames = stream.numFrames
+            framesPerPage = stream.framesPerPage
+            delays = IntArray(totalFrames)
+            streamed = stream.numPages > RING_PAGES
+            ringSize = min(stream.numPages, RING_PAGES)
+            repeat(min(stream.numPages, RAM_PAGES)) { freeBuffers.add(stream.allocPage()) }
+        }
+        requestDecode()
     }
 
-    override fun close() {
-        gif.close()
+    private fun canDecode() = !closed && !failed && freeBuffers.isNotEmpty()
+            && nextSequence < (if (streamed) shownSequence else 0L) + ringSize
+
+    private fun requestDecode() {
+        if (!canDecode() || !decoding.compareAndSet(false, true)) return
+        GIFManager.submit(::decodeTask)
     }
 
-    fun reset() {
-        currentFrame = 0
-        time = 0f
+    // decodes one page at a time, so that workers are shared fairly between gifs
+    private fun decodeTask() {
+        try {
+            decodePage()
+        } catch (e: Exception) {
+            ELOG("Failed to decode gif\n${e.stackTraceToString()}")
+            failed = true
+            loadedSuccessfully.complete(false)
+        } finally {
+            decoding.set(false)
+        }
+        requestDecode()
     }
-}
 
-open class GIFArray(ptr: Long, width: Int, height: Int, numLayers: Int, val delays: IntArray): ArrayTexture(ptr, width, height, numLayers)
+    private fun decodePage() { synchronized(decodeLock) {
+        val stream = stream ?: return
+        if (!canDecode()) return
+        val buffer = freeBuffers.poll() ?: return
 
-//TODO Current impl is pretty wasteful and needs to be redone
-// 1) GIFTexture shouldn't load long gifs completely, instead it should do double buffering (although i'm not sure how feasible it with current GIFReader)
-class GIFTexture(): AbstractTexture() {
-    var sprites = mutableListOf<GIFArray>()
-    var width = 0
-    var height = 0
-    var totalFrames = 0
-    var framesPerSprite = 0
+        val firstFrame = if (stream.nextFrame == stream.numFrames) 0 else stream.nextFrame
+        val numFrames = stream.decodePage(buffer, delays)
+        decoded.add(DecodedPage(buffer, nextSequence, firstFrame, numFrames))
+        nextSequence++
 
-    val loadedSuccessfully = CompletableFuture<Boolean>()
+        // everything is decoded and will never be decoded again
+        if (!streamed && nextSequence == ringSize.toLong()) {
+            stream.close()
+            this.stream = null
+        }
+    } }
 
-    fun loadFromBytes(bytes: ByteArray) {
-        val textures = GIFReader.readGifToTexturesFaster(bytes)
+    /**
+     * Uploads at most one decoded page
+     */
+    private fun uploadDecoded() {
+        if (closed) return
+        val page = decoded.poll() ?: return
+        if (ring.isEmpty()) {
+            ring = arrayOfNulls(ringSize)
+            ringSequences = LongArray(ringSize) { -1L }
+        }
 
-        width = textures[0].frameWidth
-        height = textures[0].frameHeight
-        framesPerSprite = textures[0].numFrames
+        val slot = (page.sequence % ringSize).toInt()
+        val texture = ring[slot] ?: SlidingFrameTexture(width, height, framesPerPage).also { ring[slot] = it }
+        texture.upload(page.buffer, page.firstFrame, page.numFrames)
+        ringSequences[slot] = page.sequence
 
-        val futures = textures.map { CompletableFuture<Boolean>() }
-        for ((i, texture) in textures.withIndex()) {
-            val texture = GIFArray(texture.ptr, texture.frameWidth, texture.frameHeight, texture.numFrames, texture.delays)
+        if (!streamed && page.sequence == ringSize - 1L) {
+            MemoryUtil.memFree(page.buffer)
+            while (true) { MemoryUtil.memFree(freeBuffers.poll() ?: break) }
+        } else {
+            freeBuffers.add(page.buffer)
+        }
 
-            texture.upload().thenAccept {
-                texture.freeRAM()
-                futures[i].complete(it)
-                if (futures.all { it.isDone }) {
-                    loadedSuccessfully.complete(futures.all { it.get() })
-                }
-            }
-            sprites.add(texture)
-            totalFrames += texture.numLayers
+        loadedSuccessfully.complete(true)
+        requestDecode()
+    }
+
+    /**
+     * @return ring slot with the frame, or -1 if it isn't uploaded
+     */
+    private fun slotOf(frame: Int): Int {
+        if (ring.isEmpty() || frame < 0 || frame >= totalFrames) return -1
+        if (!streamed) {
+            val slot = frame / framesPerPage
+            return if (ringSequences[slot] == slot.toLong()) slot else -1
+        }
+        for (sequence in shownSequence..shownSequence + 1) {
+            val slot = (sequence % ringSize).toInt()
+            if (ringSequences[slot] == sequence && frame in ring[slot]!!) return slot
         }
+        return -1
     }
 
-    override fun load(resourceManager: ResourceManager) = throw NotImplementedError("use loadFromBytes")
+    /**
+     * @param delta in milliseconds
+     * @return true if frame changed
+     */
+    fun advance(playback: Playback, delta: Float): Boolean {
+        uploadDecoded()
+        if (!loadedSuccessfully.getNow(false)) return false
+        if (!streamed) return advance(playback, delta, false)
 
-    override fun close() {
-        loadedSuccessfully.thenAccept {
-            sprites.forEach { it.close() }
+        // everyone advances the same frame, so it's advanced by time since it was last advanced by anyone
+        val now = Util.getMillis()
+        if (lastSharedAdvance != 0L) { advance(shared, (now - lastSharedAdvance).toFloat(), true) }
+        lastSharedAdvance = now
+
+        val changed = playback.frame != shared.frame
+        playback.frame = shared.frame
+        playback.time = shared.time
+        return changed
+    }
+
+    private fun advance(playback: Playback, delta: Float, isShared: Boolean): Boolean {
+        // gif uses 1/100 th of a second and not milliseconds
+        playback.time += delta / 10f
+        var delay = delays[playback.frame]
+        if (playback.time <= delay) return false
+
+        //if delay is over a second then just reset
+        if (playback.time > 100f) { playback.time = 0f }
+
+        var changed = false
+        // gif with only zero delays would never stop otherwise
+        for (step in 0 until totalFrames) {
+            val next = if (playback.frame + 1 >= totalFrames) 0 else playback.frame + 1
+            val slot = slotOf(next)
+            // not decoded yet, so current frame is shown until it is
+            if (slot == -1) {
+                playback.time = delay.toFloat()
+                break
+            }
+
+            playback.time -= delay
+            playback.frame = next
+            changed = true
+            if (isShared && ringSequences[slot] != shownSequence) {
+                shownSequence = ringSequences[slot]
+                requestDecode()
+            }
+
+            delay = delays[next]
+            if (playback.time <= delay) {break}
         }
+
+        return changed
     }
 
     fun blit(pose: PoseStack, frameNum: Int, x: Int, y: Int, uWidth: Int, vHeight: Int, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
-        if (!loadedSuccessfully.isDone) {
-            RenderSystem.setShaderTexture(0, tempTextureLocation)
-            return tempBlit(pose, x, y, uWidth, vHeight)
-        }
-        if (!loadedSuccessfully.get()) {
-            RenderSystem.setShaderTexture(0, dummyLocation)
+        uploadDecoded()
+        val slot = if (loadedSuccessfully.getNow(false)) slotOf(frameNum) else -1
+        if (slot == -1) {
+            setPlaceholderTexture()
             return tempBlit(pose, x, y, uWidth, vHeight)
         }
 
-        sprites[frameNum / framesPerSprite].blit(pose, frameNum, x, y, uWidth, vHeight, u0, u1, v0, v1)
+        ring[slot]!!.blit(pose, frameNum, x, y, uWidth, vHeight, u0, u1, v0, v1)
     }
 
     fun draw(pose: PoseStack, frameNum: Int, lu: Vector3d, ld: Vector3d, rd: Vector3d, ru: Vector3d, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
-        if (!loadedSuccessfully.isDone) {
-            RenderSystem.setShaderTexture(0, tempTextureLocation)
-            return tempDraw(pose, lu, ld, rd, ru)
-        }
-        if (!loadedSuccessfully.get()) {
-            RenderSystem.setShaderTexture(0, dummyLocation)
+        uploadDecoded()
+        val slot = if (loadedSuccessfully.getNow(false)) slotOf(frameNum) else -1
+        if (slot == -1) {
+            setPlaceholderTexture()
             return tempDraw(pose, lu, ld, rd, ru)
         }
 
-        sprites[frameNum / framesPerSprite].draw(pose, frameNum % framesPerSprite, lu, ld, rd, ru, u0, u1, v0, v1)
+        ring[slot]!!.draw(pose, frameNum, lu, ld, rd, ru, u0, u1, v0, v1)
+    }
+
+    private fun setPlaceholderTexture() {
+        RenderSystem.setShaderTexture(0, if (failed || loadedSuccessfully.isDone && !loadedSuccessfully.get()) dummyLocation else tempTextureLocation)
     }
 
     fun animated(): AnimatedGIFTexture = AnimatedGIFTexture(this)
 
+    override fun close() {
+        // waits for the page that is being decoded
+        synchronized(decodeLock) {
+            closed = true
+            stream?.close()
+            stream = null
+        }
+        loadedSuccessfully.complete(false)
+
+        // buffers are only used on the render thread once closed, so they're freed there
+        RenderSystem.recordRenderCall {
+            ring.forEach { it?.close() }
+            ring = arrayOfNulls(0)
+            while (true) { MemoryUtil.memFree(freeBuffers.poll() ?: break) }
+            while (true) { MemoryUtil.memFree((decoded.poll() ?: break).buffer) }
+        }
+    }
+
     companion object {
+        // one page is shown, while next ones are uploaded
+        const val RING_PAGES = 3
+        // one page is decoded, while another waits to be uploaded
+        const val RAM_PAGES = 2
+
         //will cause missing texture
         private val dummyLocation = ResourceLocation(MOD_ID, "missing")
         private val tempTextureLocation = ResourceLocation(MOD_ID, "textures/misc/loading.png")
@@ -154,4 +326,4 @@ class GIFTexture(): AbstractTexture() {
             SlidingFrameTexture.innerDraw(pose, lu, ld, rd, ru, 0f, 1f, 0f, 1f)
         }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package net.spaceeye.vmod.rendering.textures
 
+import com.mojang.blaze3d.platform.GlStateManager
 import com.mojang.blaze3d.platform.TextureUtil
 import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.BufferUploader
@@ -8,68 +9,120 @@ import com.mojang.blaze3d.vertex.PoseStack
 import com.mojang.blaze3d.vertex.Tesselator
 import com.mojang.blaze3d.vertex.VertexFormat
 import net.minecraft.client.renderer.GameRenderer
-import net.minecraft.client.renderer.texture.AbstractTexture
-import net.minecraft.server.packs.resources.ResourceManager
+import net.spaceeye.vmod.rendering.RenderTypes
 import net.spaceeye.vmod.rendering.RenderingUtils
 import net.spaceeye.vmod.utils.Vector3d
+import org.lwjgl.opengl.GL46
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
 
-class SlidingFrameTexture(
-    texture: GIFReader.NativeTextureWithData
-): AbstractTexture() {
-    var image = texture.image
-    var delays = texture.delays
+/**
+ * Page of up to [maxFrames] consecutive gif frames stored as layers of an array texture. Pages are reused, new frames
+ * are uploaded over old ones through a pixel buffer object, so texture storage is only allocated once.
+ *
+ * Should only be used on the render thread.
+ */
+class SlidingFrameTexture(val width: Int, val height: Int, val maxFrames: Int): AutoCloseable {
+    var id = -1
+        private set
+    private var pbo = -1
 
-    var width = texture.frameWidth
-    var height = texture.frameHeight
+    /**
+     * Gif frame in the first layer, -1 if nothing was uploaded
+     */
+    var firstFrame = -1
+        private set
+    var numFrames = 0
+        private set
 
-    var spriteWidth = texture.spriteWidth
-    var spriteHeight = texture.spriteHeight
+    operator fun contains(frame: Int) = frame >= firstFrame && frame < firstFrame + numFrames
 
-    var widthTiles = texture.widthTiles
-    var heightTiles = texture.heightTiles
+    /**
+     * Frames are copied out of [page] before it returns, so it can be reused right after
+     */
+    fun upload(page: ByteBuffer, firstFrame: Int, numFrames: Int) {
+        RenderSystem.assertOnRenderThread()
+        val size = width.toLong() * height * numFrames * 4
 
-    var numFrames = texture.numFrames
+        if (id == -1) {
+            id = TextureUtil.generateTextureId()
+            GL46.glBindTexture(GL46.GL_TEXTURE_2D_ARRAY, id)
+            GL46.glTexStorage3D(GL46.GL_TEXTURE_2D_ARRAY, 1, GL46.GL_RGBA8, width, height, maxFrames)
 
-    init {
-        RenderSystem.recordRenderCall {
-            TextureUtil.prepareImage(this.getId(), 0, image.width, image.height)
-            image.upload(0, 0, 0, 0, 0, image.width, image.height, false, false, false, true)
+            GL46.glTexParameteri(GL46.GL_TEXTURE_2D_ARRAY, GL46.GL_TEXTURE_WRAP_S, GL46.GL_REPEAT)
+            GL46.glTexParameteri(GL46.GL_TEXTURE_2D_ARRAY, GL46.GL_TEXTURE_WRAP_T, GL46.GL_REPEAT)
+            GL46.glTexParameteri(GL46.GL_TEXTURE_2D_ARRAY, GL46.GL_TEXTURE_MAG_FILTER, GL46.GL_NEAREST)
+            GL46.glTexParameteri(GL46.GL_TEXTURE_2D_ARRAY, GL46.GL_TEXTURE_MIN_FILTER, GL46.GL_NEAREST)
+
+            pbo = GL46.glGenBuffers()
         }
-    }
 
-    override fun load(resourceManager: ResourceManager?) {}
+        // NativeImage.upload leaves them set
+        GlStateManager._pixelStore(GL46.GL_UNPACK_ROW_LENGTH, 0)
+        GlStateManager._pixelStore(GL46.GL_UNPACK_SKIP_PIXELS, 0)
+        GlStateManager._pixelStore(GL46.GL_UNPACK_SKIP_ROWS, 0)
+        GlStateManager._pixelStore(GL46.GL_UNPACK_ALIGNMENT, 4)
 
-    override fun close() {
-        image.close()
-        this.releaseId()
+        GL46.glBindTexture(GL46.GL_TEXTURE_2D_ARRAY, id)
+        GL46.glBindBuffer(GL46.GL_PIXEL_UNPACK_BUFFER, pbo)
+        // orphans old storage, so driver doesn't have to wait until the previous upload is done with it
+        GL46.glBufferData(GL46.GL_PIXEL_UNPACK_BUFFER, size, GL46.GL_STREAM_DRAW)
+        val mapped = GL46.nglMapBufferRange(GL46.GL_PIXEL_UNPACK_BUFFER, 0, size, GL46.GL_MAP_WRITE_BIT or GL46.GL_MAP_INVALIDATE_BUFFER_BIT)
+        if (mapped != 0L) {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(page), mapped, size)
+            GL46.glUnmapBuffer(GL46.GL_PIXEL_UNPACK_BUFFER)
+            GL46.glTexSubImage3D(GL46.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, width, height, numFrames, GL46.GL_RGBA, GL46.GL_UNSIGNED_BYTE, 0L)
+            GL46.glBindBuffer(GL46.GL_PIXEL_UNPACK_BUFFER, 0)
+        } else {
+            GL46.glBindBuffer(GL46.GL_PIXEL_UNPACK_BUFFER, 0)
+            GL46.glTexSubImage3D(GL46.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, width, height, numFrames, GL46.GL_RGBA, GL46.GL_UNSIGNED_BYTE, MemoryUtil.memAddress(page))
+        }
+
+        this.firstFrame = firstFrame
+        this.numFrames = numFrames
     }
 
-    fun setAsShaderTexture() {
-        RenderSystem._setShaderTexture(0, this.getId())
+    fun setAsShaderTexture(i: Int = 0) {
+        GL46.glActiveTexture(GL46.GL_TEXTURE0 + i)
+        GL46.glBindTexture(GL46.GL_TEXTURE_2D_ARRAY, id)
     }
 
-    fun blit(pose: PoseStack, frameNum: Int, x: Int, y: Int, uWidth: Int, vHeight: Int) {
-        setAsShaderTexture()
-        innerDraw(pose,
+    fun blit(pose: PoseStack, frameNum: Int, x: Int, y: Int, uWidth: Int, vHeight: Int, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
+        draw(pose, frameNum,
             Vector3d(x,          y,           0),
             Vector3d(x,          y + vHeight, 0),
             Vector3d(x + uWidth, y + vHeight, 0),
             Vector3d(x + uWidth, y          , 0),
-            (width  * (frameNum % widthTiles + 0)) / spriteWidth.toFloat(),
-            (width  * (frameNum % widthTiles + 1)) / spriteWidth.toFloat(),
-            (height * (frameNum / widthTiles + 0)) / spriteHeight.toFloat(),
-            (height * (frameNum / widthTiles + 1)) / spriteHeight.toFloat()
+            u0, u1, v0, v1
         )
     }
 
-    fun draw(pose: PoseStack, frameNum: Int, lu: Vector3d, ld: Vector3d, rd: Vector3d, ru: Vector3d) {
-        setAsShaderTexture()
-        innerDraw(pose, lu, ld, rd, ru,
-            (width  * (frameNum % widthTiles + 0)) / spriteWidth.toFloat(),
-            (width  * (frameNum % widthTiles + 1)) / spriteWidth.toFloat(),
-            (height * (frameNum / widthTiles + 0)) / spriteHeight.toFloat(),
-            (height * (frameNum / widthTiles + 1)) / spriteHeight.toFloat()
-        )
+    fun draw(pose: PoseStack, frameNum: Int, lu: Vector3d, ld: Vector3d, rd: Vector3d, ru: Vector3d, u0: Float = 0f, u1: Float = 1f, v0: Float = 0f, v1: Float = 1f) {
+        setAsShaderTexture(0)
+
+        RenderTypes.textureArrayFull.setupRenderState()
+        RenderTypes.textureArrayFull.getUniform("MaxLayers")!!.set(maxFrames)
+        RenderTypes.textureArrayFull.getUniform("CurrentLayer")!!.set(frameNum - firstFrame)
+        RenderTypes.textureArrayFull.setSampler("texture_array", -1)
+
+        val matrix4f = pose.last().pose()
+        val tesselator = Tesselator.getInstance()
+        val bufferBuilder = tesselator.builder
+        bufferBuilder.begin(VertexFormat.Mode.QUADS, RenderTypes.VERTEX_FORMAT)
+        RenderingUtils.Quad.drawQuad(bufferBuilder, matrix4f, 255, 255, 255, 255, 0, 0, lu, ld, rd, ru, u0, u1, v0, v1)
+        tesselator.end()
+
+        RenderTypes.textureArrayFull.clearRenderState()
+    }
+
+    override fun close() {
+        RenderSystem.assertOnRenderThread()
+        if (id != -1) { TextureUtil.releaseTextureId(id) }
+        if (pbo != -1) { GL46.glDeleteBuffers(pbo) }
+        id = -1
+        pbo = -1
+        firstFrame = -1
+        numFrames = 0
     }
 
     companion object {
@@ -82,4 +135,4 @@ class SlidingFrameTexture(
             BufferUploader.drawWithShader(bufferBuilder.end())
         }
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,6 @@
 package net.spaceeye.vmod.rendering.types
 
 import com.fasterxml.jackson.annotation.JsonIgnore
-import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.*
 import net.minecraft.client.Camera
 import net.minecraft.client.Minecraft
@@ -13,7 +12,10 @@ import net.spaceeye.vmod.limits.ClientLimits
 import net.spaceeye.vmod.reflectable.AutoSerializable
 import net.spaceeye.vmod.reflectable.ByteSerializableItem.get
 import net.spaceeye.vmod.reflectable.ReflectableObject
-import net.spaceeye.vmod.rendering.RenderSetups
+import net.spaceeye.vmod.rendering.BatchedRenderer
+import net.spaceeye.vmod.rendering.FullRenderingBatch
+import net.spaceeye.vmod.rendering.RenderBatchType
+import net.spaceeye.vmod.rendering.RenderBatches
 import net.spaceeye.vmod.rendering.RenderingUtils
 import net.spaceeye.vmod.utils.*
 import net.spaceeye.vmod.utils.vs.posShipToWorldRender
@@ -23,7 +25,7 @@ import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.awt.Color
 
-open class A2BRenderer(): BaseRenderer(), ReflectableObject {
+open class A2BRenderer(): BaseRenderer(), BatchedRenderer, ReflectableObject {
     private class Data: AutoSerializable {
         @JsonIgnore private var i = 0
 
@@ -75,8 +77,10 @@ open class A2BRenderer(): BaseRenderer(), ReflectableObject {
         if (until > highlightTick) highlightTick = until
     }
 
-    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
-        if (color.alpha == 0) return
+    override fun getBatchType(): RenderBatchType? = if (data.color.alpha == 0) null else FullRenderingBatch.of(data.texture)
+    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = RenderBatches.renderImmediately(this, poseStack, camera, timestamp)
+
+    override fun renderBatched(buffer: VertexConsumer, poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
         val level = Minecraft.getInstance().level!!
 
         val ship1 = if (shipId1 != -1L) { level.shipObjectWorld.loadedShips.getById(shipId1) ?: return } else null
@@ -86,18 +90,10 @@ open class A2BRenderer(): BaseRenderer(), ReflectableObject {
         val rpoint2 = if (ship2 == null) point2 else posShipToWorldRender(ship2, point2)
         val center = (rpoint1 + rpoint2) / 2
 
-        val tesselator = Tesselator.getInstance()
-        val vBuffer = tesselator.builder
-
-        vBuffer.begin(VertexFormat.Mode.QUADS, RenderSetups.setupFullRendering())
-        RenderSystem.setShaderTexture(0, texture)
-
         val color = if (timestamp < highlightTimestamp || renderingTick < highlightTick) Color(255, 0, 0, 255) else color
 
         val light = if (fullbright) LightTexture.FULL_BRIGHT else center.toBlockPos().let { LightTexture.pack(level.getBrightness(LightLayer.BLOCK, it), level.getBrightness(LightLayer.SKY, it)) }
 
-        poseStack.pushPose()
-
         val cameraPos = Vector3d(camera.position)
 
         val tpos1 = rpoint1 - cameraPos
@@ -105,15 +101,10 @@ open class A2BRenderer(): BaseRenderer(), ReflectableObject {
 
         val matrix = poseStack.last().pose()
         RenderingUtils.Quad.makeFlatRectFacingCamera(
-            vBuffer, matrix,
+            buffer, matrix,
             color.red, color.green, color.blue, color.alpha, light, width,
             tpos1, tpos2
         )
-
-        tesselator.end()
-        poseStack.popPose()
-
-        RenderSetups.clearFullRendering()
     }
 
     override fun copy(oldToNew: Map<ShipId, Ship>, centerPositions: Map<ShipId, Pair<Vector3d, Vector3d>>): BaseRenderer? = with(data) {
@@ -45,7 +45,14 @@ open class A2BRendererAnimated(): BaseRenderer(), ReflectableObject {
     override fun serialize() = data.serialize()
     override fun deserialize(buf: FriendlyByteBuf) { data.deserialize(buf) }
 
-    var gifRef: GIFManager.WeakReference<AnimatedGIFTexture>? = null
+    var gifRef: GIFManager.Handle<AnimatedGIFTexture>? = null
+    private var gifLocation: ResourceLocation? = null
+
+    override fun onRemoved() {
+        gifRef?.close()
+        gifRef = null
+        gifLocation = null
+    }
 
     constructor(
         shipId1: Long,
@@ -81,7 +88,8 @@ open class A2BRendererAnimated(): BaseRenderer(), ReflectableObject {
         if (color.alpha == 0) return
         val level = Minecraft.getInstance().level!!
 
-        val (_, gif) = gifRef ?: let { gifRef = GIFManager.getAnimatedTextureFromLocation(texture); gifRef!! }
+        if (gifLocation != texture) { onRemoved() }
+        val (_, gif) = gifRef ?: GIFManager.getAnimatedTextureFromLocation(texture).also { gifRef = it; gifLocation = texture }
 
         val ship1 = if (shipId1 != -1L) { level.shipObjectWorld.loadedShips.getById(shipId1) ?: return } else null
         val ship2 = if (shipId2 != -1L) { level.shipObjectWorld.loadedShips.getById(shipId2) ?: return } else null
@@ -3,6 +3,7 @@ package net.spaceeye.vmod.rendering.types
 import com.mojang.blaze3d.vertex.PoseStack
 import net.minecraft.client.Camera
 import net.minecraft.client.renderer.MultiBufferSource
+import net.minecraft.world.phys.AABB
 import net.spaceeye.vmod.ELOG
 import net.spaceeye.vmod.networking.Serializable
 import net.spaceeye.vmod.utils.Vector3d
@@ -19,6 +20,9 @@ abstract class BaseRenderer: Serializable {
     open fun highlightUntilRenderingTicks(until: Long) { ELOG("How did you do that? ${Exception().stackTraceToString()}") }
 
     open fun tryUpdate(): BaseRenderer = this
+
+    // called on client when renderer is removed or replaced, so that it can release what it holds
+    open fun onRemoved() {}
 }
 
 abstract class BlockRenderer: BaseRenderer() {
@@ -30,6 +34,10 @@ interface PositionDependentRenderer {
     // position that will be used in calculation of whenever or not to render the object
     // doesn't need to be an actual position
     val renderingPosition: Vector3d
+
+    // bounds used for frustum culling of world renderers. computed once per renderer, so it shouldn't depend on
+    // anything that changes after the renderer was created
+    val renderingAABB: AABB get() = renderingPosition.let { AABB(it.x - 1.0, it.y - 1.0, it.z - 1.0, it.x + 1.0, it.y + 1.0, it.z + 1.0) }
 }
 
 interface TimedRenderer {
@@ -15,6 +15,7 @@ import net.minecraft.nbt.NbtUtils
 import net.minecraft.network.FriendlyByteBuf
 import net.minecraft.world.level.LightLayer
 import net.minecraft.world.level.block.state.BlockState
+import net.minecraft.world.phys.AABB
 import net.spaceeye.vmod.limits.ClientLimits
 import net.spaceeye.vmod.reflectable.AutoSerializable
 import net.spaceeye.vmod.reflectable.ByteSerializableItem.get
@@ -54,6 +55,7 @@ class BlockStateRenderer(): BlockRenderer(), ReflectableObject, PositionDependen
     override fun serialize() = data.serialize()
     override fun deserialize(buf: FriendlyByteBuf) { data.deserialize(buf) }
     override val renderingPosition: Vector3d get() = data.pos
+    override val renderingAABB: AABB get() = (data.scale * 0.87 + 0.5).let { r -> data.pos.let { AABB(it.x - r, it.y - r, it.z - r, it.x + r, it.y + r, it.z + r) } }
 
     var state: BlockState? = null
 
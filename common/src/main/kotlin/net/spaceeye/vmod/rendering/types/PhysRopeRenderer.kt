@@ -1,10 +1,8 @@
 package net.spaceeye.vmod.rendering.types
 
 import com.fasterxml.jackson.annotation.JsonIgnore
-import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.PoseStack
-import com.mojang.blaze3d.vertex.Tesselator
-import com.mojang.blaze3d.vertex.VertexFormat
+import com.mojang.blaze3d.vertex.VertexConsumer
 import net.minecraft.client.Camera
 import net.minecraft.client.Minecraft
 import net.minecraft.client.renderer.LightTexture
@@ -15,7 +13,10 @@ import net.spaceeye.vmod.limits.ClientLimits
 import net.spaceeye.vmod.reflectable.AutoSerializable
 import net.spaceeye.vmod.reflectable.ByteSerializableItem.get
 import net.spaceeye.vmod.reflectable.ReflectableObject
-import net.spaceeye.vmod.rendering.RenderSetups
+import net.spaceeye.vmod.rendering.BatchedRenderer
+import net.spaceeye.vmod.rendering.FullRenderingBatch
+import net.spaceeye.vmod.rendering.RenderBatchType
+import net.spaceeye.vmod.rendering.RenderBatches
 import net.spaceeye.vmod.rendering.RenderingUtils
 import net.spaceeye.vmod.rendering.RenderingUtils.Quad.drawPolygonTube
 import net.spaceeye.vmod.rendering.RenderingUtils.Quad.makePolygonPoints
@@ -29,7 +30,7 @@ import org.valkyrienskies.core.impl.game.ships.ShipObjectClientWorld
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.awt.Color
 
-class PhysRopeRenderer(): BaseRenderer(), ReflectableObject {
+class PhysRopeRenderer(): BaseRenderer(), BatchedRenderer, ReflectableObject {
     class Data: AutoSerializable {
         @JsonIgnore
         private var i = 0
@@ -77,8 +78,10 @@ class PhysRopeRenderer(): BaseRenderer(), ReflectableObject {
         if (until > highlightTick) highlightTick = until
     }
 
-    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
-        if (color.alpha == 0) return
+    override fun getBatchType(): RenderBatchType? = if (data.color.alpha == 0) null else FullRenderingBatch.of(data.texture)
+    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = RenderBatches.renderImmediately(this, poseStack, camera, timestamp)
+
+    override fun renderBatched(buffer: VertexConsumer, poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
         val level = Minecraft.getInstance().level!!
         val sides = sides
         val fullbright = fullbright
@@ -86,14 +89,10 @@ class PhysRopeRenderer(): BaseRenderer(), ReflectableObject {
         val entities = shipIds.map { (level.shipObjectWorld as ShipObjectClientWorld).physicsEntities[it] }.filterNotNull()
         if (entities.isEmpty()) { return }
 
-        val tesselator = Tesselator.getInstance()
-        val vBuffer = tesselator.builder
+        val vBuffer = buffer
 
         val color = if (timestamp < highlightTimestamp || renderingTick < highlightTick) Color(255, 0, 0, 255) else color
 
-        RenderSystem.setShaderTexture(0, texture)
-        vBuffer.begin(VertexFormat.Mode.QUADS, RenderSetups.setupFullRendering())
-
         poseStack.pushPose()
 
         val cameraPos = -Vector3d(camera.position)
@@ -164,10 +163,7 @@ class PhysRopeRenderer(): BaseRenderer(), ReflectableObject {
         val rightLight = if (fullbright) LightTexture.FULL_BRIGHT else cpos.toBlockPos().let { LightTexture.pack(level.getBrightness(LightLayer.BLOCK, it), level.getBrightness(LightLayer.SKY, it)) }
         drawPolygonTube(vBuffer, matrix, color.red, color.green, color.blue, color.alpha, leftLight, rightLight, leftUV, rightUV, 0f, widthUV, lPoints, rPoints)
 
-        tesselator.end()
         poseStack.popPose()
-
-        RenderSetups.clearFullRendering()
     }
 
     private fun makePoints(cpos: Vector3d, ppos: Vector3d, posToUse: Vector3d, up: Vector3d, width: Double) = with(data) { return@with makePolygonPoints(sides, width, up, (cpos - ppos).snormalize().scross(up), posToUse) }
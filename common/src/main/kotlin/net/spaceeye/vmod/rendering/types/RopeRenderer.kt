@@ -1,10 +1,8 @@
 package net.spaceeye.vmod.rendering.types
 
 import com.fasterxml.jackson.annotation.JsonIgnore
-import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.vertex.PoseStack
-import com.mojang.blaze3d.vertex.Tesselator
-import com.mojang.blaze3d.vertex.VertexFormat
+import com.mojang.blaze3d.vertex.VertexConsumer
 import net.minecraft.client.Camera
 import net.minecraft.client.Minecraft
 import net.minecraft.client.renderer.LightTexture
@@ -15,7 +13,10 @@ import net.spaceeye.vmod.limits.ClientLimits
 import net.spaceeye.vmod.reflectable.AutoSerializable
 import net.spaceeye.vmod.reflectable.ByteSerializableItem.get
 import net.spaceeye.vmod.reflectable.ReflectableObject
-import net.spaceeye.vmod.rendering.RenderSetups
+import net.spaceeye.vmod.rendering.BatchedRenderer
+import net.spaceeye.vmod.rendering.FullRenderingBatch
+import net.spaceeye.vmod.rendering.RenderBatchType
+import net.spaceeye.vmod.rendering.RenderBatches
 import net.spaceeye.vmod.rendering.RenderingUtils
 import net.spaceeye.vmod.utils.Vector3d
 import net.spaceeye.vmod.utils.vs.posShipToWorldRender
@@ -25,7 +26,7 @@ import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.awt.Color
 
-class RopeRenderer(): BaseRenderer(), ReflectableObject {
+class RopeRenderer(): BaseRenderer(), BatchedRenderer, ReflectableObject {
     private class Data: AutoSerializable {
         @JsonIgnore
         private var i = 0
@@ -69,8 +70,10 @@ class RopeRenderer(): BaseRenderer(), ReflectableObject {
         if (until > highlightTick) highlightTick = until
     }
 
-    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
-        if (color.alpha == 0) return
+    override fun getBatchType(): RenderBatchType? = if (data.color.alpha == 0) null else FullRenderingBatch.of(data.texture)
+    override fun renderData(poseStack: PoseStack, camera: Camera, timestamp: Long) = RenderBatches.renderImmediately(this, poseStack, camera, timestamp)
+
+    override fun renderBatched(buffer: VertexConsumer, poseStack: PoseStack, camera: Camera, timestamp: Long) = with(data) {
         val level = Minecraft.getInstance().level!!
 
         val ship1 = if (shipId1 != -1L) { level.shipObjectWorld.loadedShips.getById(shipId1) ?: return } else null
@@ -79,16 +82,8 @@ class RopeRenderer(): BaseRenderer(), ReflectableObject {
         val rpoint1 = if (ship1 == null) point1 else posShipToWorldRender(ship1, point1)
         val rpoint2 = if (ship2 == null) point2 else posShipToWorldRender(ship2, point2)
 
-        val tesselator = Tesselator.getInstance()
-        val vBuffer = tesselator.builder
-
         val color = if (timestamp < highlightTimestamp || renderingTick < highlightTick) Color(255, 0, 0, 255) else color
 
-        RenderSystem.setShaderTexture(0, texture)
-        vBuffer.begin(VertexFormat.Mode.QUADS, RenderSetups.setupFullRendering())
-
-        poseStack.pushPose()
-
         val cameraPos = Vector3d(camera.position)
 
         val tpos1 = rpoint1 - cameraPos
@@ -96,18 +91,13 @@ class RopeRenderer(): BaseRenderer(), ReflectableObject {
 
         val matrix = poseStack.last().pose()
         RenderingUtils.Quad.drawFlatRope(
-            vBuffer, matrix,
+            buffer, matrix,
             color.red, color.green, color.blue, color.alpha,
             width, segments, length,
             tpos1, tpos2,
             lengthUVStart, lengthUVIncMultiplier, widthUVStart, widthUVMultiplier,
             if (fullbright) { { LightTexture.FULL_BRIGHT} } else { pos -> (pos + cameraPos).toBlockPos().let { LightTexture.pack(level.getBrightness(LightLayer.BLOCK, it), level.getBrightness(LightLayer.SKY, it)) } }
         )
-
-        tesselator.end()
-        poseStack.popPose()
-
-        RenderSetups.clearFullRendering()
     }
 
     override fun copy(oldToNew: Map<ShipId, Ship>, centerPositions: Map<ShipId, Pair<Vector3d, Vector3d>>): BaseRenderer? = with(data) {
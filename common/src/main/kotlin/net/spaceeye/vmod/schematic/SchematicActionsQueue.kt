@@ -1,10 +1,15 @@
 package net.spaceeye.vmod.schematic
 
 import dev.architectury.event.events.common.TickEvent
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import net.minecraft.Util
 import net.minecraft.core.BlockPos
+import net.minecraft.core.SectionPos
 import net.minecraft.nbt.CompoundTag
 import net.minecraft.nbt.DoubleTag
 import net.minecraft.nbt.ListTag
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket
 import net.minecraft.server.level.ServerLevel
 import net.minecraft.server.level.ServerPlayer
 import net.minecraft.world.Container
@@ -19,6 +24,9 @@ import net.minecraft.world.level.block.Blocks
 import net.minecraft.world.level.block.EntityBlock
 import net.minecraft.world.level.block.state.BlockState
 import net.minecraft.world.level.chunk.LevelChunk
+import net.minecraft.world.level.chunk.LevelChunkSection
+import net.minecraft.world.level.chunk.PalettedContainer
+import net.minecraft.world.level.levelgen.Heightmap
 import net.minecraft.world.phys.AABB
 import net.spaceeye.valkyrien_ship_schematics.SchematicRegistry
 import net.spaceeye.valkyrien_ship_schematics.ShipSchematic
@@ -34,12 +42,15 @@ import net.spaceeye.vmod.ELOG
 import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.compat.schem.ExternalVSchemCompatProvider
 import net.spaceeye.vmod.compat.schem.SchemCompatObj
+import net.spaceeye.vmod.events.BlockChanges
 import net.spaceeye.vmod.utils.BlockPos
 import net.spaceeye.vmod.events.SessionEvents
 import net.spaceeye.vmod.toolgun.ServerToolGunState
 import net.spaceeye.vmod.gui.additions.ErrorAddition
 import net.spaceeye.vmod.translate.ONE_OF_THE_SHIPS_IS_TOO_TALL
 import net.spaceeye.vmod.utils.JVector3d
+import net.spaceeye.vmod.utils.LongHashMap
+import net.spaceeye.vmod.utils.LongHashSet
 import net.spaceeye.vmod.utils.ServerClosable
 import net.spaceeye.vmod.utils.Vector3d
 import net.spaceeye.vmod.utils.getNow_ms
@@ -50,6 +61,8 @@ import org.valkyrienskies.core.api.ships.ServerShip
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.util.expand
 import org.valkyrienskies.core.util.toAABBd
+import org.valkyrienskies.mod.common.BlockStateInfo
+import org.valkyrienskies.mod.common.dimensionId
 import org.valkyrienskies.mod.common.entity.VSPhysicsEntity
 import org.valkyrienskies.mod.common.getShipManagingPos
 import org.valkyrienskies.mod.common.isBlockInShipyard
@@ -57,7 +70,13 @@ import org.valkyrienskies.mod.common.shipObjectWorld
 import org.valkyrienskies.mod.common.util.toJOML
 import org.valkyrienskies.mod.common.yRange
 import java.util.*
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.roundToInt
 
 object SchematicActionsQueue: ServerClosable() {
@@ -101,6 +120,9 @@ object SchematicActionsQueue: ServerClosable() {
         SchematicRegistry.register(VModShipSchematicV2::class)
     }
 
+    // amount of schematic chunks prepared by a single off-thread task
+    private const val CHUNKS_PER_TASK = 16
+
     private val placeData = mutableMapOf<UUID, SchemPlacementItem>()
     private val saveData = mutableMapOf<UUID, SchemSaveItem>()
     private val unfreezeData = ConcurrentHashMap<UUID, SchemUnfreezeShips>()
@@ -126,10 +148,38 @@ object SchematicActionsQueue: ServerClosable() {
         placeData[uuid] = SchemPlacementItem(level, player, schematicV1, ships, postPlacementFn, settings)
     }
 
+    private fun <T> awaitUntilTimeout(future: CompletableFuture<T>, start: Long, timeout: Long): T? {
+        return try { future.get(max(timeout - (getNow_ms() - start), 0L), TimeUnit.MILLISECONDS) } catch (e: TimeoutException) { null }
+    }
+
     private inline fun <T> logThrowables(onError: () -> Unit = {}, fn: () -> T): T? {
         return try { fn() } catch (e: Throwable) {ELOG(e.stackTraceToString()); onError(); null}
     }
 
+    // Blocks of a single world section, collected off-thread. States are written directly into a palette container
+    // so that on the server thread the section only has to be swapped in.
+    private class PreparedSection(val sx: Int, val sy: Int, val sz: Int) {
+        val states = PalettedContainer(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES)
+        // packed as y shl 8 or z shl 4 or x
+        val positions = IntArrayList()
+        val placed = ArrayList<BlockState>()
+        val items = ArrayList<BlockItem>()
+
+        fun add(lx: Int, ly: Int, lz: Int, state: BlockState, item: BlockItem) {
+            states.getAndSetUnchecked(lx, ly, lz, state)
+            positions.add((ly shl 8) or (lz shl 4) or lx)
+            placed.add(state)
+            items.add(item)
+        }
+
+        fun merge(other: PreparedSection) {
+            for (i in 0 until other.positions.size) {
+                val p = other.positions.getInt(i)
+                add(p and 15, (p shr 8) and 15, (p shr 4) and 15, other.placed[i], other.items[i])
+            }
+        }
+    }
+
     private class SchemPlacementItem(
         val level: ServerLevel,
         val player: ServerPlayer?,
@@ -139,77 +189,171 @@ object SchematicActionsQueue: ServerClosable() {
         val settings: PasteSchematicSettings
     ) {
         var currentShip = 0
+        var currentSection = 0
         var currentChunk = 0
 
         val oldToNewId = mutableMapOf<Long, ShipId>()
         val centerPositions = mutableMapOf<ShipId, Pair<JVector3d, JVector3d>>()
         var createdShips = mutableListOf<Pair<Long, ServerShip>>()
+        var preparedShips = mutableListOf<CompletableFuture<List<PreparedSection>>>()
         var afterPasteCallbacks = mutableListOf<() -> Unit>()
         var delayedBlockEntityLoading = ChunkyBlockData<() -> Unit>()
 
+        val touchedChunks = LongHashSet()
+        var chunksToUpdate: LongArray? = null
+        val signalBlocks = mutableListOf<BlockPos>()
+
         var hadNonfatalErrors = 0
+        val asyncNonfatalErrors = AtomicInteger()
         lateinit var entityCreationFn: () -> Unit
 
-        private fun placeChunk(level: ServerLevel, oldToNewId: Map<Long, Long>, currentChunkData: ChunkyBlockData<BlockItem>, blockPalette: IBlockStatePalette, flatTagData: List<CompoundTag>, shipCenter: MVector3d) {
-            currentChunkData.chunkForEach(currentChunk) { x, y, z, it -> logThrowables({hadNonfatalErrors++}) {
-                val pos = BlockPos(x + shipCenter.x, y + shipCenter.y, z + shipCenter.z)
-                val state = blockPalette.fromId(it.paletteId) ?: run {
-                    settings.logger?.error("State under ID ${it.paletteId} is null.")
-                    hadNonfatalErrors++
-                    Blocks.AIR.defaultBlockState()
-                }
-                if (state.isAir) {return@chunkForEach}
-                val block = state.block
+        var placementStart = -1L
+        var placedBlocks = 0
+
+        // called off-thread, so it should only read schematic data
+        private fun prepareChunks(blockData: ChunkyBlockData<BlockItem>, blockPalette: IBlockStatePalette, shipCenter: BlockPos, from: Int, to: Int): LongHashMap<PreparedSection> {
+            val sections = LongHashMap<PreparedSection>()
+            for (chunk in from until to) {
+                blockData.chunkForEach(chunk) { rx, ry, rz, it ->
+                    val state = blockPalette.fromId(it.paletteId) ?: run {
+                        settings.logger?.error("State under ID ${it.paletteId} is null.")
+                        asyncNonfatalErrors.incrementAndGet()
+                        return@chunkForEach
+                    }
+                    if (state.isAir) {return@chunkForEach}
 
-                val blacklisted = when (settings.blacklistMode) {
-                    true  ->  settings.nbtLoadingBlacklist.contains(block)
-                    false -> !settings.nbtLoadingWhitelist.contains(block)
-                }
+                    val x = rx + shipCenter.x
+                    val y = ry + shipCenter.y
+                    val z = rz + shipCenter.z
+                    val sx = SectionPos.blockToSectionCoord(x)
+                    val sy = SectionPos.blockToSectionCoord(y)
+                    val sz = SectionPos.blockToSectionCoord(z)
 
-                level.getChunkAt(pos).also {
-                    it.setBlockState(pos, state, false)
-                    if (!blacklisted) it.removeBlockEntity(pos)
-                    settings.statePlacedCallback?.invoke(pos, state)
+                    sections.getOrPut(SectionPos.asLong(sx, sy, sz)) { PreparedSection(sx, sy, sz) }.add(x and 15, y and 15, z and 15, state, it)
                 }
-                if (!blacklisted && it.extraDataId != -1) {
-                    val tag = flatTagData[it.extraDataId]
-                    tag.putInt("x", pos.x)
-                    tag.putInt("y", pos.y)
-                    tag.putInt("z", pos.z)
+            }
+            return sections
+        }
 
-                    var callbacks = mutableListOf<((CompoundTag?) -> CompoundTag?)>()
-                    val cb = settings.externalVSchemSupportProvider.onPaste(level, oldToNewId, centerPositions, tag, pos, state) {fn -> fn?.let{callbacks.add(it)} }
+        private fun prepareShip(blockData: ChunkyBlockData<BlockItem>, blockPalette: IBlockStatePalette, shipCenter: BlockPos): CompletableFuture<List<PreparedSection>> {
+            val numChunks = blockData.sortedChunkKeys.size
+            val tasks = (0 until numChunks step CHUNKS_PER_TASK).map { from ->
+                CompletableFuture.supplyAsync({ prepareChunks(blockData, blockPalette, shipCenter, from, min(from + CHUNKS_PER_TASK, numChunks)) }, Util.backgroundExecutor())
+            }
+            // schematic chunks don't align with world chunks, so the same world section can be touched by several tasks
+            return CompletableFuture.allOf(*tasks.toTypedArray()).thenApplyAsync({
+                val result = LongHashMap<PreparedSection>()
+                tasks.forEach { it.join().forEach { key, section ->
+                    val existing = result[key]
+                    if (existing != null) existing.merge(section) else result[key] = section
+                } }
+                val list = ArrayList<PreparedSection>(result.size)
+                result.forEach { _, section -> list.add(section) }
+                list
+            }, Util.backgroundExecutor())
+        }
+
+        private fun onBlockPlaced(chunk: LevelChunk, pos: BlockPos, state: BlockState, item: BlockItem, oldToNewId: Map<Long, Long>, flatTagData: List<CompoundTag>, sectionSwapped: Boolean) {
+            val block = state.block
 
-                    delayedBlockEntityLoading.add(pos.x, pos.y, pos.z) {
-                        //refreshing block entities as a long time may pass between its creation and fn call
-                        val be = if (state.hasBlockEntity()) {
-                            val newBe = (state.block as EntityBlock).newBlockEntity(pos, state)
-                            newBe?.also{ level.getChunkAt(pos).addAndRegisterBlockEntity(it) }
-                        } else null
+            val blacklisted = when (settings.blacklistMode) {
+                true  ->  settings.nbtLoadingBlacklist.contains(block)
+                false -> !settings.nbtLoadingWhitelist.contains(block)
+            }
+            val loadsTag = !blacklisted && item.extraDataId != -1
 
-                        var tag = if (block is ICopyableBlock) {block.onPaste(level, pos, state, oldToNewId, centerPositions, tag) ?: tag} else tag
-                        callbacks.forEach { tag = it(tag) ?: tag }
+            // setBlockState wasn't called, so block entity has to be created here
+            if (!loadsTag && sectionSwapped && state.hasBlockEntity()) {
+                (block as EntityBlock).newBlockEntity(pos, state)?.also { chunk.addAndRegisterBlockEntity(it) }
+            }
+            if (!blacklisted && !sectionSwapped) chunk.removeBlockEntity(pos)
+            settings.statePlacedCallback?.invoke(pos, state)
+            if (state.isSignalSource || state.hasAnalogOutputSignal()) { signalBlocks.add(pos) }
+            placedBlocks++
+
+            if (!loadsTag) {return}
+            val tag = flatTagData[item.extraDataId]
+            tag.putInt("x", pos.x)
+            tag.putInt("y", pos.y)
+            tag.putInt("z", pos.z)
+
+            var callbacks = mutableListOf<((CompoundTag?) -> CompoundTag?)>()
+            val cb = settings.externalVSchemSupportProvider.onPaste(level, oldToNewId, centerPositions, tag, pos, state) {fn -> fn?.let{callbacks.add(it)} }
+
+            delayedBlockEntityLoading.add(pos.x, pos.y, pos.z) {
+                //refreshing block entities as a long time may pass between its creation and fn call
+                val be = if (state.hasBlockEntity()) {
+                    val newBe = (state.block as EntityBlock).newBlockEntity(pos, state)
+                    newBe?.also{ level.getChunkAt(pos).addAndRegisterBlockEntity(it) }
+                } else null
+
+                var tag = if (block is ICopyableBlock) {block.onPaste(level, pos, state, oldToNewId, centerPositions, tag) ?: tag} else tag
+                callbacks.forEach { tag = it(tag) ?: tag }
+
+                if (be is Container && !settings.loadContainers) { return@add }
+
+                be?.load(tag)
+                cb?.let { afterPasteCallbacks.add { it(be) } }
+            }
+        }
 
-                        if (be is Container && !settings.loadContainers) { return@add }
+        private fun placeSection(level: ServerLevel, oldToNewId: Map<Long, Long>, section: PreparedSection, flatTagData: List<CompoundTag>) {
+            val chunk = level.getChunk(section.sx, section.sz)
+            val idx = chunk.getSectionIndexFromSectionY(section.sy)
+            if (idx !in chunk.sections.indices) {
+                settings.logger?.error("Section ${section.sx} ${section.sy} ${section.sz} is outside of level height.")
+                hadNonfatalErrors++
+                return
+            }
+            touchedChunks.add(ChunkPos.asLong(section.sx, section.sz))
+
+            val old = chunk.sections[idx]
+            // something is already there, so place blocks normally to not lose anything
+            val swap = old.hasOnlyAir()
+            if (swap) {
+                val new = LevelChunkSection(section.states, old.biomes)
+                chunk.sections[idx] = new
+                // what setBlockState does for the whole section, done once instead of for every block
+                if (!new.hasOnlyAir()) { level.chunkSource.lightEngine.updateSectionStatus(SectionPos.of(section.sx, section.sy, section.sz), false) }
+                BlockChanges.onSectionFilled(level, section.sx, section.sy, section.sz, section.positions, section.placed)
+            }
 
-                        be?.load(tag)
-                        cb?.let { afterPasteCallbacks.add { it(be) } }
-                    }
+            val dimensionId = level.dimensionId
+            val shipObjectWorld = level.shipObjectWorld
+            val air = Blocks.AIR.defaultBlockState()
+            val (_, airType) = BlockStateInfo.get(air)!!
+
+            val bx = SectionPos.sectionToBlockCoord(section.sx)
+            val by = SectionPos.sectionToBlockCoord(section.sy)
+            val bz = SectionPos.sectionToBlockCoord(section.sz)
+            for (i in 0 until section.positions.size) { logThrowables({hadNonfatalErrors++}) {
+                val p = section.positions.getInt(i)
+                val pos = BlockPos(bx + (p and 15), by + ((p shr 8) and 15), bz + ((p shr 4) and 15))
+                val state = section.placed[i]
+
+                if (swap) {
+                    // setBlockState isn't called, so VS (and custom masses through it) and the block have to be notified manually
+                    BlockStateInfo.get(state)?.let { (mass, type) -> shipObjectWorld.onSetBlock(pos.x, pos.y, pos.z, dimensionId, airType, type, 0.0, mass) }
+                    state.onPlace(level, pos, air, false)
+                } else {
+                    chunk.setBlockState(pos, state, false)
                 }
+                onBlockPlaced(chunk, pos, state, section.items[i], oldToNewId, flatTagData, swap)
             } }
+            chunk.isUnsaved = true
         }
 
-        private fun updateChunk(level: ServerLevel, currentChunkData: ChunkyBlockData<BlockItem>, shipCenter: MVector3d) {
-            currentChunkData.chunkForEach(currentChunk) { x, y, z, it -> logThrowables({hadNonfatalErrors++}) {
-                val pos = BlockPos(x + shipCenter.x, y + shipCenter.y, z + shipCenter.z)
-                val state = level.getBlockState(pos)
+        private fun updateChunk(level: ServerLevel, chunkPos: Long) {
+            val pos = ChunkPos(chunkPos)
+            val chunk = level.getChunk(pos.x, pos.z)
 
-                level.chunkSource.updateChunkForced(ChunkPos(pos), true)
-                level.chunkSource.blockChanged(pos)
-                level.blockUpdated(pos, state.block)
-                level.sendBlockUpdated(pos, state, state, Block.UPDATE_CLIENTS)
-                level.updateNeighbourForOutputSignal(pos, state.block)
-            } }
+            level.chunkSource.updateChunkForced(pos, true)
+            Heightmap.primeHeightmaps(chunk, chunk.heightmaps.map { it.key }.toSet())
+
+            level.chunkSource.lightEngine.lightChunk(chunk, false).thenRunAsync({
+                val packet = ClientboundLevelChunkWithLightPacket(chunk, level.chunkSource.lightEngine, null, null)
+                level.chunkSource.chunkMap.getPlayers(pos, false).forEach { it.connection.send(packet) }
+            }, level.server)
         }
 
         private var shipsInfo: Map<Long, IShipInfo>? = null
@@ -232,79 +376,81 @@ object SchematicActionsQueue: ServerClosable() {
                     } } }
                     .also { shipsInfo = it }
             }
-
-            while (!createdAllBlocks && currentShip < shipsToCreate.size) {
-                if (createdShips.size - 1 < currentShip) {
-                    createdShips.add(shipsToCreate[currentShip].let { Pair(it.second, it.first.invoke()) })
-                    createdShips.last().also { (shipId, ship) -> //old ship id
-                        oldToNewId[shipId] = ship.id
-                        val info = shipsInfo[shipId]!!
-                        val offset = info.previousCenterPosition.let { it.sub(it.x.roundToInt().toDouble(), it.y.roundToInt().toDouble(), it.z.roundToInt().toDouble(), JVector3d()) }
-                        centerPositions[shipId] = Pair(
-                            info.previousCenterPosition,
-                            JVector3d(
-                                ship.chunkClaim.xMiddle * 16.0 - 7 - offset.x,
-                                level.yRange.center.toDouble()     - offset.y,
-                                ship.chunkClaim.zMiddle * 16.0 - 7 - offset.z,
-                            )
+            if (placementStart == -1L) { placementStart = getNow_ms() }
+
+            // creating all ships first so that their blocks can be prepared off-thread while previous ships are placed
+            while (createdShips.size < shipsToCreate.size) {
+                createdShips.add(shipsToCreate[createdShips.size].let { Pair(it.second, it.first.invoke()) })
+                createdShips.last().also { (shipId, ship) -> //old ship id
+                    oldToNewId[shipId] = ship.id
+                    val info = shipsInfo[shipId]!!
+                    val offset = info.previousCenterPosition.let { it.sub(it.x.roundToInt().toDouble(), it.y.roundToInt().toDouble(), it.z.roundToInt().toDouble(), JVector3d()) }
+                    centerPositions[shipId] = Pair(
+                        info.previousCenterPosition,
+                        JVector3d(
+                            ship.chunkClaim.xMiddle * 16.0 - 7 - offset.x,
+                            level.yRange.center.toDouble()     - offset.y,
+                            ship.chunkClaim.zMiddle * 16.0 - 7 - offset.z,
                         )
-                    }
-                    ShipSchematic.onPasteBeforeBlocksAreLoaded(level, createdShips.toMap(), createdShips[currentShip], centerPositions, schematicV1.extraData.toMap())
+                    )
+
+                    val currentBlockData = schematicV1.blockData[shipId] ?: throw RuntimeException("Block data is null")
+                    val shipCenter = BlockPos(
+                        ship.chunkClaim.xMiddle * 16 - 7,
+                        level.yRange.center,
+                        ship.chunkClaim.zMiddle * 16 - 7
+                    )
+                    preparedShips.add(prepareShip(currentBlockData, schematicV1.blockPalette, shipCenter))
                 }
-                val ship = createdShips[currentShip].second
+                ShipSchematic.onPasteBeforeBlocksAreLoaded(level, createdShips.toMap(), createdShips.last(), centerPositions, schematicV1.extraData.toMap())
+            }
 
-                val currentBlockData = schematicV1.blockData[shipsToCreate[currentShip].second] ?: throw RuntimeException("Block data is null")
-                val blockPalette = schematicV1.blockPalette
+            while (!createdAllBlocks && currentShip < shipsToCreate.size) {
+                val sections = awaitUntilTimeout(preparedShips[currentShip], start, timeout) ?: return false
                 val flatExtraData = flatTagDataCopy ?: schematicV1.flatTagData
                     .map { it.copy() }
                     .also { flatTagDataCopy = it }
 
-                val shipCenter = MVector3d(
-                    ship.chunkClaim.xMiddle * 16 - 7,
-                    level.yRange.center,
-                    ship.chunkClaim.zMiddle * 16 - 7
-                )
-
-                while (currentChunk < currentBlockData.sortedChunkKeys.size) {
-                    placeChunk(level, oldToNewId, currentBlockData, blockPalette, flatExtraData, shipCenter)
-                    currentChunk++
+                while (currentSection < sections.size) {
+                    placeSection(level, oldToNewId, sections[currentSection], flatExtraData)
+                    currentSection++
 
                     if (getNow_ms() - start > timeout && settings.allowChunkPlacementInterruption) { return false }
                 }
 
-                currentChunk = 0
+                currentSection = 0
                 currentShip++
             }
             if (!createdAllBlocks) {
+                hadNonfatalErrors += asyncNonfatalErrors.get()
+                preparedShips.clear()
                 // loading all block entities and ICopyableBlock's
                 delayedBlockEntityLoading.forEach { _, _, _, it -> logThrowables({hadNonfatalErrors++}) { it() } }
                 afterPasteCallbacks.forEach { logThrowables({hadNonfatalErrors++}) { it() } }
                 currentShip = 0
                 currentChunk = 0
+                chunksToUpdate = touchedChunks.toLongArray()
                 createdAllBlocks = true
             }
 
-            //Updating all blocks
-            while (currentShip < shipsToCreate.size) {
-                val ship = createdShips[currentShip].second
-                val currentBlockData = schematicV1.blockData[shipsToCreate[currentShip].second] ?: throw RuntimeException("Block data is null")
-
-                val shipCenter = MVector3d(
-                    ship.chunkClaim.xMiddle * 16 - 7,
-                    level.yRange.center,
-                    ship.chunkClaim.zMiddle * 16 - 7
-                )
+            // updating whole chunks instead of every block
+            val chunksToUpdate = chunksToUpdate!!
+            while (currentChunk < chunksToUpdate.size) {
+                logThrowables({hadNonfatalErrors++}) { updateChunk(level, chunksToUpdate[currentChunk]) }
+                currentChunk++
 
-                while (currentChunk < currentBlockData.sortedChunkKeys.size) {
-                    updateChunk(level, currentBlockData, shipCenter)
-                    currentChunk++
+                if (getNow_ms() - start > timeout && settings.allowUpdateInterruption) { return false }
+            }
+            signalBlocks.forEach { pos -> logThrowables({hadNonfatalErrors++}) {
+                val block = level.getBlockState(pos).block
+                level.blockUpdated(pos, block)
+                level.updateNeighbourForOutputSignal(pos, block)
+            } }
+            signalBlocks.clear()
 
-                    if (getNow_ms() - start > timeout && settings.allowUpdateInterruption) { return false }
-                }
+            val elapsed = max(getNow_ms() - placementStart, 1L)
+            settings.logger?.info("Placed $placedBlocks blocks in $elapsed ms (${placedBlocks / elapsed} blocks/ms)")
 
-                currentChunk = 0
-                currentShip++
-            }
 
             entityCreationFn = {
             if (settings.loadEntities) schematicV1.entityData.forEach { (oldId, entities) ->
@@ -358,6 +504,103 @@ object SchematicActionsQueue: ServerClosable() {
         saveData[uuid] = SchemSaveItem(level, player, schematicV1, ships, postPlacementFn, padBoundary, settings)
     }
 
+    // Blocks of a single world chunk inside of ship bounds, captured on the server thread. Sections are copies, so they
+    // can be read off-thread while the world changes.
+    internal class CapturedChunk(
+        val cx: Int, val cz: Int,
+        val minX: Int, val maxX: Int, val minZ: Int, val maxZ: Int, val minY: Int, val maxY: Int,
+        val minSectionY: Int,
+        val sections: Array<PalettedContainer<BlockState>?>,
+    ) {
+        // final tags of blocks that were handled on the server thread, packed by key
+        val tags = Int2ObjectOpenHashMap<CompoundTag>()
+
+        fun key(x: Int, y: Int, z: Int) = ((y - minY) shl 8) or (z shl 4) or x
+
+        /**
+         * Adds blocks to [data] in the same y/x/z order as per-block copying did, so palette ids and tag indices match it
+         */
+        fun build(data: ChunkyBlockData<BlockItem>, flatExtraData: MutableList<CompoundTag>, blockPalette: IBlockStatePalette, shipCenter: BlockPos) {
+            for (y in minY until maxY) {
+                val states = sections[(y shr 4) - minSectionY] ?: continue
+                for (x in minX until maxX) {
+                for (z in minZ until maxZ) {
+                    val state = states.get(x, y and 15, z)
+                    if (state.isAir) {continue}
+
+                    val tag = tags.get(key(x, y, z))
+                    if (tag === CANCELLED) { continue }
+
+                    val fed = if (tag == null) {-1} else {
+                        flatExtraData.add(tag)
+                        flatExtraData.size - 1
+                    }
+
+                    val id = blockPalette.toId(state)
+                    data.add(
+                        x + cx * 16 - shipCenter.x,
+                        y           - shipCenter.y,
+                        z + cz * 16 - shipCenter.z,
+                        BlockItem(id, fed)
+                    )
+                } }
+            }
+        }
+
+        companion object {
+            // marks blocks that compat has cancelled copying of
+            @JvmField val CANCELLED = CompoundTag()
+
+            /**
+             * [sectionAt] returns a copy of states of a non-empty section, or null. [captureBlock] returns the final tag
+             * of a block, [CANCELLED], or null, and is only called for blocks that can have one: every block if
+             * [plainBlocks], otherwise only ICopyableBlocks and blocks at [blockEntities].
+             */
+            fun capture(cX: Int, cZ: Int, minX: Int, maxX: Int, minZ: Int, maxZ: Int, minY: Int, maxY: Int,
+                        plainBlocks: Boolean, blockEntities: Collection<BlockPos>,
+                        sectionAt: (sectionY: Int) -> PalettedContainer<BlockState>?,
+                        captureBlock: (state: BlockState, x: Int, y: Int, z: Int) -> CompoundTag?): CapturedChunk? {
+                if (minY >= maxY) { return null }
+
+                val minSectionY = minY shr 4
+                val sections = Array((((maxY - 1) shr 4) - minSectionY) + 1) { sectionAt(minSectionY + it) }
+                if (sections.all { it == null }) { return null }
+                val captured = CapturedChunk(cX, cZ, minX, maxX, minZ, maxZ, minY, maxY, minSectionY, sections)
+
+                fun add(state: BlockState, x: Int, y: Int, z: Int) {
+                    captureBlock(state, x, y, z)?.let { captured.tags.put(captured.key(x, y, z), it) }
+                }
+
+                sections.forEachIndexed { i, states ->
+                    if (states == null || !(plainBlocks || states.maybeHas { it.block is ICopyableBlock })) { return@forEachIndexed }
+                    for (y in max(minY, (minSectionY + i) shl 4) until min(maxY, (minSectionY + i + 1) shl 4)) {
+                    for (x in minX until maxX) {
+                    for (z in minZ until maxZ) {
+                        val state = states.get(x, y and 15, z)
+                        if (state.isAir || !(plainBlocks || state.block is ICopyableBlock)) { continue }
+                        add(state, x, y, z)
+                    } } }
+                }
+
+                if (plainBlocks) { return captured }
+                blockEntities.forEach { pos ->
+                    val x = pos.x and 15
+                    val z = pos.z and 15
+                    if (x < minX || x >= maxX || z < minZ || z >= maxZ || pos.y < minY || pos.y >= maxY) { return@forEach }
+                    val state = sections[(pos.y shr 4) - minSectionY]?.get(x, pos.y and 15, z) ?: return@forEach
+                    if (state.isAir || state.block is ICopyableBlock) { return@forEach }
+                    add(state, x, pos.y, z)
+                }
+
+                return captured
+            }
+        }
+    }
+
+    private class CapturedShip(val id: ShipId, val shipCenter: BlockPos) {
+        val chunks = mutableListOf<CapturedChunk>()
+    }
+
     private class SchemSaveItem(
         val level: ServerLevel,
         val player: ServerPlayer?,
@@ -370,7 +613,6 @@ object SchematicActionsQueue: ServerClosable() {
         var centerPositions: Map<Long, JVector3d>? = null
 
         var currentShip = 0
-        var currentChunk = 0
 
         var copyingShip = -1
         var minCx = 0
@@ -382,47 +624,53 @@ object SchematicActionsQueue: ServerClosable() {
         var cx = 0
         var cz = 0
 
-        private fun saveChunk(level: ServerLevel, chunk: LevelChunk, ships: List<ServerShip>,
-                              data: ChunkyBlockData<BlockItem>, flatExtraData: MutableList<CompoundTag>, blockPalette: IBlockStatePalette,
-                              shipCenter: BlockPos, cX: Int, cZ: Int,
-                              minX: Int, maxX: Int, minZ: Int, maxZ: Int, minY: Int, maxY: Int) {
-            for (y in minY until maxY) {
-            for (x in minX until maxX) {
-            for (z in minZ until maxZ) {
-                val cpos = BlockPos(x, y, z)
-                val state = chunk.getBlockState(cpos)
-                if (state.isAir) {continue}
-                val block = state.block
+        val captured = mutableListOf<CapturedShip>()
+        var built: CompletableFuture<Unit>? = null
+
+        // Everything that needs the world is done here: sections are copied, and block entities and copyable blocks
+        // get their tags. Blocks themselves are added later by CapturedChunk.build.
+        private fun captureChunk(level: ServerLevel, chunk: LevelChunk, ships: List<ServerShip>, cX: Int, cZ: Int,
+                                 minX: Int, maxX: Int, minZ: Int, maxZ: Int, shipMinY: Int, shipMaxY: Int): CapturedChunk? {
+            return CapturedChunk.capture(
+                cX, cZ, minX, maxX, minZ, maxZ, max(shipMinY, level.minBuildHeight), min(shipMaxY, level.maxBuildHeight),
+                settings.externalVSchemSupportProvider.copiesPlainBlocks, chunk.blockEntities.keys,
+                { sectionY -> chunk.getSection(chunk.getSectionIndexFromSectionY(sectionY)).let { if (it.hasOnlyAir()) null else it.states.copy() } },
+                { state, x, y, z -> captureBlock(level, chunk, ships, state, cX, cZ, x, y, z) }
+            )
+        }
 
-                val bePos = BlockPos(x + cX * 16, y, z + cZ * 16)
-                val be = chunk.getBlockEntity(bePos)
+        private fun captureBlock(level: ServerLevel, chunk: LevelChunk, ships: List<ServerShip>,
+                                 state: BlockState, cX: Int, cZ: Int, x: Int, y: Int, z: Int): CompoundTag? {
+            val block = state.block
+            val cpos = BlockPos(x, y, z)
+            val bePos = BlockPos(x + cX * 16, y, z + cZ * 16)
+            val be = chunk.getBlockEntity(bePos)
 
-                var tag: CompoundTag? = if (block is ICopyableBlock) {block.onCopy(level, cpos, state, be, ships, centerPositions!!)} else {null}
-                if (tag == null) {tag = be?.saveWithFullMetadata()}
+            var tag: CompoundTag? = if (block is ICopyableBlock) {block.onCopy(level, cpos, state, be, ships, centerPositions!!)} else {null}
+            if (tag == null) {tag = be?.saveWithFullMetadata()}
 
-                val cancel = settings.externalVSchemSupportProvider.onCopy(level, bePos, state, ships, centerPositions!!, be, tag)
-                if (cancel) { continue }
+            val cancel = settings.externalVSchemSupportProvider.onCopy(level, bePos, state, ships, centerPositions!!, be, tag)
+            if (cancel) { return CapturedChunk.CANCELLED }
 
-                val fed = if (tag == null || (be is Container && !settings.saveContainers)) {-1} else {
-                    flatExtraData.add(tag)
-                    flatExtraData.size - 1
-                }
-
-                val id = blockPalette.toId(state)
-                data.add(
-                    x + cX * 16 - shipCenter.x,
-                    y           - shipCenter.y,
-                    z + cZ * 16 - shipCenter.z,
-                    BlockItem(id, fed)
-                )
-            } } }
+            if (tag == null || (be is Container && !settings.saveContainers)) { return null }
+            return tag
         }
 
-        fun save(start: Long, timeout: Long): Boolean {
+        // palette ids and tag indices depend on the order blocks are added in, so everything is built by a single task
+        private fun build() {
             val blockData = schematicV1.blockData
             val fed = schematicV1.flatTagData
             val blockPalette = schematicV1.blockPalette
 
+            captured.forEach { ship ->
+                val data = blockData.getOrPut(ship.id) { ChunkyBlockData() }
+                ship.chunks.forEach { it.build(data, fed, blockPalette, ship.shipCenter) }
+            }
+        }
+
+        fun save(start: Long, timeout: Long): Boolean {
+            built?.let { return awaitUntilTimeout(it, start, timeout) != null }
+
             if (centerPositions == null) {
                 centerPositions = ships.associate {
                     val b = it.shipAABB!!
@@ -438,17 +686,10 @@ object SchematicActionsQueue: ServerClosable() {
 
             while (currentShip < ships.size) {
                 val ship = ships[currentShip]
-                val data = blockData.getOrPut(ship.id) { ChunkyBlockData() }
 
                 val b = AABBi(ship.shipAABB!!)
                 if (padBoundary) { b.expand(1, b) }
 
-                val shipCenter = BlockPos(
-                    (b.maxX() - b.minX()) / 2 + b.minX(),
-                    (b.maxY() - b.minY()) / 2 + b.minY(),
-                    (b.maxZ() - b.minZ()) / 2 + b.minZ()
-                )
-
                 if (copyingShip != currentShip) {
                     minCx = b.minX() shr 4
                     maxCx = b.maxX() shr 4
@@ -458,8 +699,15 @@ object SchematicActionsQueue: ServerClosable() {
                     cx = minCx
                     cz = minCz
 
+                    captured.add(CapturedShip(ship.id, BlockPos(
+                        (b.maxX() - b.minX()) / 2 + b.minX(),
+                        (b.maxY() - b.minY()) / 2 + b.minY(),
+                        (b.maxZ() - b.minZ()) / 2 + b.minZ()
+                    )))
+
                     copyingShip = currentShip
                 }
+                val capturedShip = captured.last()
 
                 while (cx < maxCx+1) {
                     var minX = 0
@@ -472,10 +720,10 @@ object SchematicActionsQueue: ServerClosable() {
                         var minZ = 0
                         var maxZ = 16
 
-                        if (cz == minCx) {minZ = b.minZ() and 15}
-                        if (cz == maxCx) {maxZ = b.maxZ() and 15}
+                        if (cz == minCz) {minZ = b.minZ() and 15}
+                        if (cz == maxCz) {maxZ = b.maxZ() and 15}
 
-                        saveChunk(level, level.getChunk(cx, cz), ships, data, fed, blockPalette, shipCenter, cx, cz, minX, maxX, minZ, maxZ, b.minY, b.maxY)
+                        captureChunk(level, level.getChunk(cx, cz), ships, cx, cz, minX, maxX, minZ, maxZ, b.minY, b.maxY)?.let { capturedShip.chunks.add(it) }
                         cz++
                         if (getNow_ms() - start > timeout && settings.allowChunkCopyingInterruption) { return false }
                     }
@@ -483,7 +731,6 @@ object SchematicActionsQueue: ServerClosable() {
                     cx++
                 }
 
-                currentChunk = 0
                 currentShip++
             }
             currentShip = 0
@@ -520,7 +767,8 @@ object SchematicActionsQueue: ServerClosable() {
                 currentShip++
             }
 
-            return true
+            built = CompletableFuture.supplyAsync({ build() }, Util.backgroundExecutor())
+            return awaitUntilTimeout(built!!, start, timeout) != null
         }
     }
 
@@ -0,0 +1,197 @@
+package net.spaceeye.vmod.schematic
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import net.minecraft.network.FriendlyByteBuf
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.BlockItem
+import net.spaceeye.valkyrien_ship_schematics.containers.v1.ChunkyBlockData
+import org.valkyrienskies.core.api.ships.properties.ShipId
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * vschem file that is written section by section and read frame by frame, so that neither saving nor loading needs
+ * a copy of the whole file in heap.
+ *
+ * ```
+ * magic | version | header frame | ship frame...
+ * header frame: length | schematic without block data, serialized by VSS
+ * ship frame:   ship id | number of chunks | chunk frame...
+ * chunk frame:  length | cx | cz | number of blocks | (packed local xz, zigzag y, palette id, extra data id + 1)...
+ * ```
+ *
+ * Ship and chunk frames are indexed on open without decoding them, so ships and chunks can be decoded separately.
+ */
+class StreamingSchematicFile private constructor(private val channel: FileChannel): Closeable {
+    private class ChunkFrame(@JvmField val offset: Long, @JvmField val length: Int)
+
+    private val headerOffset: Long
+    private val headerLength: Int
+    private val ships = LinkedHashMap<ShipId, List<ChunkFrame>>()
+
+    init {
+        val size = channel.size()
+        val start = readAt(0, 16)
+        if (start.readLong() != MAGIC) throw IOException("Not a streaming vschem file")
+        val version = start.readInt()
+        if (version != VERSION) throw IOException("Unsupported streaming vschem version $version")
+
+        headerLength = start.readInt()
+        headerOffset = 16
+        var pos = headerOffset + headerLength
+
+        while (pos < size) {
+            val shipFrame = readAt(pos, 12)
+            val shipId = shipFrame.readLong()
+            val numChunks = shipFrame.readInt()
+            pos += 12
+            val chunks = ArrayList<ChunkFrame>(numChunks)
+            for (i in 0 until numChunks) {
+                val length = readAt(pos, 4).readInt()
+                chunks.add(ChunkFrame(pos + 4, length))
+                pos += 4 + length
+            }
+            ships[shipId] = chunks
+        }
+        if (pos != size) throw IOException("Streaming vschem file is truncated")
+    }
+
+    private fun readAt(pos: Long, length: Int): ByteBuf {
+        if (length < 0) throw IOException("Invalid frame length $length")
+        val buf = Unpooled.buffer(length, length)
+        val nio = buf.nioBuffer(0, length)
+        while (nio.hasRemaining()) {
+            if (channel.read(nio, pos + nio.position()) < 0) throw IOException("Streaming vschem file is truncated")
+        }
+        buf.writerIndex(length)
+        return buf
+    }
+
+    val shipIds: Set<ShipId> get() = ships.keys
+
+    fun numChunks(shipId: ShipId): Int = ships[shipId]?.size ?: 0
+
+    /**
+     * @return schematic with everything except block data
+     */
+    fun readHeader(): VModShipSchematicV2 = VModShipSchematicV2().also {
+        it.deserialize(FriendlyByteBuf(readAt(headerOffset, headerLength)))
+    }
+
+    fun readChunk(shipId: ShipId, chunk: Int, into: ChunkyBlockData<BlockItem>) {
+        val frame = ships[shipId]!![chunk]
+        val buf = FriendlyByteBuf(readAt(frame.offset, frame.length))
+        val cx = buf.readInt() shl 4
+        val cz = buf.readInt() shl 4
+        val numBlocks = buf.readInt()
+        for (i in 0 until numBlocks) {
+            val xz = buf.readUnsignedByte().toInt()
+            val y = unzigzag(buf.readVarInt())
+            val paletteId = buf.readVarInt()
+            val extraDataId = buf.readVarInt() - 1
+            into.add(cx + (xz shr 4), y, cz + (xz and 15), BlockItem(paletteId, extraDataId))
+        }
+    }
+
+    fun readShip(shipId: ShipId): ChunkyBlockData<BlockItem> = ChunkyBlockData<BlockItem>().also { data ->
+        for (i in 0 until numChunks(shipId)) { readChunk(shipId, i, data) }
+    }
+
+    fun readAll(): VModShipSchematicV2 = readHeader().also { schem ->
+        shipIds.forEach { schem.blockData[it] = readShip(it) }
+    }
+
+    override fun close() = channel.close()
+
+    companion object {
+        // "VSCHEMST"
+        private const val MAGIC = 0x56534348454D5354L
+        private const val VERSION = 1
+
+        private fun zigzag(i: Int) = (i shl 1) xor (i shr 31)
+        private fun unzigzag(i: Int) = (i ushr 1) xor -(i and 1)
+
+        fun isStreamingFile(path: Path): Boolean {
+            if (Files.size(path) < 8) return false
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                val buf = ByteBuffer.allocate(8)
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {}
+                return !buf.hasRemaining() && buf.flip().getLong() == MAGIC
+            }
+        }
+
+        /**
+         * Indexes frames of the file, which are read once they're needed. Returned object must be closed
+         */
+        fun open(path: Path): StreamingSchematicFile {
+            val channel = FileChannel.open(path, StandardOpenOption.READ)
+            try {
+                return StreamingSchematicFile(channel)
+            } catch (e: Throwable) {
+                channel.close()
+                throw e
+            }
+        }
+
+        private fun FileChannel.writeFully(buf: ByteBuf) {
+            val nio = buf.nioBuffer()
+            while (nio.hasRemaining()) { write(nio) }
+            buf.clear()
+        }
+
+        /**
+         * Writes schematic to a temporary file that replaces [path] once everything was written. Only the header and a
+         * single chunk are kept in memory at a time.
+         */
+        fun write(path: Path, schem: VModShipSchematicV2) {
+            val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+            FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                val header = VModShipSchematicV2().also {
+                    it.blockPalette = schem.blockPalette
+                    it.entityData = schem.entityData
+                    it.flatTagData = schem.flatTagData
+                    it.extraData = schem.extraData
+                    it.info = schem.info
+                }.serialize()
+
+                val buf = FriendlyByteBuf(Unpooled.buffer(4096))
+                buf.writeLong(MAGIC)
+                buf.writeInt(VERSION)
+                buf.writeInt(header.writerIndex() - header.readerIndex())
+                channel.writeFully(buf)
+                channel.writeFully(header)
+
+                for ((shipId, blockData) in schem.blockData) {
+                    val chunks = blockData.blocks
+                    buf.writeLong(shipId)
+                    buf.writeInt(chunks.size)
+                    channel.writeFully(buf)
+
+                    for ((chunkPos, blocks) in chunks) {
+                        // length is written after the chunk is encoded
+                        buf.writeInt(0)
+                        buf.writeInt(chunkPos.x)
+                        buf.writeInt(chunkPos.z)
+                        buf.writeInt(blocks.size)
+                        for ((pos, item) in blocks) {
+                            buf.writeByte(((pos.x and 15) shl 4) or (pos.z and 15))
+                            buf.writeVarInt(zigzag(pos.y))
+                            buf.writeVarInt(item.paletteId)
+                            buf.writeVarInt(item.extraDataId + 1)
+                        }
+                        buf.setInt(0, buf.writerIndex() - 4)
+                        channel.writeFully(buf)
+                    }
+                }
+                channel.force(false)
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        }
+    }
+}
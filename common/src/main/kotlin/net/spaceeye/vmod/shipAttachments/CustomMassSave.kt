@@ -1,8 +1,14 @@
 package net.spaceeye.vmod.shipAttachments
 
 import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonProperty
+import io.netty.buffer.Unpooled
+import net.minecraft.network.FriendlyByteBuf
 import net.minecraft.server.level.ServerLevel
 import net.spaceeye.valkyrien_ship_schematics.interfaces.ICopyableForcesInducer
+import net.spaceeye.vmod.ELOG
+import net.spaceeye.vmod.utils.SectionFloatMap
+import net.spaceeye.vmod.utils.accessByteBufWithCorrectSize
 import net.spaceeye.vmod.vsStuff.CustomBlockMassManager
 import org.joml.Vector3i
 import org.joml.Vector3d
@@ -19,22 +25,50 @@ import kotlin.math.roundToInt
 
 class CustomMassSave(): ShipPhysicsListener, ICopyableForcesInducer {
     var wasCopied: Boolean = false
-    @JsonIgnore private var tempMassData: List<Pair<Vector3i, Double>>? = null
+    @JsonIgnore private var tempMassData: SectionFloatMap? = null
     @JsonIgnore var lock = ReentrantLock()
 
     var shipId: Long = -1L
     var dimensionId: String = ""
+
+    // was used before masses were packed, only read to load old saves
+    @get:JsonIgnore @set:JsonProperty
     var massSave: List<Pair<Vector3i, Double>>?
-        get() {
-            val data = CustomBlockMassManager.shipToPosToMass[shipId] ?: return null
-            return data.asList()
+        get() = null
+        set(value) {
+            if (value == null) {return}
+            massData = SectionFloatMap().also { map -> value.forEach { (pos, mass) -> map.set(pos.x, pos.y, pos.z, mass.toFloat()) } }
         }
+
+    private var massData: SectionFloatMap?
+        get() = CustomBlockMassManager.shipToPosToMass[shipId]
         set(value) {
+            if (value == null) {return}
             if (wasCopied) {
                 tempMassData = value
                 return
             }
-            value?.forEach { (pos, mass) -> CustomBlockMassManager.loadCustomMass(dimensionId, shipId, pos.x, pos.y, pos.z, mass) }
+            CustomBlockMassManager.loadCustomMass(dimensionId, shipId, value)
+        }
+
+    /**
+     * Masses written by [SectionFloatMap.write]
+     */
+    var packedMassSave: ByteArray?
+        get() {
+            val data = massData ?: return null
+            if (data.isEmpty()) {return null}
+            val buf = FriendlyByteBuf(Unpooled.buffer())
+            buf.writeByte(PACKED_VERSION)
+            data.write(buf)
+            return buf.accessByteBufWithCorrectSize()
+        }
+        set(value) {
+            if (value == null) {return}
+            val buf = FriendlyByteBuf(Unpooled.wrappedBuffer(value))
+            val version = buf.readByte().toInt()
+            if (version != PACKED_VERSION) { ELOG("Unknown version of packed custom masses $version"); return }
+            massData = SectionFloatMap().also { it.read(buf) }
         }
 
     override fun onCopy(level: Supplier<ServerLevel>, shipOn: LoadedServerShip, shipsToBeSaved: List<ServerShip>, centerPositions: Map<ShipId, Vector3d>) {
@@ -62,13 +96,13 @@ class CustomMassSave(): ShipPhysicsListener, ICopyableForcesInducer {
         if (tempMassData == null) {return}
         val (oldCenter, newCenter) = centerPositions[oldId]!!
 
-        tempMassData!!.forEach { (pos, mass) ->
-            val pos = Vector3d(pos)
-                .add(0.01, 0.01, 0.01)
-                .sub(oldCenter)
-                .add(newCenter)
-                .let { Vector3i(it.x.roundToInt(), it.y.roundToInt(), it.z.roundToInt()) }
-            CustomBlockMassManager.setCustomMass(level.get(), pos.x, pos.y, pos.z, mass, )
+        val offset = Vector3d(newCenter).sub(oldCenter)
+        tempMassData!!.forEach { x, y, z, mass ->
+            CustomBlockMassManager.setCustomMass(level.get(),
+                (x + 0.01 + offset.x).roundToInt(),
+                (y + 0.01 + offset.y).roundToInt(),
+                (z + 0.01 + offset.z).roundToInt(),
+                mass.toDouble())
         }
         tempMassData = null
     }
@@ -81,6 +115,8 @@ class CustomMassSave(): ShipPhysicsListener, ICopyableForcesInducer {
     }
 
     companion object {
+        private const val PACKED_VERSION = 1
+
         init {
             VSEvents.shipLoadEvent.on { (ship) ->
                 getOrCreate(ship)
@@ -34,13 +34,25 @@ class GravityController(
     @JsonProperty(required = false)
     var gravityVector = dimensionGravity
 
+    // force is only recalculated when mass or gravity changes. vectors are mutable so values are compared, not references
+    @JsonIgnore private var cachedForce: JVector3d? = null
+    @JsonIgnore private var cachedMass = Double.NaN
+    @JsonIgnore private val cachedGravity = JVector3d()
+    @JsonIgnore private val cachedDimensionGravity = JVector3d()
+
     override fun physTick(physShip: PhysShip, physLevel: PhysLevel) {
-        val gravityVector = if (useDimensionGravity) dimensionGravity else gravityVector
-        val forceDiff = gravityVector.sub(dimensionGravity, JVector3d()).mul(physShip.mass)
-        if (forceDiff.lengthSquared() < Float.MIN_VALUE) return
+        if (useDimensionGravity) return
+        val gravityVector = gravityVector
+        val mass = physShip.mass
+        if (mass != cachedMass || gravityVector != cachedGravity || dimensionGravity != cachedDimensionGravity) {
+            cachedMass = mass
+            cachedGravity.set(gravityVector)
+            cachedDimensionGravity.set(dimensionGravity)
+            val forceDiff = gravityVector.sub(dimensionGravity, JVector3d()).mul(mass)
+            cachedForce = if (forceDiff.lengthSquared() < Float.MIN_VALUE) null else forceDiff
+        }
 
-        //TODO
-        physShip.applyInvariantForce(forceDiff)
+        physShip.applyInvariantForce(cachedForce ?: return)
     }
 
     fun reset() {
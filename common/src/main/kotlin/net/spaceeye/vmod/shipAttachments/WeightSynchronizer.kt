@@ -3,11 +3,16 @@ package net.spaceeye.vmod.shipAttachments
 import com.fasterxml.jackson.annotation.JsonIgnore
 import net.minecraft.core.BlockPos
 import net.minecraft.server.level.ServerLevel
-import net.minecraft.world.level.block.Blocks
+import net.minecraft.world.level.block.state.BlockState
 import net.spaceeye.valkyrien_ship_schematics.interfaces.ICopyableForcesInducer
-import net.spaceeye.vmod.events.PersistentEvents
+import net.spaceeye.vmod.events.BlockChanges
+import net.spaceeye.vmod.utils.EventHandle
+import net.spaceeye.vmod.utils.LongHashMap
+import net.spaceeye.vmod.utils.LongHashSet
+import net.spaceeye.vmod.utils.ServerClosable
 import net.spaceeye.vmod.utils.ServerObjectsHolder
 import net.spaceeye.vmod.vsStuff.CustomBlockMassManager
+import net.spaceeye.vmod.vsStuff.VSJointsTracker
 import org.joml.Vector3d
 import org.valkyrienskies.core.api.ships.LoadedServerShip
 import org.valkyrienskies.core.api.ships.PhysShip
@@ -16,14 +21,18 @@ import org.valkyrienskies.core.api.ships.ServerTickListener
 import org.valkyrienskies.core.api.ships.ShipPhysicsListener
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.api.world.PhysLevel
-import org.valkyrienskies.core.internal.world.chunks.VsiBlockType
 import org.valkyrienskies.mod.common.BlockStateInfo
-import org.valkyrienskies.mod.common.getShipObjectManagingPos
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.util.function.Supplier
-import kotlin.math.max
-import kotlin.math.min
-
+import kotlin.math.abs
+
+/**
+ * Keeps mass of a ship (or of every ship of a connected structure) at [targetTotalMass] or at [massPerBlock] per block.
+ *
+ * Masses of the whole ship are only set once. After that only changed blocks are given mass, as VS updates mass,
+ * center of mass and inertia by the difference of a single block. With [syncMassPerBlock] that's exact, otherwise the
+ * total drifts from target by mass of changed blocks, so ship is rescaled fully once it drifts by [RESCALE_DRIFT].
+ */
 class WeightSynchronizer: ShipPhysicsListener, ServerTickListener, ICopyableForcesInducer {
     var shipId = -1L
     var dimensionId = ""
@@ -33,28 +42,108 @@ class WeightSynchronizer: ShipPhysicsListener, ServerTickListener, ICopyableForc
     var targetTotalMass = 1.0
 
     var syncMassPerBlock = true
+    // every ship of the structure is given the same part of target mass, so that mass ratio between ships connected
+    // by constraints stays close to 1, which is what physx constraints are the most stable with
     var syncWithConnectedStructure = false
 
     override fun physTick(physShip: PhysShip, physLevel: PhysLevel) {}
 
     @JsonIgnore var level: ServerLevel? = null
     @JsonIgnore var updateWeights: Boolean = false
+    @JsonIgnore @Volatile var structureChanged: Boolean = false
+
+    // ship id -> mass state, includes own ship
+    @JsonIgnore private val members = LongHashMap<ShipMassState>()
+
+    private class ShipMassState(@JvmField val owner: WeightSynchronizer) {
+        @JvmField val changed = LongHashSet()
+        // sum of default masses of ship blocks, kept up to date by block changes
+        @JvmField var weightTotal = 0.0
+        // weightTotal when masses were last scaled
+        @JvmField var scaledWeightTotal = 0.0
+        // NaN until masses of the whole ship were set
+        @JvmField var scale = Double.NaN
+        @JvmField var lastTick = 0
+        @JvmField var handle: EventHandle? = null
+    }
 
     override fun onServerTick() {
         if (lastDimensionId != dimensionId) {
             level = ServerObjectsHolder.getLevelById(dimensionId)
             lastDimensionId = dimensionId
         }
-        if (!updateWeights) {return}
         val level = level ?: return
-        val ship = level.shipObjectWorld.allShips.getById(shipId) ?: return
-        if (syncWithConnectedStructure) {
-            // synchronize mass so that total mass of a structure is the same, but it distributed in a way that doesn't make physx constraints fail (or at least minimizes wonkiness)
-            TODO()
+        if (updateWeights || structureChanged || members.isEmpty()) {
+            // masses were already set before the ship was loaded, so they're only updated once something changes
+            updateAll(level, updateWeights || structureChanged)
+            updateWeights = false
+            structureChanged = false
+            return
+        }
+
+        val tick = level.server.tickCount
+        val allShips = level.shipObjectWorld.allShips
+        members.forEach { id, state ->
+            state.lastTick = tick
+            if (state.changed.isEmpty()) return@forEach
+            val ship = allShips.getById(id) ?: return@forEach
+            if (state.scale.isNaN() || !syncMassPerBlock && abs(state.weightTotal - state.scaledWeightTotal) > state.scaledWeightTotal * RESCALE_DRIFT) {
+                updateShip(level, ship, state, targetTotalMass / members.size)
+            } else {
+                updateChanged(level, ship, state)
+            }
+        }
+    }
+
+    private fun updateAll(level: ServerLevel, updateMasses: Boolean) {
+        val allShips = level.shipObjectWorld.allShips
+        if (!allShips.contains(shipId)) return
+        val ids = if (syncWithConnectedStructure) {
+            VSJointsTracker.getConnected(shipId).filter { allShips.getById(it)?.chunkClaimDimension == dimensionId }.ifEmpty { listOf(shipId) }
         } else {
-            updateMass(level, ship, false, syncMassPerBlock, massPerBlock, targetTotalMass)
+            listOf(shipId)
+        }
+
+        members.forEach { id, state -> if (tracked[id] === state) { untrack(id) } }
+        members.clear()
+
+        val shipTarget = targetTotalMass / ids.size
+        val tick = level.server.tickCount
+        for (id in ids) {
+            val ship = allShips.getById(id) ?: continue
+            val state = ShipMassState(this)
+            state.lastTick = tick
+            members[id] = state
+            track(id, state)
+            if (updateMasses) { updateShip(level, ship, state, shipTarget) }
         }
     }
+
+    private fun updateShip(level: ServerLevel, ship: ServerShip, state: ShipMassState, target: Double) {
+        state.changed.clear()
+        val weightTotal = updateMass(level, ship, false, syncMassPerBlock, massPerBlock, target)
+        state.weightTotal = weightTotal
+        state.scaledWeightTotal = weightTotal
+        state.scale = if (syncMassPerBlock) massPerBlock else if (weightTotal > 0.0) target / weightTotal else 0.0
+    }
+
+    private fun updateChanged(level: ServerLevel, ship: ServerShip, state: ShipMassState) {
+        val dimensionId = ship.chunkClaimDimension
+        val mbpos = BlockPos.MutableBlockPos()
+        state.changed.forEach { pos ->
+            mbpos.set(pos)
+            val x = mbpos.x; val y = mbpos.y; val z = mbpos.z
+            // VS has already given default mass to the new block, so custom mass of the old one is no longer valid
+            CustomBlockMassManager.removeCustomMass(dimensionId, ship.id, x, y, z)
+            val block = level.getBlockState(mbpos)
+            if (block.isAir) return@forEach
+            val (defaultMass, type) = BlockStateInfo.get(block) ?: return@forEach
+            val mass = if (syncMassPerBlock) massPerBlock else defaultMass * state.scale
+            CustomBlockMassManager.setCustomMass(level, x, y, z, defaultMass, mass, type, type, ship)
+        }
+        state.changed.clear()
+    }
+
     override fun onCopy(level: Supplier<ServerLevel>, shipOn: LoadedServerShip, shipsToBeSaved: List<ServerShip>, centerPositions: Map<ShipId, Vector3d>) {}
     override fun onPaste(
         level: Supplier<ServerLevel>,
@@ -67,15 +156,54 @@ class WeightSynchronizer: ShipPhysicsListener, ServerTickListener, ICopyableForc
         updateWeights = true
     }
 
-    companion object {
+    companion object: ServerClosable() {
+        const val RESCALE_DRIFT = 0.01
+        // states of removed synchronizers are dropped once they weren't ticked for this long
+        private const val STALE_TICKS = 20
+
+        // ship id -> mass state of ships that have a synchronizer or are a part of a synchronized structure
+        private val tracked = LongHashMap<ShipMassState>()
+
+        override fun close() {
+            tracked.clear()
+        }
+
+        private fun defaultMass(state: BlockState) = if (state.isAir) 0.0 else BlockStateInfo.get(state)?.first ?: 0.0
+
+        private fun track(id: ShipId, state: ShipMassState) {
+            tracked.put(id, state)?.handle?.unsubscribe()
+            state.handle = BlockChanges.onShip(id) { batch, _ -> onBlocksChanged(id, state, batch) }
+        }
+
+        private fun untrack(id: ShipId) { tracked.remove(id)?.handle?.unsubscribe() }
+
+        private fun onBlocksChanged(shipId: ShipId, state: ShipMassState, batch: BlockChanges.Batch) {
+            if (batch.level.server.tickCount - state.lastTick > STALE_TICKS) {
+                untrack(shipId)
+                return
+            }
+            for (i in 0 until batch.size) {
+                state.changed.add(batch.pos(i))
+                if (state.owner.syncMassPerBlock) continue
+                state.weightTotal += defaultMass(batch.newState(i)) - defaultMass(batch.oldState(i))
+            }
+        }
+
         init {
-            PersistentEvents.onBlockStateChange.on { (level, pos, newState, isMoving), _ ->
-                val ship = level.getShipObjectManagingPos(pos) ?: return@on
-                val atch = ship.getAttachment(WeightSynchronizer::class.java) ?: return@on
-                atch.updateWeights = true
+            VSJointsTracker.connectionAdded.on { (shipId1, shipId2), _ ->
+                tracked[shipId1]?.owner?.structureChanged = true
+                tracked[shipId2]?.owner?.structureChanged = true
+            }
+            VSJointsTracker.connectionRemoved.on { (shipId1, shipId2), _ ->
+                tracked[shipId1]?.owner?.structureChanged = true
+                tracked[shipId2]?.owner?.structureChanged = true
             }
         }
 
+        /**
+         * Sets mass of every block of the ship. Only blocks which mass changes are updated, except when resetting
+         * @return sum of default masses of ship blocks, or 0 if it wasn't needed
+         */
         @JvmStatic fun updateMass(
             level: ServerLevel,
             ship: ServerShip,
@@ -83,58 +211,30 @@ class WeightSynchronizer: ShipPhysicsListener, ServerTickListener, ICopyableForc
             syncWeightPerBlock: Boolean,
             weightPerBlock: Double,
             targetWeight: Double
-        ) {
-            val (_, air) = BlockStateInfo.get(Blocks.AIR.defaultBlockState())!!
-            val aabb = ship.shipAABB ?: return
-            val wasStatic = ship.isStatic
-            ship.isStatic = true
-
-            CustomBlockMassManager.zeroMass(level, ship)
-
-            var minW =  Double.MAX_VALUE
-            var maxW = -Double.MAX_VALUE
-            var defaultTotalMass = 0.0
-            val mbpos = BlockPos.MutableBlockPos(0, 0, 0)
-
-            //TODO not efficient, but do i care?
-            if (!syncWeightPerBlock && !resetMassToDefault) {
-                for (x in aabb.minX()-1..aabb.maxX()+1) {
-                for (z in aabb.minZ()-1..aabb.maxZ()+1) {
-                for (y in aabb.minY()-1..aabb.maxY()+1) {
-                    mbpos.set(x, y, z)
-                    val state = level.getBlockState(mbpos)
-                    if (state.isAir) {continue}
-                    val (mass, _) = BlockStateInfo.get(state) ?: continue
-
-                    minW = min(minW, mass)
-                    maxW = max(maxW, mass)
-
-                    defaultTotalMass += mass
-                } } }
+        ): Double {
+            val aabb = ship.shipAABB ?: return 0.0
+            val minX = aabb.minX(); val minY = aabb.minY(); val minZ = aabb.minZ()
+            val maxX = aabb.maxX() - 1; val maxY = aabb.maxY() - 1; val maxZ = aabb.maxZ() - 1
+
+            if (resetMassToDefault) {
+                // rebuilds mass from scratch, in case it went out of sync with blocks
+                val wasStatic = ship.isStatic
+                ship.isStatic = true
+                CustomBlockMassManager.zeroMass(level, ship)
+                CustomBlockMassManager.setMassInRegion(level, ship, minX, minY, minZ, maxX, maxY, maxZ, true) { _, _, _, _, dmass -> dmass }
+                ship.isStatic = wasStatic
+                return 0.0
+            }
+            if (syncWeightPerBlock) {
+                CustomBlockMassManager.setMassInRegion(level, ship, minX, minY, minZ, maxX, maxY, maxZ) { _, _, _, _, _ -> weightPerBlock }
+                return 0.0
             }
 
-            for (x in aabb.minX() until aabb.maxX()) {
-            for (y in aabb.minY() until aabb.maxY()) {
-            for (z in aabb.minZ() until aabb.maxZ()) {
-                mbpos.set(x, y, z)
-                val state = level.getBlockState(mbpos)
-                if (state.isAir) {continue}
-                val (dmass, type) = BlockStateInfo.get(state) ?: continue
-
-                val mass = if (syncWeightPerBlock && !resetMassToDefault) {
-                    weightPerBlock
-                } else {
-                    if (resetMassToDefault) {
-                        dmass
-                    } else {
-                        dmass / defaultTotalMass * targetWeight
-                    }
-                }
-
-                CustomBlockMassManager.setCustomMass(level, x, y, z, 0.0, mass, air, type, ship)
-            } } }
+            var defaultTotalMass = 0.0
+            CustomBlockMassManager.forEachBlockInRegion(level, minX, minY, minZ, maxX, maxY, maxZ) { _, _, _, state -> defaultTotalMass += defaultMass(state) }
+            CustomBlockMassManager.setMassInRegion(level, ship, minX, minY, minZ, maxX, maxY, maxZ) { _, _, _, _, dmass -> dmass / defaultTotalMass * targetWeight }
 
-            ship.isStatic = wasStatic
+            return defaultTotalMass
         }
 
         @Deprecated("ADDING IT TO SHIP WILL MAKE IT ACTIVATE")
@@ -146,4 +246,4 @@ class WeightSynchronizer: ShipPhysicsListener, ServerTickListener, ICopyableForc
                     ship.setAttachment(it)
                 }
     }
-}
\ No newline at end of file
+}
@@ -11,6 +11,7 @@ import net.spaceeye.vmod.translate.CHANNEL
 import net.spaceeye.vmod.translate.FULLBRIGHT
 import net.spaceeye.vmod.translate.IGNORE_SELF_SHIP
 import net.spaceeye.vmod.translate.MAX_DISTANCE
+import net.spaceeye.vmod.translate.SAMPLE_INTERVAL
 import net.spaceeye.vmod.translate.SENSOR
 import net.spaceeye.vmod.translate.SSCALE
 import net.spaceeye.vmod.translate.get
@@ -24,6 +25,7 @@ interface SensorGUI: GUIBuilder, EGUIBuilder {
         makeTextEntry(CHANNEL.get(), ::channel, 2f, 2f, parentWindow, ServerLimits.instance.channelLength)
         makeTextEntry(MAX_DISTANCE.get(), ::maxDistance, 2f, 2f, parentWindow, ServerLimits.instance.maxDistance)
         makeTextEntry(SSCALE.get(), ::scale, 2f, 2f, parentWindow, ServerLimits.instance.sensorScale)
+        makeTextEntry(SAMPLE_INTERVAL.get(), ::sampleInterval, 2f, 2f, parentWindow, ServerLimits.instance.sensorSampleInterval)
         makeCheckBox(FULLBRIGHT.get(), ::fullbright, 2f, 2f, parentWindow)
         makeCheckBox(IGNORE_SELF_SHIP.get(), ::ignoreSelf, 2f, 2f, parentWindow)
     }
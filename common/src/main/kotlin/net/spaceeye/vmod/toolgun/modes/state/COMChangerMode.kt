@@ -1,6 +1,5 @@
 package net.spaceeye.vmod.toolgun.modes.state
 
-import net.minecraft.core.BlockPos
 import net.minecraft.server.level.ServerLevel
 import net.minecraft.server.level.ServerPlayer
 import net.spaceeye.vmod.toolgun.modes.ExtendableToolgunMode
@@ -23,19 +22,14 @@ class COMChangerMode: ExtendableToolgunMode(), COMChangerGUI, COMChangerHUD {
         val pos = raycastResult.blockPosition
 
         var totalMass = 0.0
-        for (x in aabb.minX()-1..aabb.maxX()+1) {
-        for (z in aabb.minZ()-1..aabb.maxZ()+1) {
-        for (y in aabb.minY()-1..aabb.maxY()+1) {
-            val bpos = BlockPos(x, y, z)
-            val state = level.getBlockState(bpos)
-            if (state.isAir) {continue}
-            val (mass, type) = BlockStateInfo.get(state) ?: continue
-            totalMass += mass
-
-            CustomBlockMassManager.setCustomMass(level, x, y, z, 0.0, mass, type, type, ship)
-        } } }
+        CustomBlockMassManager.forEachBlockInRegion(level, aabb.minX()-1, aabb.minY()-1, aabb.minZ()-1, aabb.maxX()+1, aabb.maxY()+1, aabb.maxZ()+1) { _, _, _, state ->
+            totalMass += BlockStateInfo.get(state)?.first ?: 0.0
+        }
 
-        CustomBlockMassManager.setCustomMass(level, pos.x, pos.y, pos.z, totalMass)
+        // all mass is moved into a single block
+        CustomBlockMassManager.setMassInRegion(level, ship, aabb.minX()-1, aabb.minY()-1, aabb.minZ()-1, aabb.maxX()+1, aabb.maxY()+1, aabb.maxZ()+1) { x, y, z, _, _ ->
+            if (x == pos.x && y == pos.y && z == pos.z) totalMass else 0.0
+        }
     }
 
     fun activateSecondaryFunction(level: ServerLevel, player: ServerPlayer, raycastResult: RaycastFunctions.RaycastResult) {
@@ -43,17 +37,8 @@ class COMChangerMode: ExtendableToolgunMode(), COMChangerGUI, COMChangerHUD {
 
         val aabb = ship.shipAABB ?: return
 
-        for (x in aabb.minX()-1..aabb.maxX()+1) {
-        for (z in aabb.minZ()-1..aabb.maxZ()+1) {
-        for (y in aabb.minY()-1..aabb.maxY()+1) {
-            val bpos = BlockPos(x, y, z)
-            val state = level.getBlockState(bpos)
-            if (state.isAir) {continue}
-            val (mass, type) = BlockStateInfo.get(state) ?: continue
-
-            CustomBlockMassManager.setCustomMass(level, x, y, z, mass, mass, type, type, ship)
-            CustomBlockMassManager.removeCustomMass(level.dimensionId, x, y, z)
-        } } }
+        CustomBlockMassManager.setMassInRegion(level, ship, aabb.minX()-1, aabb.minY()-1, aabb.minZ()-1, aabb.maxX()+1, aabb.maxY()+1, aabb.maxZ()+1) { _, _, _, _, dmass -> dmass }
+        CustomBlockMassManager.removeCustomMass(level.dimensionId, ship.id)
     }
 
     companion object {
@@ -21,6 +21,7 @@ import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.networking.*
 import net.spaceeye.vmod.reflectable.AutoSerializable
 import net.spaceeye.vmod.schematic.SchematicActionsQueue
+import net.spaceeye.vmod.schematic.StreamingSchematicFile
 import net.spaceeye.vmod.toolgun.ClientToolGunState
 import net.spaceeye.vmod.toolgun.ServerToolGunState
 import net.spaceeye.vmod.toolgun.modes.BaseNetworking
@@ -88,6 +89,7 @@ object PlayerSchematics: ServerClosable() {
         VM.MOD_ID
     ) {
         override val partByteAmount: Int get() = VMConfig.SERVER.TOOLGUN.SCHEMATIC_PACKET_PART_SIZE
+        override val compress: Boolean = true
         override fun requestPacketConstructor(buf: FriendlyByteBuf) = SendSchemRequest::class.constructor(buf)
         override fun dataPacketConstructor() = SchemHolder()
         override fun receiverDataTransmissionFailed(failurePkt: RequestFailurePkt) { ELOG("Client Save Schem Transmission Failed") }
@@ -114,6 +116,7 @@ object PlayerSchematics: ServerClosable() {
         VM.MOD_ID
     ) {
         override val partByteAmount: Int get() = VMConfig.SERVER.TOOLGUN.SCHEMATIC_PACKET_PART_SIZE
+        override val compress: Boolean = true
         override fun requestPacketConstructor(buf: FriendlyByteBuf) = SendSchemRequest::class.constructor(buf)
         override fun dataPacketConstructor() = SchemHolder()
         override fun receiverDataTransmissionFailed(failurePkt: RequestFailurePkt) {}
@@ -138,6 +141,9 @@ object PlayerSchematics: ServerClosable() {
         VM.MOD_ID
     ) {
         override val partByteAmount: Int get() = VMConfig.CLIENT.TOOLGUN.SCHEMATIC_PACKET_PART_SIZE
+        override val compress: Boolean = true
+        // data is sent by players, so server only accepts what it allows
+        override val maxTransferLength: Int get() = VMConfig.SERVER.TOOLGUN.MAX_SCHEMATIC_UPLOAD_SIZE_MB * 1024 * 1024
         override fun requestPacketConstructor(buf: FriendlyByteBuf) = SendLoadRequest::class.constructor(buf)
         override fun dataPacketConstructor() = SchemHolder()
         override fun receiverDataTransmissionFailed(failurePkt: RequestFailurePkt) { ELOG("Client Load Schem Transmission Failed") }
@@ -187,7 +193,8 @@ object PlayerSchematics: ServerClosable() {
             val buf = getBuffer()
 
             buf.writeUUID(uuid)
-            buf.writeByteArray(data.array())
+            buf.writeVarInt(data.writerIndex())
+            buf.writeBytes(data, 0, data.writerIndex())
 
             return buf
         }
@@ -209,6 +216,9 @@ object PlayerSchematics: ServerClosable() {
 
     fun loadSchematic(path: Path): IShipSchematic? {
         try {
+            if (StreamingSchematicFile.isStreamingFile(path)) {
+                return StreamingSchematicFile.open(path).use { it.readAll() }
+            }
             val bytes = Files.readAllBytes(path)
             return bcGetSchematicFromBytes(bytes)
         } catch (e: Exception) {
@@ -219,7 +229,12 @@ object PlayerSchematics: ServerClosable() {
 
     fun saveSchematic(name: String, schematic: IShipSchematic): Boolean {
         try {
-            Files.write(Paths.get("VMod-Schematics/${name}"), ShipSchematic.writeSchematicToBuffer(schematic)!!.array())
+            val path = Paths.get("VMod-Schematics/${name}")
+            if (VMConfig.COMMON.STREAMING_SCHEMATIC_FORMAT && schematic is VModShipSchematicV2) {
+                StreamingSchematicFile.write(path, schematic)
+            } else {
+                Files.write(path, ShipSchematic.writeSchematicToBuffer(schematic)!!.array())
+            }
         } catch (e: IOException) {
             ELOG("Failed to save schematic to file because ${e.stackTraceToString()}")
             return false
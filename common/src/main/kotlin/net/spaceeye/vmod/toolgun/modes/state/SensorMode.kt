@@ -36,6 +36,7 @@ class SensorMode: ExtendableToolgunMode(), SensorGUI, SensorHUD {
     var scale: Double by get(i++, 1.0) { ServerLimits.instance.thrusterScale.get(it) }.presettable()
     var fullbright: Boolean by get(i++, false).presettable()
     var ignoreSelf: Boolean by get(i++, false).presettable()
+    var sampleInterval: Int by get(i++, 1) { ServerLimits.instance.sensorSampleInterval.get(it) }.presettable()
 
 
     val posMode: PositionModes get() = getExtensionOfType<PlacementModesExtension>().posMode
@@ -54,7 +55,7 @@ class SensorMode: ExtendableToolgunMode(), SensorGUI, SensorHUD {
             ship?.id ?: -1,
             basePos,
             raycastResult.globalNormalDirection!!,
-            maxDistance, ignoreSelf, scale, channel
+            maxDistance, ignoreSelf, scale, sampleInterval, channel
         ).addExtension(RenderableExtension(BlockStateRenderer(
             basePos, getQuatFromDir(raycastResult.globalNormalDirection!!), scale.toFloat(), ship?.id ?: -1, Color(0, 255, 0), fullbright, VMBlocks.CONE_THRUSTER.get().defaultBlockState()
         ))).addExtension(Strippable())){it.addForVMod(player)}
@@ -90,11 +90,8 @@ class StripMode: ExtendableToolgunMode(), StripGUI, StripHUD {
     private fun stripAll(level: ServerLevel, raycastResult: RaycastFunctions.RaycastResult) {
         val ship = level.getShipManagingPos(raycastResult.blockPosition) ?: return
 
-        level.getAllVEntityIdsOfShipId(ship.id).forEach {
-            val mc = level.getVEntity(it)
-            if (mc !is ExtendableVEntity || mc.getExtensionsOfType<Strippable>().isEmpty()) { return@forEach }
-            level.removeVEntity(it)
-        }
+        // removing changes the index
+        level.getVEntitiesOfShipWithExtension<Strippable>(ship.id).toList().forEach { level.removeVEntity(it) }
     }
 
     private fun stripInRadius(level: ServerLevel, raycastResult: RaycastFunctions.RaycastResult) {
@@ -130,14 +127,8 @@ class StripMode: ExtendableToolgunMode(), StripGUI, StripHUD {
             pkt, player ->
             val level = ServerObjectsHolder.overworldServerLevel!!
             val ventities = level
-                .getAllVEntityIdsOfShipId(pkt.shipId)
-                .mapNotNull {
-                    level.getVEntity(it)?.let { con ->
-                if (   con is ExtendableVEntity
-                    && con.getExtensionsOfType<Strippable>().isNotEmpty()
-                    && con.getExtensionsOfType<RenderableExtension>().isNotEmpty()
-                ) con else null}
-            }
+                .getVEntitiesOfShipWithExtension<Strippable>(pkt.shipId)
+                .filter { it.hasExtensionOfType(RenderableExtension::class.java) }
 
             val renderIds = ventities.map { it.getExtensionsOfType<RenderableExtension>().map { it.rID } }.flatten().toIntArray()
             val pkt = S2CSendStrippableRendererIds(pkt.shipId, renderIds)
@@ -83,6 +83,7 @@ val FORCE = s("Force")
 val GEAR_RATIO = s("Gear Ratio")
 val MAX_DISTANCE = s("Max Distance")
 val IGNORE_SELF_SHIP = s("Ignore Self Ship")
+val SAMPLE_INTERVAL = s("Sample Interval")
 val TRANSMIT = s("Transmit")
 val NEW_TOTAL_MASS = s("New Total Mass")
 val MASS_PER_BLOCK = s("Mass Per Block")
@@ -1,49 +1,132 @@
 package net.spaceeye.vmod.utils
 
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
 
-class CancellableEventEmitter<Data> {
-    val events = mutableSetOf<(data: Data, unsubscribe: () -> Unit) -> Boolean>()
+/**
+ * Returned by `on` of emitters. Can be used to unsubscribe from outside of the listener.
+ */
+interface EventHandle {
+    fun unsubscribe()
+}
 
-    fun on(fn: (data: Data, unsubscribe: () -> Unit) -> Boolean) {
-        events.add(fn)
+/**
+ * Listeners are kept in an immutable array that is replaced on every change, so emitting doesn't lock or allocate.
+ * Emits can run at the same time from different threads, and each of them calls listeners that were subscribed when it
+ * started, except of the ones that unsubscribed since.
+ */
+internal class Listeners<F> {
+    internal class Listener<F>(@JvmField val fn: F, private val owner: Listeners<F>): EventHandle {
+        @Volatile @JvmField var removed = false
+        // created once and given to listener on every emit
+        @JvmField val unsubscribeFn: () -> Unit = { unsubscribe() }
+
+        override fun unsubscribe() {
+            if (removed) return
+            removed = true
+            owner.remove(this)
+        }
     }
 
-    fun emit(data: Data): Boolean = synchronized(events) {
-        val toRemove = mutableSetOf<(data: Data, unsubscribe: () -> Unit) -> Boolean>()
-        var cancel = false
-        events.forEach { event ->
-            var unsubscribe = false
-            if (event.invoke(data) {unsubscribe = true}) {cancel = true}
-            if (unsubscribe) {toRemove.add(event)}
+    @Suppress("UNCHECKED_CAST")
+    private val ref = AtomicReference(EMPTY as Array<Listener<F>>)
+
+    val current: Array<Listener<F>> get() = ref.get()
+
+    @Suppress("UNCHECKED_CAST")
+    fun add(fn: F): Listener<F> {
+        val listener = Listener(fn, this)
+        while (true) {
+            val old = ref.get()
+            val new = old.copyOf(old.size + 1)
+            new[old.size] = listener
+            if (ref.compareAndSet(old, new as Array<Listener<F>>)) return listener
         }
-        events.removeAll(toRemove)
-        return@synchronized cancel
     }
 
+    @Suppress("UNCHECKED_CAST")
+    fun remove(listener: Listener<F>) {
+        while (true) {
+            val old = ref.get()
+            val i = old.indexOf(listener)
+            if (i == -1) return
+            val new = old.copyOf(old.size - 1)
+            System.arraycopy(old, i + 1, new, i, old.size - i - 1)
+            if (ref.compareAndSet(old, new as Array<Listener<F>>)) return
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
     fun clear() {
-        events.clear()
+        ref.getAndSet(EMPTY as Array<Listener<F>>).forEach { it.removed = true }
+    }
+
+    companion object {
+        private val EMPTY = arrayOf<Listener<*>>()
+    }
+}
+
+class CancellableEventEmitter<Data> {
+    private val listeners = Listeners<(data: Data, unsubscribe: () -> Unit) -> Boolean>()
+
+    fun on(fn: (data: Data, unsubscribe: () -> Unit) -> Boolean): EventHandle = listeners.add(fn)
+
+    /**
+     * @return true if any listener cancelled the event. All listeners are called regardless.
+     */
+    fun emit(data: Data): Boolean {
+        var cancel = false
+        for (listener in listeners.current) {
+            if (listener.removed) continue
+            if (listener.fn(data, listener.unsubscribeFn)) {cancel = true}
+        }
+        return cancel
     }
+
+    fun clear() = listeners.clear()
 }
 
 class SafeEventEmitter<T> {
-    val events = ConcurrentHashMap.newKeySet<(data: T, unsubscribe: () -> Unit) -> Unit>()
+    private val listeners = Listeners<(data: T, unsubscribe: () -> Unit) -> Unit>()
 
-    fun on(fn: (data: T, unsubscribe: () -> Unit) -> Unit) {
-        events.add(fn)
+    fun on(fn: (data: T, unsubscribe: () -> Unit) -> Unit): EventHandle = listeners.add(fn)
+
+    fun emit(data: T) {
+        for (listener in listeners.current) {
+            if (listener.removed) continue
+            listener.fn(data, listener.unsubscribeFn)
+        }
     }
 
-    fun emit(data: T) = synchronized(events) {
-        val toRemove = mutableSetOf<(data: T, unsubscribe: () -> Unit) -> Unit>()
-        events.forEach { event ->
-            var unsubscribe = false
-            event.invoke(data) {unsubscribe = true}
-            if (unsubscribe) {toRemove.add(event)}
+    fun clear() = listeners.clear()
+}
+
+/**
+ * Emitter with separate listeners for every key (ship id, dimension, etc), so that listeners don't need to filter
+ * events that are meant for someone else.
+ */
+class KeyedEventEmitter<K, T> {
+    private val listeners = ConcurrentHashMap<K, Listeners<(data: T, unsubscribe: () -> Unit) -> Unit>>()
+
+    fun on(key: K, fn: (data: T, unsubscribe: () -> Unit) -> Unit): EventHandle = listeners.computeIfAbsent(key) { Listeners() }.add(fn)
+
+    fun emit(key: K, data: T) {
+        val forKey = listeners[key] ?: return
+        for (listener in forKey.current) {
+            if (listener.removed) continue
+            listener.fn(data, listener.unsubscribeFn)
         }
-        events.removeAll(toRemove)
     }
 
+    fun hasListeners(key: K) = listeners[key]?.current?.isNotEmpty() ?: false
+
+    /**
+     * Unsubscribes all listeners of [key]. Should be called once key can't be emitted anymore (ship was deleted, etc)
+     */
+    fun remove(key: K) { listeners.remove(key)?.clear() }
+
     fun clear() {
-        events.clear()
+        listeners.values.forEach { it.clear() }
+        listeners.clear()
     }
-}
\ No newline at end of file
+}
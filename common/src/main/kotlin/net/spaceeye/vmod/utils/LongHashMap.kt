@@ -0,0 +1,303 @@
+package net.spaceeye.vmod.utils
+
+// Open addressing with linear probing and backward shift deletion, so there are no tombstones.
+// Key 0 is used as an "empty slot" marker and is stored separately.
+
+private const val LOAD_FACTOR = 0.75f
+
+private fun mixLong(x: Long): Int {
+    val h = x * -7046029254386353131L
+    val h2 = h xor (h ushr 32)
+    return (h2 xor (h2 ushr 16)).toInt()
+}
+
+private fun tableSizeFor(expected: Int): Int {
+    val needed = (expected / LOAD_FACTOR).toLong() + 1
+    var cap = 4
+    while (cap < needed && cap < (1 shl 30)) { cap = cap shl 1 }
+    return cap
+}
+
+class LongHashMap<V: Any>(expected: Int = 16) {
+    @PublishedApi internal var keys: LongArray
+    @PublishedApi internal var values: Array<Any?>
+    private var mask: Int
+    private var maxFill: Int
+
+    @PublishedApi internal var hasZeroKey = false
+    @PublishedApi internal var zeroValue: V? = null
+
+    var size = 0
+        private set
+
+    init {
+        val cap = tableSizeFor(expected)
+        keys = LongArray(cap)
+        values = arrayOfNulls(cap)
+        mask = cap - 1
+        maxFill = (cap * LOAD_FACTOR).toInt()
+    }
+
+    fun isEmpty() = size == 0
+    fun isNotEmpty() = size != 0
+
+    private fun find(key: Long): Int {
+        var pos = mixLong(key) and mask
+        while (true) {
+            val cur = keys[pos]
+            if (cur == 0L) return -(pos + 1)
+            if (cur == key) return pos
+            pos = (pos + 1) and mask
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(key: Long): V? {
+        if (key == 0L) return zeroValue
+        val pos = find(key)
+        return if (pos < 0) null else values[pos] as V
+    }
+
+    fun containsKey(key: Long): Boolean = if (key == 0L) hasZeroKey else find(key) >= 0
+
+    /**
+     * @return previous value or null if there was none
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun put(key: Long, value: V): V? {
+        if (key == 0L) {
+            val old = zeroValue
+            if (!hasZeroKey) { hasZeroKey = true; size++ }
+            zeroValue = value
+            return old
+        }
+        val pos = find(key)
+        if (pos >= 0) {
+            val old = values[pos] as V
+            values[pos] = value
+            return old
+        }
+        val slot = -pos - 1
+        keys[slot] = key
+        values[slot] = value
+        if (++size >= maxFill) { rehash(keys.size * 2) }
+        return null
+    }
+
+    operator fun set(key: Long, value: V) { put(key, value) }
+
+    inline fun getOrPut(key: Long, default: () -> V): V {
+        return get(key) ?: default().also { put(key, it) }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun remove(key: Long): V? {
+        if (key == 0L) {
+            if (!hasZeroKey) return null
+            val old = zeroValue
+            hasZeroKey = false
+            zeroValue = null
+            size--
+            return old
+        }
+        val pos = find(key)
+        if (pos < 0) return null
+        val old = values[pos] as V
+        size--
+        shiftKeys(pos)
+        return old
+    }
+
+    private fun shiftKeys(startPos: Int) {
+        var pos = startPos
+        while (true) {
+            val last = pos
+            pos = (pos + 1) and mask
+            var cur: Long
+            while (true) {
+                cur = keys[pos]
+                if (cur == 0L) {
+                    keys[last] = 0L
+                    values[last] = null
+                    return
+                }
+                val slot = mixLong(cur) and mask
+                if (if (last <= pos) last >= slot || slot > pos else last >= slot && slot > pos) break
+                pos = (pos + 1) and mask
+            }
+            keys[last] = cur
+            values[last] = values[pos]
+        }
+    }
+
+    private fun rehash(newCapacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        val newMask = newCapacity - 1
+        val newKeys = LongArray(newCapacity)
+        val newValues = arrayOfNulls<Any?>(newCapacity)
+
+        for (i in oldKeys.indices) {
+            val key = oldKeys[i]
+            if (key == 0L) continue
+            var pos = mixLong(key) and newMask
+            while (newKeys[pos] != 0L) { pos = (pos + 1) and newMask }
+            newKeys[pos] = key
+            newValues[pos] = oldValues[i]
+        }
+
+        keys = newKeys
+        values = newValues
+        mask = newMask
+        maxFill = (newCapacity * LOAD_FACTOR).toInt()
+    }
+
+    fun clear() {
+        if (size == 0) return
+        keys.fill(0L)
+        values.fill(null)
+        hasZeroKey = false
+        zeroValue = null
+        size = 0
+    }
+
+    /**
+     * Map must not be modified during iteration
+     */
+    @Suppress("UNCHECKED_CAST")
+    inline fun forEach(fn: (key: Long, value: V) -> Unit) {
+        if (hasZeroKey) fn(0L, zeroValue as V)
+        val keys = keys
+        val values = values
+        for (i in keys.indices) {
+            val key = keys[i]
+            if (key == 0L) continue
+            fn(key, values[i] as V)
+        }
+    }
+}
+
+class LongHashSet(expected: Int = 16) {
+    @PublishedApi internal var keys: LongArray
+    private var mask: Int
+    private var maxFill: Int
+
+    @PublishedApi internal var hasZeroKey = false
+
+    var size = 0
+        private set
+
+    init {
+        val cap = tableSizeFor(expected)
+        keys = LongArray(cap)
+        mask = cap - 1
+        maxFill = (cap * LOAD_FACTOR).toInt()
+    }
+
+    fun isEmpty() = size == 0
+    fun isNotEmpty() = size != 0
+
+    private fun find(key: Long): Int {
+        var pos = mixLong(key) and mask
+        while (true) {
+            val cur = keys[pos]
+            if (cur == 0L) return -(pos + 1)
+            if (cur == key) return pos
+            pos = (pos + 1) and mask
+        }
+    }
+
+    operator fun contains(key: Long): Boolean = if (key == 0L) hasZeroKey else find(key) >= 0
+
+    fun add(key: Long): Boolean {
+        if (key == 0L) {
+            if (hasZeroKey) return false
+            hasZeroKey = true
+            size++
+            return true
+        }
+        val pos = find(key)
+        if (pos >= 0) return false
+        keys[-pos - 1] = key
+        if (++size >= maxFill) { rehash(keys.size * 2) }
+        return true
+    }
+
+    fun remove(key: Long): Boolean {
+        if (key == 0L) {
+            if (!hasZeroKey) return false
+            hasZeroKey = false
+            size--
+            return true
+        }
+        val pos = find(key)
+        if (pos < 0) return false
+        size--
+        shiftKeys(pos)
+        return true
+    }
+
+    private fun shiftKeys(startPos: Int) {
+        var pos = startPos
+        while (true) {
+            val last = pos
+            pos = (pos + 1) and mask
+            var cur: Long
+            while (true) {
+                cur = keys[pos]
+                if (cur == 0L) {
+                    keys[last] = 0L
+                    return
+                }
+                val slot = mixLong(cur) and mask
+                if (if (last <= pos) last >= slot || slot > pos else last >= slot && slot > pos) break
+                pos = (pos + 1) and mask
+            }
+            keys[last] = cur
+        }
+    }
+
+    private fun rehash(newCapacity: Int) {
+        val oldKeys = keys
+        val newMask = newCapacity - 1
+        val newKeys = LongArray(newCapacity)
+
+        for (key in oldKeys) {
+            if (key == 0L) continue
+            var pos = mixLong(key) and newMask
+            while (newKeys[pos] != 0L) { pos = (pos + 1) and newMask }
+            newKeys[pos] = key
+        }
+
+        keys = newKeys
+        mask = newMask
+        maxFill = (newCapacity * LOAD_FACTOR).toInt()
+    }
+
+    fun clear() {
+        if (size == 0) return
+        keys.fill(0L)
+        hasZeroKey = false
+        size = 0
+    }
+
+    fun toLongArray(): LongArray {
+        val arr = LongArray(size)
+        var i = 0
+        forEach { arr[i++] = it }
+        return arr
+    }
+
+    /**
+     * Set must not be modified during iteration
+     */
+    inline fun forEach(fn: (key: Long) -> Unit) {
+        if (hasZeroKey) fn(0L)
+        val keys = keys
+        for (i in keys.indices) {
+            val key = keys[i]
+            if (key == 0L) continue
+            fn(key)
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package net.spaceeye.vmod.utils
+
+import net.minecraft.core.BlockPos
+import net.minecraft.core.SectionPos
+import org.joml.Vector3i
+
+/**
+ * Position map keyed by [BlockPos.asLong]. Positions are additionally bucketed by chunk section
+ * so that range queries and chunk/section removal only touch occupied sections.
+ */
+open class SectionedPosMap<V: Any> {
+    @PublishedApi internal val entries = LongHashMap<V>()
+    @PublishedApi internal val sections = LongHashMap<LongHashSet>()
+
+    @PublishedApi internal var minSectionY = Int.MAX_VALUE
+    @PublishedApi internal var maxSectionY = Int.MIN_VALUE
+
+    val size get() = entries.size
+    val sectionCount get() = sections.size
+
+    fun isEmpty() = entries.isEmpty()
+    fun isNotEmpty() = entries.isNotEmpty()
+
+    protected fun getValue(x: Int, y: Int, z: Int): V? = entries[BlockPos.asLong(x, y, z)]
+
+    protected fun putValue(x: Int, y: Int, z: Int, value: V): V? {
+        val key = BlockPos.asLong(x, y, z)
+        val old = entries.put(key, value)
+        if (old != null) return old
+
+        val sy = SectionPos.blockToSectionCoord(y)
+        if (sy < minSectionY) minSectionY = sy
+        if (sy > maxSectionY) maxSectionY = sy
+        sections.getOrPut(SectionPos.asLong(SectionPos.blockToSectionCoord(x), sy, SectionPos.blockToSectionCoord(z))) { LongHashSet(8) }.add(key)
+        return null
+    }
+
+    protected fun removeValue(x: Int, y: Int, z: Int): V? {
+        val key = BlockPos.asLong(x, y, z)
+        val old = entries.remove(key) ?: return null
+
+        val sKey = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z))
+        val bucket = sections[sKey] ?: return old
+        bucket.remove(key)
+        if (bucket.isEmpty()) { sections.remove(sKey) }
+        return old
+    }
+
+    /**
+     * Removes all positions in section and returns amount of removed positions
+     */
+    fun removeSection(sx: Int, sy: Int, sz: Int): Int {
+        val bucket = sections.remove(SectionPos.asLong(sx, sy, sz)) ?: return 0
+        bucket.forEach { entries.remove(it) }
+        return bucket.size
+    }
+
+    /**
+     * Removes all positions in chunk and returns amount of removed positions
+     */
+    fun removeChunk(cx: Int, cz: Int): Int {
+        if (minSectionY > maxSectionY) return 0
+        var removed = 0
+        for (sy in minSectionY..maxSectionY) { removed += removeSection(cx, sy, cz) }
+        return removed
+    }
+
+    /**
+     * Map must not be modified during iteration
+     */
+    inline fun forEachEntry(fn: (x: Int, y: Int, z: Int, value: V) -> Unit) {
+        entries.forEach { key, value -> fn(BlockPos.getX(key), BlockPos.getY(key), BlockPos.getZ(key), value) }
+    }
+
+    /**
+     * Map must not be modified during iteration
+     */
+    inline fun forEachInSection(sx: Int, sy: Int, sz: Int, fn: (x: Int, y: Int, z: Int, value: V) -> Unit) {
+        val bucket = sections[SectionPos.asLong(sx, sy, sz)] ?: return
+        bucket.forEach { key -> fn(BlockPos.getX(key), BlockPos.getY(key), BlockPos.getZ(key), entries[key]!!) }
+    }
+
+    /**
+     * Iterates over all positions inside of inclusive box. Map must not be modified during iteration
+     */
+    inline fun forEachInBox(minX: Int, minY: Int, minZ: Int, maxX: Int, maxY: Int, maxZ: Int, fn: (x: Int, y: Int, z: Int, value: V) -> Unit) {
+        if (sections.isEmpty()) return
+
+        val minSX = SectionPos.blockToSectionCoord(minX)
+        val minSZ = SectionPos.blockToSectionCoord(minZ)
+        val maxSX = SectionPos.blockToSectionCoord(maxX)
+        val maxSZ = SectionPos.blockToSectionCoord(maxZ)
+        val minSY = kotlin.math.max(SectionPos.blockToSectionCoord(minY), minSectionY)
+        val maxSY = kotlin.math.min(SectionPos.blockToSectionCoord(maxY), maxSectionY)
+        if (minSY > maxSY) return
+
+        val boxSections = (maxSX - minSX + 1).toLong() * (maxSY - minSY + 1) * (maxSZ - minSZ + 1)
+        // if box is larger than amount of occupied sections then it's cheaper to just check every occupied section
+        if (boxSections > sections.size) {
+            sections.forEach { sKey, bucket ->
+                val sx = SectionPos.x(sKey); val sy = SectionPos.y(sKey); val sz = SectionPos.z(sKey)
+                if (sx !in minSX..maxSX || sy !in minSY..maxSY || sz !in minSZ..maxSZ) return@forEach
+                bucket.forEach { key ->
+                    val x = BlockPos.getX(key); val y = BlockPos.getY(key); val z = BlockPos.getZ(key)
+                    if (x in minX..maxX && y in minY..maxY && z in minZ..maxZ) fn(x, y, z, entries[key]!!)
+                }
+            }
+            return
+        }
+
+        for (sy in minSY..maxSY)
+        for (sx in minSX..maxSX)
+        for (sz in minSZ..maxSZ) {
+            val bucket = sections[SectionPos.asLong(sx, sy, sz)] ?: continue
+            bucket.forEach { key ->
+                val x = BlockPos.getX(key); val y = BlockPos.getY(key); val z = BlockPos.getZ(key)
+                if (x in minX..maxX && y in minY..maxY && z in minZ..maxZ) fn(x, y, z, entries[key]!!)
+            }
+        }
+    }
+
+    fun clear() {
+        entries.clear()
+        sections.clear()
+        minSectionY = Int.MAX_VALUE
+        maxSectionY = Int.MIN_VALUE
+    }
+}
+
+class LongPosMap<T: Any>: SectionedPosMap<T>() {
+    fun setItemTo(item: T, x: Int, y: Int, z: Int) { putValue(x, y, z, item) }
+    fun setItemTo(item: T, pos: BlockPos) { putValue(pos.x, pos.y, pos.z, item) }
+
+    fun getItemAt(pos: BlockPos) = getValue(pos.x, pos.y, pos.z)
+    fun getItemAt(x: Int, y: Int, z: Int) = getValue(x, y, z)
+
+    fun removeItemFromPos(x: Int, y: Int, z: Int): Boolean = removeValue(x, y, z) != null
+
+    fun asList(): List<Pair<Vector3i, T>> {
+        val list = ArrayList<Pair<Vector3i, T>>(size)
+        forEachEntry { x, y, z, item -> list.add(Pair(Vector3i(x, y, z), item)) }
+        return list
+    }
+}
+
+class LongPosMapList<T: Any>: SectionedPosMap<MutableList<T>>() {
+    fun addItemTo(item: T, pos: BlockPos) = addItemTo(item, pos.x, pos.y, pos.z)
+    fun addItemTo(item: T, x: Int, y: Int, z: Int) {
+        val items = getValue(x, y, z) ?: mutableListOf<T>().also { putValue(x, y, z, it) }
+        items.add(item)
+    }
+
+    fun getItemsAt(pos: BlockPos): List<T>? = getValue(pos.x, pos.y, pos.z)
+    fun getItemsAt(x: Int, y: Int, z: Int): List<T>? = getValue(x, y, z)
+
+    fun removeItemFromPos(item: T, pos: BlockPos) = removeItemFromPos(item, pos.x, pos.y, pos.z)
+    fun removeItemFromPos(item: T, x: Int, y: Int, z: Int): Boolean {
+        val items = getValue(x, y, z) ?: return false
+        if (!items.remove(item)) { return false }
+        if (items.isEmpty()) { removeValue(x, y, z) }
+        return true
+    }
+
+    fun asList(): List<Pair<Vector3i, List<T>>> {
+        val list = ArrayList<Pair<Vector3i, List<T>>>(size)
+        forEachEntry { x, y, z, items -> list.add(Pair(Vector3i(x, y, z), items)) }
+        return list
+    }
+}
@@ -229,7 +229,7 @@ object RaycastFunctions {
     }
 
 
-    private fun Level.clip(context: ClipContext, realStart: Vec3, realEnd: Vec3): BlockHitResult {
+    internal fun Level.clip(context: ClipContext, realStart: Vec3, realEnd: Vec3): BlockHitResult {
         return clip(
             realStart, realEnd, context,
             { raycastContext: ClipContext, blockPos: BlockPos? ->
@@ -0,0 +1,133 @@
+package net.spaceeye.vmod.utils
+
+import net.minecraft.core.SectionPos
+import net.minecraft.network.FriendlyByteBuf
+
+/**
+ * Float value per block position. Every chunk section that has any values is stored as a flat float array with a
+ * presence bitmap, so values are neither boxed nor hashed per position.
+ */
+class SectionFloatMap {
+    class Section {
+        @JvmField val values = FloatArray(4096)
+        @JvmField val present = LongArray(64)
+        @JvmField var count = 0
+
+        fun has(i: Int) = present[i ushr 6] and (1L shl i) != 0L
+    }
+
+    @PublishedApi internal val sections = LongHashMap<Section>()
+    var size = 0
+        private set
+
+    fun isEmpty() = size == 0
+    fun isNotEmpty() = size != 0
+
+    private fun sectionKey(x: Int, y: Int, z: Int) = SectionPos.asLong(x shr 4, y shr 4, z shr 4)
+
+    /**
+     * @return value at position, or NaN if there is none
+     */
+    fun getOrNaN(x: Int, y: Int, z: Int): Float {
+        val section = sections[sectionKey(x, y, z)] ?: return Float.NaN
+        val i = index(x, y, z)
+        return if (section.has(i)) section.values[i] else Float.NaN
+    }
+
+    operator fun get(x: Int, y: Int, z: Int): Double? = getOrNaN(x, y, z).let { if (it.isNaN()) null else it.toDouble() }
+
+    fun set(x: Int, y: Int, z: Int, value: Float) {
+        val section = sections.getOrPut(sectionKey(x, y, z)) { Section() }
+        val i = index(x, y, z)
+        if (!section.has(i)) {
+            section.present[i ushr 6] = section.present[i ushr 6] or (1L shl i)
+            section.count++
+            size++
+        }
+        section.values[i] = value
+    }
+
+    fun remove(x: Int, y: Int, z: Int): Boolean {
+        val key = sectionKey(x, y, z)
+        val section = sections[key] ?: return false
+        val i = index(x, y, z)
+        if (!section.has(i)) return false
+        section.present[i ushr 6] = section.present[i ushr 6] and (1L shl i).inv()
+        section.count--
+        size--
+        if (section.count == 0) { sections.remove(key) }
+        return true
+    }
+
+    fun clear() {
+        sections.clear()
+        size = 0
+    }
+
+    /**
+     * Map must not be modified during iteration
+     */
+    inline fun forEach(fn: (x: Int, y: Int, z: Int, value: Float) -> Unit) {
+        sections.forEach { key, section ->
+            val bx = SectionPos.x(key) shl 4
+            val by = SectionPos.y(key) shl 4
+            val bz = SectionPos.z(key) shl 4
+            for (w in 0 until 64) {
+                var bits = section.present[w]
+                while (bits != 0L) {
+                    val i = (w shl 6) or java.lang.Long.numberOfTrailingZeros(bits)
+                    bits = bits and (bits - 1)
+                    fn(bx + (i and 15), by + (i ushr 8), bz + ((i ushr 4) and 15), section.values[i])
+                }
+            }
+        }
+    }
+
+    /**
+     * ```
+     * number of sections | (section key | count | (local indices if sparse else bitmap) | values)...
+     * ```
+     */
+    fun write(buf: FriendlyByteBuf) {
+        buf.writeVarInt(sections.size)
+        sections.forEach { key, section ->
+            buf.writeLong(key)
+            buf.writeShort(section.count)
+            if (section.count <= SPARSE_COUNT) {
+                for (i in 0 until 4096) { if (section.has(i)) buf.writeShort(i) }
+            } else {
+                section.present.forEach { buf.writeLong(it) }
+            }
+            for (i in 0 until 4096) { if (section.has(i)) buf.writeFloat(section.values[i]) }
+        }
+    }
+
+    fun read(buf: FriendlyByteBuf) {
+        clear()
+        val numSections = buf.readVarInt()
+        for (s in 0 until numSections) {
+            val key = buf.readLong()
+            val section = Section()
+            section.count = buf.readUnsignedShort()
+            if (section.count <= SPARSE_COUNT) {
+                for (j in 0 until section.count) {
+                    val i = buf.readUnsignedShort()
+                    section.present[i ushr 6] = section.present[i ushr 6] or (1L shl i)
+                }
+            } else {
+                for (w in 0 until 64) { section.present[w] = buf.readLong() }
+            }
+            for (i in 0 until 4096) { if (section.has(i)) section.values[i] = buf.readFloat() }
+            if (section.count == 0) continue
+            sections[key] = section
+            size += section.count
+        }
+    }
+
+    companion object {
+        // indices take less space than bitmap up to this many values
+        private const val SPARSE_COUNT = 256
+
+        @JvmStatic fun index(x: Int, y: Int, z: Int) = ((y and 15) shl 8) or ((z and 15) shl 4) or (x and 15)
+    }
+}
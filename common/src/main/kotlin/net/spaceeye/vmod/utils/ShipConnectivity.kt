@@ -0,0 +1,197 @@
+package net.spaceeye.vmod.utils
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks which ships are connected to each other, directly or through other ships.
+ *
+ * Components are stored in a union-find forest that is never modified in a way that can break a path to the root,
+ * so readers don't lock and [connected] is O(α(n)) from any thread. Writers are serialized.
+ *
+ * Nodes of every component are also linked in a ring, so adding a connection is a union that splices two rings in O(1).
+ * Member sets are only built by [componentOf] once a component was changed, and are reused until it changes again. Removing the last connection between two ships searches from both ships at the same
+ * time until either search finds the other or runs out of ships, so splitting costs as much as the smaller of the
+ * resulting components. Ships of the smaller component are moved to new nodes, as paths of the larger component
+ * can still go through their old nodes.
+ */
+class ShipConnectivity {
+    private class Node(@JvmField val id: Long) {
+        @Volatile @JvmField var parent: Node = this
+        @JvmField var rank = 0
+        // ring of nodes of the component, only accessed under lock
+        @JvmField var next: Node = this
+        @JvmField var prev: Node = this
+        // only valid for roots. any node of the ring, root itself can be moved to another component by a split
+        @JvmField var ring: Node = this
+        // only valid for roots. null if component was changed since it was last built, is never modified
+        @Volatile @JvmField var members: Set<Long>? = null
+    }
+
+    private val nodes = ConcurrentHashMap<Long, Node>()
+    // ship id -> connected ship id -> amount of connections between them. only accessed by writers
+    private val adjacency = LongHashMap<LongHashMap<Int>>()
+    private val lock = Any()
+
+    private fun root(node: Node): Node {
+        var x = node
+        while (true) {
+            val p = x.parent
+            if (p === x) return x
+            val gp = p.parent
+            // path halving. parent can only be moved closer to the root, so it's fine to do it without lock
+            if (gp !== p) { x.parent = gp }
+            x = gp
+        }
+    }
+
+    operator fun contains(id: Long) = nodes.containsKey(id)
+
+    fun connected(id1: Long, id2: Long): Boolean {
+        val n1 = nodes[id1] ?: return false
+        val n2 = nodes[id2] ?: return false
+        return root(n1) === root(n2)
+    }
+
+    /**
+     * @return all ships connected to [id] including itself, or empty set if ship was never connected to anything.
+     * Returned set must not be modified.
+     */
+    fun componentOf(id: Long): Set<Long> {
+        root(nodes[id] ?: return emptySet()).members?.let { return it }
+        synchronized(lock) {
+            val root = root(nodes[id] ?: return emptySet())
+            return root.members ?: HashSet<Long>().also { members ->
+                var node = root.ring
+                do { members.add(node.id); node = node.next } while (node !== root.ring)
+                root.members = members
+            }
+        }
+    }
+
+    /**
+     * @return amount of connections between ships after adding
+     */
+    fun addConnection(id1: Long, id2: Long): Int = synchronized(lock) {
+        val count = (adjacency[id1]?.get(id2) ?: 0) + 1
+        adjacency.getOrPut(id1) { LongHashMap(4) }[id2] = count
+        adjacency.getOrPut(id2) { LongHashMap(4) }[id1] = count
+        if (count == 1) { union(nodeOf(id1), nodeOf(id2)) }
+        return count
+    }
+
+    /**
+     * @return amount of connections between ships left after removing, or -1 if they weren't connected
+     */
+    fun removeConnection(id1: Long, id2: Long): Int = synchronized(lock) {
+        val count = (adjacency[id1]?.get(id2) ?: return -1) - 1
+        if (count > 0) {
+            adjacency[id1]!![id2] = count
+            adjacency[id2]!![id1] = count
+            return count
+        }
+        unlink(id1, id2)
+        split(id1, id2)
+        return 0
+    }
+
+    /**
+     * Removes ship with all of its connections
+     * @return ids of ships it was directly connected to
+     */
+    fun removeShip(id: Long): LongArray = synchronized(lock) {
+        val neighbours = adjacency[id]?.let { edges -> LongArray(edges.size).also { arr -> var i = 0; edges.forEach { n, _ -> arr[i++] = n } } } ?: LongArray(0)
+        for (n in neighbours) {
+            unlink(id, n)
+            split(id, n)
+        }
+        // ship is in its own component by now
+        nodes.remove(id)
+        return neighbours
+    }
+
+    fun clear() = synchronized(lock) {
+        nodes.clear()
+        adjacency.clear()
+    }
+
+    private fun nodeOf(id: Long) = nodes[id] ?: Node(id).also { nodes[id] = it }
+
+    private fun union(a: Node, b: Node) {
+        var ra = root(a)
+        var rb = root(b)
+        if (ra === rb) return
+        if (ra.rank < rb.rank) { val t = ra; ra = rb; rb = t }
+
+        val a = ra.ring
+        val b = rb.ring
+        val aNext = a.next
+        val bNext = b.next
+        a.next = bNext; bNext.prev = a
+        b.next = aNext; aNext.prev = b
+
+        ra.members = null
+        if (ra.rank == rb.rank) { ra.rank++ }
+        rb.parent = ra
+    }
+
+    private fun unlink(id1: Long, id2: Long) {
+        adjacency[id1]?.let { it.remove(id2); if (it.isEmpty()) adjacency.remove(id1) }
+        adjacency[id2]?.let { it.remove(id1); if (it.isEmpty()) adjacency.remove(id2) }
+    }
+
+    private inner class Search(val start: Long) {
+        val visited = LongHashSet().also { it.add(start) }
+        private var queue = LongArray(16).also { it[0] = start }
+        private var head = 0
+        private var tail = 1
+        var met = false
+
+        // expands a single ship. returns false if there is nothing left to expand
+        fun step(other: Search): Boolean {
+            if (head == tail) return false
+            val id = queue[head++]
+            adjacency[id]?.forEach { next, _ ->
+                if (next in other.visited) { met = true; return true }
+                if (!visited.add(next)) return@forEach
+                if (tail == queue.size) { queue = queue.copyOf(queue.size * 2) }
+                queue[tail++] = next
+            }
+            return true
+        }
+    }
+
+    private fun split(id1: Long, id2: Long) {
+        val search1 = Search(id1)
+        val search2 = Search(id2)
+        while (true) {
+            if (!search1.step(search2)) { return detach(search1) }
+            if (search1.met) return
+            if (!search2.step(search1)) { return detach(search2) }
+            if (search2.met) return
+        }
+    }
+
+    private fun detach(search: Search) {
+        val oldRoot = root(nodes[search.start]!!)
+
+        // old nodes stay in the forest, as paths of the larger component can go through them, but leave its ring
+        search.visited.forEach { id ->
+            val old = nodes[id]!!
+            if (oldRoot.ring === old) { oldRoot.ring = old.next }
+            old.prev.next = old.next
+            old.next.prev = old.prev
+        }
+        oldRoot.members = null
+
+        val newRoot = Node(search.start)
+        if (search.visited.size > 1) { newRoot.rank = 1 }
+        search.visited.forEach { id ->
+            if (id == search.start) return@forEach
+            val node = Node(id).also { it.parent = newRoot }
+            node.next = newRoot.next; node.prev = newRoot
+            newRoot.next.prev = node; newRoot.next = node
+            nodes[id] = node
+        }
+        nodes[search.start] = newRoot
+    }
+}
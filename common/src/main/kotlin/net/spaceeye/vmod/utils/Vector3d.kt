@@ -29,23 +29,26 @@ fun FriendlyByteBuf.readVector3d(): Vector3d {
     )
 }
 
-class Vector3d(x:Number, y:Number, z:Number) {
-    @JvmField var x = x.toDouble()
-    @JvmField var y = y.toDouble()
-    @JvmField var z = z.toDouble()
-
-    constructor(): this(0, 0, 0)
+class Vector3d(x: Double, y: Double, z: Double) {
+    @JvmField var x = x
+    @JvmField var y = y
+    @JvmField var z = z
+
+    // Number arguments are boxed, so code that runs every tick should use Double overloads
+    constructor(x:Number, y:Number, z:Number): this(x.toDouble(), y.toDouble(), z.toDouble())
+    constructor(): this(0.0, 0.0, 0.0)
     constructor(o: Vector3d): this(o.x, o.y, o.z)
-    constructor(o: Vector3ic): this(o.x(), o.y(), o.z())
+    constructor(o: Vector3ic): this(o.x().toDouble(), o.y().toDouble(), o.z().toDouble())
     constructor(o: JVector3d): this(o.x, o.y, o.z)
-    constructor(o: JVector3f): this(o.x, o.y, o.z)
+    constructor(o: JVector3f): this(o.x.toDouble(), o.y.toDouble(), o.z.toDouble())
     constructor(o: JVector3dc): this(o.x(), o.y(), o.z())
-    constructor(o: BlockPos): this(o.x, o.y, o.z)
+    constructor(o: BlockPos): this(o.x.toDouble(), o.y.toDouble(), o.z.toDouble())
     constructor(o: MCVec3): this(o.x, o.y, o.z)
 
     fun toD(x:Number, y: Number, z: Number): Array<Double> {return arrayOf(x.toDouble(), y.toDouble(), z.toDouble())}
 
     fun toJomlVector3d() = JVector3d(x, y, z)
+    fun toJomlVector3d(dest: JVector3d): JVector3d = dest.set(x, y, z)
     fun toJomlVector3i() = JVector3i(x.toInt(), y.toInt(), z.toInt())
     fun toJomlVector4d() = Vector4d(x, y, z, 0.0)
     fun toJomlVector4d(w: Double) = Vector4d(x, y, z, w)
@@ -69,6 +72,7 @@ class Vector3d(x:Number, y:Number, z:Number) {
 
     fun set(x: Double, y: Double, z: Double) {this.x = x; this.y = y; this.z = z}
     fun set(x: Number, y: Number, z: Number) {this.x = x.toDouble(); this.y = y.toDouble(); this.z = z.toDouble()}
+    fun set(other: Vector3d): Vector3d {x = other.x; y = other.y; z = other.z; return this}
 
     fun floorCompare(other: Vector3d): Boolean {
         return     kotlin.math.floor(x) == kotlin.math.floor(other.x)
@@ -200,6 +204,17 @@ class Vector3d(x:Number, y:Number, z:Number) {
         return dest
     }
 
+    fun sadd(x: Double, y: Double, z: Double): Vector3d {this.x += x; this.y += y; this.z += z; return this}
+    fun ssub(x: Double, y: Double, z: Double): Vector3d {this.x -= x; this.y -= y; this.z -= z; return this}
+    fun smul(x: Double, y: Double, z: Double): Vector3d {this.x *= x; this.y *= y; this.z *= z; return this}
+    fun sdiv(x: Double, y: Double, z: Double): Vector3d {this.x /= x; this.y /= y; this.z /= z; return this}
+
+    fun sadd(other: Double): Vector3d {return add(other, this)}
+    fun ssub(other: Double): Vector3d {return sub(other, this)}
+    fun smul(other: Double): Vector3d {return mul(other, this)}
+    fun sdiv(other: Double): Vector3d {return div(other, this)}
+    fun srem(other: Double): Vector3d {return rem(other, this)}
+
     fun sadd(x:Number, y: Number, z: Number): Vector3d {return add(Vector3d(x,y,z), this)}
     fun ssub(x:Number, y: Number, z: Number): Vector3d {return sub(Vector3d(x,y,z), this)}
     fun smul(x:Number, y: Number, z: Number): Vector3d {return mul(Vector3d(x,y,z), this)}
@@ -245,6 +260,17 @@ class Vector3d(x:Number, y:Number, z:Number) {
     operator fun divAssign  (other: Vector3d) {div(other, this)}
     operator fun remAssign  (other: Vector3d) {rem(other, this)}
 
+    operator fun plus (other: Double): Vector3d { return add(other, Vector3d())}
+    operator fun minus(other: Double): Vector3d { return sub(other, Vector3d())}
+    operator fun times(other: Double): Vector3d { return mul(other, Vector3d())}
+    operator fun div  (other: Double): Vector3d { return div(other, Vector3d())}
+    operator fun rem  (other: Double): Vector3d { return rem(other, Vector3d())}
+    operator fun plusAssign (other: Double) { add(other, this)}
+    operator fun minusAssign(other: Double) { sub(other, this)}
+    operator fun timesAssign(other: Double) { mul(other, this)}
+    operator fun divAssign  (other: Double) { div(other, this)}
+    operator fun remAssign  (other: Double) { rem(other, this)}
+
     operator fun plus (other: Number): Vector3d { return add(other.toDouble(), Vector3d())}
     operator fun minus(other: Number): Vector3d { return sub(other.toDouble(), Vector3d())}
     operator fun times(other: Number): Vector3d { return mul(other.toDouble(), Vector3d())}
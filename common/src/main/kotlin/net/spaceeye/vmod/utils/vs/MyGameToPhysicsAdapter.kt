@@ -2,9 +2,10 @@ package net.spaceeye.vmod.utils.vs
 
 import net.minecraft.server.level.ServerLevel
 import net.spaceeye.vmod.VM
+import net.spaceeye.vmod.utils.JVector3d
+import net.spaceeye.vmod.utils.LongHashMap
 import net.spaceeye.vmod.utils.Tuple
 import net.spaceeye.vmod.utils.Tuple3
-import net.spaceeye.vmod.utils.Tuple4
 import net.spaceeye.vmod.utils.Tuple5
 import org.joml.Vector3dc
 import org.valkyrienskies.core.api.VsBeta
@@ -13,89 +14,189 @@ import org.valkyrienskies.core.api.world.PhysLevel
 import org.valkyrienskies.core.internal.joints.VSJoint
 import org.valkyrienskies.core.internal.joints.VSJointId
 import org.valkyrienskies.core.internal.world.VsiPhysLevel
-import org.valkyrienskies.core.util.pollUntilEmpty
 import org.valkyrienskies.mod.common.dimensionId
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.ConcurrentLinkedQueue
-import kotlin.also
 
 val ServerLevel.gtpa get(): MyGameToPhysicsAdapter = VM.dimToGTPA.getOrPut(this.dimensionId) { MyGameToPhysicsAdapter() }
 
 //TODO
 const val MAX_ATTEMPTS = 60*60
 
+/**
+ * Commands are written into one of two buffers, which are swapped at the start of [physTick], so producers and phys
+ * thread never touch the same buffer. Forces and torques are summed per ship, so every ship gets at most one of each
+ * per phys tick no matter how many times they were applied.
+ */
 @OptIn(VsBeta::class)
 class MyGameToPhysicsAdapter {
-    private val invForces    = ConcurrentLinkedQueue<Pair<ShipId, Vector3dc>>()
-    private val invTorques   = ConcurrentLinkedQueue<Pair<ShipId, Vector3dc>>()
-    private val rotForces    = ConcurrentLinkedQueue<Pair<ShipId, Vector3dc>>()
-    private val rotTorques   = ConcurrentLinkedQueue<Pair<ShipId, Vector3dc>>()
-    private val invPosForces = ConcurrentLinkedQueue<Pair<ShipId, InvForceAtPos>>()
-    private val rotPosForces = ConcurrentLinkedQueue<Pair<ShipId, InvForceAtPos>>()
+    private class ShipForces(val id: ShipId) {
+        // invariant force, invariant torque, rot dependent force, rot dependent torque
+        val sums = DoubleArray(4 * 3)
+        // bit for every group that was applied
+        var groups = 0
+    }
+
+    private class Commands {
+        val forces = LongHashMap<ShipForces>()
+        val touched = ArrayList<ShipForces>()
+
+        // commands that can't be summed, OP_STRIDE values per op
+        var ops = IntArray(16)
+        var opShips = LongArray(16)
+        var opValues = DoubleArray(16 * OP_STRIDE)
+        var numOps = 0
+
+        val collisionChanges = ArrayList<Tuple5<ShipId, ShipId, Boolean, CompletableFuture<Boolean>, Int>>()
+        //todo not null
+        val joints = ArrayList<Tuple3<VSJoint, ((VSJoint, PhysLevel) -> Boolean)?, CompletableFuture<VSJointId>>>()
+        val updatedJoints = ArrayList<Tuple3<VSJointId, VSJoint, CompletableFuture<Boolean>>>()
+        val deletedJoints = ArrayList<Pair<VSJointId, CompletableFuture<Boolean>>>()
+
+        fun addForce(ship: ShipId, group: Int, v: Vector3dc) {
+            val forces = this.forces.getOrPut(ship) { ShipForces(ship) }
+            if (forces.groups == 0) { touched.add(forces) }
+            forces.groups = forces.groups or (1 shl group)
+            val sums = forces.sums
+            sums[group * 3    ] += v.x()
+            sums[group * 3 + 1] += v.y()
+            sums[group * 3 + 2] += v.z()
+        }
 
-    private val collisionChange = ConcurrentLinkedQueue<Tuple5<ShipId, ShipId, Boolean, CompletableFuture<Boolean>, Int>>()
+        fun addOp(op: Int, ship: ShipId, x: Double, y: Double = 0.0, z: Double = 0.0, px: Double = 0.0, py: Double = 0.0, pz: Double = 0.0) {
+            if (numOps == ops.size) {
+                ops = ops.copyOf(numOps * 2)
+                opShips = opShips.copyOf(numOps * 2)
+                opValues = opValues.copyOf(numOps * 2 * OP_STRIDE)
+            }
+            ops[numOps] = op
+            opShips[numOps] = ship
+            val i = numOps * OP_STRIDE
+            opValues[i    ] = x;  opValues[i + 1] = y;  opValues[i + 2] = z
+            opValues[i + 3] = px; opValues[i + 4] = py; opValues[i + 5] = pz
+            numOps++
+        }
 
-    //todo not null
-    private val joints = ConcurrentLinkedQueue<Tuple3<VSJoint, ((VSJoint, PhysLevel) -> Boolean)?, CompletableFuture<VSJointId>>>()
-    private val updatedJoints = ConcurrentLinkedQueue<Tuple3<VSJointId, VSJoint, CompletableFuture<Boolean>>>()
-    private val deletedJoints = ConcurrentLinkedQueue<Pair<VSJointId, CompletableFuture<Boolean>>>()
+        fun clear() {
+            numOps = 0
+            collisionChanges.clear()
+            joints.clear()
+            updatedJoints.clear()
+            deletedJoints.clear()
+        }
+    }
 
-    private val toBeStatic = ConcurrentLinkedQueue<Pair<ShipId, Boolean>>()
+    private val lock = Any()
+    private var front = Commands()
+    private var back = Commands()
 
-    private data class InvForceAtPos(val force: Vector3dc, val pos: Vector3dc)
+    // only accessed on phys thread
+    private val collisionRetries = ArrayList<Tuple5<ShipId, ShipId, Boolean, CompletableFuture<Boolean>, Int>>()
+    private val jointRetries = ArrayList<Tuple3<VSJoint, ((VSJoint, PhysLevel) -> Boolean)?, CompletableFuture<VSJointId>>>()
 
     fun physTick(level: VsiPhysLevel, delta: Double) {
+        // commands added while these are applied (e.g. by future callbacks) go into the other buffer
+        val commands = synchronized(lock) { front.also { front = back; back = it } }
 
-        invForces   .pollUntilEmpty { (id, force) -> level.getShipById(id)?.applyInvariantForce(force) }
-        invTorques  .pollUntilEmpty { (id, force) -> level.getShipById(id)?.applyInvariantTorque(force) }
-        rotForces   .pollUntilEmpty { (id, force) -> level.getShipById(id)?.applyRotDependentForce(force) }
-        rotTorques  .pollUntilEmpty { (id, force) -> level.getShipById(id)?.applyRotDependentTorque(force) }
-        invPosForces.pollUntilEmpty { (id, fPos ) -> level.getShipById(id)?.applyInvariantForceToPos(fPos.force, fPos.pos) }
-        rotPosForces.pollUntilEmpty { (id, fPos ) -> level.getShipById(id)?.applyInvariantForceToPos(fPos.force, fPos.pos) }
+        applyForces(level, commands)
+        applyOps(level, commands)
 
-        val rePollCollision = mutableListOf<Tuple5<ShipId, ShipId, Boolean, CompletableFuture<Boolean>, Int>>()
-        collisionChange.pollUntilEmpty { (id1, id2, change, future, attempts) ->
+        collisionRetries.addAll(commands.collisionChanges)
+        collisionRetries.removeIf { item ->
+            val (id1, id2, change, future, attempts) = item
             val res = when (change) {
                 true  -> level.enableCollisionBetween(id1, id2)
                 false -> level.disableCollisionBetween(id1, id2)
             }
             if (!res && attempts < MAX_ATTEMPTS) {
-                rePollCollision.add(Tuple.of(id1, id2, change, future, attempts+1))
-                return@pollUntilEmpty
+                item.i5 = attempts + 1
+                return@removeIf false
             }
 
             future.complete(res)
+            true
         }
 
-        val rePoll = mutableListOf<Tuple3<VSJoint, ((VSJoint, PhysLevel) -> Boolean)?, CompletableFuture<VSJointId>>>()
-        joints.pollUntilEmpty { (joint, predicate, future) ->
-            if (predicate != null && predicate.invoke(joint, level) == false) {
-                rePoll.add(Tuple.of(joint, predicate, future))
-                return@pollUntilEmpty
-            }
+        jointRetries.addAll(commands.joints)
+        jointRetries.removeIf { (joint, predicate, future) ->
+            if (predicate != null && predicate.invoke(joint, level) == false) { return@removeIf false }
 
             future.complete(level.addJoint(joint))
+            true
         }
-        joints.addAll(rePoll)
 
-        updatedJoints.pollUntilEmpty { (id, joint, future) -> future.complete(level.updateJoint(id, joint)) }
-        deletedJoints.pollUntilEmpty { (id, future) -> future.complete(level.removeJoint(id)) }
+        commands.updatedJoints.forEach { (id, joint, future) -> future.complete(level.updateJoint(id, joint)) }
+        commands.deletedJoints.forEach { (id, future) -> future.complete(level.removeJoint(id)) }
 
-        toBeStatic.pollUntilEmpty { pair -> level.getShipById(pair.first)?.isStatic = pair.second }
+        applyStatic(level, commands)
+        commands.clear()
     }
 
-    fun applyInvariantForce(ship: ShipId, force: Vector3dc) { invForces.add(ship to force) }
-    fun applyInvariantTorque(ship: ShipId, torque: Vector3dc) { invTorques.add(ship to torque) }
-    fun applyRotDependentForce(ship: ShipId, force: Vector3dc) { rotForces.add(ship to force) }
-    fun applyRotDependentTorque(ship: ShipId, torque: Vector3dc) { rotTorques.add(ship to torque) }
-    fun applyInvariantForceToPos(ship: ShipId, force: Vector3dc, pos: Vector3dc) { invPosForces.add(ship to InvForceAtPos(force, pos)) }
-    fun applyRotDependentForceToPos(ship: ShipId, force: Vector3dc, pos: Vector3dc) { rotPosForces.add(ship to InvForceAtPos(force, pos)) }
-
-    fun setStatic(ship: ShipId, b: Boolean) { toBeStatic.add(ship to b) }
-
-    fun addJoint(joint: VSJoint, checkValid: ((VSJoint, PhysLevel) -> Boolean)? = null): CompletableFuture<VSJointId> = CompletableFuture<VSJointId>().also { joints.add(Tuple.of(joint, checkValid, it)) }
-    fun updateJoint(id: VSJointId, joint: VSJoint): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { updatedJoints.add(Tuple.of(id, joint, it)) }
-    fun removeJoint(id: VSJointId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { deletedJoints.add(id to it) }
-    fun disableCollisionBetweenBodies(id1: ShipId, id2: ShipId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { collisionChange.add(Tuple.of(id1, id2, false, it, 0)) }
-    fun enableCollisionBetweenBodies (id1: ShipId, id2: ShipId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { collisionChange.add(Tuple.of(id1, id2, true, it, 0)) }
-}
\ No newline at end of file
+    // vectors are given to VS, so they can't be reused
+    private fun applyForces(level: VsiPhysLevel, commands: Commands) {
+        commands.touched.forEach { forces ->
+            val ship = level.getShipById(forces.id)
+            val sums = forces.sums
+            val groups = forces.groups
+            forces.groups = 0
+            sums.fill(0.0)
+            // ship is gone, so its sums won't be needed again
+            if (ship == null) { commands.forces.remove(forces.id); return@forEach }
+
+            if (groups and (1 shl INV_FORCE)  != 0) { ship.applyInvariantForce    (JVector3d(sums[0], sums[1],  sums[2])) }
+            if (groups and (1 shl INV_TORQUE) != 0) { ship.applyInvariantTorque   (JVector3d(sums[3], sums[4],  sums[5])) }
+            if (groups and (1 shl ROT_FORCE)  != 0) { ship.applyRotDependentForce (JVector3d(sums[6], sums[7],  sums[8])) }
+            if (groups and (1 shl ROT_TORQUE) != 0) { ship.applyRotDependentTorque(JVector3d(sums[9], sums[10], sums[11])) }
+        }
+        commands.touched.clear()
+    }
+
+    private fun applyOps(level: VsiPhysLevel, commands: Commands) {
+        val v = commands.opValues
+        for (i in 0 until commands.numOps) {
+            val op = commands.ops[i]
+            if (op == OP_SET_STATIC) continue
+            val ship = level.getShipById(commands.opShips[i]) ?: continue
+            val j = i * OP_STRIDE
+            val force = JVector3d(v[j], v[j + 1], v[j + 2])
+            val pos = JVector3d(v[j + 3], v[j + 4], v[j + 5])
+            when (op) {
+                OP_INV_FORCE_TO_POS -> ship.applyInvariantForceToPos(force, pos)
+                OP_ROT_FORCE_TO_POS -> ship.applyRotDependentForceToPos(force, pos)
+            }
+        }
+    }
+
+    private fun applyStatic(level: VsiPhysLevel, commands: Commands) {
+        for (i in 0 until commands.numOps) {
+            if (commands.ops[i] != OP_SET_STATIC) continue
+            level.getShipById(commands.opShips[i])?.isStatic = commands.opValues[i * OP_STRIDE] != 0.0
+        }
+    }
+
+    fun applyInvariantForce(ship: ShipId, force: Vector3dc) { synchronized(lock) { front.addForce(ship, INV_FORCE, force) } }
+    fun applyInvariantTorque(ship: ShipId, torque: Vector3dc) { synchronized(lock) { front.addForce(ship, INV_TORQUE, torque) } }
+    fun applyRotDependentForce(ship: ShipId, force: Vector3dc) { synchronized(lock) { front.addForce(ship, ROT_FORCE, force) } }
+    fun applyRotDependentTorque(ship: ShipId, torque: Vector3dc) { synchronized(lock) { front.addForce(ship, ROT_TORQUE, torque) } }
+    fun applyInvariantForceToPos(ship: ShipId, force: Vector3dc, pos: Vector3dc) { synchronized(lock) { front.addOp(OP_INV_FORCE_TO_POS, ship, force.x(), force.y(), force.z(), pos.x(), pos.y(), pos.z()) } }
+    fun applyRotDependentForceToPos(ship: ShipId, force: Vector3dc, pos: Vector3dc) { synchronized(lock) { front.addOp(OP_ROT_FORCE_TO_POS, ship, force.x(), force.y(), force.z(), pos.x(), pos.y(), pos.z()) } }
+
+    fun setStatic(ship: ShipId, b: Boolean) { synchronized(lock) { front.addOp(OP_SET_STATIC, ship, if (b) 1.0 else 0.0) } }
+
+    fun addJoint(joint: VSJoint, checkValid: ((VSJoint, PhysLevel) -> Boolean)? = null): CompletableFuture<VSJointId> = CompletableFuture<VSJointId>().also { synchronized(lock) { front.joints.add(Tuple.of(joint, checkValid, it)) } }
+    fun updateJoint(id: VSJointId, joint: VSJoint): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { synchronized(lock) { front.updatedJoints.add(Tuple.of(id, joint, it)) } }
+    fun removeJoint(id: VSJointId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { synchronized(lock) { front.deletedJoints.add(id to it) } }
+    fun disableCollisionBetweenBodies(id1: ShipId, id2: ShipId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { synchronized(lock) { front.collisionChanges.add(Tuple.of(id1, id2, false, it, 0)) } }
+    fun enableCollisionBetweenBodies (id1: ShipId, id2: ShipId): CompletableFuture<Boolean> = CompletableFuture<Boolean>().also { synchronized(lock) { front.collisionChanges.add(Tuple.of(id1, id2, true, it, 0)) } }
+
+    companion object {
+        private const val INV_FORCE = 0
+        private const val INV_TORQUE = 1
+        private const val ROT_FORCE = 2
+        private const val ROT_TORQUE = 3
+
+        private const val OP_INV_FORCE_TO_POS = 0
+        private const val OP_ROT_FORCE_TO_POS = 1
+        private const val OP_SET_STATIC = 2
+        private const val OP_STRIDE = 6
+    }
+}
@@ -3,6 +3,7 @@ package net.spaceeye.vmod.vEntityManaging
 import net.minecraft.core.BlockPos
 import net.minecraft.server.level.ServerLevel
 import net.minecraft.world.level.ChunkPos
+import net.spaceeye.vmod.vEntityManaging.util.VEntityExtension
 import org.jetbrains.annotations.ApiStatus.Internal
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.api.world.properties.DimensionId
@@ -13,6 +14,8 @@ fun ServerLevel.getVEntity(id: VEntityId)                = VEntityManager.getIns
 fun ServerLevel.removeVEntity(ventity: VEntity)          = VEntityManager.getInstance().removeVEntity(this, ventity.mID)
 fun ServerLevel.removeVEntity(ventityId: VEntityId)      = VEntityManager.getInstance().removeVEntity(this, ventityId)
 fun ServerLevel.getAllVEntityIdsOfShipId(shipId: ShipId) = VEntityManager.getInstance().getAllVEntitiesIdOfId(shipId)
+fun ServerLevel.markVEntityDirty(id: VEntityId)          = VEntityManager.getInstance().markVEntityDirty(id)
+inline fun <reified T: VEntityExtension> ServerLevel.getVEntitiesOfShipWithExtension(shipId: ShipId) = VEntityManager.getInstance().getVEntitiesWithExtension(shipId, T::class.java)
 
 fun ServerLevel.getVEntityIdsOfPosition(x: Int, y: Int, z: Int) = VEntityManager.getInstance().tryGetIdsOfPosition(this.dimensionId, x, y, z)
 fun ServerLevel.getVEntityIdsOfPosition(pos: BlockPos) = VEntityManager.getInstance().tryGetIdsOfPosition(this.dimensionId, pos)
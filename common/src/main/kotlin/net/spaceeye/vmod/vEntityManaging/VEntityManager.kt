@@ -15,10 +15,12 @@ import net.spaceeye.vmod.VM
 import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.WLOG
 import net.spaceeye.vmod.vEntityManaging.VEntityTypes.getType
+import net.spaceeye.vmod.vEntityManaging.util.ExtendableVEntity
+import net.spaceeye.vmod.vEntityManaging.util.VEntityExtension
 import net.spaceeye.vmod.events.AVSEvents
 import net.spaceeye.vmod.events.SessionEvents
 import net.spaceeye.vmod.toolgun.VMToolgun
-import net.spaceeye.vmod.utils.PosMapList
+import net.spaceeye.vmod.utils.LongPosMapList
 import net.spaceeye.vmod.utils.ServerObjectsHolder
 import net.spaceeye.vmod.utils.Tuple
 import net.spaceeye.vmod.utils.Tuple3
@@ -34,16 +36,16 @@ import org.valkyrienskies.core.api.ships.Ship
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.api.world.properties.DimensionId
 import org.valkyrienskies.core.internal.world.VsiPhysLevel
-import org.valkyrienskies.core.util.pollUntilEmpty
 import org.valkyrienskies.mod.api.vsApi
 import org.valkyrienskies.mod.common.dimensionId
 import org.valkyrienskies.mod.common.shipObjectWorld
 import java.util.*
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.ConcurrentLinkedQueue
 import kotlin.math.max
 
 internal const val SAVE_TAG_NAME_STRING = "vmod_VEntities"
+internal const val SAVE_SHARDS_TAG_NAME_STRING = "vmod_VEntities_shards"
+internal const val SAVE_NOT_LOADED_TAG_NAME_STRING = "vmod_VEntities_not_loaded"
 
 typealias VEntityId = Int
 
@@ -56,31 +58,70 @@ fun VEntityId?.addForVMod(player: Player): VEntityId? {
 open class VEntityManager: SavedData() {
     // shipToVEntity and idToVEntity should share VEntity
     internal val shipToVEntity = mutableMapOf<ShipId, MutableList<VEntity>>()
+    // extension type -> ship id -> VEntities with extension of that type
+    private val extensionIndex = mutableMapOf<Class<out VEntityExtension>, MutableMap<ShipId, MutableList<ExtendableVEntity>>>()
     private val idToVEntity = mutableMapOf<VEntityId, VEntity>()
     private var vEntityIdCounter = 0
     private val idToDisabledCollisions = mutableMapOf<ShipId, MutableMap<ShipId, MutablePair<Int, MutableList<(() -> Unit)?>>>>()
 
-    private val tickingVEntities = Collections.synchronizedList(mutableListOf<Tickable>())
-
-    // dimension, ventity, add = true / delete = false
-    private val physThreadChanges = ConcurrentLinkedQueue<Tuple3<DimensionId, VEntity, Boolean>>()
-    private val physThreadTickable = mutableMapOf<String, MutableMap<Int, Tickable>>()
+    internal val tickScheduler = VEntityTickScheduler()
 
     private val toLoadVEntities = mutableListOf<VEntity>()
     private val groupedToLoadVEntities = mutableMapOf<ShipId, MutableList<LoadingGroup>>()
     private val shipDataStatus = mutableMapOf<ShipId, ShipData>()
 
-    private val posToMId: MutableMap<String, PosMapList<VEntityId>> = mutableMapOf()
+    private val posToMId: MutableMap<String, LongPosMapList<VEntityId>> = mutableMapOf()
     //TODO pointless?
-    private val cposToMId: MutableMap<String, PosMapList<VEntityId>> = mutableMapOf()
+    private val cposToMId: MutableMap<String, LongPosMapList<VEntityId>> = mutableMapOf()
 
     private val dimensionToId = mutableMapOf<String, Long>()
     private var nextDimensionId = -1L
 
+    // VEntities are saved in shards keyed by the smallest ship id they are attached to. Only shards that had
+    // VEntities created, removed or changed are encoded again, the rest reuse the tag from the previous save.
+    private class SaveShard {
+        val vEntities = mutableMapOf<VEntityId, VEntity>()
+        var cached: ListTag? = null
+    }
+    private val saveShards = mutableMapOf<Long, SaveShard>()
+    private val vEntityToShard = mutableMapOf<VEntityId, Long>()
+    private var notLoadedCache: ListTag? = null
+
+    private fun addToShard(entity: VEntity) {
+        val shardId = entity.attachedToShips().minOrNull() ?: -1L
+        vEntityToShard[entity.mID] = shardId
+        saveShards.getOrPut(shardId) { SaveShard() }.also {
+            it.vEntities[entity.mID] = entity
+            it.cached = null
+        }
+    }
+
+    private fun removeFromShard(entity: VEntity) {
+        val shardId = vEntityToShard.remove(entity.mID) ?: return
+        val shard = saveShards[shardId] ?: return
+        shard.vEntities.remove(entity.mID)
+        shard.cached = null
+        if (shard.vEntities.isEmpty()) { saveShards.remove(shardId) }
+    }
+
+    /**
+     * Should be called when VEntity was changed in place, including changes made by ticking, so that it will be saved again
+     */
+    fun markVEntityDirty(id: VEntityId) {
+        saveShards[vEntityToShard[id] ?: return]?.cached = null
+        setDirty()
+    }
+
     fun saveActiveVEntities(tag: CompoundTag): CompoundTag {
-        val vEntitiesTag = ListTag()
-        idToVEntity.forEach { (_, it) -> saveVEntityToList(it, vEntitiesTag) }
-        tag.put(SAVE_TAG_NAME_STRING, vEntitiesTag)
+        val shardsTag = CompoundTag()
+        for ((shardId, shard) in saveShards) {
+            val list = shard.cached ?: ListTag().also { list ->
+                shard.vEntities.forEach { (_, it) -> saveVEntityToList(it, list) }
+                shard.cached = list
+            }
+            shardsTag.put(shardId.toString(), list)
+        }
+        tag.put(SAVE_SHARDS_TAG_NAME_STRING, shardsTag)
 
         return tag
     }
@@ -118,7 +159,9 @@ open class VEntityManager: SavedData() {
     }
 
     private fun saveNotLoadedVEntities(tag: CompoundTag): CompoundTag {
-        val vEntitiesTag = tag[SAVE_TAG_NAME_STRING] as ListTag
+        // not loaded VEntities can't change until they are loaded
+        notLoadedCache?.let { tag.put(SAVE_NOT_LOADED_TAG_NAME_STRING, it); return tag }
+        val vEntitiesTag = ListTag()
 
         val visited = mutableSetOf<LoadingGroup>()
         val visitedVEntities = mutableSetOf<Int>()
@@ -135,6 +178,8 @@ open class VEntityManager: SavedData() {
                 }
             }
         }
+        notLoadedCache = vEntitiesTag
+        tag.put(SAVE_NOT_LOADED_TAG_NAME_STRING, vEntitiesTag)
 
         return tag
     }
@@ -148,11 +193,15 @@ open class VEntityManager: SavedData() {
     }
 
     private fun loadDataFromTag(tag: CompoundTag) {
-        val vEntitiesTag = (tag[SAVE_TAG_NAME_STRING] ?: return) as ListTag
+        val lists = mutableListOf<ListTag>()
+        // before sharding everything was saved in a single list
+        (tag[SAVE_TAG_NAME_STRING] as? ListTag)?.let { lists.add(it) }
+        (tag[SAVE_NOT_LOADED_TAG_NAME_STRING] as? ListTag)?.let { lists.add(it) }
+        (tag[SAVE_SHARDS_TAG_NAME_STRING] as? CompoundTag)?.let { shards -> shards.allKeys.forEach { lists.add(shards[it] as ListTag) } }
 
         var count = 0
         var maxId = vEntityIdCounter
-        for (ctag in vEntitiesTag) {
+        for (ctag in lists.flatten()) {
             toLoadVEntities.add(loadVEntityFromTag(ctag as CompoundTag) ?: continue)
             count++
             maxId = max(maxId, toLoadVEntities.last().mID)
@@ -176,6 +225,7 @@ open class VEntityManager: SavedData() {
             groups.getOrPut(neededIds.toMutableSet()) { mutableListOf() }.add(vEntity)
         }
 
+        notLoadedCache = null
         for ((neededIds, toLoad) in groups) {
             val group = LoadingGroup(levels[toLoad[0].dimensionId]!!, toLoad, neededIds, shipDataStatus)
             for (id in neededIds) {
@@ -188,6 +238,7 @@ open class VEntityManager: SavedData() {
     private fun setLoadedId(ship: ServerShip) {
         if (!groupedToLoadVEntities.containsKey(ship.id)) {return}
 
+        notLoadedCache = null
         //groups are shared between groupedToLoadVEntities, so just notify all groups belonging to this id and just delete all of them
         for (group in groupedToLoadVEntities[ship.id]!!) {
             group.setLoadedId(ship)
@@ -253,26 +304,19 @@ open class VEntityManager: SavedData() {
             callback(null)
         }) {
             val attachedTo = entity.attachedToShips()
-            var groundVEntity = false
             //if world ventity
             if (attachedTo.size == 1 && attachedTo.contains(-1)) {
                 val groundId = dimensionToId.getOrPut(level.dimensionId) { nextDimensionId-- }
-                shipToVEntity.computeIfAbsent(groundId) { mutableListOf() }.add(entity)
-                groundVEntity = true
+                addToShip(groundId, entity)
             } else {
-                attachedTo.forEach { shipToVEntity.computeIfAbsent(it) { mutableListOf() }.add(entity) }
+                attachedTo.forEach { addToShip(it, entity) }
             }
             idToVEntity[entity.mID] = entity
-            if (entity is Tickable) {
-                tickingVEntities.add(entity)
-
-                if (!groundVEntity) {
-                    physThreadChanges.add(Tuple.of(entity.dimensionId!!, entity, true))
-                }
-            }
+            addToShard(entity)
+            tickScheduler.add(entity)
             entity.getAttachmentPoints().forEach {
-                posToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.addItemTo(entity.mID, it.toBlockPos())
-                cposToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.addItemTo(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
+                posToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.addItemTo(entity.mID, it.toBlockPos())
+                cposToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.addItemTo(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
             }
 
             setDirty()
@@ -287,27 +331,20 @@ open class VEntityManager: SavedData() {
         val entity = idToVEntity[id] ?: return false
 
         val attachedTo = entity.attachedToShips()
-        var groundVEntity = false
         //if world ventity
         if (attachedTo.size == 1 && attachedTo.contains(-1)) {
-            groundVEntity = true
-            shipToVEntity[dimensionToId[entity.dimensionId] ?: ""]?.remove(entity)
+            dimensionToId[entity.dimensionId]?.let { removeFromShip(it, entity) }
         } else {
-            attachedTo.forEach { (shipToVEntity[it] ?: return@forEach).remove(entity) }
+            attachedTo.forEach { removeFromShip(it, entity) }
         }
 
         entity.onDeleteVEntity(level)
         idToVEntity.remove(id)
-        if (entity is Tickable) {
-            tickingVEntities.remove(entity)
-
-            if (!groundVEntity) {
-                physThreadChanges.add(Tuple.of(entity.dimensionId!!, entity, false))
-            }
-        }
+        removeFromShard(entity)
+        tickScheduler.remove(entity)
         entity.getAttachmentPoints().forEach {
-            posToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.removeItemFromPos(entity.mID, it.toBlockPos())
-            cposToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.removeItemFromPos(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
+            posToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.removeItemFromPos(entity.mID, it.toBlockPos())
+            cposToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.removeItemFromPos(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
         }
 
         setDirty()
@@ -316,6 +353,39 @@ open class VEntityManager: SavedData() {
 
     fun getAllVEntitiesIdOfId(shipId: ShipId): List<VEntityId> = shipToVEntity[shipId]?.map { it.mID } ?: emptyList()
 
+    /**
+     * Index of every extension type is built on its first query, and is kept up to date after that. Extensions
+     * should be added before VEntity is made, as ones added after won't be indexed.
+     */
+    fun <T: VEntityExtension> getVEntitiesWithExtension(shipId: ShipId, type: Class<T>): List<ExtendableVEntity> {
+        val byShip = extensionIndex.getOrPut(type) {
+            val byShip = mutableMapOf<ShipId, MutableList<ExtendableVEntity>>()
+            shipToVEntity.forEach { (shipId, entities) -> entities.forEach {
+                if (it is ExtendableVEntity && it.hasExtensionOfType(type)) { byShip.getOrPut(shipId) { mutableListOf() }.add(it) }
+            } }
+            byShip
+        }
+        return byShip[shipId] ?: emptyList()
+    }
+
+    private fun addToShip(shipId: ShipId, entity: VEntity) {
+        shipToVEntity.getOrPut(shipId) { mutableListOf() }.add(entity)
+        if (entity !is ExtendableVEntity) return
+        extensionIndex.forEach { (type, byShip) ->
+            if (entity.hasExtensionOfType(type)) { byShip.getOrPut(shipId) { mutableListOf() }.add(entity) }
+        }
+    }
+
+    private fun removeFromShip(shipId: ShipId, entity: VEntity) {
+        shipToVEntity[shipId]?.remove(entity)
+        if (entity !is ExtendableVEntity) return
+        extensionIndex.values.forEach { byShip ->
+            val entities = byShip[shipId] ?: return@forEach
+            entities.remove(entity)
+            if (entities.isEmpty()) { byShip.remove(shipId) }
+        }
+    }
+
     fun idHasVEntities(shipId: ShipId): Boolean = shipToVEntity[shipId]?.isNotEmpty() == true
 
     @Internal
@@ -328,27 +398,20 @@ open class VEntityManager: SavedData() {
             callback(null)
         }) {
             val attachedTo = entity.attachedToShips()
-            var groundVEntity = false
             //if world ventity
             if (attachedTo.size == 1 && attachedTo.contains(-1)) {
                 val groundId = dimensionToId.getOrPut(level.dimensionId) { nextDimensionId-- }
-                shipToVEntity.computeIfAbsent(groundId) { mutableListOf() }.add(entity)
-                groundVEntity = true
+                addToShip(groundId, entity)
             } else {
-                attachedTo.forEach { shipToVEntity.computeIfAbsent(it) { mutableListOf() }.add(entity) }
+                attachedTo.forEach { addToShip(it, entity) }
             }
             if (idToVEntity.contains(entity.mID)) { ELOG("OVERWRITING AN ALREADY EXISTING VEntity IN makeVEntityWithId. SOMETHING PROBABLY WENT WRONG AS THIS SHOULDN'T HAPPEN.") }
             idToVEntity[entity.mID] = entity
-            if (entity is Tickable) {
-                tickingVEntities.add(entity)
-
-                if (!groundVEntity) {
-                    physThreadChanges.add(Tuple.of(entity.dimensionId!!, entity, true))
-                }
-            }
+            addToShard(entity)
+            tickScheduler.add(entity)
             entity.getAttachmentPoints().forEach {
-                posToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.addItemTo(entity.mID, it.toBlockPos())
-                cposToMId.getOrPut(entity.dimensionId!!) { PosMapList() }.addItemTo(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
+                posToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.addItemTo(entity.mID, it.toBlockPos())
+                cposToMId.getOrPut(entity.dimensionId!!) { LongPosMapList() }.addItemTo(entity.mID, (it.also { it.y = 0.0 } / 16).toBlockPos())
             }
 
             setDirty()
@@ -356,10 +419,10 @@ open class VEntityManager: SavedData() {
         }
     }
 
-    fun tryGetIdsOfPosition(dimensionId: DimensionId, x: Int, y: Int, z: Int): List<VEntityId>? = posToMId.getOrPut(dimensionId) { PosMapList() }.getItemsAt(x, y, z)
-    fun tryGetIdsOfPosition(dimensionId: DimensionId, pos: BlockPos): List<VEntityId>? = posToMId.getOrPut(dimensionId) { PosMapList() }.getItemsAt(pos)
-    fun tryGetIdsOfCPosition(dimensionId: DimensionId, x: Int, z: Int): List<VEntityId>? = cposToMId.getOrPut(dimensionId) { PosMapList() }.getItemsAt(x, 0, z)
-    fun tryGetIdsOfCPosition(dimensionId: DimensionId, pos: ChunkPos): List<VEntityId>? = cposToMId.getOrPut(dimensionId) { PosMapList() }.getItemsAt(pos.x, 0, pos.z)
+    fun tryGetIdsOfPosition(dimensionId: DimensionId, x: Int, y: Int, z: Int): List<VEntityId>? = posToMId.getOrPut(dimensionId) { LongPosMapList() }.getItemsAt(x, y, z)
+    fun tryGetIdsOfPosition(dimensionId: DimensionId, pos: BlockPos): List<VEntityId>? = posToMId.getOrPut(dimensionId) { LongPosMapList() }.getItemsAt(pos)
+    fun tryGetIdsOfCPosition(dimensionId: DimensionId, x: Int, z: Int): List<VEntityId>? = cposToMId.getOrPut(dimensionId) { LongPosMapList() }.getItemsAt(x, 0, z)
+    fun tryGetIdsOfCPosition(dimensionId: DimensionId, pos: ChunkPos): List<VEntityId>? = cposToMId.getOrPut(dimensionId) { LongPosMapList() }.getItemsAt(pos.x, 0, pos.z)
 
     fun disableCollisionBetween(level: ServerLevel, shipId1: ShipId, shipId2: ShipId, callback: (() -> Unit)? = null): CompletableFuture<Boolean> {
         idToDisabledCollisions.getOrPut(shipId1) { mutableMapOf() }.compute (shipId2) { _, pair-> if (pair == null) { MutablePair(1, mutableListOf(callback)) } else { pair.left++; pair.right.add(callback); pair } }
@@ -396,7 +459,7 @@ open class VEntityManager: SavedData() {
     fun onBlocksMove(level: ServerLevel, oldShip: ServerShip?, newShip: ServerShip?, oldCenter: Vector3ic, newCenter: Vector3ic, blocks: List<BlockPos>) {
         val hasVEntities = if (oldShip != null) { idHasVEntities(oldShip.id) } else { true }
         if (!hasVEntities) {return}
-        val posToMId = posToMId.getOrPut(level.dimensionId) { PosMapList() }
+        val posToMId = posToMId.getOrPut(level.dimensionId) { LongPosMapList() }
 
         val oldId = oldShip?.id ?: -1L
         val newId = newShip?.id ?: -1L
@@ -471,15 +534,20 @@ open class VEntityManager: SavedData() {
             val (vEntity, data) = pair
             val pointsToMove = data.map { (_, positions) -> positions }.flatten()
 
-            vEntity.attachedToShips().forEach { shipToVEntity[it]?.remove(vEntity) }
+            vEntity.attachedToShips().forEach { removeFromShip(it, vEntity) }
             vEntity.getAttachmentPoints(oldId).forEach { posToMId.removeItemFromPos(id, it.toBlockPos()) }
+            removeFromShard(vEntity)
+            // ships it's attached to can change
+            val wasTicking = tickScheduler.remove(vEntity)
 
             val res = vEntity.moveAttachmentPoints(level, pointsToMove, oldId, newId, Vector3d(oldCenter), Vector3d(newCenter))
 
             if (res) {
-                vEntity.attachedToShips().forEach { shipToVEntity.getOrPut(it) { mutableListOf() }.add(vEntity) }
+                vEntity.attachedToShips().forEach { addToShip(it, vEntity) }
                 vEntity.getAttachmentPoints(newId).forEach { posToMId.addItemTo(id, it.toBlockPos()) }
             }
+            addToShard(vEntity)
+            if (wasTicking) { tickScheduler.add(vEntity) }
         }
 
         setDirty()
@@ -535,7 +603,7 @@ open class VEntityManager: SavedData() {
         fun load(tag: CompoundTag): VEntityManager {
             val data = create()
 
-            if (tag.contains(SAVE_TAG_NAME_STRING)) {
+            if (tag.contains(SAVE_TAG_NAME_STRING) || tag.contains(SAVE_SHARDS_TAG_NAME_STRING) || tag.contains(SAVE_NOT_LOADED_TAG_NAME_STRING)) {
                 data.load(tag)
             }
 
@@ -553,62 +621,17 @@ open class VEntityManager: SavedData() {
                 instance.setDirty()
             }
 
-            TickEvent.SERVER_PRE.register {
-                server ->
-                getInstance()
-                if (instance!!.tickingVEntities.isEmpty()) {return@register}
-
-                val unloadedShips = mutableSetOf<ShipId>()
-                val loadedShips = mutableSetOf<ShipId>()
-
-                val toUnload = mutableListOf<VEntity>()
-                val ticking = instance!!.tickingVEntities.filter { ve ->
-                    if (ve.alwaysTick) return@filter true
-
-                    ve as VEntity
-                    val shipIds = ve.attachedToShips()
-                    if (shipIds.any {unloadedShips.contains(it)}) {return@filter false}
-
-                    shipIds.forEach {
-                        if (loadedShips.contains(it)) {return@forEach}
-
-                        val ship = level!!.shipObjectWorld.allShips.getById(it) ?: return@forEach
-                        val b = ship.shipAABB ?: return@forEach
-                        val pos = BlockPos(
-                            ((b.maxX() - b.minX()) / 2.0 + b.minX()).toInt(),
-                            ((b.maxY() - b.minY()) / 2.0 + b.minY()).toInt(),
-                            ((b.maxZ() - b.minZ()) / 2.0 + b.minZ()).toInt(),
-                        )
-
-                        if (level!!.isLoaded(pos)) {
-                            loadedShips.add(it)
-                            return@forEach
-                        }
-                        unloadedShips.add(it)
-                        toUnload.add(ve)
-                        return@filter false
-                    }
-
-                    true
-                }
+            TickEvent.SERVER_PRE.register { server ->
+                if (getInstance().tickScheduler.tick(server)) { setDirty() }
+            }
 
-                //TODO there was a concurrent modification somewhere here
-                val toRemove = mutableListOf<Tickable>()
-                ticking.forEach { it.serverTick(server) { toRemove.add(it) } }
-                instance!!.tickingVEntities.removeAll(toRemove)
-                instance!!.physThreadChanges.addAll(toRemove.map { it as VEntity; Tuple.of(it.dimensionId!!, it, false) })
-                instance!!.physThreadChanges.addAll(toUnload.map { Tuple.of(it.dimensionId!!, it, false) })
-                instance!!.physThreadChanges.addAll(ticking .map { it as VEntity; Tuple.of(it.dimensionId!!, it, true) })
-                setDirty()
+            vsApi.shipLoadEvent.on { event ->
+                instance?.tickScheduler?.onShipLoad(event.ship.id)
             }
 
             vsApi.physTickEvent.on { event ->
                 val instance = instance ?: return@on
-                instance.physThreadChanges.pollUntilEmpty { (dimension, ventity, add) -> ventity as Tickable
-                    val map = instance.physThreadTickable.getOrPut(dimension) { mutableMapOf() }
-                    if (add) { map[ventity.mID] = ventity } else { map.remove(ventity.mID) }
-                }
-                instance.physThreadTickable[event.world.dimension]?.forEach {k, ve -> ve.physTick(event.world as VsiPhysLevel, event.delta) }
+                instance.tickScheduler.physTick(event.world.dimension, event.world as VsiPhysLevel, event.delta)
             }
 
             //TODO
@@ -0,0 +1,191 @@
+package net.spaceeye.vmod.vEntityManaging
+
+import net.minecraft.server.MinecraftServer
+import net.spaceeye.vmod.utils.LongHashMap
+import net.spaceeye.vmod.utils.LongHashSet
+import net.spaceeye.vmod.utils.ServerObjectsHolder
+import org.valkyrienskies.core.api.ships.properties.ShipId
+import org.valkyrienskies.core.api.world.properties.DimensionId
+import org.valkyrienskies.core.internal.world.VsiPhysLevel
+import org.valkyrienskies.core.internal.world.VsiServerShipWorld
+import java.util.IdentityHashMap
+
+/**
+ * Ticks [Tickable] VEntities. VEntities are partitioned by ships they are attached to, and are active only while all
+ * of their ships are loaded (or if they [Tickable.alwaysTick]). Activity only changes when ships are loaded or unloaded,
+ * so only active VEntities are visited every tick.
+ *
+ * Phys thread is given an immutable snapshot of active VEntities of every dimension, which is swapped as a whole at
+ * the end of a server tick in which anything changed.
+ *
+ * Everything except [physTick] should only be called on the server thread.
+ */
+internal class VEntityTickScheduler {
+    private inner class Entry(val entity: VEntity, val ships: LongArray) {
+        val tickable = entity as Tickable
+        // world VEntities aren't ticked on phys thread
+        val phys = ships.isNotEmpty()
+        var unloadedShips = 0
+        // index in active, -1 if not in it
+        var activeIndex = -1
+        var removed = false
+        val unregister: () -> Unit = { remove(entity) }
+
+        val isActive get() = !removed && (tickable.alwaysTick || unloadedShips == 0)
+    }
+
+    private val entries = IdentityHashMap<VEntity, Entry>()
+    private val shipToEntries = LongHashMap<MutableList<Entry>>()
+    // ships with entries that are loaded
+    private val loadedShips = LongHashSet()
+
+    private var active = arrayOfNulls<Entry>(16)
+    private var activeSize = 0
+
+    private var ticking = false
+    // entries that became inactive while ticking, they're removed from active after it so that indices don't change
+    private val pendingInactive = mutableListOf<Entry>()
+    private val toUnload = mutableListOf<ShipId>()
+
+    private var physChanged = false
+    @Volatile private var physSnapshot: Map<DimensionId, Array<Tickable>> = emptyMap()
+
+    fun add(entity: VEntity) {
+        if (entity !is Tickable || entries.containsKey(entity)) return
+        val world = ServerObjectsHolder.shipObjectWorld
+        val entry = Entry(entity, entity.attachedToShips().filter { it != -1L }.distinct().toLongArray())
+        entries[entity] = entry
+
+        for (id in entry.ships) {
+            val forShip = shipToEntries.getOrPut(id) { mutableListOf() }
+            if (forShip.isEmpty() && isLoaded(world, id)) { loadedShips.add(id) }
+            if (id !in loadedShips) { entry.unloadedShips++ }
+            forShip.add(entry)
+        }
+        updateActive(entry)
+    }
+
+    /**
+     * @return false if VEntity wasn't ticking
+     */
+    fun remove(entity: VEntity): Boolean {
+        val entry = entries.remove(entity) ?: return false
+        entry.removed = true
+
+        for (id in entry.ships) {
+            val forShip = shipToEntries[id] ?: continue
+            forShip.remove(entry)
+            if (forShip.isEmpty()) {
+                shipToEntries.remove(id)
+                loadedShips.remove(id)
+            }
+        }
+        updateActive(entry)
+        return true
+    }
+
+    fun onShipLoad(id: ShipId) {
+        val forShip = shipToEntries[id] ?: return
+        if (!loadedShips.add(id)) return
+        for (entry in forShip) {
+            entry.unloadedShips--
+            updateActive(entry)
+        }
+    }
+
+    fun onShipUnload(id: ShipId) {
+        val forShip = shipToEntries[id] ?: return
+        if (!loadedShips.remove(id)) return
+        for (entry in forShip) {
+            entry.unloadedShips++
+            updateActive(entry)
+        }
+    }
+
+    // ships that don't exist are treated as loaded, so that VEntities of removed ships still tick until removed
+    private fun isLoaded(world: VsiServerShipWorld?, id: ShipId): Boolean {
+        if (world == null) return true
+        return world.allShips.getById(id) == null || world.loadedShips.getById(id) != null
+    }
+
+    private fun updateActive(entry: Entry) {
+        val isActive = entry.isActive
+        if (isActive == (entry.activeIndex != -1)) return
+        if (entry.phys) { physChanged = true }
+
+        if (isActive) {
+            if (activeSize == active.size) { active = active.copyOf(activeSize * 2) }
+            entry.activeIndex = activeSize
+            active[activeSize++] = entry
+        } else if (ticking) {
+            pendingInactive.add(entry)
+        } else {
+            removeActive(entry)
+        }
+    }
+
+    private fun removeActive(entry: Entry) {
+        val i = entry.activeIndex
+        if (i == -1) return
+        val last = active[--activeSize]!!
+        active[i] = last
+        last.activeIndex = i
+        active[activeSize] = null
+        entry.activeIndex = -1
+    }
+
+    /**
+     * VS doesn't have an event for server ships being unloaded, so loaded ships that have VEntities are checked instead
+     */
+    private fun checkUnloaded() {
+        if (loadedShips.isEmpty()) return
+        val world = ServerObjectsHolder.shipObjectWorld ?: return
+        loadedShips.forEach { if (!isLoaded(world, it)) { toUnload.add(it) } }
+        if (toUnload.isEmpty()) return
+        toUnload.forEach { onShipUnload(it) }
+        toUnload.clear()
+    }
+
+    /**
+     * @return true if anything was ticked
+     */
+    fun tick(server: MinecraftServer): Boolean {
+        checkUnloaded()
+
+        // VEntities that become active while ticking will start ticking on the next tick
+        val size = activeSize
+        ticking = true
+        try {
+            for (i in 0 until size) {
+                val entry = active[i]!!
+                if (!entry.isActive) continue
+                entry.tickable.serverTick(server, entry.unregister)
+            }
+        } finally {
+            ticking = false
+            pendingInactive.forEach { if (!it.isActive) removeActive(it) }
+            pendingInactive.clear()
+        }
+
+        if (physChanged) { publishPhys() }
+        return size > 0
+    }
+
+    private fun publishPhys() {
+        physChanged = false
+        val byDimension = HashMap<DimensionId, MutableList<Tickable>>()
+        for (i in 0 until activeSize) {
+            val entry = active[i]!!
+            if (!entry.phys) continue
+            byDimension.getOrPut(entry.entity.dimensionId!!) { mutableListOf() }.add(entry.tickable)
+        }
+        physSnapshot = byDimension.mapValues { (_, it) -> it.toTypedArray() }
+    }
+
+    /**
+     * Called on phys thread
+     */
+    fun physTick(dimension: DimensionId, level: VsiPhysLevel, delta: Double) {
+        physSnapshot[dimension]?.forEach { it.physTick(level, delta) }
+    }
+}
@@ -3,19 +3,25 @@ package net.spaceeye.vmod.vEntityManaging.extensions
 import net.minecraft.nbt.CompoundTag
 import net.minecraft.server.MinecraftServer
 import net.minecraft.server.level.ServerLevel
+import net.spaceeye.vmod.vEntityManaging.VEntityManager
 import net.spaceeye.vmod.vEntityManaging.util.ExtendableVEntity
 import net.spaceeye.vmod.vEntityManaging.util.VEntityExtension
 import net.spaceeye.vmod.vEntityManaging.util.TickableVEntityExtension
-import net.spaceeye.vmod.network.Message
 import net.spaceeye.vmod.network.MessagingNetwork
-import net.spaceeye.vmod.network.Signal
+import net.spaceeye.vmod.utils.EventHandle
 import net.spaceeye.vmod.utils.Vector3d
 import org.valkyrienskies.core.api.ships.properties.ShipId
-import java.lang.reflect.Field
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.max
 import kotlin.math.min
+import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.jvm.javaField
+import kotlin.reflect.jvm.javaGetter
+import kotlin.reflect.jvm.javaSetter
 
 class SignalActivator(): VEntityExtension, TickableVEntityExtension {
     lateinit var channelNameReflection: String
@@ -27,38 +33,31 @@ class SignalActivator(): VEntityExtension, TickableVEntityExtension {
     }
 
     var targetPercentage = 0.0f
+    // percentage is saved with the VEntity, so it's marked dirty when a new one is applied
+    private var appliedPercentage = Float.NaN
 
-    var totalPercentage = 0.0f
-    var numMessages = 0
+    private var handle: EventHandle? = null
 
-    private var wasDeleted = false
-
-    private lateinit var percentageField: Field
-
-    private fun signalTick(msg: Message) {
-        if (msg !is Signal) { return }
-
-        totalPercentage = min(max(msg.percentage.toFloat(), 0.0f), 1.0f)
-        numMessages++
-    }
+    // (Any, Float) -> Unit
+    private lateinit var percentageSetter: MethodHandle
 
     override fun tick(server: MinecraftServer) {
-        if (numMessages != 0) {
-            targetPercentage = totalPercentage / numMessages
-            numMessages = 0
-            totalPercentage = 0.0f
-        }
-
-        percentageField.set(obj, targetPercentage)
+        // call site has primitive float, so nothing is boxed
+        percentageSetter.invoke(target, targetPercentage)
+        if (appliedPercentage == targetPercentage) return
+        appliedPercentage = targetPercentage
+        VEntityManager.getInstance().markVEntityDirty(obj.mID)
     }
 
     private lateinit var obj: ExtendableVEntity
+    // same as obj, but typed as Any so that call site matches setter type
+    private lateinit var target: Any
 
     override fun onInit(obj: ExtendableVEntity) {
         this.obj = obj
+        this.target = obj
 
-        percentageField = this.obj::class.memberProperties.find { it.name == percentageNameReflection }!!.javaField!!
-        percentageField.isAccessible = true
+        percentageSetter = setterOf(obj.javaClass, percentageNameReflection)
     }
 
     override fun onAfterCopyVEntity(level: ServerLevel, mapped: Map<ShipId, ShipId>, centerPositions: Map<ShipId, Pair<Vector3d, Vector3d>>, new: ExtendableVEntity) {
@@ -82,17 +81,72 @@ class SignalActivator(): VEntityExtension, TickableVEntityExtension {
     }
 
     override fun onMakeVEntity(level: ServerLevel) {
-        val channel = obj::class.memberProperties.find { it.name == channelNameReflection }!!.call(obj) as String
+        val channel = getterOf(obj.javaClass, channelNameReflection).invoke(target) as String
 
-        MessagingNetwork.register(channel) {
-                msg, unregister ->
-            if (wasDeleted) {unregister(); return@register}
-
-            signalTick(msg)
+        handle?.unsubscribe()
+        // signals are coalesced by the network, so only the last one of the tick arrives
+        handle = MessagingNetwork.registerSignal(channel) { percentage, _ ->
+            targetPercentage = min(max(percentage, 0.0f), 1.0f)
         }
     }
 
     override fun onDeleteVEntity(level: ServerLevel) {
-        wasDeleted = true
+        handle?.unsubscribe()
+        handle = null
+    }
+
+    companion object {
+        private class Bindings {
+            val setters = ConcurrentHashMap<String, MethodHandle>()
+            val getters = ConcurrentHashMap<String, MethodHandle>()
+        }
+
+        // properties are only resolved once per class and name
+        private val bindings = object : ClassValue<Bindings>() {
+            override fun computeValue(type: Class<*>) = Bindings()
+        }
+
+        private val lookup = MethodHandles.lookup()
+        private val setterType = MethodType.methodType(Void.TYPE, Any::class.java, java.lang.Float.TYPE)
+        private val getterType = MethodType.methodType(Any::class.java, Any::class.java)
+
+        private fun propertyOf(clazz: Class<*>, name: String) = clazz.kotlin.memberProperties.find { it.name == name }
+            ?: throw AssertionError("${clazz.name} doesn't have property $name")
+
+        /**
+         * @return handle of type (Any, Float) -> Unit. Float is widened if the property is a double.
+         */
+        fun setterOf(clazz: Class<*>, name: String): MethodHandle = bindings.get(clazz).setters.computeIfAbsent(name) {
+            val property = propertyOf(clazz, name)
+            val setter = (property as? KMutableProperty1<*, *>)?.javaSetter
+            val handle = if (setter != null) {
+                setter.isAccessible = true
+                lookup.unreflect(setter)
+            } else {
+                val field = property.javaField ?: throw AssertionError("${clazz.name}.$name can't be set")
+                field.isAccessible = true
+                lookup.unreflectSetter(field)
+            }
+            val type = handle.type().parameterType(1)
+            if (type != java.lang.Float.TYPE && type != java.lang.Double.TYPE) { throw AssertionError("${clazz.name}.$name should be a float or a double, but is ${type.name}") }
+            handle.asType(setterType)
+        }
+
+        /**
+         * @return handle of type (Any) -> Any?
+         */
+        fun getterOf(clazz: Class<*>, name: String): MethodHandle = bindings.get(clazz).getters.computeIfAbsent(name) {
+            val property = propertyOf(clazz, name)
+            val getter = property.javaGetter
+            val handle = if (getter != null) {
+                getter.isAccessible = true
+                lookup.unreflect(getter)
+            } else {
+                val field = property.javaField ?: throw AssertionError("${clazz.name}.$name can't be read")
+                field.isAccessible = true
+                lookup.unreflectGetter(field)
+            }
+            handle.asType(getterType)
+        }
     }
-}
\ No newline at end of file
+}
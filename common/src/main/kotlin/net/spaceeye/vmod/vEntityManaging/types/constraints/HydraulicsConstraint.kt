@@ -135,6 +135,8 @@ class HydraulicsConstraint(): TwoShipsMConstraint(), VEAutoSerializable, Tickabl
 
     var wasDeleted = false
     var lastExtended: Float = 0f
+    // extendedDist is changed on phys thread, it's marked dirty on server thread once it was
+    private var lastSavedExtended: Float = Float.NaN
     var targetPercentage = 0f
 
     private fun tryExtendDist(): Boolean {
@@ -155,35 +157,46 @@ class HydraulicsConstraint(): TwoShipsMConstraint(), VEAutoSerializable, Tickabl
             return
         }
         getExtensionsOfType<TickableVEntityExtension>().forEach { it.tick(server) }
+
+        val extended = extendedDist
+        if (lastSavedExtended == extended) {return}
+        lastSavedExtended = extended
+        VEntityManager.getInstance().markVEntityDirty(mID)
     }
 
     override fun physTick(level: VsiPhysLevel, delta: Double) {
         if (cIDs.isEmpty()) {return}
-        if (!tryExtendDist()) {return}
+        val extending = tryExtendDist()
 
         if (lastExtended == extendedDist) {return}
+        // updating joints is expensive, so while extending small steps are accumulated. final position is always pushed
+        if (extending && abs(lastExtended - extendedDist) < MIN_JOINT_UPDATE_DIST) {return}
         lastExtended = extendedDist
 
-        val (sPos1, sPos2, sDir1, sDir2) = when (-1L) {
-            shipId1 -> Tuple.of(sPos1, sPos2,  sDir1, sDir2)
-            shipId2 -> Tuple.of(sPos2, sPos1, -sDir2, sDir1)
-            else    -> Tuple.of(sPos1, sPos2,  sDir1, sDir2)
-        }
         val distance = (minLength + extendedDist)
-        val p11 = sPos1.toJomlVector3d()
-        val p21 = (sPos2 - sDir2 * distance).toJomlVector3d()
-        val p12 = (sPos1 + sDir1 * distance).toJomlVector3d()
-        val p22 = sPos2.toJomlVector3d()
-
         if (connectionMode == ConnectionMode.FREE_ORIENTATION) {
             d1 = (d1 as VSDistanceJoint).copy(minDistance = 0f, maxDistance = distance)
             level.updateJoint(cIDs[0], d1!!)
-        } else {
-            d1 = d1!!.copy(pos0 = p11, pos1 = p21)
-            d2 = d2!!.copy(pos0 = p12, pos1 = p22)
-            level.updateJoint(cIDs[0], d1!!)
-            level.updateJoint(cIDs[1], d2!!)
+            return
         }
+
+        // same order as in iOnMakeVEntity, directions are negated when swapped
+        val swap = shipId1 != -1L && shipId2 == -1L
+        val pos1 = if (swap) sPos2 else sPos1
+        val pos2 = if (swap) sPos1 else sPos2
+        val dir1 = if (swap) sDir2 else sDir1
+        val dir2 = if (swap) sDir1 else sDir2
+        val d = if (swap) -distance.toDouble() else distance.toDouble()
+
+        val p11 = JVector3d(pos1.x, pos1.y, pos1.z)
+        val p21 = JVector3d(pos2.x - dir2.x * d, pos2.y - dir2.y * d, pos2.z - dir2.z * d)
+        val p12 = JVector3d(pos1.x + dir1.x * d, pos1.y + dir1.y * d, pos1.z + dir1.z * d)
+        val p22 = JVector3d(pos2.x, pos2.y, pos2.z)
+
+        d1 = d1!!.copy(pos0 = p11, pos1 = p21)
+        d2 = d2!!.copy(pos0 = p12, pos1 = p22)
+        level.updateJoint(cIDs[0], d1!!)
+        level.updateJoint(cIDs[1], d2!!)
     }
 
     override fun iOnMakeVEntity(level: ServerLevel) = withFutures {
@@ -266,4 +279,8 @@ class HydraulicsConstraint(): TwoShipsMConstraint(), VEAutoSerializable, Tickabl
         super.iOnDeleteVEntity(level)
         wasDeleted = true
     }
+
+    companion object {
+        const val MIN_JOINT_UPDATE_DIST = 1e-3f
+    }
 }
\ No newline at end of file
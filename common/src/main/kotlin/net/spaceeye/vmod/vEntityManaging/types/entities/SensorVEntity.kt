@@ -8,22 +8,19 @@ import net.spaceeye.vmod.vEntityManaging.Tickable
 import net.spaceeye.vmod.vEntityManaging.util.ExtendableVEntity
 import net.spaceeye.vmod.vEntityManaging.util.VEAutoSerializable
 import net.spaceeye.vmod.network.MessagingNetwork
-import net.spaceeye.vmod.network.Signal
 import net.spaceeye.vmod.utils.Vector3d
 import org.valkyrienskies.core.api.ships.QueryableShipData
 import org.valkyrienskies.core.api.ships.Ship
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.mod.common.shipObjectWorld
-import net.spaceeye.vmod.utils.RaycastFunctions
 import net.spaceeye.vmod.utils.vs.posShipToWorld
 import net.spaceeye.vmod.utils.vs.transformDirectionShipToWorld
 import net.spaceeye.vmod.vEntityManaging.makeVEntityWithId
 import net.spaceeye.vmod.vEntityManaging.removeVEntity
+import net.spaceeye.vmod.vsStuff.PhysRaycastingScheduler
 import org.valkyrienskies.core.internal.world.VsiPhysLevel
-import org.valkyrienskies.mod.common.dimensionId
 import java.util.concurrent.CompletableFuture
-import org.valkyrienskies.mod.common.getLevelFromDimensionId
-import kotlin.math.min
+import kotlin.math.max
 
 class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
     @JsonIgnore private var i = 0
@@ -35,7 +32,8 @@ class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
     var channel: String by get(i++, "")
     var ignoreSelf: Boolean by get(i++, false)
     var scale: Double by get(i++, 1.0)
-
+    // ray is traced once every sampleInterval ticks
+    var sampleInterval: Int by get(i++, 1)
 
     constructor(shipId: ShipId,
                 pos: Vector3d,
@@ -43,6 +41,7 @@ class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
                 distance: Double,
                 ignoreSelf: Boolean,
                 scale: Double,
+                sampleInterval: Int,
                 channel: String): this() {
         this.shipId = shipId
         this.pos = pos
@@ -51,6 +50,7 @@ class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
         this.maxDistance = distance
         this.ignoreSelf = ignoreSelf
         this.scale = scale
+        this.sampleInterval = sampleInterval
     }
 
     override fun iStillExists(allShips: QueryableShipData<Ship>): Boolean = shipId == -1L || allShips.contains(shipId)
@@ -74,7 +74,7 @@ class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
 
         val nPos = pos - oldCenter + newCenter
 
-        return SensorVEntity(nShip.id, nPos, lookDir, maxDistance, ignoreSelf, scale, channel)
+        return SensorVEntity(nShip.id, nPos, lookDir, maxDistance, ignoreSelf, scale, sampleInterval, channel)
     }
 
     override fun iOnMakeVEntity(level: ServerLevel): List<CompletableFuture<Boolean>> =
@@ -88,25 +88,35 @@ class SensorVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
 
     override fun iOnDeleteVEntity(level: ServerLevel) {}
 
-    override fun serverTick(server: MinecraftServer, unregister: () -> Unit) {
-        val ship = server.shipObjectWorld.allShips.getById(shipId)
+    @JsonIgnore private val ray = PhysRaycastingScheduler.BatchedRay()
+    @JsonIgnore private var lastSignal = Double.NaN
+    @JsonIgnore private var channelId = -1
+    @JsonIgnore private var channelIdOf: String? = null
 
-        //TODO
-        var serverLevel: ServerLevel = server.getLevelFromDimensionId(dimensionId ?: return) ?: return
+    override fun serverTick(server: MinecraftServer, unregister: () -> Unit) {
+        val dimensionId = dimensionId ?: return
 
-        val result = RaycastFunctions.raycast(
-            serverLevel,
-            RaycastFunctions.Source(
-                ship?.let{ transformDirectionShipToWorld(ship, lookDir) } ?: lookDir,
-                ship?.let { posShipToWorld(ship, pos + lookDir * 0.5 * scale) } ?: (pos + lookDir * 0.5 * scale)
-            ),
-            maxDistance,
-            if (ignoreSelf) {ship?.id} else {null}
-        )
+        // result of the previous batch. only sends signal when it changes
+        val signal = ray.result
+        if (!signal.isNaN() && signal != lastSignal) {
+            lastSignal = signal
+            if (channelIdOf !== channel) { channelId = MessagingNetwork.channelId(channel); channelIdOf = channel }
+            MessagingNetwork.notifySignal(channelId, signal.toFloat())
+        }
 
-        val distance = (result.origin - (result.worldHitPos ?: (result.origin + result.lookVec * maxDistance))).dist()
+        // old sensors were saved without interval
+        val interval = max(sampleInterval, 1)
+        if ((server.tickCount + mID) % interval != 0) {return}
 
-        MessagingNetwork.notify(channel, Signal(min(distance / maxDistance, 1.0)))
+        val ship = server.shipObjectWorld.allShips.getById(shipId)
+        val dir = ship?.let { transformDirectionShipToWorld(ship, lookDir) } ?: lookDir
+        val origin = ship?.let { posShipToWorld(ship, pos + lookDir * 0.5 * scale) } ?: (pos + lookDir * 0.5 * scale)
+
+        dir.toJomlVector3d(ray.dir).normalize()
+        origin.toJomlVector3d(ray.origin)
+        ray.distance = maxDistance
+        ray.skipShip = if (ignoreSelf) ship?.id ?: -1L else -1L
+        PhysRaycastingScheduler.requestRay(dimensionId, ray)
     }
 
     override fun physTick(level: VsiPhysLevel, delta: Double) {}
@@ -95,13 +95,23 @@ class ThrusterVEntity(): ExtendableVEntity(), Tickable, VEAutoSerializable {
         if (lastPercentage == percentage) {return}
         lastPercentage = percentage
 
-        compiledForce = (forceDir * (force * percentage)).toJomlVector3d()
+        val f = force * percentage
+        // replaced instead of modified as phys thread can be using the old one
+        compiledForce = JVector3d(forceDir.x * f, forceDir.y * f, forceDir.z * f)
     }
 
+    // pos is only replaced, never modified, so joml copy is kept until it's replaced
+    @JsonIgnore private var jPosFor: Vector3d? = null
+    @JsonIgnore private var jPos = JVector3d()
+
     @OptIn(VsBeta::class)
     override fun physTick(level: VsiPhysLevel, delta: Double) {
         val ship = level.getShipById(shipId) ?: return
-        //TODO cache joml directly
-        ship.applyBodyForce(compiledForce, pos.toJomlVector3d())
+        val pos = pos
+        if (jPosFor !== pos) {
+            jPos = pos.toJomlVector3d()
+            jPosFor = pos
+        }
+        ship.applyBodyForce(compiledForce, jPos)
     }
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ import org.valkyrienskies.core.api.ships.Ship
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.mod.common.dimensionId
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicInteger
 
 interface ExtendableVEntityIMethods {
     fun iStillExists(allShips: QueryableShipData<Ship>): Boolean
@@ -35,6 +36,20 @@ interface ExtendableVEntityIMethods {
     @Internal fun iOnDeleteVEntity(level: ServerLevel)
 }
 
+/**
+ * Every extension type that was looked up by [ExtendableVEntity.getExtensionsOfType] is given a slot, so that lookups
+ * are cached in a small per VEntity array instead of filtering all extensions every time.
+ */
+internal object ExtensionSlots {
+    private val next = AtomicInteger()
+    private val slots = object : ClassValue<Int>() {
+        override fun computeValue(type: Class<*>): Int = next.getAndIncrement()
+    }
+
+    val size get() = next.get()
+    fun slotOf(type: Class<*>): Int = slots.get(type)
+}
+
 abstract class ExtendableVEntity(): VEntity, ExtendableVEntityIMethods {
     final override var mID: VEntityId = -1
     final override var dimensionId: String? = null
@@ -43,16 +58,26 @@ abstract class ExtendableVEntity(): VEntity, ExtendableVEntityIMethods {
     @get:JsonIgnore
     open val extensions: Collection<VEntityExtension> get() = _extensions
 
+    // slot -> extensions of that type, null if it wasn't looked up since extensions last changed
+    @JsonIgnore private var byType = arrayOfNulls<List<VEntityExtension>>(0)
+
     open fun addExtension(extension: VEntityExtension): ExtendableVEntity {
         extension.onInit(this)
-        _extensions.add(extension)
+        if (_extensions.add(extension)) { byType.fill(null) }
         return this
     }
 
-    inline fun <reified T: VEntityExtension> getExtensionsOfType(): Collection<T> {
-        return extensions.filterIsInstance<T>()
+    @Suppress("UNCHECKED_CAST")
+    fun <T: VEntityExtension> getExtensionsOfType(type: Class<T>): List<T> {
+        val slot = ExtensionSlots.slotOf(type)
+        if (slot >= byType.size) { byType = byType.copyOf(ExtensionSlots.size) }
+        return (byType[slot] ?: extensions.filter { type.isInstance(it) }.ifEmpty { emptyList() }.also { byType[slot] = it }) as List<T>
     }
 
+    inline fun <reified T: VEntityExtension> getExtensionsOfType(): List<T> = getExtensionsOfType(T::class.java)
+
+    fun hasExtensionOfType(type: Class<out VEntityExtension>): Boolean = getExtensionsOfType(type).isNotEmpty()
+
 
     final override fun stillExists(allShips: QueryableShipData<Ship>, ): Boolean {
         return iStillExists(allShips)
@@ -127,6 +152,7 @@ abstract class ExtendableVEntity(): VEntity, ExtendableVEntityIMethods {
             ext.onInit(this)
             ext
         })
+        byType.fill(null)
 
         return mc
     }
@@ -3,7 +3,9 @@ package net.spaceeye.vmod.vsStuff
 import net.minecraft.core.BlockPos
 import net.minecraft.server.level.ServerLevel
 import net.minecraft.world.level.block.Blocks
-import net.spaceeye.vmod.utils.PosMap
+import net.minecraft.world.level.block.state.BlockState
+import net.spaceeye.vmod.utils.LongHashMap
+import net.spaceeye.vmod.utils.SectionFloatMap
 import net.spaceeye.vmod.utils.ServerClosable
 import org.valkyrienskies.core.api.ships.ServerShip
 import org.valkyrienskies.core.api.ships.properties.ShipId
@@ -13,10 +15,12 @@ import org.valkyrienskies.mod.common.BlockStateInfo
 import org.valkyrienskies.mod.common.dimensionId
 import org.valkyrienskies.mod.common.getShipManagingPos
 import org.valkyrienskies.mod.common.shipObjectWorld
+import kotlin.math.max
+import kotlin.math.min
 
 object CustomBlockMassManager: ServerClosable() {
-    val dimToPosToMass = mutableMapOf<DimensionId, PosMap<Double>>()
-    val shipToPosToMass = mutableMapOf<ShipId, PosMap<Double>>()
+    val dimToPosToMass = mutableMapOf<DimensionId, SectionFloatMap>()
+    val shipToPosToMass = LongHashMap<SectionFloatMap>()
 
     override fun close() {
         dimToPosToMass.clear()
@@ -24,11 +28,49 @@ object CustomBlockMassManager: ServerClosable() {
     }
 
     fun removeCustomMass(dimensionId: DimensionId, x: Int, y: Int, z: Int) {
-        dimToPosToMass.getOrPut(dimensionId) { PosMap() }.removeItemFromPos(x, y, z)
+        dimToPosToMass[dimensionId]?.remove(x, y, z)
+    }
+
+    fun removeCustomMass(dimensionId: DimensionId, shipId: ShipId, x: Int, y: Int, z: Int) {
+        dimToPosToMass[dimensionId]?.remove(x, y, z)
+        shipToPosToMass[shipId]?.remove(x, y, z)
+    }
+
+    /**
+     * Forgets all custom masses of the ship without changing them for VS
+     */
+    fun removeCustomMass(dimensionId: DimensionId, shipId: ShipId) {
+        val shipMap = shipToPosToMass.remove(shipId) ?: return
+        val dimMap = dimToPosToMass[dimensionId] ?: return
+        shipMap.forEach { x, y, z, _ -> dimMap.remove(x, y, z) }
     }
 
     fun getCustomMass(dimension: DimensionId, x: Int, y: Int, z: Int): Double? {
-        return dimToPosToMass.getOrPut(dimension) { PosMap() }.getItemAt(x, y, z)
+        return dimToPosToMass[dimension]?.get(x, y, z)
+    }
+
+    /**
+     * Calls [fn] for every non-air block in the inclusive region. Sections that only have air are skipped without
+     * looking at their blocks.
+     */
+    inline fun forEachBlockInRegion(level: ServerLevel, minX: Int, minY: Int, minZ: Int, maxX: Int, maxY: Int, maxZ: Int, fn: (x: Int, y: Int, z: Int, state: BlockState) -> Unit) {
+        val minY = max(minY, level.minBuildHeight)
+        val maxY = min(maxY, level.maxBuildHeight - 1)
+        for (cx in minX shr 4..maxX shr 4) {
+        for (cz in minZ shr 4..maxZ shr 4) {
+            val chunk = level.getChunk(cx, cz)
+            for (sy in minY shr 4..maxY shr 4) {
+                val section = chunk.getSection(chunk.getSectionIndexFromSectionY(sy))
+                if (section.hasOnlyAir()) {continue}
+                for (y in max(minY, sy shl 4)..min(maxY, (sy shl 4) + 15)) {
+                for (z in max(minZ, cz shl 4)..min(maxZ, (cz shl 4) + 15)) {
+                for (x in max(minX, cx shl 4)..min(maxX, (cx shl 4) + 15)) {
+                    val state = section.getBlockState(x and 15, y and 15, z and 15)
+                    if (state.isAir) {continue}
+                    fn(x, y, z, state)
+                } } }
+            }
+        } }
     }
 
     fun zeroMass(level: ServerLevel, ship: ServerShip): Boolean {
@@ -36,26 +78,61 @@ object CustomBlockMassManager: ServerClosable() {
         val (_, dummy) = BlockStateInfo.get(Blocks.GOLD_BLOCK.defaultBlockState())!!
 
         val aabb = ship.shipAABB ?: return false
+        val shipObjectWorld = level.shipObjectWorld
 
         //VS will zero mass if ship has no colliders and you do onSetBlock like that, actual block types don't seem to matter
-        for (x in aabb.minX() until aabb.maxX()) {
-        for (y in aabb.minY() until aabb.maxY()) {
-        for (z in aabb.minZ() until aabb.maxZ()) {
-            level.shipObjectWorld.onSetBlock(x, y, z, ship.chunkClaimDimension, dummy, air, 0.0, 0.0)
-        } } }
+        //positions that are air in the level are already air for VS, so only solid ones need to be set
+        forEachBlockInRegion(level, aabb.minX(), aabb.minY(), aabb.minZ(), aabb.maxX() - 1, aabb.maxY() - 1, aabb.maxZ() - 1) { x, y, z, _ ->
+            shipObjectWorld.onSetBlock(x, y, z, ship.chunkClaimDimension, dummy, air, 0.0, 0.0)
+        }
 
-        level.shipObjectWorld.onSetBlock(aabb.minX(), aabb.minY(), aabb.minZ(), ship.chunkClaimDimension, air, air, ship.inertiaData.mass, 0.0)
+        shipObjectWorld.onSetBlock(aabb.minX(), aabb.minY(), aabb.minZ(), ship.chunkClaimDimension, air, air, ship.inertiaData.mass, 0.0)
 
-        shipToPosToMass[ship.id]?.also {
-            val dimMap = dimToPosToMass[level.dimensionId]
+        removeCustomMass(level.dimensionId, ship.id)
 
-            it.asList().forEach { (pos, _) ->
-                dimMap?.removeItemFromPos(pos.x, pos.y, pos.z)
-            }
-            it.clear()
+        return true
+    }
+
+    /**
+     * Sets mass of every solid block of the inclusive region to mass returned by [massFn] for it.
+     *
+     * Ship is made static while masses change, so physics only sees the result. Blocks which mass doesn't change, air,
+     * and sections with only air don't call VS at all. If [fromZero] is true, ship is expected to be zeroed by [zeroMass].
+     *
+     * @return number of blocks which mass was changed
+     */
+    inline fun setMassInRegion(
+        level: ServerLevel, ship: ServerShip,
+        minX: Int, minY: Int, minZ: Int, maxX: Int, maxY: Int, maxZ: Int,
+        fromZero: Boolean = false,
+        massFn: (x: Int, y: Int, z: Int, state: BlockState, defaultMass: Double) -> Double
+    ): Int {
+        val dimensionId = level.dimensionId
+        val shipObjectWorld = level.shipObjectWorld
+        val (_, air) = BlockStateInfo.get(Blocks.AIR.defaultBlockState())!!
+        val dimMap = dimToPosToMass.getOrPut(dimensionId) { SectionFloatMap() }
+        val shipMap = shipToPosToMass.getOrPut(ship.id) { SectionFloatMap() }
+
+        val wasStatic = ship.isStatic
+        ship.isStatic = true
+
+        var changed = 0
+        forEachBlockInRegion(level, minX, minY, minZ, maxX, maxY, maxZ) { x, y, z, state ->
+            val (defaultMass, type) = BlockStateInfo.get(state) ?: return@forEachBlockInRegion
+            val custom = dimMap.getOrNaN(x, y, z)
+            val oldMass = if (fromZero) 0.0 else if (custom.isNaN()) defaultMass else custom.toDouble()
+            // masses are stored as floats, so VS is given the same mass that is stored
+            val mass = massFn(x, y, z, state, defaultMass).toFloat()
+            if (!fromZero && (if (custom.isNaN()) mass.toDouble() == defaultMass else mass == custom)) {return@forEachBlockInRegion}
+
+            shipObjectWorld.onSetBlock(x, y, z, dimensionId, if (fromZero) air else type, type, oldMass, mass.toDouble())
+            dimMap.set(x, y, z, mass)
+            shipMap.set(x, y, z, mass)
+            changed++
         }
 
-        return true
+        ship.isStatic = wasStatic
+        return changed
     }
 
     fun setCustomMass(level: ServerLevel, x: Int, y: Int, z: Int, mass: Double): Boolean {
@@ -71,16 +148,29 @@ object CustomBlockMassManager: ServerClosable() {
 
         val dimensionId = level.dimensionId
         val shipObjectWorld = level.shipObjectWorld
+        val m = mass.toFloat()
 
-        shipObjectWorld.onSetBlock(x, y, z, dimensionId, oldType, type, oldMass, mass)
+        shipObjectWorld.onSetBlock(x, y, z, dimensionId, oldType, type, oldMass, m.toDouble())
 
-        dimToPosToMass.getOrPut(level.dimensionId) { PosMap() }.setItemTo(mass, x, y, z)
-        shipToPosToMass.getOrPut(ship.id) { PosMap() }.setItemTo(mass, x, y, z)
+        dimToPosToMass.getOrPut(level.dimensionId) { SectionFloatMap() }.set(x, y, z, m)
+        shipToPosToMass.getOrPut(ship.id) { SectionFloatMap() }.set(x, y, z, m)
         return true
     }
 
     fun loadCustomMass(dimensionId: DimensionId, shipId: ShipId, x: Int, y: Int, z: Int, mass: Double) {
-        dimToPosToMass.getOrPut(dimensionId) { PosMap() }.setItemTo(mass, x, y, z)
-        shipToPosToMass.getOrPut(shipId) { PosMap() }.setItemTo(mass, x, y, z)
+        dimToPosToMass.getOrPut(dimensionId) { SectionFloatMap() }.set(x, y, z, mass.toFloat())
+        shipToPosToMass.getOrPut(shipId) { SectionFloatMap() }.set(x, y, z, mass.toFloat())
+    }
+
+    /**
+     * Loads packed masses of a ship written by [SectionFloatMap.write]
+     */
+    fun loadCustomMass(dimensionId: DimensionId, shipId: ShipId, masses: SectionFloatMap) {
+        val dimMap = dimToPosToMass.getOrPut(dimensionId) { SectionFloatMap() }
+        val shipMap = shipToPosToMass.getOrPut(shipId) { SectionFloatMap() }
+        masses.forEach { x, y, z, mass ->
+            dimMap.set(x, y, z, mass)
+            shipMap.set(x, y, z, mass)
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,21 +1,34 @@
 package net.spaceeye.vmod.vsStuff
 
 import dev.architectury.event.events.common.TickEvent
+import net.minecraft.server.level.ServerLevel
+import net.minecraft.world.level.ClipContext
+import net.minecraft.world.phys.HitResult
+import net.minecraft.world.phys.Vec3
 import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.toolgun.ServerToolGunState
 import net.spaceeye.vmod.utils.JVector3d
+import net.spaceeye.vmod.utils.RaycastFunctions
 import net.spaceeye.vmod.utils.ServerClosable
 import net.spaceeye.vmod.utils.Tuple
 import net.spaceeye.vmod.utils.Tuple4
 import net.spaceeye.vmod.utils.Vector3d
 import org.valkyrienskies.core.api.VsBeta
 import org.valkyrienskies.core.api.physics.RayCastResult
+import org.valkyrienskies.core.api.ships.Ship
+import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.api.world.properties.DimensionId
 import org.valkyrienskies.mod.api.dimensionId
 import org.valkyrienskies.mod.api.vsApi
+import org.valkyrienskies.mod.common.getLevelFromDimensionId
+import org.valkyrienskies.mod.common.shipObjectWorld
+import org.valkyrienskies.mod.common.world.vanillaClip
 import java.util.UUID
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
 
 @OptIn(VsBeta::class)
 object PhysRaycastingScheduler: ServerClosable() {
@@ -26,9 +39,117 @@ object PhysRaycastingScheduler: ServerClosable() {
     val writeLock = ReentrantLock()
     override fun close() {
         writeLock.withLock { jobs.clear() }
+        sensorRays.clear()
+    }
+
+    /**
+     * Ray that is traced once per [requestRay] call, in a batch with all other rays of the same dimension at the end of
+     * the server tick.
+     */
+    class BatchedRay {
+        @JvmField val origin = JVector3d()
+        // normalized
+        @JvmField val dir = JVector3d()
+        @JvmField var distance = 0.0
+        @JvmField var skipShip: ShipId = -1L
+
+        // distance to the first hit divided by [distance], 1 if nothing was hit. NaN until traced for the first time.
+        // only changes after all rays of the batch were traced, so it's the same for the whole tick
+        @JvmField var result = Double.NaN
+    }
+
+    private val sensorRays = mutableMapOf<DimensionId, MutableList<BatchedRay>>()
+
+    fun requestRay(dimensionId: DimensionId, ray: BatchedRay) {
+        sensorRays.getOrPut(dimensionId) { mutableListOf() }.add(ray)
+    }
+
+    // back buffer of results, published to rays after the whole batch is traced
+    private var results = DoubleArray(64)
+
+    private val broadPhase = RayBroadPhase()
+    private val ships = ArrayList<Ship>()
+    private var level: ServerLevel? = null
+
+    // unloaded chunks are treated as empty
+    private val sectionFilter = RayBroadPhase.SectionFilter { sx, sy, sz ->
+        val level = level!!
+        val chunk = level.chunkSource.getChunkNow(sx, sz)
+        val idx = level.getSectionIndexFromSectionY(sy)
+        chunk != null && idx >= 0 && idx < chunk.sectionsCount && !chunk.getSection(idx).hasOnlyAir()
+    }
+
+    private fun collectShips(level: ServerLevel) {
+        ships.clear()
+        val dimensionId = level.dimensionId
+        for (ship in level.shipObjectWorld.loadedShips) {
+            if (ship.chunkClaimDimension != dimensionId) continue
+            val b = ship.worldAABB
+            broadPhase.addShip(b.minX(), b.minY(), b.minZ(), b.maxX(), b.maxY(), b.maxZ())
+            ships.add(ship)
+        }
+    }
+
+    private fun trace(level: ServerLevel, ray: BatchedRay): Double {
+        val o = ray.origin
+        val d = ray.dir
+        val dist = ray.distance
+        if (dist <= 0.0) return 1.0
+
+        val from = Vec3(o.x, o.y, o.z)
+        val to = Vec3(o.x + d.x * dist, o.y + d.y * dist, o.z + d.z * dist)
+        val minX = min(from.x, to.x); val minY = min(from.y, to.y); val minZ = min(from.z, to.z)
+        val maxX = max(from.x, to.x); val maxY = max(from.y, to.y); val maxZ = max(from.z, to.z)
+        val ctx = ClipContext(from, to, ClipContext.Block.COLLIDER, ClipContext.Fluid.NONE, null)
+
+        var closestSq = dist * dist
+        if (broadPhase.hasBlocksIn(minX, minY, minZ, maxX, maxY, maxZ, sectionFilter)) {
+            val hit = level.vanillaClip(ctx)
+            if (hit.type != HitResult.Type.MISS) { closestSq = min(closestSq, hit.location.distanceToSqr(from)) }
+        }
+
+        broadPhase.forEachOverlappingShip(minX, minY, minZ, maxX, maxY, maxZ) { s ->
+            val ship = ships[s]
+            if (ship.id == ray.skipShip) return@forEachOverlappingShip
+
+            val worldToShip = ship.worldToShip
+            val shipStart = worldToShip.transformPosition(from.x, from.y, from.z, JVector3d())
+            val shipEnd = worldToShip.transformPosition(to.x, to.y, to.z, JVector3d())
+            val hit = with(RaycastFunctions) {
+                level.clip(ctx, Vec3(shipStart.x, shipStart.y, shipStart.z), Vec3(shipEnd.x, shipEnd.y, shipEnd.z))
+            }
+            if (hit.type == HitResult.Type.MISS) return@forEachOverlappingShip
+
+            val hitPos = ship.shipToWorld.transformPosition(hit.location.x, hit.location.y, hit.location.z, shipStart)
+            closestSq = min(closestSq, hitPos.distanceSquared(from.x, from.y, from.z))
+        }
+
+        return min(sqrt(closestSq) / dist, 1.0)
+    }
+
+    private fun traceBatch(level: ServerLevel, rays: List<BatchedRay>) {
+        this.level = level
+        collectShips(level)
+        if (results.size < rays.size) { results = DoubleArray(max(rays.size, results.size * 2)) }
+
+        for (i in rays.indices) { results[i] = trace(level, rays[i]) }
+        for (i in rays.indices) { rays[i].result = results[i] }
+
+        ships.clear()
+        broadPhase.clear()
+        this.level = null
     }
 
     init {
+        TickEvent.SERVER_POST.register { server ->
+            sensorRays.forEach { (dimensionId, rays) ->
+                if (rays.isEmpty()) return@forEach
+                val level = server.getLevelFromDimensionId(dimensionId)
+                if (level != null) { traceBatch(level, rays) }
+                rays.clear()
+            }
+        }
+
         TickEvent.SERVER_POST.register { server ->
             val distance = VMConfig.SERVER.TOOLGUN.MAX_RAYCAST_DISTANCE
 
@@ -0,0 +1,68 @@
+package net.spaceeye.vmod.vsStuff
+
+import net.minecraft.core.SectionPos
+import net.minecraft.util.Mth
+import net.spaceeye.vmod.utils.LongHashSet
+
+/**
+ * Broad phase of a batch of rays: which ships a ray can hit by their world AABBs, and whether the world has any blocks
+ * in bounds of a ray at all. Sections are looked up once per batch. Doesn't touch levels or ships itself, so that it
+ * can be benchmarked with synthetic rays and ships.
+ */
+internal class RayBroadPhase {
+    fun interface SectionFilter {
+        fun isFilled(sx: Int, sy: Int, sz: Int): Boolean
+    }
+
+    // [minX, minY, minZ, maxX, maxY, maxZ] per ship
+    @PublishedApi internal var shipBounds = DoubleArray(6 * 16)
+    var numShips = 0
+        private set
+
+    private val emptySections = LongHashSet()
+    private val filledSections = LongHashSet()
+
+    fun addShip(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double) {
+        if (shipBounds.size < (numShips + 1) * 6) { shipBounds = shipBounds.copyOf(shipBounds.size * 2) }
+        val i = numShips * 6
+        shipBounds[i  ] = minX; shipBounds[i+1] = minY; shipBounds[i+2] = minZ
+        shipBounds[i+3] = maxX; shipBounds[i+4] = maxY; shipBounds[i+5] = maxZ
+        numShips++
+    }
+
+    /**
+     * Calls [fn] with indices of ships in order they were added, if their bounds overlap given ones
+     */
+    inline fun forEachOverlappingShip(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double, fn: (ship: Int) -> Unit) {
+        val bounds = shipBounds
+        for (s in 0 until numShips) {
+            val i = s * 6
+            if (maxX < bounds[i  ] || minX > bounds[i+3]
+             || maxY < bounds[i+1] || minY > bounds[i+4]
+             || maxZ < bounds[i+2] || minZ > bounds[i+5]) continue
+            fn(s)
+        }
+    }
+
+    // world blocks only need to be clipped if ray goes through a non empty section
+    fun hasBlocksIn(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double, filter: SectionFilter): Boolean {
+        for (sx in (Mth.floor(minX) shr 4)..(Mth.floor(maxX) shr 4)) {
+        for (sz in (Mth.floor(minZ) shr 4)..(Mth.floor(maxZ) shr 4)) {
+        for (sy in (Mth.floor(minY) shr 4)..(Mth.floor(maxY) shr 4)) {
+            val key = SectionPos.asLong(sx, sy, sz)
+            if (emptySections.contains(key)) continue
+            if (filledSections.contains(key)) return true
+
+            if (!filter.isFilled(sx, sy, sz)) { emptySections.add(key); continue }
+            filledSections.add(key)
+            return true
+        } } }
+        return false
+    }
+
+    fun clear() {
+        numShips = 0
+        emptySections.clear()
+        filledSections.clear()
+    }
+}
@@ -15,7 +15,14 @@ import org.valkyrienskies.mod.common.vsCore
 
 object VSGravityManager {
     val gravities = DimensionParametersResolver.dimensionMap
-    init {
+    private var registered = false
+
+    /**
+     * Adds [GravityController] to every ship that is loaded
+     */
+    fun registerEvents() {
+        if (registered) return
+        registered = true
         vsCore.shipLoadEvent.on { event -> var ship = event.ship
             ship = ServerObjectsHolder.server!!.shipObjectWorld.loadedShips.getById(ship.id) ?: return@on
             GravityController.getOrCreate(ship)
@@ -2,14 +2,9 @@ package net.spaceeye.vmod.vsStuff
 
 import net.spaceeye.vmod.ELOG
 import net.spaceeye.vmod.events.AVSEvents
-import net.spaceeye.vmod.utils.MyConnectivityInspector
 import net.spaceeye.vmod.utils.SafeEventEmitter
-import net.spaceeye.vmod.utils.ServerObjectsHolder
+import net.spaceeye.vmod.utils.ShipConnectivity
 import org.jetbrains.annotations.ApiStatus
-import org.jgrapht.graph.DefaultEdge
-import org.jgrapht.graph.DefaultListenableGraph
-import org.jgrapht.graph.Multigraph
-import org.jgrapht.graph.concurrent.AsSynchronizedGraph
 import org.valkyrienskies.core.api.ships.properties.ShipId
 import org.valkyrienskies.core.internal.joints.VSJoint
 import org.valkyrienskies.core.internal.joints.VSJointId
@@ -19,9 +14,7 @@ import java.util.concurrent.locks.ReentrantLock
 import net.spaceeye.vmod.utils.ServerClosable
 
 object VSJointsTracker: ServerClosable() {
-    private var graph = DefaultListenableGraph(AsSynchronizedGraph(Multigraph<Long, DefaultEdge>(DefaultEdge::class.java)))
-    private var inspector = MyConnectivityInspector(graph) //todo this is not optimal
-    private val edgeInfo = mutableMapOf<Set<Long>, Int>() //TODO change to set of joint ids?
+    private val connectivity = ShipConnectivity()
 
     val connectionAdded   = SafeEventEmitter<OnConnectionAdded>()
     val connectionRemoved = SafeEventEmitter<OnConnectionRemoved>()
@@ -34,11 +27,8 @@ object VSJointsTracker: ServerClosable() {
     private val physLevels = mutableMapOf<String, VsiPhysLevel>()
 
     init {
-        graph.addGraphListener(inspector)
-        inspector.connectedSets()
-
         AVSEvents.serverShipRemoveEvent.on { (ship), _ ->
-            graph.removeVertex(ship.id)
+            connectivity.removeShip(ship.id).forEach { connectionRemoved.emit(OnConnectionRemoved(ship.id, it)) }
         }
 
         vsApi.physTickEvent.on {
@@ -49,12 +39,7 @@ object VSJointsTracker: ServerClosable() {
     }
 
     override fun close() {
-        graph = DefaultListenableGraph(AsSynchronizedGraph(Multigraph<Long, DefaultEdge>(DefaultEdge::class.java)))
-        inspector = MyConnectivityInspector(graph)
-        edgeInfo.clear()
-
-        graph.addGraphListener(inspector)
-        inspector.connectedSets()
+        connectivity.clear()
     }
 
     @JvmStatic
@@ -81,11 +66,12 @@ object VSJointsTracker: ServerClosable() {
         return emptySet()
     }
 
+    // both can be called from any thread without locking
     @JvmStatic
-    fun shipsAreConnected(shipId1: ShipId, shipId2: ShipId) = inspector.pathExists(shipId1, shipId2)
+    fun shipsAreConnected(shipId1: ShipId, shipId2: ShipId) = connectivity.connected(shipId1, shipId2)
 
     @JvmStatic
-    fun getConnected(shipId: ShipId) = inspector.connectedSetOf(shipId).toSet()
+    fun getConnected(shipId: ShipId): Set<ShipId> = connectivity.componentOf(shipId)
 
 
 
@@ -103,16 +89,10 @@ object VSJointsTracker: ServerClosable() {
         val shipId1 = screenShipId(joint.shipId0) ?: return
         val shipId2 = screenShipId(joint.shipId1) ?: return
         if (shipId1 == shipId2) {return}
-        val pair = setOf(shipId1, shipId2)
 
-        var count = edgeInfo.getOrPut(pair) { 0 }
-        if (count == 0) {
-            graph.addVertex(shipId1)
-            graph.addVertex(shipId2)
-            graph.addEdge(shipId1, shipId2)
+        if (connectivity.addConnection(shipId1, shipId2) == 1) {
             connectionAdded.emit(OnConnectionAdded(shipId1, shipId2))
         }
-        edgeInfo[pair] = count + 1
     }
 
     @JvmStatic
@@ -131,14 +111,16 @@ object VSJointsTracker: ServerClosable() {
         val joint = joint ?: return
         val shipId1 = screenShipId(joint.shipId0) ?: return
         val shipId2 = screenShipId(joint.shipId1) ?: return
-        val pair = setOf(shipId1, shipId2)
+        if (shipId1 == shipId2) {return}
 
-        var count = edgeInfo.getOrElse(pair) { ELOG("SHOULDN'T BE POSSIBLE. HOW!!!!!!!!!"); return } - 1
-        edgeInfo[pair] = count
+        val count = connectivity.removeConnection(shipId1, shipId2)
+        if (count == -1) {
+            // connections of removed ships are removed with them
+            if (shipId1 in connectivity && shipId2 in connectivity) { ELOG("SHOULDN'T BE POSSIBLE. HOW!!!!!!!!!") }
+            return
+        }
         if (count > 0) {return}
 
-        edgeInfo.remove(pair)
-        graph.removeEdge(shipId1, shipId2)
         connectionRemoved.emit(OnConnectionRemoved(shipId1, shipId2))
     }
 }
\ No newline at end of file
@@ -1,72 +1,285 @@
 package net.spaceeye.vmod.vsStuff
 
+import com.mojang.datafixers.util.Either
+import net.minecraft.Util
+import net.minecraft.nbt.CompoundTag
+import net.minecraft.nbt.ListTag
+import net.minecraft.nbt.LongArrayTag
+import net.minecraft.nbt.Tag
 import net.minecraft.server.MinecraftServer
+import net.minecraft.server.level.ServerLevel
 import net.minecraft.world.level.ChunkPos
+import net.minecraft.world.level.saveddata.SavedData
+import net.spaceeye.vmod.ELOG
+import net.spaceeye.vmod.VM
 import net.spaceeye.vmod.VMConfig
 import net.spaceeye.vmod.events.AVSEvents
 import net.spaceeye.vmod.events.PersistentEvents
 import net.spaceeye.vmod.mixin.ChunkStorageAccessor
 import net.spaceeye.vmod.mixin.IOWorkerAccessor
 import net.spaceeye.vmod.mixin.RegionFileStorageAccessor
+import net.spaceeye.vmod.utils.ServerClosable
 import org.valkyrienskies.core.api.ships.ServerShip
-import org.valkyrienskies.core.impl.game.ships.ShipData
+import org.valkyrienskies.core.api.world.properties.DimensionId
 import org.valkyrienskies.core.util.pollUntilEmpty
+import org.valkyrienskies.mod.common.dimensionId
 import org.valkyrienskies.mod.common.getLevelFromDimensionId
 import org.valkyrienskies.mod.common.getShipManagingPos
 import org.valkyrienskies.mod.common.isChunkInShipyard
 import org.valkyrienskies.mod.common.shipObjectWorld
+import java.nio.file.Files
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentLinkedQueue
-import kotlin.io.path.deleteIfExists
+import java.util.function.Supplier
+import kotlin.io.path.name
 import kotlin.io.path.notExists
 
-object VSShipyardPruner {
+/**
+ * Deletes region files of the shipyard that no ship uses anymore.
+ *
+ * Regions of deleted ships are added to a persistent set of pending regions, which is pruned a bounded batch at a time.
+ * Files are deleted from a task of the level's IOWorker, so deletion is ordered with chunk saves. Regions with pending
+ * writes are moved to the end of the queue until they're written, and regions that fail to be deleted are retried
+ * [MAX_DELETE_ATTEMPTS] times.
+ */
+object VSShipyardPruner: ServerClosable() {
     val toClear = ConcurrentLinkedQueue<ServerShip>()
 
+    class Progress(val pendingRegions: Int, val prunedRegions: Long, val scanning: Boolean)
+
+    private const val MAX_DELETE_ATTEMPTS = 3
+
+    private class BatchResult(val deleted: List<Long>, val skipped: List<Long>, val failed: List<Long>)
+
+    private var data: PrunerData? = null
+    private var batchInFlight = false
+    private var prunedRegions = 0L
+    private val failedAttempts = mutableMapOf<Pair<DimensionId, Long>, Int>()
+    @Volatile private var scan: CompletableFuture<*>? = null
+    // scans that were cancelled or replaced finish with an outdated generation and are ignored
+    @Volatile private var scanGeneration = 0
+
+    override fun close() {
+        toClear.clear()
+        cancel()
+        data = null
+        batchInFlight = false
+        prunedRegions = 0L
+        failedAttempts.clear()
+    }
+
     init {
         AVSEvents.serverShipRemoveEvent.on { (ship), _ ->
             if (!VMConfig.SERVER.SHIPYARD_PRUNER.CLEAR_SHIP_PLOT_ON_DELETION) {return@on}
             toClear.add(ship)
         }
         PersistentEvents.serverAfterTick.on { (server), _ ->
-            if (!VMConfig.SERVER.SHIPYARD_PRUNER.CLEAR_SHIP_PLOT_ON_DELETION) {return@on}
-            if (toClear.isEmpty()) {return@on}
-            val temp = mutableListOf<ServerShip>()
-            val shipWorld = server.shipObjectWorld
-            toClear.pollUntilEmpty { ship ->
-                if (shipWorld.allShips.contains(ship.id)) {
-                    temp.add(ship)
-                    return@pollUntilEmpty
-                }
-                clearId(server, ship)
-            }
-            toClear.addAll(temp)
+            if (toClear.isNotEmpty()) { queueDeletedShips(server) }
+            if (!batchInFlight) { pruneBatch(server) }
         }
     }
 
-    private fun clearId(server: MinecraftServer, ship: ServerShip) {
-        val level = server?.getLevelFromDimensionId(ship.chunkClaimDimension ?: return) ?: return
-        val path = (((level.chunkSource.chunkMap as? ChunkStorageAccessor)?.`vmod$getWorker`() as? IOWorkerAccessor)?.`vmod$getStorage`() as? RegionFileStorageAccessor)?.`vmod$getPath`() ?: return
+    fun progress(server: MinecraftServer) = Progress(getData(server).size(), prunedRegions, scan != null)
+
+    /**
+     * Stops a running scan and forgets regions found by scans that weren't pruned yet. Regions of deleted ships stay.
+     */
+    fun cancel() {
+        scanGeneration++
+        scan = null
+        data?.clearScanned()
+    }
+
+    /**
+     * Finds regions in the shipyard of every level, for worlds where regions were left before pruning on deletion
+     * existed. Directories are listed off-thread, whether region is used is checked when it's pruned.
+     */
+    fun scanAll(server: MinecraftServer): Boolean {
+        if (scan != null) return false
+        val generation = ++scanGeneration
 
-        if (path.notExists()) return
+        val levels = server.allLevels.mapNotNull { level -> regionFolder(level)?.let { Pair(level, it) } }
+        scan = CompletableFuture.supplyAsync({
+            levels.map { (level, path) ->
+                if (scanGeneration != generation || path.notExists()) return@map Pair(level.dimensionId, LongArray(0))
+                val found = Files.list(path).use { files -> files.toList() }
+                    .mapNotNull { parseRegion(it.name) }
+                    .filter { key -> inShipyard(level, ChunkPos.getX(key), ChunkPos.getZ(key)) }
+                Pair(level.dimensionId, found.toLongArray())
+            }
+        }, Util.backgroundExecutor()).thenAcceptAsync({ found ->
+            if (scanGeneration != generation) return@thenAcceptAsync
+            scan = null
+            val data = getData(server)
+            found.forEach { (dimension, regions) -> regions.forEach { data.add(dimension, it, true) } }
+        }, server)
+        return true
+    }
+
+    private fun getData(server: MinecraftServer): PrunerData = data ?: server.overworld().dataStorage
+        .computeIfAbsent(PrunerData::load, ::PrunerData, "${VM.MOD_ID}_shipyard_pruner")
+        .also { data = it }
+
+    private fun regionFolder(level: ServerLevel) = (((level.chunkSource.chunkMap as? ChunkStorageAccessor)?.`vmod$getWorker`() as? IOWorkerAccessor)?.`vmod$getStorage`() as? RegionFileStorageAccessor)?.`vmod$getPath`()
+
+    private fun parseRegion(name: String): Long? {
+        if (!name.startsWith("r.") || !name.endsWith(".mca")) return null
+        val parts = name.removePrefix("r.").removeSuffix(".mca").split(".")
+        if (parts.size != 2) return null
+        return ChunkPos.asLong(parts[0].toIntOrNull() ?: return null, parts[1].toIntOrNull() ?: return null)
+    }
+
+    private fun inShipyard(level: ServerLevel, regionX: Int, regionZ: Int) =
+           ChunkPos.minFromRegion(regionX, regionZ).let { level.isChunkInShipyard(it.x, it.z) }
+        || ChunkPos.maxFromRegion(regionX, regionZ).let { level.isChunkInShipyard(it.x, it.z) }
+
+    // claims are aligned to regions, so a region is either fully inside of a single claim or not claimed at all
+    private fun isUnused(level: ServerLevel, regionX: Int, regionZ: Int) =
+           inShipyard(level, regionX, regionZ)
+        && level.getShipManagingPos(ChunkPos.minFromRegion(regionX, regionZ)) == null
+        && level.getShipManagingPos(ChunkPos.maxFromRegion(regionX, regionZ)) == null
+
+    private fun queueDeletedShips(server: MinecraftServer) {
+        val temp = mutableListOf<ServerShip>()
+        val shipWorld = server.shipObjectWorld
+        val data = getData(server)
+        toClear.pollUntilEmpty { ship ->
+            if (shipWorld.allShips.contains(ship.id)) {
+                temp.add(ship)
+                return@pollUntilEmpty
+            }
+            val claim = ship.chunkClaim
+            val start = ChunkPos(claim.xStart, claim.zStart)
+            val end = ChunkPos(claim.xEnd, claim.zEnd)
+            for (x in start.regionX..end.regionX) {
+            for (z in start.regionZ..end.regionZ) {
+                data.add(ship.chunkClaimDimension, ChunkPos.asLong(x, z))
+            } }
+        }
+        toClear.addAll(temp)
+    }
 
-        val claim = ship.chunkClaim
+    private fun pruneBatch(server: MinecraftServer) {
+        val data = getData(server)
+        val (dimension, regions) = data.takeBatch(VMConfig.SERVER.SHIPYARD_PRUNER.REGIONS_PER_BATCH) ?: return
+        val level = server.getLevelFromDimensionId(dimension)
+        val worker = (level?.chunkSource?.chunkMap as? ChunkStorageAccessor)?.`vmod$getWorker`() as? IOWorkerAccessor
+        if (level == null || worker == null) {
+            regions.forEach { data.remove(dimension, it) }
+            return
+        }
 
-        val start = ChunkPos(claim.xStart, claim.zStart)
-        val end = ChunkPos(claim.xEnd, claim.zEnd)
+        // whether region is used can only be checked on the server thread
+        val unused = regions.filter { isUnused(level, ChunkPos.getX(it), ChunkPos.getZ(it)) }
+        regions.forEach { if (!unused.contains(it)) data.remove(dimension, it) }
+        if (unused.isEmpty()) return
 
-        val regions =   (start.regionX .. end.regionX)
-            .map { x -> (start.regionZ .. end.regionZ)
-                .map { z -> Pair(x, z) } }
-                .flatten()
-                .filter { // just in case
-                (   ChunkPos.minFromRegion(it.first, it.second).let { level.isChunkInShipyard(it.x, it.z) }
-                 || ChunkPos.maxFromRegion(it.first, it.second).let { level.isChunkInShipyard(it.x, it.z) }
-                ) && ChunkPos.minFromRegion(it.first, it.second).let { level.getShipManagingPos(it) == null }
-                  && ChunkPos.maxFromRegion(it.first, it.second).let { level.getShipManagingPos(it) == null }
+        batchInFlight = true
+        val storage = worker.`vmod$getStorage`() as RegionFileStorageAccessor
+        // runs on the IOWorker thread, same as all reads and writes of region files
+        worker.`vmod$submitTask`(Supplier {
+            val pending = worker.`vmod$getPendingWrites`().keys
+            val deleted = mutableListOf<Long>()
+            val skipped = mutableListOf<Long>()
+            val failed = mutableListOf<Long>()
+            for (key in unused) {
+                val x = ChunkPos.getX(key)
+                val z = ChunkPos.getZ(key)
+                if (pending.any { it.regionX == x && it.regionZ == z }) { skipped.add(key); continue }
+                try {
+                    storage.`vmod$getRegionCache`().remove(key)?.close()
+                    Files.deleteIfExists(storage.`vmod$getPath`().resolve("r.$x.$z.mca"))
+                    deleted.add(key)
+                } catch (e: Exception) {
+                    ELOG("Failed to delete shipyard region $x $z of $dimension\n${e.stackTraceToString()}")
+                    failed.add(key)
                 }
+            }
+            Either.left<BatchResult, Exception>(BatchResult(deleted, skipped, failed))
+        }).whenCompleteAsync({ result, e ->
+            batchInFlight = false
+            if (this.data !== data) return@whenCompleteAsync
+            if (e != null) {
+                ELOG("Failed to prune shipyard regions\n${e.stackTraceToString()}")
+                unused.forEach { data.moveToEnd(dimension, it) }
+                return@whenCompleteAsync
+            }
+            result.deleted.forEach { data.remove(dimension, it); failedAttempts.remove(Pair(dimension, it)) }
+            prunedRegions += result.deleted.size
+            // so that they don't block the rest of the queue
+            result.skipped.forEach { data.moveToEnd(dimension, it) }
+            result.failed.forEach {
+                val attempts = failedAttempts.merge(Pair(dimension, it), 1) { a, b -> a + b }!!
+                if (attempts < MAX_DELETE_ATTEMPTS) { data.moveToEnd(dimension, it); return@forEach }
+                ELOG("Giving up on deleting shipyard region ${ChunkPos.getX(it)} ${ChunkPos.getZ(it)} of $dimension")
+                failedAttempts.remove(Pair(dimension, it))
+                data.remove(dimension, it)
+            }
+        }, server)
+    }
+
+    class PrunerData: SavedData() {
+        // region -> true if it was found by a scan and not by deleting a ship
+        private val pending = LinkedHashMap<DimensionId, LinkedHashMap<Long, Boolean>>()
+
+        fun size() = pending.values.sumOf { it.size }
+
+        fun add(dimension: DimensionId, region: Long, scanned: Boolean = false) {
+            val regions = pending.getOrPut(dimension) { LinkedHashMap() }
+            val old = regions[region]
+            // region of a deleted ship stays even if scan results are discarded
+            if (old == null || old && !scanned) { regions[region] = scanned; setDirty() }
+        }
+
+        fun remove(dimension: DimensionId, region: Long) {
+            val regions = pending[dimension] ?: return
+            if (regions.remove(region) != null) { setDirty() }
+            if (regions.isEmpty()) { pending.remove(dimension) }
+        }
 
-        for ((x, z) in regions) {
-            path.resolve("r.${x}.${z}.mca").deleteIfExists()
+        fun moveToEnd(dimension: DimensionId, region: Long) {
+            val regions = pending[dimension] ?: return
+            regions[region] = regions.remove(region) ?: return
+        }
+
+        fun clearScanned() {
+            var changed = false
+            pending.values.forEach { regions -> if (regions.values.removeIf { it }) { changed = true } }
+            pending.values.removeIf { it.isEmpty() }
+            if (changed) { setDirty() }
+        }
+
+        // regions stay pending until they're pruned, dimensions take turns
+        fun takeBatch(size: Int): Pair<DimensionId, List<Long>>? {
+            val (dimension, regions) = pending.entries.firstOrNull() ?: return null
+            pending.remove(dimension)
+            pending[dimension] = regions
+            return Pair(dimension, regions.keys.take(size))
+        }
+
+        override fun save(tag: CompoundTag): CompoundTag {
+            val list = ListTag()
+            pending.forEach { (dimension, regions) ->
+                list.add(CompoundTag().also {
+                    it.putString("dimension", dimension)
+                    it.put("regions", LongArrayTag(regions.filterValues { !it }.keys.toLongArray()))
+                    it.put("scanned", LongArrayTag(regions.filterValues { it }.keys.toLongArray()))
+                })
+            }
+            tag.put("pending", list)
+            return tag
+        }
+
+        companion object {
+            fun load(tag: CompoundTag) = PrunerData().also { data ->
+                tag.getList("pending", Tag.TAG_COMPOUND.toInt()).forEach {
+                    it as CompoundTag
+                    val dimension = it.getString("dimension")
+                    val regions = data.pending.getOrPut(dimension) { LinkedHashMap() }
+                    it.getLongArray("regions").forEach { region -> regions[region] = false }
+                    it.getLongArray("scanned").forEach { region -> regions.putIfAbsent(region, true) }
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}